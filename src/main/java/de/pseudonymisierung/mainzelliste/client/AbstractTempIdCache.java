@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Base class of the caches that hold the temp-ids of a {@link Session}.
+ * Implementations must be thread safe.
+ * 
+ * @see TempIdCache
+ * @see CompactTempIdCache
+ * @see Session#setTempIdCache(AbstractTempIdCache)
+ */
+public abstract class AbstractTempIdCache {
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder expirations = new LongAdder();
+    final LongAdder exhaustions = new LongAdder();
+
+    /**
+     * Create a cache. Only subclasses in this package can be created.
+     */
+    AbstractTempIdCache() {
+    }
+
+    /**
+     * Look up a temp-id. If uses are counted, a successful lookup counts as one
+     * use.
+     * 
+     * @param key
+     *            The patient and token shape.
+     * @param recordStats
+     *            Whether to count the lookup in the hit and miss statistics.
+     * @return The cached temp-id or null if none is cached, or the cached one
+     *         has expired or is exhausted.
+     */
+    abstract String get(TempIdKey key, boolean recordStats);
+
+    /**
+     * Get all cached temp-ids of a patient, regardless of token shape, without
+     * counting a use or updating statistics.
+     * 
+     * @param id
+     *            A permanent identifier.
+     * @return The cached temp-ids, including expired or exhausted ones.
+     */
+    abstract List<String> tempIdsOf(ID id);
+
+    /**
+     * Add a temp-id to the cache, replacing any previous temp-id of the same
+     * patient and token shape.
+     * 
+     * @param key
+     *            The patient and token shape, which includes the number of
+     *            allowed uses of the temp-id.
+     * @param tempId
+     *            The temp-id created for key.
+     * @param handedOut
+     *            Whether the temp-id is handed out immediately, which counts
+     *            as its first use.
+     */
+    abstract void put(TempIdKey key, String tempId, boolean handedOut);
+
+    /**
+     * Remove a temp-id. The mapping from the temp-id to the patient is kept,
+     * so that stale temp-ids (e.g. in URLs visited again by the "back" button)
+     * can still be resolved.
+     * 
+     * @param tempId
+     *            The temp-id to remove.
+     */
+    abstract void remove(String tempId);
+
+    /**
+     * Get the patient to which a temp-id belongs.
+     * 
+     * @param tempId
+     *            A temp-id.
+     * @return The permanent identifier or null if the temp-id is unknown.
+     */
+    abstract ID getId(String tempId);
+
+    /**
+     * Get all temp-ids known to this cache.
+     * 
+     * @return A live view of the temp-ids.
+     */
+    abstract Set<String> tempIds();
+
+    /**
+     * Get all permanent identifiers for which temp-ids are cached.
+     * 
+     * @return A snapshot of the identifiers.
+     */
+    abstract Set<ID> ids();
+
+    /**
+     * Remove entries that are no longer needed, e.g. expired temp-ids, to
+     * free memory early.
+     */
+    public abstract void cleanUp();
+
+    /**
+     * Get the number of cached temp-ids.
+     * 
+     * @return The number of entries.
+     */
+    public abstract int size();
+
+    /**
+     * Get the maximum number of cached temp-ids.
+     * 
+     * @return The maximum size of this cache.
+     */
+    public abstract int getMaximumSize();
+
+    /**
+     * Get the number of lookups that returned a cached temp-id.
+     * 
+     * @return The number of cache hits.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Get the number of lookups that did not return a cached temp-id, because
+     * none was cached or the cached one had expired or was exhausted.
+     * 
+     * @return The number of cache misses.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Get the number of entries that were evicted because the cache was full.
+     * 
+     * @return The number of evictions.
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Get the number of entries that were removed because their time to live
+     * had elapsed.
+     * 
+     * @return The number of expired entries.
+     */
+    public long getExpirationCount() {
+        return expirations.sum();
+    }
+
+    /**
+     * Get the number of lookups that found an exhausted temp-id.
+     * 
+     * @return The number of lookups of exhausted temp-ids.
+     */
+    public long getExhaustionCount() {
+        return exhaustions.sum();
+    }
+}
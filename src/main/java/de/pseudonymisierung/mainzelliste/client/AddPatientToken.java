@@ -184,4 +184,36 @@ public class AddPatientToken extends Token {
         }
     }
 
+    @Override
+    public void writeJSON(JsonWriter out) {
+        out.beginObject();
+        out.name("type").value("addPatient");
+        out.name("data").beginObject();
+        if (this.callback != null)
+            out.name("callback").value(this.callback.toString());
+        if (this.redirect != null)
+            out.name("redirect").value(this.redirect);
+        if (this.idTypes.size() > 0) {
+            out.name("idTypes").beginArray();
+            for (String thisIdType : this.idTypes)
+                out.value(thisIdType);
+            out.endArray();
+        }
+        if (this.fields.size() > 0) {
+            out.name("fields").beginObject();
+            for (Map.Entry<String, String> field : fields.entrySet())
+                out.name(field.getKey()).value(field.getValue());
+            out.endObject();
+        }
+        if (this.externalIds.size() > 0) {
+            out.name("ids").beginObject();
+            for (Map.Entry<String, String> externalId : externalIds.entrySet())
+                out.name(externalId.getKey()).value(externalId.getValue());
+            out.endObject();
+        }
+        writeAuditTrailLog(out);
+        out.endObject();
+        out.endObject();
+    }
+
 }
@@ -0,0 +1,556 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.ContentTooLongException;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.ManagedNHttpClientConnectionFactory;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.entity.ContentBufferEntity;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.nio.util.HeapByteBufferAllocator;
+import org.apache.http.nio.util.SimpleInputBuffer;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * {@link Transport} based on Apache HttpClient. Blocking requests are made by
+ * a {@link CloseableHttpClient}, asynchronous requests by a non-blocking
+ * {@link CloseableHttpAsyncClient}, which is started on first use. If the
+ * caller provides only a blocking client, asynchronous requests are made by
+ * that client on background threads, so that they use the same proxy, TLS and
+ * authentication settings.
+ */
+public class ApacheHttpTransport implements Transport {
+
+    /**
+     * Maximum number of background threads on which a caller-supplied
+     * blocking client makes asynchronous requests. This is the default limit
+     * of connections of a client created by {@link HttpClientBuilder}.
+     */
+    private static final int MAX_EXECUTOR_THREADS = 20;
+
+    /**
+     * HTTP client through which blocking requests are made.
+     */
+    private final CloseableHttpClient httpClient;
+
+    /**
+     * Connection pool of {@link #httpClient} if it is managed by this object,
+     * null if the Http client was provided by the caller.
+     */
+    private final PoolingHttpClientConnectionManager connectionManager;
+
+    /**
+     * Settings used for the connection pool of {@link #asyncClient}, null if
+     * the Http client was provided by the caller.
+     */
+    private final ConnectionPoolSettings poolSettings;
+
+    /**
+     * Connection pool of {@link #asyncClient} if it is managed by this object
+     * and has been created, null otherwise.
+     */
+    private volatile PoolingNHttpClientConnectionManager asyncConnectionManager;
+
+    /**
+     * Periodic eviction of idle and expired connections from
+     * {@link #asyncConnectionManager}, null if there is none.
+     */
+    private ScheduledFuture<?> asyncEviction;
+
+    /**
+     * Non-blocking HTTP client for asynchronous requests. Created on first use
+     * if the Http clients are managed by this object, null if asynchronous
+     * requests are run on {@link #executor}.
+     */
+    private CloseableHttpAsyncClient asyncClient;
+
+    /**
+     * Whether {@link #asyncClient} was provided by the caller.
+     */
+    private final boolean callerAsyncClient;
+
+    /**
+     * Runs asynchronous requests on {@link #httpClient} if the caller provided
+     * no non-blocking client. Created on first use.
+     */
+    private ExecutorService executor;
+
+    /**
+     * Whether {@link #close()} has been called.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Create a transport with a managed connection pool. Idle and expired
+     * connections are evicted by a background thread, which is stopped by
+     * {@link #close()}. Asynchronous requests are made on a second pool with
+     * the same settings, which is created on first use.
+     * 
+     * @param poolSettings
+     *            Limits and timeouts of the connection pool.
+     */
+    public ApacheHttpTransport(ConnectionPoolSettings poolSettings) {
+        this(createConnectionManager(poolSettings), poolSettings);
+    }
+
+    /**
+     * Create a transport with a provided Http client. This constructor should
+     * be used if special properties have to be set for Http connections (e.g.
+     * a proxy server). The client is not closed by {@link #close()}.
+     * Asynchronous requests are made by the same client on at most 20
+     * background threads, further requests wait until a thread is free; use
+     * {@link #ApacheHttpTransport(CloseableHttpClient, CloseableHttpAsyncClient)}
+     * to make them without blocking threads.
+     * 
+     * @param httpClient
+     *            A CloseableHttpClient instance.
+     */
+    public ApacheHttpTransport(CloseableHttpClient httpClient) {
+        this(httpClient, null, null, null);
+    }
+
+    /**
+     * Create a transport with provided Http clients for blocking and
+     * asynchronous requests, which should be configured alike. The
+     * non-blocking client is started on first use if it is not running.
+     * Neither client is closed by {@link #close()}.
+     * 
+     * @param httpClient
+     *            Client for blocking requests.
+     * @param asyncClient
+     *            Client for asynchronous requests.
+     */
+    public ApacheHttpTransport(CloseableHttpClient httpClient, CloseableHttpAsyncClient asyncClient) {
+        this(httpClient, null, null, asyncClient);
+        if (asyncClient == null)
+            throw new NullPointerException("asyncClient passed to ApacheHttpTransport is null!");
+    }
+
+    private ApacheHttpTransport(PoolingHttpClientConnectionManager connectionManager,
+            ConnectionPoolSettings poolSettings) {
+        this(createHttpClient(connectionManager, poolSettings), connectionManager, poolSettings, null);
+    }
+
+    private ApacheHttpTransport(CloseableHttpClient httpClient, PoolingHttpClientConnectionManager connectionManager,
+            ConnectionPoolSettings poolSettings, CloseableHttpAsyncClient asyncClient) {
+        if (httpClient == null)
+            throw new NullPointerException("httpClient passed to ApacheHttpTransport is null!");
+        this.httpClient = httpClient;
+        this.connectionManager = connectionManager;
+        this.poolSettings = poolSettings;
+        this.asyncClient = asyncClient;
+        this.callerAsyncClient = asyncClient != null;
+    }
+
+    private static PoolingHttpClientConnectionManager createConnectionManager(ConnectionPoolSettings poolSettings) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+                poolSettings.getTimeToLive(), TimeUnit.MILLISECONDS);
+        connectionManager.setMaxTotal(poolSettings.getMaxTotal());
+        connectionManager.setDefaultMaxPerRoute(poolSettings.getMaxPerRoute());
+        connectionManager.setValidateAfterInactivity(poolSettings.getValidateAfterInactivity());
+        return connectionManager;
+    }
+
+    private static CloseableHttpClient createHttpClient(PoolingHttpClientConnectionManager connectionManager,
+            ConnectionPoolSettings poolSettings) {
+        return HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectionRequestTimeout(poolSettings.getConnectionRequestTimeout())
+                        .build())
+                .evictExpiredConnections()
+                .evictIdleConnections(poolSettings.getMaxIdleTime(), TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    @Override
+    public MainzellisteResponse execute(TransportRequest request) throws MainzellisteNetworkException {
+        ensureOpen();
+        // Closing the response releases the connection back to the pool, also
+        // if reading the entity fails
+        try (CloseableHttpResponse httpResponse = httpClient.execute(toHttpRequest(request))) {
+            return new MainzellisteResponse(httpResponse, request.isStatusOnly(), request.getMaxResponseSize());
+        } catch (MainzellisteNetworkException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new MainzellisteNetworkException("Error while performing a " + request.getMethod()
+                    + " request to " + request.getUri(), t);
+        }
+    }
+
+    /**
+     * {@inheritDoc} The entity is decoded with the charset of the response,
+     * UTF-8 by default. If the handler reads the entity completely, the
+     * connection is reused; otherwise, e.g. if the handler throws an
+     * exception, the connection is closed, so that the remaining entity need
+     * not be received.
+     */
+    @Override
+    public <T> T execute(TransportRequest request, ResponseHandler<T> handler) throws MainzellisteNetworkException {
+        ensureOpen();
+        try (CloseableHttpResponse httpResponse = httpClient.execute(toHttpRequest(request))) {
+            int statusCode = httpResponse.getStatusLine().getStatusCode();
+            HttpEntity entity = httpResponse.getEntity();
+            InputStream in = entity == null ? null : entity.getContent();
+            if (in == null)
+                return handler.handle(statusCode, new StringReader(""));
+            ContentType contentType = ContentType.get(entity);
+            Charset charset = contentType != null ? contentType.getCharset() : null;
+            T result = handler.handle(statusCode,
+                    new InputStreamReader(in, charset != null ? charset : StandardCharsets.UTF_8));
+            EntityUtils.consume(entity);
+            return result;
+        } catch (IOException e) {
+            throw new MainzellisteNetworkException("Error while performing a " + request.getMethod()
+                    + " request to " + request.getUri(), e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws IllegalStateException
+     *             If this transport has been closed.
+     */
+    @Override
+    public CompletableFuture<MainzellisteResponse> executeAsync(TransportRequest request) {
+        ensureOpen();
+        if (poolSettings == null && !callerAsyncClient)
+            return executeOnExecutor(request);
+        CompletableFuture<MainzellisteResponse> future = new CompletableFuture<MainzellisteResponse>();
+        try {
+            getAsyncClient().execute(HttpAsyncMethods.create(toHttpRequest(request)),
+                    new BoundedResponseConsumer(request), new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse httpResponse) {
+                    try {
+                        future.complete(new MainzellisteResponse(httpResponse, request.isStatusOnly(),
+                                request.getMaxResponseSize()));
+                    } catch (MainzellisteNetworkException e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    future.completeExceptionally(new MainzellisteNetworkException("Error while performing a "
+                            + request.getMethod() + " request to " + request.getUri(), e));
+                }
+
+                @Override
+                public void cancelled() {
+                    future.cancel(false);
+                }
+            });
+        } catch (Throwable t) {
+            future.completeExceptionally(new MainzellisteNetworkException("Error while performing a "
+                    + request.getMethod() + " request to " + request.getUri(), t));
+        }
+        return future;
+    }
+
+    /**
+     * Make an asynchronous request by the blocking client on a background
+     * thread.
+     * 
+     * @param request
+     *            The request to execute.
+     * @return A future of the response.
+     */
+    private CompletableFuture<MainzellisteResponse> executeOnExecutor(TransportRequest request) {
+        CompletableFuture<MainzellisteResponse> future = new CompletableFuture<MainzellisteResponse>();
+        try {
+            getExecutor().execute(() -> {
+                try {
+                    future.complete(execute(request));
+                } catch (MainzellisteNetworkException e) {
+                    future.completeExceptionally(e);
+                } catch (Throwable t) { // IllegalStateException after close
+                    future.completeExceptionally(new MainzellisteNetworkException("Error while performing a "
+                            + request.getMethod() + " request to " + request.getUri(), t));
+                }
+            });
+        } catch (Throwable t) {
+            future.completeExceptionally(new MainzellisteNetworkException("Error while performing a "
+                    + request.getMethod() + " request to " + request.getUri(), t));
+        }
+        return future;
+    }
+
+    /**
+     * Buffers the response entity of an asynchronous request in memory, up to
+     * the maximum response size of the request. The entity of a successful
+     * status-only request is dropped while it is received.
+     */
+    private static final class BoundedResponseConsumer extends AbstractAsyncResponseConsumer<HttpResponse> {
+
+        private final TransportRequest request;
+        private HttpResponse response;
+        /** Buffer for the entity, null if it is discarded. */
+        private SimpleInputBuffer buffer;
+        /** Number of entity bytes received. */
+        private long received;
+
+        BoundedResponseConsumer(TransportRequest request) {
+            this.request = request;
+        }
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+            int status = response.getStatusLine().getStatusCode();
+            if (request.isStatusOnly() && status >= 200 && status < 300) {
+                response.setEntity(null);
+                return;
+            }
+            long length = entity.getContentLength();
+            if (length > request.getMaxResponseSize())
+                throw new ContentTooLongException(
+                        MainzellisteResponse.tooLarge(length, request.getMaxResponseSize()).getMessage());
+            buffer = new SimpleInputBuffer(length > 0 && length <= 1 << 20 ? (int) length : 4096, HeapByteBufferAllocator.INSTANCE);
+            response.setEntity(new ContentBufferEntity(entity, buffer));
+        }
+
+        @Override
+        protected void onContentReceived(ContentDecoder decoder, IOControl ioControl) throws IOException {
+            if (buffer == null) {
+                ByteBuffer discard = ByteBuffer.allocate(4096);
+                while (decoder.read(discard) > 0)
+                    discard.clear();
+                return;
+            }
+            received += buffer.consumeContent(decoder);
+            if (received > request.getMaxResponseSize())
+                throw new ContentTooLongException(
+                        MainzellisteResponse.tooLarge(received, request.getMaxResponseSize()).getMessage());
+        }
+
+        @Override
+        protected HttpResponse buildResult(HttpContext context) {
+            return response;
+        }
+
+        @Override
+        protected void releaseResources() {
+            response = null;
+            buffer = null;
+        }
+    }
+
+    /**
+     * Get the non-blocking HTTP client, starting it on first use.
+     * 
+     * @return The started client.
+     * @throws IOReactorException
+     *             If the IO reactor of a managed client cannot be created.
+     */
+    private synchronized CloseableHttpAsyncClient getAsyncClient() throws IOReactorException {
+        ensureOpen();
+        if (callerAsyncClient) {
+            if (!asyncClient.isRunning())
+                asyncClient.start();
+        } else if (asyncClient == null) {
+            PoolingNHttpClientConnectionManager connectionManager = createAsyncConnectionManager(poolSettings);
+            asyncClient = HttpAsyncClients.custom()
+                    .setConnectionManager(connectionManager)
+                    .setDefaultRequestConfig(RequestConfig.custom()
+                            .setConnectionRequestTimeout(poolSettings.getConnectionRequestTimeout())
+                            .build())
+                    .build();
+            asyncClient.start();
+            asyncConnectionManager = connectionManager;
+            long maxIdleTime = poolSettings.getMaxIdleTime();
+            asyncEviction = Futures.scheduleWithFixedDelay(() -> {
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(maxIdleTime, TimeUnit.MILLISECONDS);
+            }, maxIdleTime, maxIdleTime);
+        }
+        return asyncClient;
+    }
+
+    private static PoolingNHttpClientConnectionManager createAsyncConnectionManager(
+            ConnectionPoolSettings poolSettings) throws IOReactorException {
+        PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(
+                new DefaultConnectingIOReactor(), ManagedNHttpClientConnectionFactory.INSTANCE,
+                RegistryBuilder.<SchemeIOSessionStrategy>create()
+                        .register("http", NoopIOSessionStrategy.INSTANCE)
+                        .register("https", SSLIOSessionStrategy.getDefaultStrategy())
+                        .build(),
+                DefaultSchemePortResolver.INSTANCE, SystemDefaultDnsResolver.INSTANCE,
+                poolSettings.getTimeToLive(), TimeUnit.MILLISECONDS);
+        connectionManager.setMaxTotal(poolSettings.getMaxTotal());
+        connectionManager.setDefaultMaxPerRoute(poolSettings.getMaxPerRoute());
+        return connectionManager;
+    }
+
+    /**
+     * Get the executor for asynchronous requests on the blocking client,
+     * creating it on first use. Up to {@link #MAX_EXECUTOR_THREADS} threads
+     * are created as needed and end after one minute of inactivity; further
+     * requests are queued.
+     * 
+     * @return The executor.
+     */
+    private synchronized ExecutorService getExecutor() {
+        ensureOpen();
+        if (executor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_EXECUTOR_THREADS, MAX_EXECUTOR_THREADS, 1,
+                    TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(), r -> {
+                        Thread t = new Thread(r, "mainzelliste-http-" + threadCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        return executor;
+    }
+
+    /**
+     * Check that this transport has not been closed.
+     * 
+     * @throws IllegalStateException
+     *             If this transport has been closed.
+     */
+    private void ensureOpen() {
+        if (closed)
+            throw new IllegalStateException("ApacheHttpTransport is closed");
+    }
+
+    /**
+     * Convert a request to an Apache Http request.
+     * 
+     * @param request
+     *            The request to convert.
+     * @return The Http request.
+     */
+    private static HttpUriRequest toHttpRequest(TransportRequest request) {
+        RequestBuilder builder = RequestBuilder.create(request.getMethod().name()).setUri(request.getUri());
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet())
+            builder.setHeader(header.getKey(), header.getValue());
+        if (request.getBodyBuffer() != null)
+            builder.setEntity(new ByteArrayEntity(request.getBodyBuffer(), 0, request.getBodyLength()));
+        return builder.build();
+    }
+
+    /**
+     * Get statistics of the managed connection pools. Once asynchronous
+     * requests have been made, the statistics are the sums over the pools of
+     * the blocking and the non-blocking client, so the maximum number of
+     * connections doubles.
+     * 
+     * @return Number of leased, pending, available and maximum connections, or
+     *         null if this transport uses an Http client provided by the
+     *         caller.
+     */
+    public PoolStats getPoolStats() {
+        if (connectionManager == null)
+            return null;
+        PoolStats stats = connectionManager.getTotalStats();
+        PoolingNHttpClientConnectionManager asyncManager = asyncConnectionManager;
+        if (asyncManager == null)
+            return stats;
+        PoolStats asyncStats = asyncManager.getTotalStats();
+        return new PoolStats(stats.getLeased() + asyncStats.getLeased(),
+                stats.getPending() + asyncStats.getPending(), stats.getAvailable() + asyncStats.getAvailable(),
+                stats.getMax() + asyncStats.getMax());
+    }
+
+    /**
+     * Close this transport. If the Http clients are managed by this object,
+     * they are shut down together with their connection pools and the
+     * background evictor. Http clients provided by the caller are left open,
+     * but not used by this transport anymore. Further requests fail with an
+     * {@link IllegalStateException}.
+     * 
+     * @throws IOException
+     *             If an IO error occurs while closing the Http client.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            if (executor != null)
+                executor.shutdown();
+            if (asyncEviction != null)
+                asyncEviction.cancel(false);
+            if (asyncClient != null && !callerAsyncClient)
+                asyncClient.close();
+        }
+        if (connectionManager != null)
+            httpClient.close();
+    }
+}
@@ -48,4 +48,19 @@ public class AuditTrailLog {
     jsonObject.put("reasonForChange", this.getReasonForChange());
     return jsonObject;
   }
+
+  /**
+   * Write the instance data as JSON, omitting members that are null like {@link #toJSON()}.
+   * @param out the writer to write to
+   */
+  void writeJSON(JsonWriter out) {
+    out.beginObject();
+    if (this.getUsername() != null)
+      out.name("username").value(this.getUsername());
+    if (this.getRemoteSystem() != null)
+      out.name("remoteSystem").value(this.getRemoteSystem());
+    if (this.getReasonForChange() != null)
+      out.name("reasonForChange").value(this.getReasonForChange());
+    out.endObject();
+  }
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Result of a batch operation that processes several keys independently. The
+ * map itself contains the results for all keys that were processed
+ * successfully; exceptions for keys that failed are available via
+ * {@link #getFailures()}, so that a single failure does not abort the whole
+ * batch.
+ * 
+ * @param <K>
+ *            Type of the keys.
+ * @param <V>
+ *            Type of the results.
+ */
+public class BatchResult<K, V> extends LinkedHashMap<K, V> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Exceptions of the keys that failed.
+     */
+    private final Map<K, Exception> failures = new LinkedHashMap<K, Exception>();
+
+    /**
+     * Record a failure for a key.
+     * 
+     * @param key
+     *            The key that could not be processed.
+     * @param e
+     *            The cause of the failure.
+     */
+    void addFailure(K key, Exception e) {
+        failures.put(key, e);
+    }
+
+    /**
+     * Get the keys that could not be processed together with the respective
+     * exceptions. Typical exceptions are {@link MainzellisteNetworkException}
+     * and {@link InvalidSessionException}.
+     * 
+     * @return An unmodifiable map of keys to exceptions. Empty if all keys
+     *         were processed successfully.
+     */
+    public Map<K, Exception> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * Check whether all keys were processed successfully.
+     * 
+     * @return True if no failures occurred, false otherwise.
+     */
+    public boolean isComplete() {
+        return failures.isEmpty();
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import de.pseudonymisierung.mainzelliste.client.MainzellisteConnection.Operation;
+
+/**
+ * Limits the number of concurrent requests of one operation type, so that
+ * one type of operation cannot take all connections and threads. Synchronous
+ * and asynchronous requests wait in one queue in the order of their arrival.
+ */
+final class Bulkhead {
+
+    private final Operation operation;
+    private final int maxConcurrentCalls;
+    /** Time in milliseconds to wait for a permit. */
+    private final long maxWait;
+    /** Number of permits taken. */
+    private int taken;
+    /**
+     * Waiting requests, completed when a permit is handed over to them.
+     */
+    private final ArrayDeque<CompletableFuture<Void>> queue = new ArrayDeque<CompletableFuture<Void>>();
+
+    Bulkhead(Operation operation, int maxConcurrentCalls, long maxWait) {
+        this.operation = operation;
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.maxWait = maxWait;
+    }
+
+    int getMaxConcurrentCalls() {
+        return maxConcurrentCalls;
+    }
+
+    /**
+     * Take a permit, waiting up to the maximum wait time.
+     * 
+     * @throws BulkheadFullException
+     *             If no permit became available in time.
+     * @throws MainzellisteNetworkException
+     *             If the thread is interrupted while waiting.
+     */
+    void acquire() throws MainzellisteNetworkException {
+        CompletableFuture<Void> permit = enqueue();
+        if (permit == null)
+            return;
+        try {
+            permit.get(maxWait, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // Otherwise the permit was handed over just now
+            if (cancel(permit))
+                throw new BulkheadFullException(operation, maxConcurrentCalls);
+        } catch (InterruptedException e) {
+            if (!cancel(permit))
+                release();
+            Thread.currentThread().interrupt();
+            throw new MainzellisteNetworkException("Interrupted while waiting for a " + operation + " request", e);
+        } catch (ExecutionException e) {
+            throw new MainzellisteNetworkException(e.getCause());
+        }
+    }
+
+    /**
+     * Take a permit without blocking, waiting up to the maximum wait time.
+     * 
+     * @return A future that is completed when the permit has been taken, or
+     *         completed exceptionally with a {@link BulkheadFullException}.
+     */
+    CompletableFuture<Void> acquireAsync() {
+        CompletableFuture<Void> permit;
+        try {
+            permit = enqueue();
+        } catch (BulkheadFullException e) {
+            return Futures.failed(e);
+        }
+        if (permit == null)
+            return CompletableFuture.completedFuture(null);
+        ScheduledFuture<?> timeout = Futures.schedule(() -> {
+            if (cancel(permit))
+                permit.completeExceptionally(new BulkheadFullException(operation, maxConcurrentCalls));
+        }, maxWait);
+        permit.thenRun(() -> timeout.cancel(false));
+        return permit;
+    }
+
+    /**
+     * Take a permit if one is free, or join the queue.
+     * 
+     * @return Null if a permit was taken, otherwise a future that is
+     *         completed when a permit is handed over.
+     * @throws BulkheadFullException
+     *             If no permit is free and requests do not wait.
+     */
+    private synchronized CompletableFuture<Void> enqueue() throws BulkheadFullException {
+        if (taken < maxConcurrentCalls && queue.isEmpty()) {
+            taken++;
+            return null;
+        }
+        if (maxWait <= 0)
+            throw new BulkheadFullException(operation, maxConcurrentCalls);
+        CompletableFuture<Void> permit = new CompletableFuture<Void>();
+        queue.add(permit);
+        return permit;
+    }
+
+    /**
+     * Stop waiting for a permit.
+     * 
+     * @return True if the request was still waiting, false if a permit has
+     *         been handed over meanwhile.
+     */
+    private synchronized boolean cancel(CompletableFuture<Void> permit) {
+        return queue.remove(permit);
+    }
+
+    /**
+     * Give back a permit, handing it over to the first waiting request.
+     */
+    void release() {
+        CompletableFuture<Void> next;
+        synchronized (this) {
+            next = queue.poll();
+            if (next == null)
+                taken--;
+        }
+        // Complete outside the lock, as the request starts right away
+        if (next != null)
+            next.complete(null);
+    }
+}
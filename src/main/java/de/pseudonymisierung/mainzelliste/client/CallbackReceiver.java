@@ -0,0 +1,525 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Receives the callback requests that Mainzelliste makes after creating a
+ * patient with an "addPatient" token (see
+ * {@link AddPatientToken#callback(URL)}) and completes a future per token.
+ * All connections are served by one thread with non-blocking IO, so any
+ * number of pending creations can be awaited without a thread per token.
+ * 
+ * <pre>
+ * CallbackReceiver receiver = new CallbackReceiver(8081);
+ * String tokenId = session.getToken(new AddPatientToken().callback(receiver.getCallbackUrl()));
+ * receiver.register(tokenId, 30, TimeUnit.MINUTES).thenAccept(callback -&gt; store(callback.getPatient()));
+ * </pre>
+ * 
+ * The receiver understands plain HTTP/1.1 POST requests with a JSON entity
+ * and a Content-Length header, as sent by Mainzelliste, on any path. Token ids
+ * are random, so a callback can only be forged by someone who knows the token
+ * id. Callbacks for tokens that have not been registered yet (e.g. because
+ * the token was redeemed before {@link #register(String)} was called) are
+ * kept until they are registered; at most 10000 of them, dropping the oldest.
+ */
+public class CallbackReceiver implements Closeable {
+
+    /** Maximum size of a callback request including headers. */
+    private static final int MAX_REQUEST_SIZE = 64 * 1024;
+    /** Maximum number of callbacks kept for tokens that are not registered. */
+    private static final int MAX_UNCLAIMED = 10000;
+
+    /**
+     * A registered token.
+     */
+    private static final class Pending implements Delayed {
+        private final String tokenId;
+        private final long deadline;
+        private final CompletableFuture<PatientCallback> future = new CompletableFuture<PatientCallback>();
+
+        Pending(String tokenId, long deadline) {
+            this.tokenId = tokenId;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(deadline, ((Pending) o).deadline);
+        }
+    }
+
+    /**
+     * State of a connection: the request read so far and the response still
+     * to be written.
+     */
+    private final class Exchange {
+        private ByteBuffer in = ByteBuffer.allocate(1024);
+        private ByteBuffer out;
+
+        /**
+         * Process the request if it is complete.
+         * 
+         * @return The response, or null if more data is needed.
+         */
+        byte[] process() {
+            byte[] data = in.array();
+            int length = in.position();
+            int headerEnd = -1;
+            for (int i = 3; i < length; i++) {
+                if (data[i] == '\n' && data[i - 1] == '\r' && data[i - 2] == '\n' && data[i - 3] == '\r') {
+                    headerEnd = i + 1;
+                    break;
+                }
+            }
+            if (headerEnd < 0)
+                return length < MAX_REQUEST_SIZE ? null : response(413, "Payload Too Large");
+            String[] header = new String(data, 0, headerEnd, StandardCharsets.ISO_8859_1).split("\r\n");
+            if (!header[0].startsWith("POST "))
+                return response(405, "Method Not Allowed");
+            long contentLength = -1;
+            for (int i = 1; i < header.length; i++) {
+                int colon = header[i].indexOf(':');
+                if (colon < 0)
+                    continue;
+                String name = header[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String value = header[i].substring(colon + 1).trim();
+                if (name.equals("content-length")) {
+                    try {
+                        contentLength = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        return response(400, "Bad Request");
+                    }
+                }
+            }
+            if (contentLength < 0)
+                return response(411, "Length Required");
+            if (headerEnd + contentLength > MAX_REQUEST_SIZE)
+                return response(413, "Payload Too Large");
+            if (length < headerEnd + contentLength)
+                return null;
+            String body = new String(data, headerEnd, (int) contentLength, StandardCharsets.UTF_8);
+            PatientCallback callback;
+            try {
+                callback = parse(body);
+            } catch (MainzellisteNetworkException e) {
+                return response(400, "Bad Request");
+            }
+            if (callback == null)
+                return response(400, "Bad Request");
+            deliver(callback);
+            return response(200, "OK");
+        }
+    }
+
+    /** Listening socket. */
+    private final ServerSocketChannel server;
+    /** Selector of the listening socket and all connections. */
+    private final Selector selector;
+    /** Thread that serves all connections. */
+    private final Thread thread;
+    /** Executor that completes the futures. */
+    private final Executor executor;
+    /** URL to which Mainzelliste should make callbacks. */
+    private final URL callbackUrl;
+    /** Registered tokens by token id. */
+    private final ConcurrentMap<String, Pending> pending = new ConcurrentHashMap<String, Pending>();
+    /** Registered tokens with a timeout, ordered by deadline. */
+    private final DelayQueue<Pending> deadlines = new DelayQueue<Pending>();
+    /**
+     * Callbacks for tokens that are not registered, by token id. Also guards
+     * the transfer of tokens between this map and {@link #pending}.
+     */
+    private final Map<String, PatientCallback> unclaimed = new LinkedHashMap<String, PatientCallback>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PatientCallback> eldest) {
+            return size() > MAX_UNCLAIMED;
+        }
+    };
+    /** Whether {@link #close()} has been called. */
+    private volatile boolean closed;
+
+    /**
+     * Start a receiver on the given port of all local addresses.
+     * 
+     * @param port
+     *            The port, or 0 for any free port.
+     * @throws IOException
+     *             If the port cannot be bound.
+     */
+    public CallbackReceiver(int port) throws IOException {
+        this(new InetSocketAddress(port), null, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Start a receiver.
+     * 
+     * @param bindAddress
+     *            The local address to listen on.
+     * @param callbackUrl
+     *            The URL under which Mainzelliste reaches this receiver, e.g.
+     *            if it is behind a proxy, or null to derive it from the bound
+     *            address and the local host name.
+     * @param executor
+     *            Executor that completes the futures returned by
+     *            {@link #register(String)}, and thereby runs dependent stages
+     *            that do not specify an executor.
+     * @throws IOException
+     *             If the address cannot be bound.
+     */
+    public CallbackReceiver(InetSocketAddress bindAddress, URL callbackUrl, Executor executor) throws IOException {
+        if (bindAddress == null)
+            throw new NullPointerException("Cannot create CallbackReceiver with bindAddress null");
+        if (executor == null)
+            throw new NullPointerException("Cannot create CallbackReceiver with executor null");
+        this.executor = executor;
+        this.selector = Selector.open();
+        ServerSocketChannel server = null;
+        try {
+            server = ServerSocketChannel.open();
+            server.bind(bindAddress);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            this.callbackUrl = callbackUrl != null ? callbackUrl
+                    : callbackUrl((InetSocketAddress) server.getLocalAddress());
+        } catch (IOException | RuntimeException e) {
+            selector.close();
+            if (server != null)
+                server.close();
+            throw e;
+        }
+        this.server = server;
+        this.thread = new Thread(this::run, "mainzelliste-callback-receiver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static URL callbackUrl(InetSocketAddress address) throws IOException {
+        InetAddress host = address.getAddress();
+        String hostName = host.isAnyLocalAddress() ? InetAddress.getLocalHost().getCanonicalHostName()
+                : host.getHostAddress();
+        try {
+            return new URI("http", null, hostName, address.getPort(), "/", null, null).toURL();
+        } catch (URISyntaxException | MalformedURLException e) {
+            throw new IOException("Cannot build callback URL for " + address, e);
+        }
+    }
+
+    /**
+     * Get the URL to set as callback of "addPatient" tokens.
+     * 
+     * @return The callback URL.
+     */
+    public URL getCallbackUrl() {
+        return callbackUrl;
+    }
+
+    /**
+     * Get the port this receiver listens on.
+     * 
+     * @return The local port.
+     */
+    public int getLocalPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Get the number of registered tokens for which no callback has been
+     * received yet.
+     * 
+     * @return The number of pending tokens.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Register a token and wait for its callback without timeout.
+     * 
+     * @param tokenId
+     *            Id of an "addPatient" token whose callback URL is
+     *            {@link #getCallbackUrl()}.
+     * @return A future that is completed with the callback. Cancelling it
+     *         unregisters the token.
+     * @see #register(String, long, TimeUnit)
+     */
+    public CompletableFuture<PatientCallback> register(String tokenId) {
+        return register(tokenId, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Register a token and wait for its callback. If the callback has already
+     * been received, the future is completed at once.
+     * 
+     * @param tokenId
+     *            Id of an "addPatient" token whose callback URL is
+     *            {@link #getCallbackUrl()}.
+     * @param timeout
+     *            Maximum time to wait for the callback, or 0 to wait without
+     *            timeout. Timeouts are checked about once per second.
+     * @param unit
+     *            Unit of timeout.
+     * @return A future that is completed with the callback. It is completed
+     *         exceptionally with a {@link TimeoutException} if the timeout
+     *         elapses, or with an {@link IllegalStateException} if the
+     *         receiver is closed. Cancelling it unregisters the token.
+     * @throws IllegalStateException
+     *             If the token is already registered.
+     */
+    public CompletableFuture<PatientCallback> register(String tokenId, long timeout, TimeUnit unit) {
+        if (tokenId == null)
+            throw new NullPointerException("Token id passed to register is null!");
+        if (closed)
+            return Futures.failed(new IllegalStateException("CallbackReceiver is closed"));
+        Pending p = new Pending(tokenId, timeout > 0 ? System.nanoTime() + unit.toNanos(timeout) : 0);
+        PatientCallback callback;
+        synchronized (unclaimed) {
+            callback = unclaimed.remove(tokenId);
+            if (callback == null && pending.putIfAbsent(tokenId, p) != null)
+                throw new IllegalStateException("Token " + tokenId + " is already registered");
+        }
+        if (callback != null) {
+            p.future.complete(callback);
+            return p.future;
+        }
+        p.future.whenComplete((c, t) -> pending.remove(tokenId, p));
+        if (timeout > 0)
+            deadlines.add(p);
+        if (closed)
+            p.future.completeExceptionally(new IllegalStateException("CallbackReceiver is closed"));
+        return p.future;
+    }
+
+    /**
+     * Stop listening, close all connections and fail the futures of all
+     * pending tokens.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Pending p : pending.values())
+            p.future.completeExceptionally(new IllegalStateException("CallbackReceiver is closed"));
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select(1000);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable())
+                            accept();
+                        else if (key.isReadable())
+                            read(key);
+                        else if (key.isWritable())
+                            write(key);
+                    } catch (IOException e) {
+                        close(key);
+                    }
+                }
+                expire();
+            }
+        } catch (IOException e) {
+            // Selector failed, nothing can be received anymore
+            closed = true;
+        } finally {
+            for (SelectionKey key : selector.keys())
+                close(key);
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Exchange());
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Exchange exchange = (Exchange) key.attachment();
+        if (!exchange.in.hasRemaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(exchange.in.capacity() * 2, MAX_REQUEST_SIZE));
+            exchange.in.flip();
+            exchange.in = larger.put(exchange.in);
+        }
+        if (channel.read(exchange.in) == -1) {
+            close(key);
+            return;
+        }
+        byte[] response = exchange.process();
+        if (response != null) {
+            exchange.out = ByteBuffer.wrap(response);
+            key.interestOps(SelectionKey.OP_WRITE);
+            write(key);
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Exchange exchange = (Exchange) key.attachment();
+        ((SocketChannel) key.channel()).write(exchange.out);
+        if (!exchange.out.hasRemaining())
+            close(key);
+    }
+
+    private static void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private void expire() {
+        Pending p;
+        while ((p = deadlines.poll()) != null) {
+            if (p.future.isDone())
+                continue;
+            Pending expired = p;
+            complete(() -> expired.future.completeExceptionally(new TimeoutException("No callback for token "
+                    + expired.tokenId + " received")));
+        }
+    }
+
+    private void deliver(PatientCallback callback) {
+        Pending p;
+        synchronized (unclaimed) {
+            p = pending.remove(callback.getTokenId());
+            if (p == null)
+                unclaimed.put(callback.getTokenId(), callback);
+        }
+        if (p != null) {
+            Pending registered = p;
+            complete(() -> registered.future.complete(callback));
+        }
+    }
+
+    /**
+     * Complete a future on the executor, so that dependent stages do not
+     * block the receiving thread.
+     */
+    private void complete(Runnable completion) {
+        try {
+            executor.execute(completion);
+        } catch (RejectedExecutionException e) {
+            completion.run();
+        }
+    }
+
+    /**
+     * Parse the entity of a callback request.
+     * 
+     * @param data
+     *            The entity.
+     * @return The callback, or null if the entity has no token id.
+     * @throws MainzellisteNetworkException
+     *             If the entity is not valid JSON.
+     */
+    static PatientCallback parse(String data) throws MainzellisteNetworkException {
+        Object value = new JsonReader(data).readValue();
+        if (!(value instanceof Map) || !(((Map<?, ?>) value).get("tokenId") instanceof String))
+            return null;
+        Map<?, ?> members = (Map<?, ?>) value;
+        Map<String, String> fields = new LinkedHashMap<String, String>();
+        if (members.get("fields") instanceof Map) {
+            for (Map.Entry<?, ?> field : ((Map<?, ?>) members.get("fields")).entrySet())
+                fields.put(String.valueOf(field.getKey()), field.getValue() == null ? null
+                        : String.valueOf(field.getValue()));
+        }
+        List<ID> ids = new ArrayList<ID>(2);
+        if (members.get("ids") instanceof List) {
+            for (Object id : (List<?>) members.get("ids")) {
+                if (!(id instanceof Map))
+                    continue;
+                Object idType = ((Map<?, ?>) id).get("idType");
+                Object idString = ((Map<?, ?>) id).get("idString");
+                if (idType != null && idString != null)
+                    ids.add(new ID(idType.toString(), idString.toString()));
+            }
+        }
+        return new PatientCallback((String) members.get("tokenId"), new Patient(fields, ids), data);
+    }
+
+    private static byte[] response(int statusCode, String reason) {
+        return ("HTTP/1.1 " + statusCode + " " + reason + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
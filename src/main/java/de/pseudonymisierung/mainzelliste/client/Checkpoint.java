@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * Progress of a bulk operation over numbered records, persisted in a file so
+ * that an interrupted run can be resumed. Records may complete out of order;
+ * the file holds the number up to which all records are done and the ranges
+ * of done records after it. Records that failed are not done and are
+ * processed again on resumption. Instances are not thread safe.
+ */
+final class Checkpoint {
+
+    /** The file, or null if progress is not persisted. */
+    private final Path file;
+    /** All records with lower numbers are done. */
+    private long watermark;
+    /** Done records above the watermark. */
+    private final TreeSet<Long> done = new TreeSet<Long>();
+
+    /**
+     * Create a checkpoint and load the progress saved in a file, if the file
+     * exists.
+     * 
+     * @param file
+     *            The file, or null if progress is not persisted.
+     * @throws IOException
+     *             If the file cannot be read or is malformed.
+     */
+    Checkpoint(Path file) throws IOException {
+        this.file = file;
+        if (file == null || !Files.exists(file))
+            return;
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line = in.readLine();
+            if (line == null)
+                return;
+            watermark = Long.parseLong(line.trim());
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty())
+                    continue;
+                int dash = line.indexOf('-');
+                long from = Long.parseLong(dash < 0 ? line : line.substring(0, dash));
+                long to = dash < 0 ? from : Long.parseLong(line.substring(dash + 1));
+                for (long n = from; n <= to; n++)
+                    done.add(n);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed checkpoint file " + file, e);
+        }
+    }
+
+    /**
+     * Check whether any record is done.
+     * 
+     * @return True if progress has been made.
+     */
+    boolean isStarted() {
+        return watermark > 0 || !done.isEmpty();
+    }
+
+    /**
+     * Check whether a record is done.
+     * 
+     * @param record
+     *            The record number.
+     * @return True if the record is done.
+     */
+    boolean isDone(long record) {
+        return record < watermark || done.contains(record);
+    }
+
+    /**
+     * Mark a record as done.
+     * 
+     * @param record
+     *            The record number.
+     */
+    void markDone(long record) {
+        if (record < watermark)
+            return;
+        done.add(record);
+        Iterator<Long> it = done.iterator();
+        while (it.hasNext() && it.next() == watermark) {
+            it.remove();
+            watermark++;
+        }
+    }
+
+    /**
+     * Save the progress to the file. The file is replaced atomically where
+     * supported, so that it is consistent even if the process is killed.
+     * 
+     * @throws IOException
+     *             If the file cannot be written.
+     */
+    void save() throws IOException {
+        if (file == null)
+            return;
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            out.write(Long.toString(watermark));
+            out.newLine();
+            // Write runs of consecutive numbers as ranges
+            long from = -1;
+            long to = -1;
+            for (long n : done) {
+                if (n != to + 1 || from < 0) {
+                    if (from >= 0)
+                        writeRange(out, from, to);
+                    from = n;
+                }
+                to = n;
+            }
+            if (from >= 0)
+                writeRange(out, from, to);
+        }
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void writeRange(BufferedWriter out, long from, long to) throws IOException {
+        out.write(from == to ? Long.toString(from) : from + "-" + to);
+        out.newLine();
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Circuit breaker of a node of a {@link MainzellisteConnection}, configured by
+ * {@link CircuitBreakerSettings}. Exposes the state and the recorded rates,
+ * e.g. for monitoring.
+ * 
+ * @see MainzellisteNode#getCircuitBreaker()
+ */
+public final class CircuitBreaker {
+
+    /**
+     * State of a circuit breaker.
+     */
+    public static enum State {
+        /** Requests are made and their outcome is recorded. */
+        CLOSED,
+        /** Requests fail at once. */
+        OPEN,
+        /** A limited number of probe requests is made. */
+        HALF_OPEN;
+    }
+
+    /** Outcome flag of a failed request. */
+    private static final byte FAILED = 1;
+    /** Outcome flag of a slow request. */
+    private static final byte SLOW = 2;
+
+    private final CircuitBreakerSettings settings;
+    /**
+     * Outcomes of the recent requests as combination of {@link #FAILED} and
+     * {@link #SLOW}, used as ring buffer.
+     */
+    private final byte[] window;
+    /** Number of recorded outcomes, at most the window length. */
+    private int recorded;
+    /** Next position in the window. */
+    private int next;
+    private int failed;
+    private int slow;
+    private State state = State.CLOSED;
+    /**
+     * Incremented on each state change, so that outcomes of requests that
+     * started in an earlier state are ignored.
+     */
+    private long epoch;
+    /** Time (System.nanoTime()) at which the circuit breaker opened. */
+    private long openedAt;
+    /** Probe requests started in half-open state. */
+    private int probes;
+    /** Probe requests that succeeded in half-open state. */
+    private int probeSuccesses;
+
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder openings = new LongAdder();
+
+    /**
+     * Create a closed circuit breaker.
+     * 
+     * @param settings
+     *            The settings. The window size is read once; other settings
+     *            are read on each request.
+     */
+    CircuitBreaker(CircuitBreakerSettings settings) {
+        this.settings = settings;
+        this.window = new byte[settings.getWindowSize()];
+    }
+
+    /**
+     * Get the settings of this circuit breaker.
+     * 
+     * @return The settings.
+     */
+    public CircuitBreakerSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Get the current state.
+     * 
+     * @return The state.
+     */
+    public synchronized State getState() {
+        updateState();
+        return state;
+    }
+
+    /**
+     * Get the rate of failed requests among the recorded ones.
+     * 
+     * @return The failure rate, 0 if no requests are recorded.
+     */
+    public synchronized double getFailureRate() {
+        return recorded == 0 ? 0 : (double) failed / recorded;
+    }
+
+    /**
+     * Get the rate of slow requests among the recorded ones.
+     * 
+     * @return The slow call rate, 0 if no requests are recorded.
+     */
+    public synchronized double getSlowCallRate() {
+        return recorded == 0 ? 0 : (double) slow / recorded;
+    }
+
+    /**
+     * Get the number of requests that failed with a
+     * {@link CircuitOpenException}.
+     * 
+     * @return The number of rejected requests.
+     */
+    public long getRejectedCount() {
+        return rejections.sum();
+    }
+
+    /**
+     * Get the number of times the circuit breaker opened.
+     * 
+     * @return The number of openings.
+     */
+    public long getOpenCount() {
+        return openings.sum();
+    }
+
+    /**
+     * Ask for permission to make a request.
+     * 
+     * @return A value to pass to {@link #record(long, long, boolean)}.
+     * @throws CircuitOpenException
+     *             If the circuit breaker is open or all probes have started.
+     */
+    synchronized long acquire() throws CircuitOpenException {
+        updateState();
+        if (state == State.OPEN || state == State.HALF_OPEN && probes >= settings.getHalfOpenCalls()) {
+            rejections.increment();
+            throw new CircuitOpenException("Circuit breaker is open after failed or slow requests to Mainzelliste");
+        }
+        if (state == State.HALF_OPEN)
+            probes++;
+        return epoch;
+    }
+
+    /**
+     * Record the outcome of a request.
+     * 
+     * @param permit
+     *            The value returned by {@link #acquire()} for the request.
+     * @param start
+     *            Time (System.nanoTime()) at which the request started.
+     * @param failure
+     *            Whether the request failed.
+     */
+    synchronized void record(long permit, long start, boolean failure) {
+        if (permit != epoch)
+            return;
+        boolean slowCall = System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(settings.getSlowCallDuration());
+        if (state == State.HALF_OPEN) {
+            if (failure || slowCall)
+                open();
+            else if (++probeSuccesses >= settings.getHalfOpenCalls())
+                transition(State.CLOSED);
+            return;
+        }
+        if (recorded == window.length) {
+            if ((window[next] & FAILED) != 0)
+                failed--;
+            if ((window[next] & SLOW) != 0)
+                slow--;
+        } else {
+            recorded++;
+        }
+        window[next] = (byte) ((failure ? FAILED : 0) | (slowCall ? SLOW : 0));
+        next = (next + 1) % window.length;
+        if (failure)
+            failed++;
+        if (slowCall)
+            slow++;
+        if (recorded >= Math.min(settings.getMinimumCalls(), window.length)
+                && ((double) failed / recorded >= settings.getFailureRateThreshold()
+                        || (double) slow / recorded >= settings.getSlowCallRateThreshold()))
+            open();
+    }
+
+    private void updateState() {
+        if (state == State.OPEN
+                && System.nanoTime() - openedAt >= TimeUnit.MILLISECONDS.toNanos(settings.getOpenDuration()))
+            transition(State.HALF_OPEN);
+    }
+
+    private void open() {
+        transition(State.OPEN);
+        openedAt = System.nanoTime();
+        openings.increment();
+    }
+
+    private void transition(State state) {
+        this.state = state;
+        epoch++;
+        probes = 0;
+        probeSuccesses = 0;
+        recorded = 0;
+        next = 0;
+        failed = 0;
+        slow = 0;
+    }
+}
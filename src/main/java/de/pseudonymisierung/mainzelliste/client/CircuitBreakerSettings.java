@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+/**
+ * Settings for the circuit breaker of a {@link MainzellisteConnection}. The
+ * circuit breaker records the outcome of the last {@link #getWindowSize()}
+ * requests. A request fails if no response is received or the status code
+ * is 500 or above, and is slow if it takes longer than
+ * {@link #getSlowCallDuration()}. If the rate of failed or of slow requests
+ * reaches its threshold, the circuit breaker opens: all requests fail at once
+ * with a {@link CircuitOpenException} for {@link #getOpenDuration()}. Then it
+ * lets {@link #getHalfOpenCalls()} requests through as probes; if all of them
+ * succeed, it closes again, otherwise it opens for another period.
+ * 
+ * @see MainzellisteConnection#setCircuitBreakerSettings(CircuitBreakerSettings)
+ */
+public class CircuitBreakerSettings {
+
+    /**
+     * Number of recent requests whose outcome is recorded.
+     */
+    private int windowSize = 100;
+    /**
+     * Minimum number of recorded requests before the circuit breaker can open.
+     */
+    private int minimumCalls = 20;
+    /**
+     * Rate of failed requests at which the circuit breaker opens.
+     */
+    private double failureRateThreshold = 0.5;
+    /**
+     * Time in milliseconds after which a request is slow.
+     */
+    private long slowCallDuration = 10000;
+    /**
+     * Rate of slow requests at which the circuit breaker opens.
+     */
+    private double slowCallRateThreshold = 0.5;
+    /**
+     * Time in milliseconds for which the circuit breaker stays open.
+     */
+    private long openDuration = 30000;
+    /**
+     * Number of probe requests in half-open state.
+     */
+    private int halfOpenCalls = 5;
+
+    /**
+     * Get the number of recent requests whose outcome is recorded.
+     * 
+     * @return The window size, default is 100.
+     */
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Set the number of recent requests whose outcome is recorded.
+     * 
+     * @param windowSize
+     *            The window size, must be greater than 0.
+     * @return The modified settings object.
+     */
+    public CircuitBreakerSettings setWindowSize(int windowSize) {
+        if (windowSize <= 0)
+            throw new IllegalArgumentException("windowSize must be greater than 0");
+        this.windowSize = windowSize;
+        return this;
+    }
+
+    /**
+     * Get the minimum number of recorded requests before the circuit breaker
+     * can open.
+     * 
+     * @return The minimum number of requests, default is 20.
+     */
+    public int getMinimumCalls() {
+        return minimumCalls;
+    }
+
+    /**
+     * Set the minimum number of recorded requests before the circuit breaker
+     * can open, so that a few failures after startup do not open it.
+     * 
+     * @param minimumCalls
+     *            The minimum number of requests, must be greater than 0. Values
+     *            greater than the window size have the effect of the window
+     *            size.
+     * @return The modified settings object.
+     */
+    public CircuitBreakerSettings setMinimumCalls(int minimumCalls) {
+        if (minimumCalls <= 0)
+            throw new IllegalArgumentException("minimumCalls must be greater than 0");
+        this.minimumCalls = minimumCalls;
+        return this;
+    }
+
+    /**
+     * Get the rate of failed requests at which the circuit breaker opens.
+     * 
+     * @return The failure rate threshold, default is 0.5.
+     */
+    public double getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    /**
+     * Set the rate of failed requests at which the circuit breaker opens.
+     * 
+     * @param failureRateThreshold
+     *            The failure rate threshold, greater than 0 and at most 1.
+     * @return The modified settings object.
+     */
+    public CircuitBreakerSettings setFailureRateThreshold(double failureRateThreshold) {
+        if (!(failureRateThreshold > 0 && failureRateThreshold <= 1))
+            throw new IllegalArgumentException("failureRateThreshold must be greater than 0 and at most 1");
+        this.failureRateThreshold = failureRateThreshold;
+        return this;
+    }
+
+    /**
+     * Get the time after which a request is slow.
+     * 
+     * @return The slow call duration in milliseconds, default is 10000.
+     */
+    public long getSlowCallDuration() {
+        return slowCallDuration;
+    }
+
+    /**
+     * Set the time after which a request is slow. For streaming requests,
+     * the time until the response status is received counts.
+     * 
+     * @param slowCallDuration
+     *            The slow call duration in milliseconds, must be greater than
+     *            0.
+     * @return The modified settings object.
+     */
+    public CircuitBreakerSettings setSlowCallDuration(long slowCallDuration) {
+        if (slowCallDuration <= 0)
+            throw new IllegalArgumentException("slowCallDuration must be greater than 0");
+        this.slowCallDuration = slowCallDuration;
+        return this;
+    }
+
+    /**
+     * Get the rate of slow requests at which the circuit breaker opens.
+     * 
+     * @return The slow call rate threshold, default is 0.5.
+     */
+    public double getSlowCallRateThreshold() {
+        return slowCallRateThreshold;
+    }
+
+    /**
+     * Set the rate of slow requests at which the circuit breaker opens.
+     * 
+     * @param slowCallRateThreshold
+     *            The slow call rate threshold, greater than 0 and at most 1.
+     * @return The modified settings object.
+     */
+    public CircuitBreakerSettings setSlowCallRateThreshold(double slowCallRateThreshold) {
+        if (!(slowCallRateThreshold > 0 && slowCallRateThreshold <= 1))
+            throw new IllegalArgumentException("slowCallRateThreshold must be greater than 0 and at most 1");
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        return this;
+    }
+
+    /**
+     * Get the time for which the circuit breaker stays open.
+     * 
+     * @return The open duration in milliseconds, default is 30000.
+     */
+    public long getOpenDuration() {
+        return openDuration;
+    }
+
+    /**
+     * Set the time for which the circuit breaker stays open before it lets
+     * probe requests through.
+     * 
+     * @param openDuration
+     *            The open duration in milliseconds, must be greater than 0.
+     * @return The modified settings object.
+     */
+    public CircuitBreakerSettings setOpenDuration(long openDuration) {
+        if (openDuration <= 0)
+            throw new IllegalArgumentException("openDuration must be greater than 0");
+        this.openDuration = openDuration;
+        return this;
+    }
+
+    /**
+     * Get the number of probe requests in half-open state.
+     * 
+     * @return The number of probe requests, default is 5.
+     */
+    public int getHalfOpenCalls() {
+        return halfOpenCalls;
+    }
+
+    /**
+     * Set the number of probe requests in half-open state. Further requests
+     * fail with a {@link CircuitOpenException} until the probes have
+     * completed.
+     * 
+     * @param halfOpenCalls
+     *            The number of probe requests, must be greater than 0.
+     * @return The modified settings object.
+     */
+    public CircuitBreakerSettings setHalfOpenCalls(int halfOpenCalls) {
+        if (halfOpenCalls <= 0)
+            throw new IllegalArgumentException("halfOpenCalls must be greater than 0");
+        this.halfOpenCalls = halfOpenCalls;
+        return this;
+    }
+}
@@ -0,0 +1,607 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Unbounded temp-id cache with a compact memory layout, used by default for
+ * sessions. Temp-ids never expire and their uses are not counted, as in
+ * {@link TempIdCache#TempIdCache()}.
+ * 
+ * Instead of maps of boxed objects, entries are kept in parallel int arrays
+ * and found through two open addressing hash tables, one by patient and token
+ * shape and one by temp-id. ID types and token shapes are interned to small
+ * codes, and ID strings and temp-ids are stored as UTF-8 in one packed byte
+ * array. For sessions with many cached temp-ids, this needs a fraction of the
+ * memory of {@link TempIdCache}; the actual usage is reported by
+ * {@link #getMemoryUsage()} and {@link #getBytesPerEntry()}.
+ * 
+ * Lookups take a shared lock and can run in parallel, modifications take an
+ * exclusive lock.
+ */
+public final class CompactTempIdCache extends AbstractTempIdCache {
+
+    /** Flag in {@link #meta} of entries that are reachable by key. */
+    private static final int FORWARD = 0x80000000;
+    /** Position of the shape code in {@link #meta}. */
+    private static final int SHAPE_SHIFT = 16;
+    /** Mask of the type code in {@link #meta}. */
+    private static final int TYPE_MASK = 0xFFFF;
+    /** Maximum number of distinct shapes. */
+    private static final int MAX_SHAPES = 1 << 15;
+    /** Minimum number of dead entries before the arrays are compacted. */
+    private static final int COMPACT_THRESHOLD = 64;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** Registry for the IDs returned by this cache, or null. */
+    private final IDFactory idFactory;
+
+    /** Codes of interned ID types. */
+    private final Map<String, Integer> typeCodes = new HashMap<String, Integer>();
+    /** ID types by code. */
+    private final List<String> types = new ArrayList<String>();
+    /** Codes of interned token shapes. */
+    private final Map<TempIdKey.Shape, Integer> shapeCodes = new HashMap<TempIdKey.Shape, Integer>();
+
+    /** Packed strings, each a varint length followed by UTF-8 bytes. */
+    private byte[] data = new byte[1024];
+    /** Used bytes of {@link #data}. */
+    private int dataSize;
+
+    /** Offset of the ID string of each entry in {@link #data}. */
+    private int[] idOffset = new int[16];
+    /** Offset of the temp-id of each entry in {@link #data}, -1 for dead entries. */
+    private int[] tempIdOffset = new int[16];
+    /** Type code, shape code and {@link #FORWARD} flag of each entry. */
+    private int[] meta = new int[16];
+    /** Hash of the key of each entry. */
+    private int[] keyHash = new int[16];
+    /** Hash of the temp-id of each entry. */
+    private int[] tempIdHash = new int[16];
+    /** Number of used entries, including dead ones. */
+    private int entryCount;
+    /** Number of entries reachable by temp-id. */
+    private int liveCount;
+    /** Number of entries reachable by key. */
+    private int forwardCount;
+
+    /** Hash table of entries by key, holding entry index + 1, 0 if free. */
+    private int[] byKey = new int[32];
+    /** Hash table of entries by temp-id, holding entry index + 1, 0 if free. */
+    private int[] byTempId = new int[32];
+
+    /**
+     * Create an empty cache.
+     */
+    public CompactTempIdCache() {
+        this(null);
+    }
+
+    /**
+     * Create an empty cache that returns IDs from a registry, so that
+     * repeated lookups of a patient return the same instance.
+     * 
+     * @param idFactory
+     *            The registry to use, or null to create new IDs.
+     */
+    public CompactTempIdCache(IDFactory idFactory) {
+        this.idFactory = idFactory;
+    }
+
+    @Override
+    String get(TempIdKey key, boolean recordStats) {
+        String tempId = null;
+        lock.readLock().lock();
+        try {
+            int slot = findKey(key.id, key.shape);
+            if (slot >= 0)
+                tempId = readString(tempIdOffset[byKey[slot] - 1]);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (recordStats)
+            (tempId == null ? misses : hits).increment();
+        return tempId;
+    }
+
+    @Override
+    List<String> tempIdsOf(ID id) {
+        List<String> tempIds = new ArrayList<String>(1);
+        lock.readLock().lock();
+        try {
+            for (TempIdKey.Shape shape : shapeCodes.keySet()) {
+                int slot = findKey(id, shape);
+                if (slot >= 0)
+                    tempIds.add(readString(tempIdOffset[byKey[slot] - 1]));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return tempIds;
+    }
+
+    @Override
+    void put(TempIdKey key, String tempId, boolean handedOut) {
+        lock.writeLock().lock();
+        try {
+            int slot = findTempId(tempId);
+            if (slot >= 0)
+                kill(byTempId[slot] - 1);
+            slot = findKey(key.id, key.shape);
+            if (slot >= 0)
+                kill(byKey[slot] - 1);
+
+            int entry = append(key, tempId);
+            if ((forwardCount + 1) * 2 > byKey.length)
+                byKey = rehash(byKey, keyHash, byKey.length * 2);
+            insert(byKey, keyHash, entry);
+            forwardCount++;
+            if ((liveCount + 1) * 2 > byTempId.length)
+                byTempId = rehash(byTempId, tempIdHash, byTempId.length * 2);
+            insert(byTempId, tempIdHash, entry);
+            liveCount++;
+
+            int dead = entryCount - liveCount;
+            if (dead > COMPACT_THRESHOLD && dead > liveCount)
+                compact();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    void remove(String tempId) {
+        lock.writeLock().lock();
+        try {
+            int slot = findTempId(tempId);
+            if (slot < 0)
+                return;
+            int entry = byTempId[slot] - 1;
+            // Keep the entry reachable by temp-id, see AbstractTempIdCache#remove
+            if ((meta[entry] & FORWARD) != 0) {
+                delete(byKey, keyHash, slotOf(byKey, keyHash, entry));
+                meta[entry] &= ~FORWARD;
+                forwardCount--;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    ID getId(String tempId) {
+        lock.readLock().lock();
+        try {
+            int slot = findTempId(tempId);
+            if (slot < 0)
+                return null;
+            int entry = byTempId[slot] - 1;
+            return newId(entry);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get all temp-ids known to this cache.
+     * 
+     * @return A snapshot of the temp-ids.
+     */
+    @Override
+    Set<String> tempIds() {
+        lock.readLock().lock();
+        try {
+            Set<String> tempIds = new HashSet<String>(liveCount * 2);
+            for (int i = 0; i < entryCount; i++) {
+                if (tempIdOffset[i] >= 0)
+                    tempIds.add(readString(tempIdOffset[i]));
+            }
+            return tempIds;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    Set<ID> ids() {
+        lock.readLock().lock();
+        try {
+            Set<ID> ids = new HashSet<ID>(forwardCount * 2);
+            for (int i = 0; i < entryCount; i++) {
+                if ((meta[i] & FORWARD) != 0)
+                    ids.add(newId(i));
+            }
+            return ids;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Free the space of replaced temp-ids. This also happens automatically
+     * once more than half of the entries are replaced.
+     */
+    @Override
+    public void cleanUp() {
+        lock.writeLock().lock();
+        try {
+            if (entryCount > liveCount)
+                compact();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return forwardCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc} This cache is unbounded.
+     */
+    @Override
+    public int getMaximumSize() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Get the memory used by the arrays of this cache. Interned ID types and
+     * token shapes are not counted, as there are only few of them and shapes
+     * are shared between sessions.
+     * 
+     * @return The memory usage in bytes.
+     */
+    public long getMemoryUsage() {
+        lock.readLock().lock();
+        try {
+            return data.length + 4L * (5L * idOffset.length + byKey.length + byTempId.length);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the memory used per cached temp-id, including space reserved for
+     * growth.
+     * 
+     * @return The memory usage in bytes per temp-id, or 0 if the cache is
+     *         empty.
+     */
+    public double getBytesPerEntry() {
+        lock.readLock().lock();
+        try {
+            return liveCount == 0 ? 0 : (double) getMemoryUsage() / liveCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private ID newId(int entry) {
+        String idType = types.get(meta[entry] & TYPE_MASK);
+        String idString = readString(idOffset[entry]);
+        return idFactory != null ? idFactory.get(idType, idString) : new ID(idType, idString);
+    }
+
+    private static int hash(ID id, int shapeCode) {
+        return id.hashCode() * 31 + shapeCode;
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Find the slot of an entry in {@link #byKey}.
+     * 
+     * @return The slot or -1 if there is no entry for the key.
+     */
+    private int findKey(ID id, TempIdKey.Shape shape) {
+        Integer typeCode = typeCodes.get(id.getIdType());
+        Integer shapeCode = shapeCodes.get(shape);
+        if (typeCode == null || shapeCode == null)
+            return -1;
+        int h = hash(id, shapeCode);
+        int m = typeCode | shapeCode << SHAPE_SHIFT | FORWARD;
+        String idString = id.getIdString();
+        int mask = byKey.length - 1;
+        for (int slot = mix(h) & mask;; slot = (slot + 1) & mask) {
+            int entry = byKey[slot] - 1;
+            if (entry < 0)
+                return -1;
+            if (keyHash[entry] == h && meta[entry] == m && stringEquals(idOffset[entry], idString))
+                return slot;
+        }
+    }
+
+    /**
+     * Find the slot of an entry in {@link #byTempId}.
+     * 
+     * @return The slot or -1 if the temp-id is unknown.
+     */
+    private int findTempId(String tempId) {
+        int h = tempId.hashCode();
+        int mask = byTempId.length - 1;
+        for (int slot = mix(h) & mask;; slot = (slot + 1) & mask) {
+            int entry = byTempId[slot] - 1;
+            if (entry < 0)
+                return -1;
+            if (tempIdHash[entry] == h && stringEquals(tempIdOffset[entry], tempId))
+                return slot;
+        }
+    }
+
+    /**
+     * Find the slot of a given entry in a hash table.
+     */
+    private static int slotOf(int[] table, int[] hashes, int entry) {
+        int mask = table.length - 1;
+        int slot = mix(hashes[entry]) & mask;
+        while (table[slot] != entry + 1)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private static void insert(int[] table, int[] hashes, int entry) {
+        int mask = table.length - 1;
+        int slot = mix(hashes[entry]) & mask;
+        while (table[slot] != 0)
+            slot = (slot + 1) & mask;
+        table[slot] = entry + 1;
+    }
+
+    /**
+     * Delete a slot from a hash table. Following entries of the same probe
+     * sequence are shifted back, so that no tombstones are needed.
+     */
+    private static void delete(int[] table, int[] hashes, int slot) {
+        int mask = table.length - 1;
+        int hole = slot;
+        for (int i = (slot + 1) & mask; table[i] != 0; i = (i + 1) & mask) {
+            int home = mix(hashes[table[i] - 1]) & mask;
+            // Move the entry if the hole lies between its home slot and i
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                table[hole] = table[i];
+                hole = i;
+            }
+        }
+        table[hole] = 0;
+    }
+
+    private static int[] rehash(int[] table, int[] hashes, int capacity) {
+        int[] result = new int[capacity];
+        for (int e : table) {
+            if (e != 0)
+                insert(result, hashes, e - 1);
+        }
+        return result;
+    }
+
+    /**
+     * Remove an entry from both hash tables.
+     */
+    private void kill(int entry) {
+        if ((meta[entry] & FORWARD) != 0) {
+            delete(byKey, keyHash, slotOf(byKey, keyHash, entry));
+            meta[entry] &= ~FORWARD;
+            forwardCount--;
+        }
+        delete(byTempId, tempIdHash, slotOf(byTempId, tempIdHash, entry));
+        tempIdOffset[entry] = -1;
+        liveCount--;
+    }
+
+    /**
+     * Add an entry to the arrays, without inserting it into the hash tables.
+     * 
+     * @return The index of the entry.
+     */
+    private int append(TempIdKey key, String tempId) {
+        Integer typeCode = typeCodes.get(key.id.getIdType());
+        if (typeCode == null) {
+            if (types.size() > TYPE_MASK)
+                throw new IllegalStateException("Too many ID types in temp-id cache");
+            typeCode = types.size();
+            typeCodes.put(key.id.getIdType(), typeCode);
+            types.add(key.id.getIdType());
+        }
+        Integer shapeCode = shapeCodes.get(key.shape);
+        if (shapeCode == null) {
+            if (shapeCodes.size() >= MAX_SHAPES)
+                throw new IllegalStateException("Too many token shapes in temp-id cache");
+            shapeCode = shapeCodes.size();
+            shapeCodes.put(key.shape, shapeCode);
+        }
+        if (entryCount == idOffset.length) {
+            int capacity = entryCount + (entryCount >> 1);
+            idOffset = Arrays.copyOf(idOffset, capacity);
+            tempIdOffset = Arrays.copyOf(tempIdOffset, capacity);
+            meta = Arrays.copyOf(meta, capacity);
+            keyHash = Arrays.copyOf(keyHash, capacity);
+            tempIdHash = Arrays.copyOf(tempIdHash, capacity);
+        }
+        int entry = entryCount++;
+        idOffset[entry] = writeString(key.id.getIdString());
+        tempIdOffset[entry] = writeString(tempId);
+        meta[entry] = typeCode | shapeCode << SHAPE_SHIFT | FORWARD;
+        keyHash[entry] = hash(key.id, shapeCode);
+        tempIdHash[entry] = tempId.hashCode();
+        return entry;
+    }
+
+    /**
+     * Drop dead entries and their strings, and rebuild the hash tables.
+     */
+    private void compact() {
+        byte[] oldData = data;
+        data = new byte[Math.max(1024, dataSize - dataSize / 4)];
+        dataSize = 0;
+        int count = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if (tempIdOffset[i] < 0)
+                continue;
+            idOffset[count] = copyString(oldData, idOffset[i]);
+            tempIdOffset[count] = copyString(oldData, tempIdOffset[i]);
+            meta[count] = meta[i];
+            keyHash[count] = keyHash[i];
+            tempIdHash[count] = tempIdHash[i];
+            count++;
+        }
+        entryCount = count;
+        int capacity = Math.max(16, count + (count >> 1));
+        idOffset = Arrays.copyOf(idOffset, capacity);
+        tempIdOffset = Arrays.copyOf(tempIdOffset, capacity);
+        meta = Arrays.copyOf(meta, capacity);
+        keyHash = Arrays.copyOf(keyHash, capacity);
+        tempIdHash = Arrays.copyOf(tempIdHash, capacity);
+
+        byKey = new int[tableCapacity(forwardCount)];
+        byTempId = new int[tableCapacity(liveCount)];
+        for (int i = 0; i < count; i++) {
+            if ((meta[i] & FORWARD) != 0)
+                insert(byKey, keyHash, i);
+            insert(byTempId, tempIdHash, i);
+        }
+    }
+
+    private static int tableCapacity(int count) {
+        int capacity = 32;
+        while (capacity < count * 2 + 2)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    private void ensureData(int length) {
+        if (dataSize + length > data.length)
+            data = Arrays.copyOf(data, Math.max(dataSize + length, data.length + (data.length >> 1)));
+    }
+
+    /**
+     * Append a string to {@link #data}.
+     * 
+     * @return The offset of the string.
+     */
+    private int writeString(String s) {
+        int offset = dataSize;
+        int length = s.length();
+        boolean ascii = true;
+        for (int i = 0; i < length && ascii; i++)
+            ascii = s.charAt(i) < 0x80;
+        byte[] bytes = ascii ? null : s.getBytes(StandardCharsets.UTF_8);
+        if (!ascii)
+            length = bytes.length;
+        ensureData(length + 5);
+        for (int v = length; ; v >>>= 7) {
+            if (v < 0x80) {
+                data[dataSize++] = (byte) v;
+                break;
+            }
+            data[dataSize++] = (byte) (v | 0x80);
+        }
+        if (ascii) {
+            for (int i = 0; i < length; i++)
+                data[dataSize++] = (byte) s.charAt(i);
+        } else {
+            System.arraycopy(bytes, 0, data, dataSize, length);
+            dataSize += length;
+        }
+        return offset;
+    }
+
+    /**
+     * Copy a string from an old data array to {@link #data}.
+     * 
+     * @return The new offset of the string.
+     */
+    private int copyString(byte[] from, int offset) {
+        int pos = offset;
+        int length = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = from[pos++];
+            length |= (b & 0x7F) << shift;
+            if (b >= 0)
+                break;
+        }
+        int size = pos - offset + length;
+        ensureData(size);
+        System.arraycopy(from, offset, data, dataSize, size);
+        dataSize += size;
+        return dataSize - size;
+    }
+
+    private String readString(int offset) {
+        int pos = offset;
+        int length = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = data[pos++];
+            length |= (b & 0x7F) << shift;
+            if (b >= 0)
+                break;
+        }
+        return new String(data, pos, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compare a stored string with a String without decoding it, unless it
+     * contains non-ASCII characters.
+     */
+    private boolean stringEquals(int offset, String s) {
+        int pos = offset;
+        int length = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = data[pos++];
+            length |= (b & 0x7F) << shift;
+            if (b >= 0)
+                break;
+        }
+        // The UTF-8 encoding has as many bytes as characters only if all
+        // characters are ASCII, and more otherwise
+        if (length == s.length()) {
+            for (int i = 0; i < length; i++) {
+                if (data[pos + i] != s.charAt(i))
+                    return false;
+            }
+            return true;
+        }
+        return length > s.length() && readString(offset).equals(s);
+    }
+}
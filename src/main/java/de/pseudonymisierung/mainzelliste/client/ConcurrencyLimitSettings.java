@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+/**
+ * Settings for the adaptive concurrency limit of a
+ * {@link MainzellisteConnection}. The limit on the number of requests in
+ * flight is adjusted by additive increase and multiplicative decrease (AIMD):
+ * while the limit is in use, each successful request raises it by one
+ * divided by the limit, i.e. by one per window of requests; each request that
+ * fails (no response or status 500 and above) or whose latency exceeds
+ * {@link #getTolerance()} times the baseline latency lowers it by
+ * {@link #getBackoffRatio()}. The baseline is the lowest observed latency,
+ * which rises only slowly to higher latencies. The limit thus settles near the
+ * number of concurrent requests at which Mainzelliste starts queueing.
+ * Requests beyond the limit wait in a bounded queue.
+ * 
+ * @see MainzellisteConnection#setConcurrencyLimitSettings(ConcurrencyLimitSettings)
+ */
+public class ConcurrencyLimitSettings {
+
+    /**
+     * Limit at start.
+     */
+    private int initialLimit = 20;
+    /**
+     * Lower bound of the limit.
+     */
+    private int minLimit = 1;
+    /**
+     * Upper bound of the limit.
+     */
+    private int maxLimit = 200;
+    /**
+     * Factor applied to the limit on overload.
+     */
+    private double backoffRatio = 0.9;
+    /**
+     * Factor by which the latency may exceed the lowest latency.
+     */
+    private double tolerance = 2.0;
+    /**
+     * Maximum number of waiting requests.
+     */
+    private int maxQueueSize = 1000;
+    /**
+     * Maximum time in milliseconds a request waits.
+     */
+    private long maxWaitTime = 10000;
+
+    /**
+     * Get the limit at start.
+     * 
+     * @return The initial limit, default is 20.
+     */
+    public int getInitialLimit() {
+        return initialLimit;
+    }
+
+    /**
+     * Set the limit at start.
+     * 
+     * @param initialLimit
+     *            The initial limit, must be greater than 0.
+     * @return The modified settings object.
+     */
+    public ConcurrencyLimitSettings setInitialLimit(int initialLimit) {
+        if (initialLimit <= 0)
+            throw new IllegalArgumentException("initialLimit must be greater than 0");
+        this.initialLimit = initialLimit;
+        return this;
+    }
+
+    /**
+     * Get the lower bound of the limit.
+     * 
+     * @return The minimum limit, default is 1.
+     */
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    /**
+     * Set the lower bound of the limit.
+     * 
+     * @param minLimit
+     *            The minimum limit, must be greater than 0.
+     * @return The modified settings object.
+     */
+    public ConcurrencyLimitSettings setMinLimit(int minLimit) {
+        if (minLimit <= 0)
+            throw new IllegalArgumentException("minLimit must be greater than 0");
+        this.minLimit = minLimit;
+        return this;
+    }
+
+    /**
+     * Get the upper bound of the limit.
+     * 
+     * @return The maximum limit, default is 200.
+     */
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * Set the upper bound of the limit, e.g. the size of the connection pool.
+     * 
+     * @param maxLimit
+     *            The maximum limit, must be greater than 0.
+     * @return The modified settings object.
+     */
+    public ConcurrencyLimitSettings setMaxLimit(int maxLimit) {
+        if (maxLimit <= 0)
+            throw new IllegalArgumentException("maxLimit must be greater than 0");
+        this.maxLimit = maxLimit;
+        return this;
+    }
+
+    /**
+     * Get the factor applied to the limit on overload.
+     * 
+     * @return The backoff ratio, default is 0.9.
+     */
+    public double getBackoffRatio() {
+        return backoffRatio;
+    }
+
+    /**
+     * Set the factor applied to the limit when a request fails or is slow.
+     * 
+     * @param backoffRatio
+     *            The backoff ratio, between 0.5 and 1 (exclusive).
+     * @return The modified settings object.
+     */
+    public ConcurrencyLimitSettings setBackoffRatio(double backoffRatio) {
+        if (!(backoffRatio >= 0.5 && backoffRatio < 1))
+            throw new IllegalArgumentException("backoffRatio must be at least 0.5 and less than 1");
+        this.backoffRatio = backoffRatio;
+        return this;
+    }
+
+    /**
+     * Get the factor by which the latency of a request may exceed the lowest
+     * recently observed latency before the request counts as overload.
+     * 
+     * @return The tolerance, default is 2.
+     */
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * Set the factor by which the latency of a request may exceed the lowest
+     * recently observed latency before the request counts as overload.
+     * Latencies below one millisecond never count as overload.
+     * 
+     * @param tolerance
+     *            The tolerance, must be greater than 1.
+     * @return The modified settings object.
+     */
+    public ConcurrencyLimitSettings setTolerance(double tolerance) {
+        if (!(tolerance > 1))
+            throw new IllegalArgumentException("tolerance must be greater than 1");
+        this.tolerance = tolerance;
+        return this;
+    }
+
+    /**
+     * Get the maximum number of requests waiting for the limit.
+     * 
+     * @return The maximum queue size, default is 1000.
+     */
+    public int getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    /**
+     * Set the maximum number of requests waiting for the limit. Further
+     * requests fail at once with a {@link ConcurrencyLimitException}.
+     * 
+     * @param maxQueueSize
+     *            The maximum queue size, must not be negative.
+     * @return The modified settings object.
+     */
+    public ConcurrencyLimitSettings setMaxQueueSize(int maxQueueSize) {
+        if (maxQueueSize < 0)
+            throw new IllegalArgumentException("maxQueueSize must not be negative");
+        this.maxQueueSize = maxQueueSize;
+        return this;
+    }
+
+    /**
+     * Get the maximum time a request waits for the limit.
+     * 
+     * @return The maximum wait time in milliseconds, default is 10000.
+     */
+    public long getMaxWaitTime() {
+        return maxWaitTime;
+    }
+
+    /**
+     * Set the maximum time a request waits for the limit. Requests that have
+     * waited longer fail with a {@link ConcurrencyLimitException}.
+     * Asynchronous requests wait without blocking a thread.
+     * 
+     * @param maxWaitTime
+     *            The maximum wait time in milliseconds, must be greater than
+     *            0.
+     * @return The modified settings object.
+     */
+    public ConcurrencyLimitSettings setMaxWaitTime(long maxWaitTime) {
+        if (maxWaitTime <= 0)
+            throw new IllegalArgumentException("maxWaitTime must be greater than 0");
+        this.maxWaitTime = maxWaitTime;
+        return this;
+    }
+}
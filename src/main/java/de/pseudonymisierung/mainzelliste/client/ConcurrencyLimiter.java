@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adaptive concurrency limit of a {@link MainzellisteConnection}, configured
+ * by {@link ConcurrencyLimitSettings}. Exposes the current limit, the number
+ * of requests in flight and the number of waiting requests, e.g. for
+ * monitoring.
+ * 
+ * @see MainzellisteConnection#getConcurrencyLimiter()
+ */
+public final class ConcurrencyLimiter {
+
+    /**
+     * Number of samples over which the baseline latency rises to higher
+     * latencies, so that it follows lasting changes but not single slow
+     * requests.
+     */
+    private static final int BASELINE_SAMPLES = 1000;
+    /**
+     * Latency in nanoseconds below which a request never counts as overload.
+     */
+    private static final long MIN_OVERLOAD_LATENCY = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final ConcurrencyLimitSettings settings;
+    private double limit;
+    private int inFlight;
+    /**
+     * Waiting requests, completed when they may start.
+     */
+    private final ArrayDeque<CompletableFuture<Void>> queue = new ArrayDeque<CompletableFuture<Void>>();
+    /**
+     * Latency in nanoseconds without overload, or 0 if not measured yet.
+     * Drops to lower latencies at once and rises to higher ones slowly.
+     */
+    private double baseline;
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * Create a limiter.
+     * 
+     * @param settings
+     *            The settings, read on each request.
+     */
+    ConcurrencyLimiter(ConcurrencyLimitSettings settings) {
+        this.settings = settings;
+        this.limit = Math.max(settings.getMinLimit(), Math.min(settings.getMaxLimit(), settings.getInitialLimit()));
+    }
+
+    /**
+     * Get the settings of this limiter.
+     * 
+     * @return The settings.
+     */
+    public ConcurrencyLimitSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Get the current limit of requests in flight.
+     * 
+     * @return The limit.
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Get the number of requests in flight.
+     * 
+     * @return The number of requests in flight.
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Get the number of requests waiting for the limit.
+     * 
+     * @return The queue depth.
+     */
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Get the number of requests that failed with a
+     * {@link ConcurrencyLimitException}.
+     * 
+     * @return The number of rejected requests.
+     */
+    public long getRejectedCount() {
+        return rejections.sum();
+    }
+
+    /**
+     * Wait until a request may start.
+     * 
+     * @throws ConcurrencyLimitException
+     *             If the queue is full or the maximum wait time elapsed.
+     * @throws MainzellisteNetworkException
+     *             If the thread is interrupted while waiting.
+     */
+    void acquire() throws MainzellisteNetworkException {
+        CompletableFuture<Void> permit = enqueue();
+        if (permit == null)
+            return;
+        try {
+            permit.get(settings.getMaxWaitTime(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // Otherwise the slot was granted just now
+            if (cancel(permit))
+                throw rejected("Waited " + settings.getMaxWaitTime() + " ms for concurrency limit");
+        } catch (InterruptedException e) {
+            if (!cancel(permit))
+                release(0, false);
+            Thread.currentThread().interrupt();
+            throw new MainzellisteNetworkException("Interrupted while waiting for concurrency limit", e);
+        } catch (ExecutionException e) {
+            throw new MainzellisteNetworkException(e.getCause());
+        }
+    }
+
+    /**
+     * Wait until a request may start without blocking.
+     * 
+     * @return A future that is completed when the request may start, or
+     *         completed exceptionally with a
+     *         {@link ConcurrencyLimitException}.
+     */
+    CompletableFuture<Void> acquireAsync() {
+        CompletableFuture<Void> permit;
+        try {
+            permit = enqueue();
+        } catch (ConcurrencyLimitException e) {
+            return Futures.failed(e);
+        }
+        if (permit == null)
+            return CompletableFuture.completedFuture(null);
+        ScheduledFuture<?> timeout = Futures.schedule(() -> {
+            if (cancel(permit))
+                permit.completeExceptionally(rejected("Waited " + settings.getMaxWaitTime()
+                        + " ms for concurrency limit"));
+        }, settings.getMaxWaitTime());
+        // Remove the timeout from the scheduler once the request has a slot
+        permit.thenRun(() -> timeout.cancel(false));
+        return permit;
+    }
+
+    /**
+     * Take a slot if one is free, or join the queue.
+     * 
+     * @return Null if a slot was taken, otherwise a future that is completed
+     *         when the request has a slot.
+     */
+    private synchronized CompletableFuture<Void> enqueue() throws ConcurrencyLimitException {
+        if (inFlight < (int) limit && queue.isEmpty()) {
+            inFlight++;
+            return null;
+        }
+        if (queue.size() >= settings.getMaxQueueSize())
+            throw rejected("Concurrency limit of " + (int) limit + " reached and " + queue.size()
+                    + " requests waiting");
+        CompletableFuture<Void> permit = new CompletableFuture<Void>();
+        queue.add(permit);
+        return permit;
+    }
+
+    /**
+     * Stop waiting for a slot.
+     * 
+     * @return True if the request was still waiting, false if it has
+     *         received a slot meanwhile.
+     */
+    private synchronized boolean cancel(CompletableFuture<Void> permit) {
+        return queue.remove(permit);
+    }
+
+    /**
+     * Give back the slot of a request that has completed and adjust the limit
+     * by its outcome.
+     * 
+     * @param start
+     *            Time (System.nanoTime()) at which the request started, or 0
+     *            if the outcome is not to be recorded.
+     * @param failure
+     *            Whether the request failed.
+     */
+    void release(long start, boolean failure) {
+        List<CompletableFuture<Void>> started = new ArrayList<CompletableFuture<Void>>();
+        synchronized (this) {
+            if (start != 0)
+                sample(System.nanoTime() - start, failure);
+            inFlight--;
+            while (inFlight < (int) limit && !queue.isEmpty()) {
+                started.add(queue.poll());
+                inFlight++;
+            }
+        }
+        // Complete outside the lock, as the requests start right away
+        for (CompletableFuture<Void> permit : started)
+            permit.complete(null);
+    }
+
+    /**
+     * Adjust the limit by the outcome of a request: decrease it
+     * multiplicatively on overload, increase it by one per window of
+     * successful requests if the limit is in use.
+     */
+    private void sample(long latency, boolean failure) {
+        boolean overload = failure
+                || latency > MIN_OVERLOAD_LATENCY && baseline > 0 && latency > baseline * settings.getTolerance();
+        // Failures may return early and say nothing about the latency
+        if (!failure) {
+            if (baseline == 0 || latency < baseline)
+                baseline = latency;
+            else
+                baseline += (latency - baseline) / BASELINE_SAMPLES;
+        }
+        if (overload)
+            limit = Math.max(settings.getMinLimit(), limit * settings.getBackoffRatio());
+        else if (inFlight * 2 >= limit)
+            limit = Math.min(settings.getMaxLimit(), limit + 1 / limit);
+    }
+
+    private ConcurrencyLimitException rejected(String message) {
+        rejections.increment();
+        return new ConcurrencyLimitException(message);
+    }
+}
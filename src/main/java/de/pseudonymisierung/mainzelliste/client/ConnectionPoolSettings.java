@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+/**
+ * Settings for the managed connection pool of a
+ * {@link MainzellisteConnection}. The defaults are suitable for a single
+ * Mainzelliste instance accessed by many concurrent threads; use the setters to
+ * adjust them to the expected load.
+ * 
+ * @see MainzellisteConnection#MainzellisteConnection(String, String,
+ *      ConnectionPoolSettings)
+ */
+public class ConnectionPoolSettings {
+
+    /**
+     * Maximum number of connections in the pool (all routes).
+     */
+    private int maxTotal = 100;
+    /**
+     * Maximum number of connections per route (i.e. per Mainzelliste host).
+     */
+    private int maxPerRoute = 50;
+    /**
+     * Time in milliseconds after which idle connections are closed by the
+     * background evictor.
+     */
+    private long maxIdleTime = 30000;
+    /**
+     * Maximum life time of a pooled connection in milliseconds. A value less
+     * than or equal to 0 means that connections never expire.
+     */
+    private long timeToLive = -1;
+    /**
+     * Time of inactivity in milliseconds after which a pooled connection is
+     * checked before it is leased to a request.
+     */
+    private int validateAfterInactivity = 2000;
+    /**
+     * Time in milliseconds to wait for a free connection from the pool. A
+     * value less than 0 means the system default (wait indefinitely).
+     */
+    private int connectionRequestTimeout = -1;
+
+    /**
+     * Get the maximum number of connections in the pool.
+     * 
+     * @return The maximum number of connections for all routes.
+     */
+    public int getMaxTotal() {
+        return maxTotal;
+    }
+
+    /**
+     * Set the maximum number of connections in the pool.
+     * 
+     * @param maxTotal
+     *            The maximum number of connections for all routes, must be
+     *            greater than 0.
+     * @return The modified settings object.
+     */
+    public ConnectionPoolSettings setMaxTotal(int maxTotal) {
+        if (maxTotal <= 0)
+            throw new IllegalArgumentException("maxTotal must be greater than 0");
+        this.maxTotal = maxTotal;
+        return this;
+    }
+
+    /**
+     * Get the maximum number of connections per route.
+     * 
+     * @return The maximum number of connections per route.
+     */
+    public int getMaxPerRoute() {
+        return maxPerRoute;
+    }
+
+    /**
+     * Set the maximum number of connections per route.
+     * 
+     * @param maxPerRoute
+     *            The maximum number of connections per route, must be greater
+     *            than 0.
+     * @return The modified settings object.
+     */
+    public ConnectionPoolSettings setMaxPerRoute(int maxPerRoute) {
+        if (maxPerRoute <= 0)
+            throw new IllegalArgumentException("maxPerRoute must be greater than 0");
+        this.maxPerRoute = maxPerRoute;
+        return this;
+    }
+
+    /**
+     * Get the time after which idle connections are evicted.
+     * 
+     * @return The maximum idle time in milliseconds.
+     */
+    public long getMaxIdleTime() {
+        return maxIdleTime;
+    }
+
+    /**
+     * Set the time after which idle connections are evicted.
+     * 
+     * @param maxIdleTime
+     *            The maximum idle time in milliseconds, must be greater than 0.
+     * @return The modified settings object.
+     */
+    public ConnectionPoolSettings setMaxIdleTime(long maxIdleTime) {
+        if (maxIdleTime <= 0)
+            throw new IllegalArgumentException("maxIdleTime must be greater than 0");
+        this.maxIdleTime = maxIdleTime;
+        return this;
+    }
+
+    /**
+     * Get the maximum life time of a pooled connection.
+     * 
+     * @return The time to live in milliseconds or a value less than or equal
+     *         to 0 if connections never expire.
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Set the maximum life time of a pooled connection. Expired connections
+     * are closed by the background evictor.
+     * 
+     * @param timeToLive
+     *            The time to live in milliseconds or a value less than or
+     *            equal to 0 if connections should never expire.
+     * @return The modified settings object.
+     */
+    public ConnectionPoolSettings setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+        return this;
+    }
+
+    /**
+     * Get the time of inactivity after which a connection is validated before
+     * reuse.
+     * 
+     * @return The time in milliseconds.
+     */
+    public int getValidateAfterInactivity() {
+        return validateAfterInactivity;
+    }
+
+    /**
+     * Set the time of inactivity after which a connection is validated before
+     * reuse.
+     * 
+     * @param validateAfterInactivity
+     *            The time in milliseconds. A value less than or equal to 0
+     *            disables validation.
+     * @return The modified settings object.
+     */
+    public ConnectionPoolSettings setValidateAfterInactivity(int validateAfterInactivity) {
+        this.validateAfterInactivity = validateAfterInactivity;
+        return this;
+    }
+
+    /**
+     * Get the time to wait for a free connection from the pool.
+     * 
+     * @return The time in milliseconds, or a value less than 0 if the system
+     *         default is used.
+     */
+    public int getConnectionRequestTimeout() {
+        return connectionRequestTimeout;
+    }
+
+    /**
+     * Set the time to wait for a free connection from the pool. If no
+     * connection becomes available in time, the request fails with a
+     * {@link MainzellisteNetworkException} instead of blocking indefinitely.
+     * 
+     * @param connectionRequestTimeout
+     *            The time in milliseconds, or a value less than 0 to use the
+     *            system default.
+     * @return The modified settings object.
+     */
+    public ConnectionPoolSettings setConnectionRequestTimeout(int connectionRequestTimeout) {
+        this.connectionRequestTimeout = connectionRequestTimeout;
+        return this;
+    }
+}
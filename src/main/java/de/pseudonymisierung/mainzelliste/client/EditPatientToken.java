@@ -164,4 +164,30 @@ public class EditPatientToken extends Token {
         }
     }
 
+    @Override
+    public void writeJSON(JsonWriter out) {
+        out.beginObject();
+        out.name("type").value("editPatient");
+        out.name("data").beginObject();
+        out.name("patientId");
+        this.patientId.writeJSON(out);
+        if (this.redirect != null)
+            out.name("redirect").value(redirect.toString());
+        if (this.fieldsToEdit.size() > 0) {
+            out.name("fields").beginArray();
+            for (String s : fieldsToEdit)
+                out.value(s);
+            out.endArray();
+        }
+        if (this.idsToEdit.size() > 0) {
+            out.name("ids").beginArray();
+            for (String s : idsToEdit)
+                out.value(s);
+            out.endArray();
+        }
+        writeAuditTrailLog(out);
+        out.endObject();
+        out.endObject();
+    }
+
 }
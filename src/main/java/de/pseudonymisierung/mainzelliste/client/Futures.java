@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Utility methods for the asynchronous API, mainly to pass checked exceptions
+ * of this library through {@link CompletableFuture}s.
+ */
+final class Futures {
+
+    /**
+     * A function that may throw the checked exceptions of this library.
+     * 
+     * @param <T>
+     *            Type of the input.
+     * @param <R>
+     *            Type of the result.
+     */
+    interface CheckedFunction<T, R> {
+        R apply(T t) throws MainzellisteNetworkException, InvalidSessionException;
+    }
+
+    /**
+     * Lazily created scheduler for delayed and periodic asynchronous work
+     * such as retries, timeouts, keepalive and health checks, shared by all
+     * connections.
+     */
+    private static final class Scheduler {
+        static final ScheduledExecutorService INSTANCE = create();
+
+        private static ScheduledExecutorService create() {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "mainzelliste-scheduler");
+                t.setDaemon(true);
+                return t;
+            });
+            // Timeouts are mostly cancelled, do not keep them until they are due
+            executor.setRemoveOnCancelPolicy(true);
+            return executor;
+        }
+    }
+
+    private Futures() {
+    }
+
+    /**
+     * Run a task after a delay. Tasks must be short, as they share one
+     * thread.
+     * 
+     * @param task
+     *            The task.
+     * @param delay
+     *            The delay in milliseconds.
+     * @return A future of the scheduled task, e.g. for cancelling it.
+     */
+    static ScheduledFuture<?> schedule(Runnable task, long delay) {
+        return Scheduler.INSTANCE.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run a task repeatedly. Tasks must be short, as they share one thread.
+     * 
+     * @param task
+     *            The task.
+     * @param initialDelay
+     *            The delay before the first run in milliseconds.
+     * @param interval
+     *            The delay between the end of one run and the start of the
+     *            next in milliseconds.
+     * @return A future of the scheduled task, e.g. for cancelling it.
+     */
+    static ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long initialDelay, long interval) {
+        return Scheduler.INSTANCE.scheduleWithFixedDelay(task, initialDelay, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create a future that is completed exceptionally.
+     * 
+     * @param t
+     *            The exception with which to complete the future.
+     * @return The completed future.
+     */
+    static <T> CompletableFuture<T> failed(Throwable t) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(t);
+        return future;
+    }
+
+    /**
+     * Like {@link CompletableFuture#thenApply(java.util.function.Function)},
+     * but for functions that throw checked exceptions. These are passed on as
+     * the cause of a {@link CompletionException}.
+     * 
+     * @param future
+     *            The future to whose result the function is applied.
+     * @param function
+     *            The function to apply.
+     * @return A future of the result of the function.
+     */
+    static <T, R> CompletableFuture<R> thenApply(CompletableFuture<T> future, CheckedFunction<T, R> function) {
+        return future.thenApply(t -> {
+            try {
+                return function.apply(t);
+            } catch (MainzellisteNetworkException | InvalidSessionException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Strip wrappers added by the future framework from an exception.
+     * 
+     * @param t
+     *            An exception with which a future has been completed.
+     * @return The original cause.
+     */
+    static Throwable unwrap(Throwable t) {
+        while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null)
+            t = t.getCause();
+        return t;
+    }
+
+    /**
+     * Wait for a future and throw its exception, if any, as a checked
+     * exception of this library.
+     * 
+     * @param future
+     *            The future to wait for.
+     * @return The result of the future.
+     * @throws MainzellisteNetworkException
+     *             If the future failed with a network error or any other
+     *             checked exception.
+     * @throws InvalidSessionException
+     *             If the future failed because the session does not exist
+     *             anymore.
+     */
+    static <T> T await(CompletableFuture<T> future) throws MainzellisteNetworkException, InvalidSessionException {
+        try {
+            return future.join();
+        } catch (CompletionException | CancellationException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof MainzellisteNetworkException)
+                throw (MainzellisteNetworkException) cause;
+            if (cause instanceof InvalidSessionException)
+                throw (InvalidSessionException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new MainzellisteNetworkException(cause);
+        }
+    }
+}
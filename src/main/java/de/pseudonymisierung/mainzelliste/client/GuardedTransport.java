@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Makes each request through a transport only if the {@link CircuitBreaker}
+ * of its target permits it, and records the outcome. A request fails if no
+ * response is received or the status code is 500 or above.
+ */
+final class GuardedTransport implements Transport {
+
+    private final Transport transport;
+    /**
+     * Selects the circuit breaker of a request, e.g. the one of the node it
+     * is sent to. Requests without a circuit breaker are passed through.
+     */
+    private final Function<TransportRequest, CircuitBreaker> circuitBreakers;
+
+    GuardedTransport(Transport transport, Function<TransportRequest, CircuitBreaker> circuitBreakers) {
+        this.transport = transport;
+        this.circuitBreakers = circuitBreakers;
+    }
+
+    @Override
+    public MainzellisteResponse execute(TransportRequest request) throws MainzellisteNetworkException {
+        CircuitBreaker circuitBreaker = circuitBreakers.apply(request);
+        if (circuitBreaker == null)
+            return transport.execute(request);
+        long permit = circuitBreaker.acquire();
+        long start = System.nanoTime();
+        boolean failure = true;
+        try {
+            MainzellisteResponse response = transport.execute(request);
+            failure = response.getStatusCode() >= 500;
+            return response;
+        } finally {
+            circuitBreaker.record(permit, start, failure);
+        }
+    }
+
+    @Override
+    public CompletableFuture<MainzellisteResponse> executeAsync(TransportRequest request) {
+        CircuitBreaker circuitBreaker = circuitBreakers.apply(request);
+        if (circuitBreaker == null)
+            return transport.executeAsync(request);
+        long permit;
+        try {
+            permit = circuitBreaker.acquire();
+        } catch (CircuitOpenException e) {
+            return Futures.failed(e);
+        }
+        long start = System.nanoTime();
+        CompletableFuture<MainzellisteResponse> future;
+        try {
+            future = transport.executeAsync(request);
+        } catch (RuntimeException e) {
+            circuitBreaker.record(permit, start, true);
+            throw e;
+        }
+        return future.whenComplete((response, t) -> circuitBreaker.record(permit, start,
+                t != null || response.getStatusCode() >= 500));
+    }
+
+    @Override
+    public <T> T execute(TransportRequest request, ResponseHandler<T> handler) throws MainzellisteNetworkException {
+        CircuitBreaker circuitBreaker = circuitBreakers.apply(request);
+        if (circuitBreaker == null)
+            return transport.execute(request, handler);
+        long permit = circuitBreaker.acquire();
+        long start = System.nanoTime();
+        boolean[] recorded = new boolean[1];
+        try {
+            return transport.execute(request, (statusCode, entity) -> {
+                // The time the handler takes to process the entity does not count
+                circuitBreaker.record(permit, start, statusCode >= 500);
+                recorded[0] = true;
+                return handler.handle(statusCode, entity);
+            });
+        } finally {
+            if (!recorded[0])
+                circuitBreaker.record(permit, start, true);
+        }
+    }
+
+    @Override
+    public void close() {
+        // The transport is closed by the connection
+    }
+}
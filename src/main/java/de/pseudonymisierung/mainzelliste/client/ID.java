@@ -44,7 +44,12 @@ public class ID {
      * JSON representation of this object. Used for caching the result of
      * {@link ID#toJSON()} in case of multiple invocations.
      */
-    private JSONObject json = null;
+    private volatile JSONObject json = null;
+    /**
+     * UTF-8 encoded JSON representation of this object. Used for caching the
+     * output of {@link ID#writeJSON(JsonWriter)}.
+     */
+    private volatile byte[] jsonBytes = null;
     /**
      * Hash code of this object (for implementation of {@link Object#hashCode()}
      * ).
@@ -52,7 +57,8 @@ public class ID {
     private final int hashCode;
 
     /**
-     * Create a patient identifier.
+     * Create a patient identifier. To reuse instances of frequently used
+     * identifiers, use an {@link IDFactory}.
      * 
      * @param idType
      *            Type (aka domain / namespace) of the identifier.
@@ -66,8 +72,9 @@ public class ID {
             throw new NullPointerException("Cannot create ID with idString null");
         this.idType = idType;
         this.idString = idString;
-        // Compute hash code only once, as this object is immutable
-        this.hashCode = (idType + idString).hashCode();
+        // Compute hash code only once, as this object is immutable. The hash
+        // codes of the Strings are cached by them, so this does not allocate.
+        this.hashCode = 31 * idType.hashCode() + idString.hashCode();
     }
 
     /**
@@ -121,16 +128,47 @@ public class ID {
      */
     public JSONObject toJSON() {
         // As ID is immutable, the JSONObject is created only once and cached
-        // for later use
-        if (this.json == null) {
-            this.json = new JSONObject();
+        // for later use. Concurrent first calls may create it more than once,
+        // which is harmless.
+        JSONObject json = this.json;
+        if (json == null) {
+            json = new JSONObject();
             try {
-                this.json.put("idString", this.idString);
-                this.json.put("idType", this.idType);
+                json.put("idString", this.idString);
+                json.put("idType", this.idType);
             } catch (JSONException e) {
                 throw new Error(e);
             }
+            this.json = json;
+        }
+        return json;
+    }
+
+    /**
+     * Write the JSON representation of this object. The representation is
+     * encoded only once and copied on later calls.
+     * 
+     * @param out
+     *            The writer to write to.
+     * @see ID#toJSON()
+     */
+    public void writeJSON(JsonWriter out) {
+        out.rawValue(toJSONBytes());
+    }
+
+    /**
+     * Get the UTF-8 encoded JSON representation of this object.
+     * 
+     * @return The shared encoded representation, must not be modified.
+     */
+    byte[] toJSONBytes() {
+        byte[] jsonBytes = this.jsonBytes;
+        if (jsonBytes == null) {
+            JsonWriter out = new JsonWriter(idString.length() + idType.length() + 32);
+            out.beginObject().name("idString").value(this.idString).name("idType").value(this.idType).endObject();
+            jsonBytes = out.toByteArray();
+            this.jsonBytes = jsonBytes;
         }
-        return this.json;
+        return jsonBytes;
     }
 }
\ No newline at end of file
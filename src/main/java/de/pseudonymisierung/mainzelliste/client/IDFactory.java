@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of {@link ID} instances. Repeated requests for the same patient
+ * identifier return the same instance, so that its hash code and JSON
+ * representation are computed only once, and ID types are interned, so that
+ * all IDs of a type share one String.
+ * 
+ * The registry is bounded and never evicts IDs: once it holds the maximum
+ * number of IDs, further IDs are created without being registered, until
+ * {@link #clear()} is called. Applications that keep reading new patients
+ * should watch the hit rate ({@link #getHitCount()},
+ * {@link #getMissCount()}) and clear the registry when it drops. Lookups do
+ * not allocate and can be made by any number of threads in parallel.
+ * 
+ * @see MainzellisteConnection#getIdFactory()
+ */
+public final class IDFactory {
+
+    /** Default maximum number of registered IDs. */
+    public static final int DEFAULT_MAXIMUM_SIZE = 65536;
+
+    /** Maximum number of distinct ID types. */
+    private static final int MAX_TYPES = 256;
+
+    /**
+     * The registered IDs of one type.
+     */
+    private static final class Type {
+        /** The interned ID type. */
+        final String name;
+        /** IDs by ID string. */
+        final ConcurrentMap<String, ID> ids = new ConcurrentHashMap<String, ID>();
+
+        Type(String name) {
+            this.name = name;
+        }
+    }
+
+    /** Registered IDs by type. */
+    private final ConcurrentMap<String, Type> types = new ConcurrentHashMap<String, Type>();
+    /** Maximum number of registered IDs. */
+    private final int maximumSize;
+    /** Number of registered IDs. */
+    private final AtomicInteger size = new AtomicInteger();
+    /** Number of lookups that returned a registered instance. */
+    private final LongAdder hits = new LongAdder();
+    /** Number of lookups that created a new instance. */
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Create a registry for up to {@link #DEFAULT_MAXIMUM_SIZE} IDs.
+     */
+    public IDFactory() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /**
+     * Create a registry.
+     * 
+     * @param maximumSize
+     *            Maximum number of registered IDs, must not be negative.
+     */
+    public IDFactory(int maximumSize) {
+        if (maximumSize < 0)
+            throw new IllegalArgumentException("maximumSize must not be negative");
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * Get a patient identifier.
+     * 
+     * @param idType
+     *            Type (aka domain / namespace) of the identifier.
+     * @param idString
+     *            The identifier string.
+     * @return The registered instance, or a new instance if the registry is
+     *         full.
+     */
+    public ID get(String idType, String idString) {
+        if (idType == null)
+            throw new NullPointerException("Cannot create ID with idType null");
+        if (idString == null)
+            throw new NullPointerException("Cannot create ID with idString null");
+        Type type = types.get(idType);
+        if (type == null) {
+            if (types.size() >= MAX_TYPES) {
+                misses.increment();
+                return new ID(idType, idString);
+            }
+            type = new Type(idType);
+            Type existing = types.putIfAbsent(idType, type);
+            if (existing != null)
+                type = existing;
+        }
+        ID id = type.ids.get(idString);
+        if (id != null) {
+            hits.increment();
+            return id;
+        }
+        id = new ID(type.name, idString);
+        if (size.get() >= maximumSize) {
+            misses.increment();
+            return id;
+        }
+        ID existing = type.ids.putIfAbsent(idString, id);
+        if (existing != null) {
+            hits.increment();
+            return existing;
+        }
+        misses.increment();
+        size.incrementAndGet();
+        return id;
+    }
+
+    /**
+     * Get the registered instance of a patient identifier.
+     * 
+     * @param id
+     *            A patient identifier.
+     * @return The registered instance equal to id, or a new instance if the
+     *         registry is full.
+     */
+    public ID get(ID id) {
+        return get(id.getIdType(), id.getIdString());
+    }
+
+    /**
+     * Get the number of registered IDs.
+     * 
+     * @return The number of registered IDs.
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Get the maximum number of registered IDs.
+     * 
+     * @return The maximum size of this registry.
+     */
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Get the number of lookups that returned a registered instance.
+     * 
+     * @return The number of hits.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Get the number of lookups that created a new instance, because the ID
+     * was not registered yet or the registry was full.
+     * 
+     * @return The number of misses.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Remove all registered IDs, e.g. after a batch run. Instances handed out
+     * before remain valid.
+     */
+    public void clear() {
+        types.clear();
+        size.set(0);
+    }
+}
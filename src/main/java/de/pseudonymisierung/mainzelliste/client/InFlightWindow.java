@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * Limits the number of asynchronous operations that are in flight at the same
+ * time. {@link #submit(Supplier)} blocks the calling thread while the window
+ * is full, which provides backpressure to producers of operations.
+ */
+final class InFlightWindow {
+
+    /**
+     * One permit per operation that may be in flight.
+     */
+    private final Semaphore permits;
+    /**
+     * The maximum number of operations in flight.
+     */
+    private final int size;
+
+    /**
+     * Create a window.
+     * 
+     * @param size
+     *            The maximum number of operations in flight, must be greater
+     *            than 0.
+     */
+    InFlightWindow(int size) {
+        if (size <= 0)
+            throw new IllegalArgumentException("Size of in-flight window must be greater than 0");
+        this.permits = new Semaphore(size);
+        this.size = size;
+    }
+
+    /**
+     * Start an operation as soon as the window has room for it.
+     * 
+     * @param operation
+     *            Starts the operation and returns its future.
+     * @return The future of the operation.
+     */
+    <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> operation) {
+        permits.acquireUninterruptibly();
+        CompletableFuture<T> future;
+        try {
+            future = operation.get();
+        } catch (RuntimeException | Error e) {
+            permits.release();
+            throw e;
+        }
+        return future.whenComplete((result, t) -> permits.release());
+    }
+
+    /**
+     * Wait until all operations submitted so far have completed.
+     */
+    void drain() {
+        permits.acquireUninterruptibly(size);
+        permits.release(size);
+    }
+}
@@ -0,0 +1,670 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pull parser for JSON text, the reading counterpart of {@link JsonWriter}.
+ * Values are read one at a time, so that responses can be processed without
+ * building an object tree, and unneeded values are skipped without
+ * creating Strings:
+ * 
+ * <pre>
+ * JsonReader in = new JsonReader(response.getData());
+ * in.beginObject();
+ * while (in.hasNext()) {
+ *     if (in.nextName().equals("sessionId"))
+ *         sessionId = in.nextString();
+ *     else
+ *         in.skipValue();
+ * }
+ * in.endObject();
+ * </pre>
+ * 
+ * Input is either a String or a {@link Reader}, e.g. over the entity of a
+ * response. A Reader is read in chunks as parsing proceeds, so that large
+ * responses can be processed without holding them in memory. Syntax errors
+ * and IO errors are reported as {@link MainzellisteNetworkException}, as the
+ * parsed text is usually the response of a Mainzelliste instance. Instances
+ * are not thread safe.
+ */
+public final class JsonReader {
+
+    /**
+     * Type of the next token of the input.
+     */
+    public enum Type {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_OBJECT = 2;
+    private static final int DANGLING_NAME = 3;
+    private static final int NONEMPTY_OBJECT = 4;
+    private static final int EMPTY_ARRAY = 5;
+    private static final int NONEMPTY_ARRAY = 6;
+
+    /** Size of the buffer when reading from a Reader. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The Reader from which the buffer is filled, or null if the input is a
+     * String.
+     */
+    private final Reader reader;
+    /**
+     * The buffered input.
+     */
+    private char[] buf;
+    /**
+     * Position of the next character to read in buf.
+     */
+    private int pos;
+    /**
+     * Number of valid characters in buf.
+     */
+    private int limit;
+    /**
+     * Number of characters that have been discarded from buf, for error
+     * messages.
+     */
+    private long offset;
+    /**
+     * Scopes of the enclosing objects and arrays.
+     */
+    private int[] stack = new int[16];
+    /**
+     * Number of entries in stack.
+     */
+    private int depth;
+    /**
+     * Type of the next token if already determined by {@link #peek()}, else
+     * null. The input position is then at the first character of the token.
+     */
+    private Type peeked;
+
+    /**
+     * Create a reader.
+     * 
+     * @param json
+     *            The JSON text to read.
+     */
+    public JsonReader(String json) {
+        if (json == null)
+            throw new NullPointerException("Cannot read JSON from null");
+        this.reader = null;
+        this.buf = json.toCharArray();
+        this.limit = buf.length;
+        stack[depth++] = EMPTY_DOCUMENT;
+    }
+
+    /**
+     * Create a reader that reads JSON text from a {@link Reader} as needed.
+     * The Reader is not closed by this object.
+     * 
+     * @param reader
+     *            The Reader from which to read the JSON text.
+     */
+    public JsonReader(Reader reader) {
+        if (reader == null)
+            throw new NullPointerException("Cannot read JSON from null");
+        this.reader = reader;
+        this.buf = new char[BUFFER_SIZE];
+        stack[depth++] = EMPTY_DOCUMENT;
+    }
+
+    /**
+     * Get the type of the next token without consuming it.
+     * 
+     * @return The type of the next token.
+     * @throws MainzellisteNetworkException
+     *             If the input is not well-formed JSON.
+     */
+    public Type peek() throws MainzellisteNetworkException {
+        if (peeked != null)
+            return peeked;
+        int c;
+        switch (stack[depth - 1]) {
+        case EMPTY_ARRAY:
+            stack[depth - 1] = NONEMPTY_ARRAY;
+            if (nextNonWhitespace() == ']')
+                return peeked(Type.END_ARRAY);
+            pos--;
+            return peekValue();
+        case NONEMPTY_ARRAY:
+            c = nextNonWhitespace();
+            if (c == ']')
+                return peeked(Type.END_ARRAY);
+            if (c != ',')
+                throw syntaxError("Expected ',' or ']'");
+            return peekValue();
+        case EMPTY_OBJECT:
+        case NONEMPTY_OBJECT:
+            c = nextNonWhitespace();
+            if (c == '}')
+                return peeked(Type.END_OBJECT);
+            if (stack[depth - 1] == NONEMPTY_OBJECT) {
+                if (c != ',')
+                    throw syntaxError("Expected ',' or '}'");
+                c = nextNonWhitespace();
+            }
+            if (c != '"')
+                throw syntaxError("Expected name");
+            stack[depth - 1] = DANGLING_NAME;
+            pos--;
+            return peeked(Type.NAME);
+        case DANGLING_NAME:
+            if (nextNonWhitespace() != ':')
+                throw syntaxError("Expected ':'");
+            stack[depth - 1] = NONEMPTY_OBJECT;
+            return peekValue();
+        case EMPTY_DOCUMENT:
+            stack[depth - 1] = NONEMPTY_DOCUMENT;
+            return peekValue();
+        default: // NONEMPTY_DOCUMENT
+            skipWhitespace();
+            if (pos < limit)
+                throw syntaxError("Unexpected data after end of document");
+            return peeked(Type.END_DOCUMENT);
+        }
+    }
+
+    private Type peekValue() throws MainzellisteNetworkException {
+        int c = nextNonWhitespace();
+        pos--;
+        switch (c) {
+        case '{':
+            return peeked(Type.BEGIN_OBJECT);
+        case '[':
+            return peeked(Type.BEGIN_ARRAY);
+        case '"':
+            return peeked(Type.STRING);
+        case 't':
+        case 'f':
+            return peeked(Type.BOOLEAN);
+        case 'n':
+            return peeked(Type.NULL);
+        default:
+            if (c == '-' || (c >= '0' && c <= '9'))
+                return peeked(Type.NUMBER);
+            pos++;
+            throw syntaxError("Unexpected character");
+        }
+    }
+
+    private Type peeked(Type type) {
+        // Structural characters are consumed when the token is consumed
+        if (type == Type.END_ARRAY || type == Type.END_OBJECT)
+            pos--;
+        this.peeked = type;
+        return type;
+    }
+
+    /**
+     * Check whether the current object or array has more elements.
+     * 
+     * @return True if the next token is a name or value.
+     * @throws MainzellisteNetworkException
+     *             If the input is not well-formed JSON.
+     */
+    public boolean hasNext() throws MainzellisteNetworkException {
+        Type type = peek();
+        return type != Type.END_OBJECT && type != Type.END_ARRAY && type != Type.END_DOCUMENT;
+    }
+
+    /**
+     * Consume the beginning of an object.
+     * 
+     * @throws MainzellisteNetworkException
+     *             If the next token is not the beginning of an object.
+     */
+    public void beginObject() throws MainzellisteNetworkException {
+        expect(Type.BEGIN_OBJECT);
+        pos++;
+        push(EMPTY_OBJECT);
+    }
+
+    /**
+     * Consume the end of an object.
+     * 
+     * @throws MainzellisteNetworkException
+     *             If the next token is not the end of an object.
+     */
+    public void endObject() throws MainzellisteNetworkException {
+        expect(Type.END_OBJECT);
+        pos++;
+        depth--;
+    }
+
+    /**
+     * Consume the beginning of an array.
+     * 
+     * @throws MainzellisteNetworkException
+     *             If the next token is not the beginning of an array.
+     */
+    public void beginArray() throws MainzellisteNetworkException {
+        expect(Type.BEGIN_ARRAY);
+        pos++;
+        push(EMPTY_ARRAY);
+    }
+
+    /**
+     * Consume the end of an array.
+     * 
+     * @throws MainzellisteNetworkException
+     *             If the next token is not the end of an array.
+     */
+    public void endArray() throws MainzellisteNetworkException {
+        expect(Type.END_ARRAY);
+        pos++;
+        depth--;
+    }
+
+    /**
+     * Consume the name of an object member.
+     * 
+     * @return The member name.
+     * @throws MainzellisteNetworkException
+     *             If the next token is not a name.
+     */
+    public String nextName() throws MainzellisteNetworkException {
+        expect(Type.NAME);
+        return readString();
+    }
+
+    /**
+     * Consume a String value. Numbers are returned as they appear in the
+     * input.
+     * 
+     * @return The value.
+     * @throws MainzellisteNetworkException
+     *             If the next token is not a String or number.
+     */
+    public String nextString() throws MainzellisteNetworkException {
+        if (peek() == Type.NUMBER) {
+            peeked = null;
+            return readNumber();
+        }
+        expect(Type.STRING);
+        return readString();
+    }
+
+    /**
+     * Consume a number value as long.
+     * 
+     * @return The value.
+     * @throws MainzellisteNetworkException
+     *             If the next token is not an integral number.
+     */
+    public long nextLong() throws MainzellisteNetworkException {
+        expect(Type.NUMBER);
+        String number = readNumber();
+        try {
+            return Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            throw syntaxError("Expected integral number but was " + number);
+        }
+    }
+
+    /**
+     * Consume a number value as int.
+     * 
+     * @return The value.
+     * @throws MainzellisteNetworkException
+     *             If the next token is not an integral number in the range of
+     *             int.
+     */
+    public int nextInt() throws MainzellisteNetworkException {
+        long value = nextLong();
+        if (value != (int) value)
+            throw syntaxError("Number " + value + " out of range");
+        return (int) value;
+    }
+
+    /**
+     * Consume a number value as double.
+     * 
+     * @return The value.
+     * @throws MainzellisteNetworkException
+     *             If the next token is not a number.
+     */
+    public double nextDouble() throws MainzellisteNetworkException {
+        expect(Type.NUMBER);
+        return Double.parseDouble(readNumber());
+    }
+
+    /**
+     * Consume a boolean value.
+     * 
+     * @return The value.
+     * @throws MainzellisteNetworkException
+     *             If the next token is not a boolean.
+     */
+    public boolean nextBoolean() throws MainzellisteNetworkException {
+        expect(Type.BOOLEAN);
+        if (startsWith("true")) {
+            pos += 4;
+            return true;
+        }
+        if (startsWith("false")) {
+            pos += 5;
+            return false;
+        }
+        throw syntaxError("Expected boolean");
+    }
+
+    /**
+     * Consume a null value.
+     * 
+     * @throws MainzellisteNetworkException
+     *             If the next token is not null.
+     */
+    public void nextNull() throws MainzellisteNetworkException {
+        expect(Type.NULL);
+        if (!startsWith("null"))
+            throw syntaxError("Expected null");
+        pos += 4;
+    }
+
+    /**
+     * Skip the next value, including nested objects and arrays, or the next
+     * member (name and value) of an object.
+     * 
+     * @throws MainzellisteNetworkException
+     *             If the input is not well-formed JSON.
+     */
+    public void skipValue() throws MainzellisteNetworkException {
+        int level = 0;
+        while (true) {
+            switch (peek()) {
+            case BEGIN_OBJECT:
+                beginObject();
+                level++;
+                break;
+            case BEGIN_ARRAY:
+                beginArray();
+                level++;
+                break;
+            case END_OBJECT:
+                endObject();
+                level--;
+                break;
+            case END_ARRAY:
+                endArray();
+                level--;
+                break;
+            case NAME:
+                peeked = null;
+                skipString();
+                continue; // skip the value as well
+            case STRING:
+                peeked = null;
+                skipString();
+                break;
+            case NUMBER:
+                peeked = null;
+                readNumber();
+                break;
+            case BOOLEAN:
+                nextBoolean();
+                break;
+            case NULL:
+                nextNull();
+                break;
+            default:
+                throw syntaxError("Unexpected end of document");
+            }
+            if (level <= 0)
+                return;
+        }
+    }
+
+    /**
+     * Read the next value into an object tree: objects become
+     * {@link LinkedHashMap}s, arrays {@link ArrayList}s, numbers {@link Long}s
+     * if integral and in range, otherwise {@link Double}s.
+     * 
+     * @return The value.
+     * @throws MainzellisteNetworkException
+     *             If the input is not well-formed JSON.
+     */
+    public Object readValue() throws MainzellisteNetworkException {
+        switch (peek()) {
+        case BEGIN_OBJECT:
+            Map<String, Object> object = new LinkedHashMap<String, Object>();
+            beginObject();
+            while (hasNext())
+                object.put(nextName(), readValue());
+            endObject();
+            return object;
+        case BEGIN_ARRAY:
+            List<Object> array = new ArrayList<Object>();
+            beginArray();
+            while (hasNext())
+                array.add(readValue());
+            endArray();
+            return array;
+        case STRING:
+            return nextString();
+        case NUMBER:
+            peeked = null;
+            String number = readNumber();
+            try {
+                return Long.valueOf(number);
+            } catch (NumberFormatException e) {
+                return Double.valueOf(number);
+            }
+        case BOOLEAN:
+            return nextBoolean();
+        case NULL:
+            nextNull();
+            return null;
+        default:
+            throw syntaxError("Expected value but was " + peek());
+        }
+    }
+
+    private void expect(Type type) throws MainzellisteNetworkException {
+        Type actual = peek();
+        if (actual != type)
+            throw syntaxError("Expected " + type + " but was " + actual);
+        peeked = null;
+    }
+
+    private void push(int scope) {
+        if (depth == stack.length)
+            stack = Arrays.copyOf(stack, depth * 2);
+        stack[depth++] = scope;
+    }
+
+    /**
+     * Make sure that at least the given number of characters is buffered,
+     * reading from the Reader if necessary. Characters before the current
+     * position are discarded.
+     * 
+     * @return False if the end of the input is reached before.
+     */
+    private boolean fill(int minimum) throws MainzellisteNetworkException {
+        if (limit - pos >= minimum)
+            return true;
+        if (reader == null)
+            return false;
+        offset += pos;
+        System.arraycopy(buf, pos, buf, 0, limit - pos);
+        limit -= pos;
+        pos = 0;
+        try {
+            int n;
+            while (limit < minimum && (n = reader.read(buf, limit, buf.length - limit)) != -1)
+                limit += n;
+        } catch (IOException e) {
+            throw new MainzellisteNetworkException("IO error while reading response from Mainzelliste", e);
+        }
+        return limit >= minimum;
+    }
+
+    private boolean startsWith(String literal) throws MainzellisteNetworkException {
+        if (!fill(literal.length()))
+            return false;
+        for (int i = 0; i < literal.length(); i++) {
+            if (buf[pos + i] != literal.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private void skipWhitespace() throws MainzellisteNetworkException {
+        while (pos < limit || fill(1)) {
+            char c = buf[pos];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t')
+                return;
+            pos++;
+        }
+    }
+
+    private int nextNonWhitespace() throws MainzellisteNetworkException {
+        skipWhitespace();
+        if (pos == limit)
+            throw syntaxError("Unexpected end of document");
+        return buf[pos++];
+    }
+
+    /**
+     * Read a quoted String starting at the current position.
+     */
+    private String readString() throws MainzellisteNetworkException {
+        pos++;
+        // Without escape sequences and buffer boundaries, the String is
+        // created directly from the buffer
+        StringBuilder sb = null;
+        while (true) {
+            int start = pos;
+            while (pos < limit) {
+                char c = buf[pos];
+                if (c == '"') {
+                    String result = sb == null ? new String(buf, start, pos - start)
+                            : sb.append(buf, start, pos - start).toString();
+                    pos++;
+                    return result;
+                }
+                if (c == '\\')
+                    break;
+                pos++;
+            }
+            if (sb == null)
+                sb = new StringBuilder(pos - start + 16);
+            sb.append(buf, start, pos - start);
+            if (pos == limit) {
+                if (!fill(1))
+                    throw syntaxError("Unterminated string");
+                continue;
+            }
+            pos++; // backslash
+            if (!fill(1))
+                throw syntaxError("Unterminated string");
+            char c = buf[pos++];
+            switch (c) {
+            case 'n':
+                sb.append('\n');
+                break;
+            case 'r':
+                sb.append('\r');
+                break;
+            case 't':
+                sb.append('\t');
+                break;
+            case 'b':
+                sb.append('\b');
+                break;
+            case 'f':
+                sb.append('\f');
+                break;
+            case 'u':
+                if (!fill(4))
+                    throw syntaxError("Unterminated escape sequence");
+                try {
+                    sb.append((char) Integer.parseInt(new String(buf, pos, 4), 16));
+                } catch (NumberFormatException e) {
+                    throw syntaxError("Illegal escape sequence");
+                }
+                pos += 4;
+                break;
+            default: // '"', '\\', '/'
+                sb.append(c);
+            }
+        }
+    }
+
+    private void skipString() throws MainzellisteNetworkException {
+        pos++;
+        while (pos < limit || fill(1)) {
+            char c = buf[pos++];
+            if (c == '"')
+                return;
+            if (c == '\\') {
+                if (!fill(1))
+                    break;
+                pos++;
+            }
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private String readNumber() throws MainzellisteNetworkException {
+        StringBuilder sb = null;
+        int start = pos;
+        while (true) {
+            if (pos == limit) {
+                // Keep the digits read so far, as filling discards them
+                if (sb == null)
+                    sb = new StringBuilder();
+                sb.append(buf, start, pos - start);
+                boolean more = fill(1);
+                start = pos;
+                if (!more)
+                    break;
+            }
+            char c = buf[pos];
+            if ((c < '0' || c > '9') && c != '-' && c != '+' && c != '.' && c != 'e' && c != 'E')
+                break;
+            pos++;
+        }
+        return sb == null ? new String(buf, start, pos - start) : sb.append(buf, start, pos - start).toString();
+    }
+
+    private MainzellisteNetworkException syntaxError(String message) {
+        return new MainzellisteNetworkException(
+                "Error while parsing response from Mainzelliste: " + message + " at position " + (offset + pos));
+    }
+}
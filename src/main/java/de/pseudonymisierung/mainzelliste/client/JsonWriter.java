@@ -0,0 +1,501 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Writes JSON directly as UTF-8 bytes into a growable buffer, without building
+ * an object tree or intermediate Strings. Used to serialize tokens into
+ * request entities (see {@link Token#writeJSON(JsonWriter)}).
+ * 
+ * The writer only keeps track of the separators between members and
+ * elements; it is up to the caller to produce well-formed JSON, i.e. to
+ * balance {@link #beginObject()} and {@link #endObject()} and to precede every
+ * member value with {@link #name(String)}. Instances are not thread safe, but
+ * can be reused after {@link #reset()}.
+ */
+public final class JsonWriter {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Buffers up to this size are kept by {@link #reset()}, larger ones are
+     * released in order not to retain memory after an unusually large entity.
+     */
+    static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    /**
+     * Buffer holding the output.
+     */
+    private byte[] buf;
+    /**
+     * Number of bytes written to buf.
+     */
+    private int count;
+    /**
+     * Per nesting level, whether a value has been written at this level
+     * (and the next one needs a separator).
+     */
+    private boolean[] hasValue = new boolean[8];
+    /**
+     * Current nesting level; 0 is the top level.
+     */
+    private int depth;
+    /**
+     * Whether a member name has just been written, so that the next value
+     * does not need a separator.
+     */
+    private boolean afterName;
+
+    /**
+     * Create a writer with a default initial capacity.
+     */
+    public JsonWriter() {
+        this(256);
+    }
+
+    /**
+     * Create a writer.
+     * 
+     * @param initialCapacity
+     *            Initial size of the buffer in bytes.
+     */
+    public JsonWriter(int initialCapacity) {
+        if (initialCapacity <= 0)
+            throw new IllegalArgumentException("initialCapacity must be greater than 0");
+        this.buf = new byte[initialCapacity];
+    }
+
+    /**
+     * Discard the output written so far, keeping the buffer for reuse.
+     * 
+     * @return This writer.
+     */
+    public JsonWriter reset() {
+        if (buf.length > MAX_RETAINED_CAPACITY)
+            buf = new byte[256];
+        count = 0;
+        depth = 0;
+        hasValue[0] = false;
+        afterName = false;
+        return this;
+    }
+
+    /**
+     * Start an object.
+     * 
+     * @return This writer.
+     */
+    public JsonWriter beginObject() {
+        return open('{');
+    }
+
+    /**
+     * End the current object.
+     * 
+     * @return This writer.
+     */
+    public JsonWriter endObject() {
+        return close('}');
+    }
+
+    /**
+     * Start an array.
+     * 
+     * @return This writer.
+     */
+    public JsonWriter beginArray() {
+        return open('[');
+    }
+
+    /**
+     * End the current array.
+     * 
+     * @return This writer.
+     */
+    public JsonWriter endArray() {
+        return close(']');
+    }
+
+    /**
+     * Write the name of an object member. Must be followed by its value.
+     * 
+     * @param name
+     *            The member name.
+     * @return This writer.
+     */
+    public JsonWriter name(String name) {
+        separate();
+        writeString(name);
+        write(':');
+        afterName = true;
+        return this;
+    }
+
+    /**
+     * Write a String value.
+     * 
+     * @param value
+     *            The value, null writes a JSON null.
+     * @return This writer.
+     */
+    public JsonWriter value(String value) {
+        if (value == null)
+            return nullValue();
+        separate();
+        writeString(value);
+        return this;
+    }
+
+    /**
+     * Write a number value.
+     * 
+     * @param value
+     *            The value.
+     * @return This writer.
+     */
+    public JsonWriter value(long value) {
+        separate();
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return this;
+        }
+        if (value < 0) {
+            write('-');
+            value = -value;
+        }
+        // Write digits backwards into the buffer, then reverse them
+        ensureCapacity(20);
+        int start = count;
+        do {
+            buf[count++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        for (int i = start, j = count - 1; i < j; i++, j--) {
+            byte b = buf[i];
+            buf[i] = buf[j];
+            buf[j] = b;
+        }
+        return this;
+    }
+
+    /**
+     * Write a boolean value.
+     * 
+     * @param value
+     *            The value.
+     * @return This writer.
+     */
+    public JsonWriter value(boolean value) {
+        separate();
+        write(value ? TRUE : FALSE);
+        return this;
+    }
+
+    /**
+     * Write an object tree as produced by {@link JsonReader#readValue()}:
+     * {@link Map}s become objects, {@link Iterable}s and arrays of objects
+     * become arrays, {@link Number}s and {@link Boolean}s are written as such
+     * and other objects as Strings.
+     * 
+     * @param value
+     *            The value, null writes a JSON null.
+     * @return This writer.
+     * @throws IllegalArgumentException
+     *             If the value is or contains a NaN or infinite
+     *             {@link Double} or {@link Float}, which JSON cannot
+     *             represent.
+     */
+    public JsonWriter value(Object value) {
+        if (value == null || value instanceof String) {
+            return value((String) value);
+        } else if (value instanceof Map) {
+            beginObject();
+            for (Map.Entry<?, ?> member : ((Map<?, ?>) value).entrySet())
+                name(String.valueOf(member.getKey())).value(member.getValue());
+            return endObject();
+        } else if (value instanceof Iterable || value instanceof Object[]) {
+            beginArray();
+            for (Object element : value instanceof Iterable ? (Iterable<?>) value : Arrays.asList((Object[]) value))
+                value(element);
+            return endArray();
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            return value(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            if ((value instanceof Double || value instanceof Float) && !Double.isFinite(((Number) value).doubleValue()))
+                throw new IllegalArgumentException("JSON does not permit non-finite number " + value);
+            separate();
+            writeAscii(value.toString());
+            return this;
+        } else if (value instanceof Boolean) {
+            return value(((Boolean) value).booleanValue());
+        }
+        return value(value.toString());
+    }
+
+    /**
+     * Write a JSON null.
+     * 
+     * @return This writer.
+     */
+    public JsonWriter nullValue() {
+        separate();
+        write(NULL);
+        return this;
+    }
+
+    /**
+     * Write a value that is already serialized as JSON, e.g. the result of
+     * {@link org.codehaus.jettison.json.JSONObject#toString()}.
+     * 
+     * @param json
+     *            A well-formed JSON value.
+     * @return This writer.
+     */
+    public JsonWriter rawValue(String json) {
+        separate();
+        writeUtf8(json, 0, json.length());
+        return this;
+    }
+
+    /**
+     * Write a pre-serialized UTF-8 encoded JSON value, e.g. the cached
+     * representation of an {@link ID}.
+     * 
+     * @param utf8
+     *            The encoded value.
+     * @return This writer.
+     */
+    JsonWriter rawValue(byte[] utf8) {
+        separate();
+        write(utf8);
+        return this;
+    }
+
+    /**
+     * Append pre-serialized UTF-8 JSON text, e.g. a part of a token template,
+     * without writing separators or tracking nesting.
+     * 
+     * @param utf8
+     *            The bytes to append.
+     * @return This writer.
+     */
+    JsonWriter raw(byte[] utf8) {
+        write(utf8);
+        return this;
+    }
+
+    /**
+     * Append a quoted and escaped String without writing separators. Used
+     * together with {@link #raw(byte[])}.
+     * 
+     * @param value
+     *            The String to append.
+     * @return This writer.
+     */
+    JsonWriter rawString(String value) {
+        writeString(value);
+        return this;
+    }
+
+    /**
+     * Get the buffer holding the output. Only the first {@link #size()}
+     * bytes are valid. The buffer is overwritten when the writer is reused.
+     * 
+     * @return The internal buffer.
+     */
+    public byte[] getBuffer() {
+        return buf;
+    }
+
+    /**
+     * Get the size of the output.
+     * 
+     * @return Number of bytes written.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Get a copy of the output.
+     * 
+     * @return The UTF-8 encoded JSON written so far.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+
+    /**
+     * Get the output as a String.
+     * 
+     * @return The JSON written so far.
+     */
+    @Override
+    public String toString() {
+        return new String(buf, 0, count, StandardCharsets.UTF_8);
+    }
+
+    private JsonWriter open(char c) {
+        separate();
+        write(c);
+        if (++depth == hasValue.length)
+            hasValue = Arrays.copyOf(hasValue, depth * 2);
+        hasValue[depth] = false;
+        return this;
+    }
+
+    private JsonWriter close(char c) {
+        if (depth == 0)
+            throw new IllegalStateException("No open object or array to close");
+        depth--;
+        write(c);
+        return this;
+    }
+
+    /**
+     * Write a separator if a value precedes at the current level, and mark
+     * the level as having a value.
+     */
+    private void separate() {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (hasValue[depth])
+            write(',');
+        hasValue[depth] = true;
+    }
+
+    private void writeString(String s) {
+        write('"');
+        int len = s.length();
+        int runStart = 0;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\')
+                continue;
+            writeUtf8(s, runStart, i);
+            runStart = i + 1;
+            switch (c) {
+            case '"':
+                write('\\');
+                write('"');
+                break;
+            case '\\':
+                write('\\');
+                write('\\');
+                break;
+            case '\n':
+                write('\\');
+                write('n');
+                break;
+            case '\r':
+                write('\\');
+                write('r');
+                break;
+            case '\t':
+                write('\\');
+                write('t');
+                break;
+            case '\b':
+                write('\\');
+                write('b');
+                break;
+            case '\f':
+                write('\\');
+                write('f');
+                break;
+            default:
+                ensureCapacity(6);
+                buf[count++] = '\\';
+                buf[count++] = 'u';
+                buf[count++] = '0';
+                buf[count++] = '0';
+                buf[count++] = HEX[c >> 4];
+                buf[count++] = HEX[c & 0xF];
+            }
+        }
+        writeUtf8(s, runStart, len);
+        write('"');
+    }
+
+    /**
+     * Encode a part of a String as UTF-8. Unpaired surrogates are replaced by
+     * '?', as done by {@link String#getBytes(java.nio.charset.Charset)}.
+     */
+    private void writeUtf8(String s, int from, int to) {
+        ensureCapacity((to - from) * 3);
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[count++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[count++] = (byte) (0xC0 | c >> 6);
+                buf[count++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[count++] = (byte) (0xF0 | cp >> 18);
+                buf[count++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                buf[count++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                buf[count++] = (byte) (0x80 | cp & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                buf[count++] = '?';
+            } else {
+                buf[count++] = (byte) (0xE0 | c >> 12);
+                buf[count++] = (byte) (0x80 | c >> 6 & 0x3F);
+                buf[count++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+    }
+
+    private void writeAscii(String s) {
+        writeUtf8(s, 0, s.length());
+    }
+
+    private void write(char c) {
+        ensureCapacity(1);
+        buf[count++] = (byte) c;
+    }
+
+    private void write(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buf, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (count + additional > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + additional));
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Makes requests through a transport within the adaptive limit of a
+ * {@link ConcurrencyLimiter}, and passes their latency and outcome to it. A
+ * request fails if no response is received or the status code is 500 or
+ * above. Requests rejected by a circuit breaker further down are not
+ * recorded.
+ */
+final class LimitedTransport implements Transport {
+
+    private final Transport transport;
+    private final ConcurrencyLimiter limiter;
+
+    LimitedTransport(Transport transport, ConcurrencyLimiter limiter) {
+        this.transport = transport;
+        this.limiter = limiter;
+    }
+
+    @Override
+    public MainzellisteResponse execute(TransportRequest request) throws MainzellisteNetworkException {
+        limiter.acquire();
+        long start = System.nanoTime();
+        MainzellisteResponse response = null;
+        Throwable failure = null;
+        try {
+            response = transport.execute(request);
+            return response;
+        } catch (MainzellisteNetworkException | RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            release(start, response, failure);
+        }
+    }
+
+    @Override
+    public CompletableFuture<MainzellisteResponse> executeAsync(TransportRequest request) {
+        return limiter.acquireAsync().thenCompose(v -> {
+            long start = System.nanoTime();
+            CompletableFuture<MainzellisteResponse> future;
+            try {
+                future = transport.executeAsync(request);
+            } catch (RuntimeException e) {
+                release(start, null, e);
+                throw e;
+            }
+            return future.whenComplete((response, t) -> release(start, response, Futures.unwrap(t)));
+        });
+    }
+
+    @Override
+    public <T> T execute(TransportRequest request, ResponseHandler<T> handler) throws MainzellisteNetworkException {
+        limiter.acquire();
+        long start = System.nanoTime();
+        long[] latency = new long[1];
+        int[] statusCode = new int[1];
+        Throwable failure = null;
+        try {
+            return transport.execute(request, (status, entity) -> {
+                // The time the handler takes to process the entity does not count
+                latency[0] = System.nanoTime() - start;
+                statusCode[0] = status;
+                return handler.handle(status, entity);
+            });
+        } catch (MainzellisteNetworkException | RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            if (latency[0] == 0)
+                release(start, null, failure);
+            else // shift the start so that the latency until the status counts
+                limiter.release(System.nanoTime() - latency[0], statusCode[0] >= 500);
+        }
+    }
+
+    private void release(long start, MainzellisteResponse response, Throwable failure) {
+        if (failure instanceof CircuitOpenException)
+            limiter.release(0, false);
+        else
+            limiter.release(start, failure != null || response == null || response.getStatusCode() >= 500);
+    }
+
+    @Override
+    public void close() {
+        // The transport is closed by the connection
+    }
+}
@@ -25,20 +25,26 @@
  */
 package de.pseudonymisierung.mainzelliste.client;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Consumer;
 
-import org.apache.http.client.methods.HttpDelete;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpPut;
-import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.codehaus.jettison.json.JSONArray;
-import org.codehaus.jettison.json.JSONException;
-import org.codehaus.jettison.json.JSONObject;
+import org.apache.http.pool.PoolStats;
 
 import de.pseudonymisierung.mainzelliste.client.MainzellisteNetworkException;
 
@@ -47,8 +53,11 @@ import de.pseudonymisierung.mainzelliste.client.MainzellisteNetworkException;
  * api key. Provides a public method to create new Sessions and package methods
  * providing access to the Mainzelliste instance to be used by session objects.
  * 
+ * A connection can also manage several instances (nodes) that share a
+ * database, see {@link #MainzellisteConnection(Collection, String, Transport)}.
+ * 
  */
-public class MainzellisteConnection implements SessionEditable {
+public class MainzellisteConnection implements SessionEditable, Closeable {
 
     /**
      * Representation of HTTP methods.
@@ -64,26 +73,120 @@ public class MainzellisteConnection implements SessionEditable {
         DELETE;
     }
 
+    /**
+     * Types of operations whose concurrent requests can be limited separately
+     * (see {@link MainzellisteConnection#setMaxConcurrentCalls(Operation, int, long)}).
+     */
+    public static enum Operation {
+        /** Creating, reading and deleting sessions. */
+        SESSION,
+        /** Creating, reading and deleting tokens, e.g. for temp-ids. */
+        TOKEN,
+        /** Redeeming tokens for reading, adding or editing patients. */
+        PATIENT,
+        /** Checking the validity of tokens. */
+        VALIDATION,
+        /** All other requests. */
+        OTHER;
+    }
+
     /**
      * API version to use when making requests to Mainzelliste.
      */
     private static final String MAINZELLISTE_API_VERSION = "3.2";
+    /**
+     * Per thread buffer for entities of synchronous requests, reused from
+     * request to request. Empty while the buffer is in use.
+     */
+    private static final ThreadLocal<JsonWriter> REQUEST_BUFFER = new ThreadLocal<JsonWriter>();
+    /**
+     * Time in milliseconds for which a node on which a health check or session
+     * creation failed is not used for new sessions, unless a health check
+     * succeeds earlier.
+     */
+    private static final long NODE_DOWN_TIME = 30000;
+    /**
+     * Maximum number of tokens whose node is remembered, see
+     * {@link #tokenNodes}.
+     */
+    private static final int MAX_TOKEN_NODES = 10000;
     /**
      * API key used to authenticate against Mainzelliste.
      */
     private final String mainzellisteApiKey;
     /**
-     * URI of the Mainzelliste instance to make requests to.
+     * URI of the Mainzelliste instance to make requests to. With several
+     * nodes, the URI of the first node.
      */
     private final URI mainzellisteURI;
+    /**
+     * The Mainzelliste instances of this connection.
+     */
+    private final MainzellisteNode[] nodes;
+    /**
+     * Periodic health checks of the nodes, or null if not started.
+     */
+    private ScheduledFuture<?> healthChecks;
+
+    /**
+     * Transport through which requests to Mainzelliste are made.
+     */
+    private final Transport transport;
+    /**
+     * Codec for request entities and responses.
+     */
+    private volatile JsonCodec jsonCodec = new StreamingJsonCodec();
+    /**
+     * Maximum size of response entities in bytes.
+     */
+    private volatile long maxResponseSize = 16 * 1024 * 1024;
+    /**
+     * Registry of patient identifiers read from responses.
+     */
+    private final IDFactory idFactory = new IDFactory();
+    /**
+     * Counters of retried requests.
+     */
+    private final RetryMetrics retryMetrics = new RetryMetrics();
+    /**
+     * Retries failed requests and holds the retry budget.
+     */
+    private volatile RequestRetrier retrier = new RequestRetrier(new RetrySettings(), retryMetrics);
+    /**
+     * Settings of the circuit breakers of the nodes, or null if disabled.
+     */
+    private CircuitBreakerSettings circuitBreakerSettings;
+    /**
+     * Adaptive concurrency limiter, or null if disabled.
+     */
+    private ConcurrencyLimiter concurrencyLimiter;
+    /**
+     * The transport wrapped by the concurrency limiter and circuit breaker,
+     * if enabled.
+     */
+    private volatile Transport guardedTransport;
+    /**
+     * Nodes on which recently created tokens were created, by token id, so
+     * that tokens are redeemed and validated on their node. Least recently
+     * used entries are evicted first. Only used with several nodes.
+     */
+    private final Map<String, MainzellisteNode> tokenNodes = Collections
+            .synchronizedMap(new LinkedHashMap<String, MainzellisteNode>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
 
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, MainzellisteNode> eldest) {
+                    return size() > MAX_TOKEN_NODES;
+                }
+            });
     /**
-     * HTTP client through which requests to Mainzelliste are made.
+     * Limits of concurrent requests by operation type. Replaced on change.
      */
-    private final CloseableHttpClient httpClient;
+    private volatile Map<Operation, Bulkhead> bulkheads = Collections.emptyMap();
 
     /**
-     * Initialize connection to Mainzelliste with default Http client.
+     * Initialize connection to Mainzelliste with a managed connection pool
+     * using the default {@link ConnectionPoolSettings}.
      * 
      * @param mainzellisteURI
      *            Base URL of the Mainzelliste instance.
@@ -94,13 +197,36 @@ public class MainzellisteConnection implements SessionEditable {
      *             if mainzellisteURI is not a syntactically valid URI.
      */
     public MainzellisteConnection(String mainzellisteURI, String mainzellisteApiKey) throws URISyntaxException {
-        this(mainzellisteURI, mainzellisteApiKey, HttpClientBuilder.create().build());
+        this(mainzellisteURI, mainzellisteApiKey, new ConnectionPoolSettings());
+    }
+
+    /**
+     * Initialize connection to Mainzelliste with a managed connection pool.
+     * Idle and expired connections are evicted by a background thread, which
+     * is stopped by {@link #close()}.
+     * 
+     * @param mainzellisteURI
+     *            Base URL of the Mainzelliste instance.
+     * @param mainzellisteApiKey
+     *            API key used to authenticate against the Mainzelliste
+     *            instance.
+     * @param poolSettings
+     *            Limits and timeouts of the connection pool.
+     * @throws URISyntaxException
+     *             if mainzellisteURI is not a syntactically valid URI.
+     */
+    public MainzellisteConnection(String mainzellisteURI, String mainzellisteApiKey,
+            ConnectionPoolSettings poolSettings) throws URISyntaxException {
+        this(mainzellisteURI, mainzellisteApiKey, new ApacheHttpTransport(poolSettings));
     }
 
     /**
      * Initialize connection to Mainzelliste with a provided Http client. This
      * constructor should be used if special properties have to be set for Http
      * connections (e.g. a proxy server).
+     * Asynchronous requests are made by the same client on background
+     * threads; see {@link ApacheHttpTransport} for a transport with a
+     * provided non-blocking client.
      * 
      * @param mainzellisteURI
      *            Base URI of the Mainzelliste instance.
@@ -113,26 +239,458 @@ public class MainzellisteConnection implements SessionEditable {
      */
     public MainzellisteConnection(String mainzellisteURI, String mainzellisteApiKey, CloseableHttpClient httpClient)
             throws URISyntaxException {
-        if (!mainzellisteURI.endsWith("/"))
-            mainzellisteURI += "/";
-        this.mainzellisteURI = new URI(mainzellisteURI);
+        this(mainzellisteURI, mainzellisteApiKey, new ApacheHttpTransport(httpClient));
+    }
+
+    /**
+     * Initialize connection to Mainzelliste with a custom transport, e.g. a
+     * test double that answers requests without network access.
+     * 
+     * @param mainzellisteURI
+     *            Base URI of the Mainzelliste instance.
+     * @param mainzellisteApiKey
+     *            Api key to authenticate against the Mainzelliste instance.
+     * @param transport
+     *            The transport through which requests are made.
+     * @throws URISyntaxException
+     *             if mainzellisteURI is not a syntactically valid URI.
+     */
+    public MainzellisteConnection(String mainzellisteURI, String mainzellisteApiKey, Transport transport)
+            throws URISyntaxException {
+        this(Collections.singletonList(mainzellisteURI), mainzellisteApiKey, transport);
+    }
+
+    /**
+     * Initialize connection to several Mainzelliste instances that share a
+     * database, with a managed connection pool. See
+     * {@link #MainzellisteConnection(Collection, String, Transport)}.
+     * 
+     * @param mainzellisteURIs
+     *            Base URLs of the Mainzelliste instances.
+     * @param mainzellisteApiKey
+     *            API key used to authenticate against the Mainzelliste
+     *            instances.
+     * @param poolSettings
+     *            Limits and timeouts of the connection pool.
+     * @throws URISyntaxException
+     *             if one of mainzellisteURIs is not a syntactically valid URI.
+     */
+    public MainzellisteConnection(Collection<String> mainzellisteURIs, String mainzellisteApiKey,
+            ConnectionPoolSettings poolSettings) throws URISyntaxException {
+        this(mainzellisteURIs, mainzellisteApiKey, new ApacheHttpTransport(poolSettings));
+    }
+
+    /**
+     * Initialize connection to several Mainzelliste instances (nodes) that
+     * share a database, as an alternative to an external load balancer. New
+     * sessions are created on an available node with low latency, failing over
+     * to other nodes if a node cannot be reached. As Mainzelliste holds
+     * sessions and tokens in memory, a session and its tokens stay on the node
+     * that created it (see {@link Session#getNode()}). Nodes are marked down by
+     * failed session creations and by health checks (see
+     * {@link #startHealthChecks(long)}).
+     * 
+     * Requests with paths relative to the base URI, e.g. by
+     * {@link #doRequest(RequestMethod, String, String)}, go to the first node.
+     * Tokens passed by id, e.g. to {@link #readPatients(String, Consumer)} or
+     * a {@link Validator}, are sent to the node that created them if the
+     * token was created by a session of this connection recently; otherwise
+     * they are redeemed on the first node, and validated on each node in
+     * turn.
+     * 
+     * @param mainzellisteURIs
+     *            Base URIs of the Mainzelliste instances.
+     * @param mainzellisteApiKey
+     *            Api key to authenticate against the Mainzelliste instances.
+     * @param transport
+     *            The transport through which requests are made.
+     * @throws URISyntaxException
+     *             if one of mainzellisteURIs is not a syntactically valid URI.
+     */
+    public MainzellisteConnection(Collection<String> mainzellisteURIs, String mainzellisteApiKey,
+            Transport transport) throws URISyntaxException {
+        if (mainzellisteURIs.isEmpty())
+            throw new IllegalArgumentException("At least one Mainzelliste URI is required");
+        this.nodes = new MainzellisteNode[mainzellisteURIs.size()];
+        int i = 0;
+        for (String mainzellisteURI : mainzellisteURIs) {
+            if (!mainzellisteURI.endsWith("/"))
+                mainzellisteURI += "/";
+            nodes[i++] = new MainzellisteNode(new URI(mainzellisteURI));
+        }
+        this.mainzellisteURI = nodes[0].getURI();
         this.mainzellisteApiKey = mainzellisteApiKey;
-        this.httpClient = httpClient;
+        this.transport = transport;
+        this.guardedTransport = transport;
     }
 
     /**
      * Get the URI of this Mainzelliste instance.
      * 
-     * @return The URI of this Mainzelliste instance.
+     * @return The URI of this Mainzelliste instance. With several nodes, the
+     *         URI of the first node.
      * 
      */
     public URI getMainzellisteURI() {
         return mainzellisteURI;
     }
 
+    /**
+     * Get the Mainzelliste instances of this connection.
+     * 
+     * @return The nodes in the order in which their URIs were passed to the
+     *         constructor.
+     */
+    public List<MainzellisteNode> getNodes() {
+        return Collections.unmodifiableList(Arrays.asList(nodes));
+    }
+
+    /**
+     * Check the health of all nodes in the given interval, starting at once,
+     * by a GET request on their base URI. A node that does not respond or
+     * responds with a server error is not used for new sessions until a check
+     * succeeds. The result of a check also updates the latency of the node.
+     * Health checks go through the circuit breaker of the node, so that they
+     * probe a node whose circuit is open without waiting for user requests;
+     * they are not checked while it is open. They bypass retries and the
+     * concurrency limit, so that they neither wait for user requests nor
+     * reflect their load. Previous health checks of this connection are
+     * replaced; {@link #close()} stops them.
+     * 
+     * @param interval
+     *            Health check interval in milliseconds.
+     */
+    public synchronized void startHealthChecks(long interval) {
+        if (interval <= 0)
+            throw new IllegalArgumentException("Health check interval must be greater than 0");
+        stopHealthChecks();
+        long downTime = Math.max(NODE_DOWN_TIME, interval);
+        healthChecks = Futures.scheduleWithFixedDelay(() -> {
+            for (MainzellisteNode node : nodes)
+                checkHealth(node, downTime);
+        }, 0, interval);
+    }
+
+    /**
+     * Stop health checks started by {@link #startHealthChecks(long)}.
+     */
+    public synchronized void stopHealthChecks() {
+        if (healthChecks != null) {
+            healthChecks.cancel(false);
+            healthChecks = null;
+        }
+    }
+
+    /**
+     * Check the health of a node, unless the previous check has not completed
+     * yet. Non-blocking, so that a node that does not respond does not delay
+     * the checks of other nodes.
+     * 
+     * @param node
+     *            The node.
+     * @param downTime
+     *            Time in milliseconds for which the node is marked down if the
+     *            check fails.
+     */
+    private void checkHealth(MainzellisteNode node, long downTime) {
+        if (!node.startHealthCheck())
+            return;
+        long start = System.nanoTime();
+        CompletableFuture<MainzellisteResponse> response;
+        try {
+            response = new GuardedTransport(transport, request -> node.getCircuitBreaker())
+                    .executeAsync(createRequest(RequestMethod.GET, node.getURI().toString(), null, 0, true));
+        } catch (RuntimeException e) {
+            response = Futures.failed(e);
+        }
+        response.whenComplete((r, t) -> {
+            node.endHealthCheck();
+            if (t == null && r.getStatusCode() < 500)
+                node.recordSuccess(System.nanoTime() - start);
+            else if (!(Futures.unwrap(t) instanceof CircuitOpenException))
+                node.recordFailure(downTime);
+        });
+    }
+
+    /**
+     * Get the codec used for request entities and responses.
+     * 
+     * @return The JSON codec.
+     */
+    public JsonCodec getJsonCodec() {
+        return jsonCodec;
+    }
+
+    /**
+     * Set the codec used for request entities and responses. By default, a
+     * {@link StreamingJsonCodec} is used.
+     * 
+     * @param jsonCodec
+     *            The JSON codec.
+     */
+    public void setJsonCodec(JsonCodec jsonCodec) {
+        if (jsonCodec == null)
+            throw new NullPointerException("JsonCodec passed to setJsonCodec is null!");
+        this.jsonCodec = jsonCodec;
+    }
+
+    /**
+     * Get the registry of patient identifiers used for IDs read from
+     * responses, e.g. when restoring a session. Applications can use it to
+     * share instances with the client.
+     * 
+     * @return The ID registry.
+     */
+    public IDFactory getIdFactory() {
+        return idFactory;
+    }
+
+    /**
+     * Get the maximum size of response entities.
+     * 
+     * @return The maximum size in bytes, default is 16 MiB.
+     */
+    public long getMaxResponseSize() {
+        return maxResponseSize;
+    }
+
+    /**
+     * Set the maximum size of response entities. Requests whose response
+     * exceeds this size fail with a {@link MainzellisteNetworkException}
+     * before the entity is read completely, which protects against
+     * exhausting the heap.
+     * 
+     * @param maxResponseSize
+     *            The maximum size in bytes, must be greater than 0.
+     */
+    public void setMaxResponseSize(long maxResponseSize) {
+        if (maxResponseSize <= 0)
+            throw new IllegalArgumentException("maxResponseSize must be greater than 0");
+        this.maxResponseSize = maxResponseSize;
+    }
+
+    /**
+     * Get the settings for retrying failed requests.
+     * 
+     * @return The retry settings.
+     */
+    public RetrySettings getRetrySettings() {
+        return retrier.getSettings();
+    }
+
+    /**
+     * Set the settings for retrying failed requests. By default, requests are
+     * retried according to the default {@link RetrySettings}. Changes to the
+     * settings object take effect for subsequent requests; setting it again
+     * refills the retry budget.
+     * 
+     * @param retrySettings
+     *            The retry settings. Use
+     *            {@code new RetrySettings().setMaxAttempts(1)} to disable
+     *            retries.
+     */
+    public void setRetrySettings(RetrySettings retrySettings) {
+        if (retrySettings == null)
+            throw new NullPointerException("RetrySettings passed to setRetrySettings is null!");
+        this.retrier = new RequestRetrier(retrySettings, retryMetrics);
+    }
+
+    /**
+     * Get the counters of retried requests of this connection.
+     * 
+     * @return The retry metrics.
+     */
+    public RetryMetrics getRetryMetrics() {
+        return retryMetrics;
+    }
+
+    /**
+     * Set the settings of the circuit breaker, which makes requests fail at
+     * once with a {@link CircuitOpenException} while Mainzelliste is
+     * unavailable or slow. With several nodes, each node has its own circuit
+     * breaker (see {@link MainzellisteNode#getCircuitBreaker()}), and new
+     * sessions are created on other nodes while the circuit of a node is
+     * open. The circuit breaker is disabled by default. Setting it replaces
+     * the circuit breakers by closed ones.
+     * 
+     * @param circuitBreakerSettings
+     *            The circuit breaker settings, or null to disable the circuit
+     *            breaker.
+     */
+    public synchronized void setCircuitBreakerSettings(CircuitBreakerSettings circuitBreakerSettings) {
+        this.circuitBreakerSettings = circuitBreakerSettings;
+        for (MainzellisteNode node : nodes)
+            node.setCircuitBreaker(circuitBreakerSettings == null ? null : new CircuitBreaker(circuitBreakerSettings));
+        updateGuardedTransport();
+    }
+
+    /**
+     * Get the circuit breaker of the first node.
+     * 
+     * @return The circuit breaker, or null if it is disabled.
+     * @deprecated With several nodes, each node has its own circuit breaker;
+     *             use {@link MainzellisteNode#getCircuitBreaker()} of the
+     *             nodes returned by {@link #getNodes()}.
+     */
+    @Deprecated
+    public synchronized CircuitBreaker getCircuitBreaker() {
+        return nodes[0].getCircuitBreaker();
+    }
+
+    /**
+     * Set the settings of the adaptive concurrency limit, which adjusts the
+     * number of requests in flight to the observed latency and failures of
+     * Mainzelliste. Requests beyond the limit wait in a bounded queue, and
+     * fail with a {@link ConcurrencyLimitException} if the queue is full or
+     * they have waited too long. Each retry of a request waits anew. The
+     * limit is disabled by default.
+     * 
+     * @param concurrencyLimitSettings
+     *            The concurrency limit settings, or null to disable the limit.
+     */
+    public synchronized void setConcurrencyLimitSettings(ConcurrencyLimitSettings concurrencyLimitSettings) {
+        this.concurrencyLimiter = concurrencyLimitSettings == null ? null
+                : new ConcurrencyLimiter(concurrencyLimitSettings);
+        updateGuardedTransport();
+    }
+
+    /**
+     * Get the adaptive concurrency limiter, e.g. to monitor the current limit
+     * and the number of waiting requests.
+     * 
+     * @return The concurrency limiter, or null if it is disabled.
+     */
+    public synchronized ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * Rebuild the chain of the transport and the enabled concurrency limiter
+     * and circuit breakers. Requests rejected by a circuit breaker do not
+     * take part in the concurrency limit.
+     */
+    private void updateGuardedTransport() {
+        Transport guardedTransport = transport;
+        if (circuitBreakerSettings != null)
+            guardedTransport = new GuardedTransport(guardedTransport,
+                    request -> nodeOf(request.getUri()).getCircuitBreaker());
+        if (concurrencyLimiter != null)
+            guardedTransport = new LimitedTransport(guardedTransport, concurrencyLimiter);
+        this.guardedTransport = guardedTransport;
+    }
+
+    /**
+     * Get the node to which a request is sent.
+     * 
+     * @param uri
+     *            The URI of the request.
+     * @return The node whose base URI is a prefix of uri, or the first node
+     *         if there is none.
+     */
+    private MainzellisteNode nodeOf(URI uri) {
+        if (nodes.length > 1) {
+            String s = uri.toString();
+            for (MainzellisteNode node : nodes) {
+                if (s.startsWith(node.getURI().toString()))
+                    return node;
+            }
+        }
+        return nodes[0];
+    }
+
+    /**
+     * Remember the node on which a token was created. Called by
+     * {@link Session} for every token it creates.
+     * 
+     * @param tokenId
+     *            Id of the token.
+     * @param node
+     *            The node of the session that created the token.
+     */
+    void tokenCreated(String tokenId, MainzellisteNode node) {
+        if (nodes.length > 1)
+            tokenNodes.put(tokenId, node);
+    }
+
+    /**
+     * Get the node on which a token was created.
+     * 
+     * @param tokenId
+     *            Id of the token.
+     * @return The node, or null if the token was not created by a session of
+     *         this connection or has been forgotten since.
+     */
+    MainzellisteNode getTokenNode(String tokenId) {
+        if (nodes.length == 1)
+            return nodes[0];
+        return tokenNodes.get(tokenId);
+    }
+
+    /**
+     * Get the base URI of the node on which to redeem a token.
+     * 
+     * @param tokenId
+     *            Id of the token.
+     * @return The base URI of the node that created the token, or of the
+     *         first node if it is unknown.
+     */
+    private URI tokenURI(String tokenId) {
+        MainzellisteNode node = tokenId == null ? null : getTokenNode(tokenId);
+        return node == null ? mainzellisteURI : node.getURI();
+    }
+
+    /**
+     * Limit the number of concurrent requests of an operation type (bulkhead),
+     * e.g. so that a bulk export that redeems many "readPatients" tokens
+     * cannot take all connections needed by interactive temp-id requests.
+     * Requests wait up to maxWaitTime for their turn; asynchronous requests
+     * wait without blocking a thread. Requests that cannot be made in time
+     * fail with a {@link BulkheadFullException}. Retries of a request do not count
+     * separately. By default, the number of requests is not limited.
+     * 
+     * @param operation
+     *            The operation type.
+     * @param maxConcurrentCalls
+     *            The maximum number of concurrent requests, or 0 for no limit.
+     * @param maxWaitTime
+     *            Maximum time in milliseconds a request waits, must not be
+     *            negative.
+     */
+    public synchronized void setMaxConcurrentCalls(Operation operation, int maxConcurrentCalls, long maxWaitTime) {
+        if (operation == null)
+            throw new NullPointerException("Operation passed to setMaxConcurrentCalls is null!");
+        if (maxConcurrentCalls < 0)
+            throw new IllegalArgumentException("maxConcurrentCalls must not be negative");
+        if (maxWaitTime < 0)
+            throw new IllegalArgumentException("maxWaitTime must not be negative");
+        Map<Operation, Bulkhead> bulkheads = new EnumMap<Operation, Bulkhead>(Operation.class);
+        bulkheads.putAll(this.bulkheads);
+        if (maxConcurrentCalls == 0)
+            bulkheads.remove(operation);
+        else
+            bulkheads.put(operation, new Bulkhead(operation, maxConcurrentCalls, maxWaitTime));
+        this.bulkheads = bulkheads;
+    }
+
+    /**
+     * Get the maximum number of concurrent requests of an operation type.
+     * 
+     * @param operation
+     *            The operation type.
+     * @return The maximum number of concurrent requests, or 0 if it is not
+     *         limited.
+     */
+    public int getMaxConcurrentCalls(Operation operation) {
+        Bulkhead bulkhead = bulkheads.get(operation);
+        return bulkhead == null ? 0 : bulkhead.getMaxConcurrentCalls();
+    }
+
     /**
      * Create a new session on the Mainzelliste instance represented by this
-     * object.
+     * object. With several nodes, the session is created on an available node
+     * with low latency; if the node cannot be reached or responds with a
+     * server error, it is marked down and the session is created on another
+     * node.
      * 
      * @return The created session.
      * 
@@ -140,21 +698,142 @@ public class MainzellisteConnection implements SessionEditable {
      *             If a network error occurs while making the request.
      */
     public Session createSession() throws MainzellisteNetworkException {
-        MainzellisteResponse response = this.doRequest(RequestMethod.POST, "sessions", null);
+        List<MainzellisteNode> tried = new ArrayList<MainzellisteNode>(1);
+        while (true) {
+            MainzellisteNode node = chooseNode(tried);
+            tried.add(node);
+            long start = System.nanoTime();
+            node.startSessionCreation();
+            try {
+                Session session = sessionFromResponse(this.doRequest(RequestMethod.POST,
+                        node.getURI().resolve("sessions").toString(), null), node);
+                sessionCreated(node, start, null);
+                return session;
+            } catch (MainzellisteNetworkException e) {
+                if (!sessionCreated(node, start, e) || tried.size() == nodes.length)
+                    throw e;
+            }
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #createSession()}.
+     * 
+     * @return A future of the created session. If the request fails, the
+     *         future is completed exceptionally with a
+     *         {@link MainzellisteNetworkException}.
+     */
+    public CompletableFuture<Session> createSessionAsync() {
+        CompletableFuture<Session> result = new CompletableFuture<Session>();
+        createSessionAsync(new ArrayList<MainzellisteNode>(1), result);
+        return result;
+    }
+
+    private void createSessionAsync(List<MainzellisteNode> tried, CompletableFuture<Session> result) {
+        MainzellisteNode node = chooseNode(tried);
+        tried.add(node);
+        long start = System.nanoTime();
+        node.startSessionCreation();
+        CompletableFuture<Session> session;
+        try {
+            session = Futures.thenApply(this.doRequestAsync(RequestMethod.POST,
+                    node.getURI().resolve("sessions").toString(), null),
+                    response -> sessionFromResponse(response, node));
+        } catch (RuntimeException e) {
+            session = Futures.failed(e);
+        }
+        session.whenComplete((s, t) -> {
+            Throwable cause = t == null ? null : Futures.unwrap(t);
+            if (cause == null) {
+                sessionCreated(node, start, null);
+                result.complete(s);
+            } else if (sessionCreated(node, start, cause) && tried.size() < nodes.length) {
+                createSessionAsync(tried, result);
+            } else {
+                result.completeExceptionally(cause);
+            }
+        });
+    }
+
+    /**
+     * Choose a node for a new session.
+     * 
+     * @param tried
+     *            Nodes on which creating the session has failed.
+     * @return The node.
+     */
+    private MainzellisteNode chooseNode(List<MainzellisteNode> tried) {
+        if (tried.isEmpty())
+            return MainzellisteNode.choose(nodes);
+        List<MainzellisteNode> candidates = new ArrayList<MainzellisteNode>(Arrays.asList(nodes));
+        candidates.removeAll(tried);
+        return MainzellisteNode.choose(candidates.toArray(new MainzellisteNode[candidates.size()]));
+    }
+
+    /**
+     * Record the outcome of creating a session on a node. A network error or
+     * server error marks the node down. If the circuit breaker of the node is
+     * open, the session is created on another node. Other requests rejected
+     * by this connection, e.g. by a bulkhead, and client errors such as a
+     * wrong api key say nothing about the node and are passed on to the
+     * caller.
+     * 
+     * @param node
+     *            The node.
+     * @param start
+     *            Time (System.nanoTime()) at which the request started.
+     * @param failure
+     *            The exception if the session could not be created, or null.
+     * @return True if the session may be created on another node.
+     */
+    private boolean sessionCreated(MainzellisteNode node, long start, Throwable failure) {
+        node.endSessionCreation(failure == null);
+        if (failure == null) {
+            node.recordSuccess(System.nanoTime() - start);
+            return false;
+        }
+        // The node is unavailable while its circuit is open
+        if (failure instanceof CircuitOpenException)
+            return true;
+        if (!(failure instanceof MainzellisteNetworkException)
+                || failure instanceof BulkheadFullException || failure instanceof ConcurrencyLimitException)
+            return false;
+        MainzellisteResponse errorResponse = ((MainzellisteNetworkException) failure).getErrorResponse();
+        if (errorResponse != null && errorResponse.getStatusCode() < 500)
+            return false;
+        node.recordFailure(NODE_DOWN_TIME);
+        return true;
+    }
+
+    /**
+     * Create a session object from the response to a request to create a
+     * session.
+     * 
+     * @param response
+     *            The response to POST /sessions.
+     * @param node
+     *            The node on which the session was created.
+     * @return The created session.
+     * @throws MainzellisteNetworkException
+     *             If the response indicates an error.
+     */
+    private Session sessionFromResponse(MainzellisteResponse response, MainzellisteNode node)
+            throws MainzellisteNetworkException {
         int responseCode = response.getStatusCode();
         if (responseCode != 201) {
             throw MainzellisteNetworkException.fromResponse(response);
         }
-        JSONObject sessionData = response.getDataJSON();
         String sessionId;
         try {
-            sessionId = sessionData.getString("sessionId");
-        } catch (JSONException e) {
+            sessionId = response.getString("sessionId");
+        } catch (MainzellisteNetworkException e) {
             // If we are here, Mainzelliste has responded with a correct status
             // code but with illegal data, which is a fatal error.
             throw new Error("Request to create session returned illegal data", e);
         }
-        return new Session(sessionId, this);
+        if (sessionId == null)
+            throw new Error("Request to create session returned illegal data");
+        return new Session(sessionId, this, node);
     }
 
     /**
@@ -177,6 +856,8 @@ public class MainzellisteConnection implements SessionEditable {
      * {@link MainzellisteConnection} objects can be serialized due to being
      * bound to a CloseableHttpClient instance.
      * 
+     * With several nodes, the session is looked up on each node in turn.
+     * 
      * @param sessionId
      *            Id of the session to read.
      * @return A session object representing the requested session, with the
@@ -188,35 +869,508 @@ public class MainzellisteConnection implements SessionEditable {
      *             instance.
      */
     public Session readSession(String sessionId) throws MainzellisteNetworkException, InvalidSessionException {
-        // Read tokens from session, also check if session exists
-        MainzellisteResponse response = this.doRequest(RequestMethod.GET, "sessions/" + sessionId + "/tokens/", null);
-        if (response.getStatusCode() == 404) {
-            throw new InvalidSessionException();
-        }
-        Session s = new Session(sessionId, this);
-        // No Content -> no tokens
-        if (response.getStatusCode() == 204)
-            return s;
+        return readSession(sessionId, false);
+    }
 
-        if (response.getStatusCode() == 200) {
+    /**
+     * Restore a session from a server, optionally deferring the restoration
+     * of temp-ids. The existence of the session is verified and its tokens
+     * are read as in {@link #readSession(String)}. If lazy is true, the token
+     * list is only parsed when the temp-ids of the session are first
+     * accessed, which makes reattaching sessions with many tokens cheap if
+     * their temp-ids are not needed. Until then, the token list is kept in
+     * memory as received. If it turns out to be malformed on first access,
+     * the accessing method throws an {@link IllegalStateException}.
+     * 
+     * @param sessionId
+     *            Id of the session to read.
+     * @param lazy
+     *            Whether to defer parsing of the tokens to the first access
+     *            of the temp-ids.
+     * @return A session object representing the requested session.
+     * @throws MainzellisteNetworkException
+     *             If a network error occured while making the request.
+     * @throws InvalidSessionException
+     *             If the session does not exist anymore on the Mainzelliste
+     *             instance.
+     */
+    public Session readSession(String sessionId, boolean lazy)
+            throws MainzellisteNetworkException, InvalidSessionException {
+        // Read tokens from session, also check if session exists
+        MainzellisteNetworkException failure = null;
+        for (MainzellisteNode node : nodes) {
+            Session s;
             try {
-                JSONArray tokensJSON = new JSONArray(response.getData());
-                s.setTokens(tokensJSON);
-                return s;
-            } catch (JSONException e) {
-                throw new Error("Request to read session tokens returned illegal data", e);
+                // The token list is parsed while it is received, so its size is
+                // not limited by the maximum response size
+                s = doStreamingRequest(RequestMethod.GET, sessionTokensPath(node, sessionId),
+                        (statusCode, entity) -> sessionFromTokens(sessionId, node, statusCode, entity, lazy));
+            } catch (MainzellisteNetworkException e) {
+                // The session may be on this node, but try the others
+                failure = e;
+                continue;
             }
-        } else { // Illegal status code
-            throw MainzellisteNetworkException.fromResponse(response);
+            if (s != null)
+                return s;
         }
+        if (failure != null)
+            throw failure;
+        throw new InvalidSessionException();
     }
 
     /**
-     * Utility method to make requests to this Mainzelliste instance.
+     * Asynchronous variant of {@link #readSession(String)}. Unlike the
+     * blocking variant, the token list is read into memory before it is
+     * parsed, so it is subject to the maximum response size (see
+     * {@link #setMaxResponseSize(long)}).
      * 
-     * @param method
-     *            The http method to use (GET, POST, PUT, DELETE).
-     * @param path
+     * @param sessionId
+     *            Id of the session to read.
+     * @return A future of the session object. If the request fails, the future
+     *         is completed exceptionally with a
+     *         {@link MainzellisteNetworkException} or, if the session does not
+     *         exist anymore, an {@link InvalidSessionException}.
+     */
+    public CompletableFuture<Session> readSessionAsync(String sessionId) {
+        CompletableFuture<Session> result = new CompletableFuture<Session>();
+        readSessionAsync(sessionId, 0, null, result);
+        return result;
+    }
+
+    private void readSessionAsync(String sessionId, int index, Throwable failure, CompletableFuture<Session> result) {
+        if (index == nodes.length) {
+            result.completeExceptionally(failure != null ? failure : new InvalidSessionException());
+            return;
+        }
+        MainzellisteNode node = nodes[index];
+        CompletableFuture<MainzellisteResponse> response;
+        try {
+            response = this.doRequestAsync(RequestMethod.GET, sessionTokensPath(node, sessionId), null);
+        } catch (RuntimeException e) {
+            response = Futures.failed(e);
+        }
+        response.whenComplete((r, t) -> {
+            if (t != null) {
+                readSessionAsync(sessionId, index + 1, Futures.unwrap(t), result);
+            } else if (r.getStatusCode() == 404) {
+                readSessionAsync(sessionId, index + 1, failure, result);
+            } else {
+                try {
+                    result.complete(sessionFromTokensResponse(sessionId, node, r));
+                } catch (Exception | Error e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+    }
+
+    private static String sessionTokensPath(MainzellisteNode node, String sessionId) {
+        return node.getURI().resolve("sessions/" + sessionId + "/tokens/").toString();
+    }
+
+    /**
+     * Create a session object from the response to reading its tokens.
+     * 
+     * @param sessionId
+     *            Id of the session.
+     * @param node
+     *            The node on which the session exists.
+     * @param response
+     *            The response to GET /sessions/{sessionId}/tokens.
+     * @return A session object with the mapping of permanent to temporary
+     *         identifiers restored.
+     * @throws MainzellisteNetworkException
+     *             If the response indicates an error or contains illegal
+     *             data.
+     * @throws InvalidSessionException
+     *             If the session does not exist anymore.
+     */
+    private Session sessionFromTokensResponse(String sessionId, MainzellisteNode node, MainzellisteResponse response)
+            throws MainzellisteNetworkException, InvalidSessionException {
+        if (response.getStatusCode() == 404) {
+            throw new InvalidSessionException();
+        }
+        Session s = new Session(sessionId, this, node);
+        // No Content -> no tokens
+        if (response.getStatusCode() == 204)
+            return s;
+
+        if (response.getStatusCode() == 200) {
+            s.readTokens(new JsonReader(response.getData()));
+            return s;
+        } else { // Illegal status code
+            throw MainzellisteNetworkException.fromResponse(response);
+        }
+    }
+
+    /**
+     * Create a session object from the streamed response to reading its
+     * tokens.
+     * 
+     * @param sessionId
+     *            Id of the session.
+     * @param node
+     *            The node that sent the response.
+     * @param statusCode
+     *            Status code of the response to GET
+     *            /sessions/{sessionId}/tokens.
+     * @param entity
+     *            Entity of the response.
+     * @param lazy
+     *            Whether to defer parsing of the tokens.
+     * @return A session object with the mapping of permanent to temporary
+     *         identifiers restored, or null if the session does not exist on
+     *         the node.
+     * @throws MainzellisteNetworkException
+     *             If the response indicates an error or contains illegal
+     *             data.
+     */
+    private Session sessionFromTokens(String sessionId, MainzellisteNode node, int statusCode, Reader entity,
+            boolean lazy) throws MainzellisteNetworkException {
+        if (statusCode == 404)
+            return null;
+        Session s = new Session(sessionId, this, node);
+        // No Content -> no tokens
+        if (statusCode == 204)
+            return s;
+        if (statusCode != 200) // Illegal status code
+            throw MainzellisteNetworkException.fromResponse(new MainzellisteResponse(statusCode, readError(entity)));
+        if (lazy)
+            s.setPendingTokens(readFully(entity));
+        else
+            s.readTokens(new JsonReader(entity));
+        return s;
+    }
+
+    /**
+     * Read the entity of a response into a string, regardless of its size.
+     * 
+     * @param entity
+     *            The entity of the response.
+     * @return The entity.
+     * @throws MainzellisteNetworkException
+     *             If an IO error occurs.
+     */
+    private static String readFully(Reader entity) throws MainzellisteNetworkException {
+        StringBuilder sb = new StringBuilder();
+        char[] buffer = new char[8192];
+        try {
+            int n;
+            while ((n = entity.read(buffer)) != -1)
+                sb.append(buffer, 0, n);
+        } catch (IOException e) {
+            throw new MainzellisteNetworkException("IO error while reading response from Mainzelliste", e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Read patients by redeeming a token of type "readPatients". The returned
+     * patient records are parsed one at a time while the response is
+     * received and passed to the consumer, so that memory usage does not
+     * depend on the number of patients covered by the token.
+     * 
+     * With several nodes, the token is redeemed on the node that created it
+     * if it is known, otherwise on the first node.
+     * 
+     * @param tokenId
+     *            Id of a "readPatients" token, e.g. as returned by
+     *            {@link Session#getReadPatientsTokens(java.util.Collection, int)}.
+     * @param consumer
+     *            Receives the patient records in the order of the response.
+     *            Exceptions thrown by the consumer abort the request and are
+     *            passed on to the caller.
+     * @return The number of patient records read.
+     * @throws MainzellisteNetworkException
+     *             If a network error occured while making the request, the
+     *             token is invalid or the response cannot be parsed.
+     */
+    public long readPatients(String tokenId, Consumer<Patient> consumer) throws MainzellisteNetworkException {
+        return readPatients(tokenURI(tokenId), tokenId, consumer);
+    }
+
+    /**
+     * Variant of {@link #readPatients(String, Consumer)} that redeems the token
+     * on the node that created it.
+     * 
+     * @param node
+     *            Base URI of the node.
+     * @param tokenId
+     *            Id of a "readPatients" token.
+     * @param consumer
+     *            Receives the patient records.
+     * @return The number of patient records read.
+     * @throws MainzellisteNetworkException
+     *             If a network error occured while making the request, the
+     *             token is invalid or the response cannot be parsed.
+     */
+    long readPatients(URI node, String tokenId, Consumer<Patient> consumer) throws MainzellisteNetworkException {
+        if (tokenId == null)
+            throw new NullPointerException("Token id passed to readPatients is null!");
+        if (consumer == null)
+            throw new NullPointerException("Consumer passed to readPatients is null!");
+        String path = node.resolve("patients?tokenId=" + tokenId).toString();
+        return doStreamingRequest(RequestMethod.GET, path, (statusCode, entity) -> {
+            if (statusCode != 200)
+                throw MainzellisteNetworkException.fromResponse(new MainzellisteResponse(statusCode,
+                        readError(entity)));
+            JsonReader in = new JsonReader(entity);
+            long count = 0;
+            in.beginArray();
+            while (in.hasNext()) {
+                consumer.accept(Patient.read(in, idFactory));
+                count++;
+            }
+            in.endArray();
+            return count;
+        });
+    }
+
+    /**
+     * Create a patient by redeeming a token of type "addPatient". The token
+     * must contain all fields of the patient, see
+     * {@link AddPatientToken#addField(String, String)}.
+     * 
+     * With several nodes, the token is redeemed on the node that created it
+     * if it is known, otherwise on the first node.
+     * 
+     * @param tokenId
+     *            Id of an "addPatient" token.
+     * @return The identifiers of the created patient, or of an existing
+     *         patient with the same data.
+     * @throws MainzellisteNetworkException
+     *             If a network error occured while making the request, the
+     *             token is invalid or the data matches an existing patient
+     *             only possibly (status code 409).
+     */
+    public List<ID> addPatient(String tokenId) throws MainzellisteNetworkException {
+        return addPatient(tokenURI(tokenId), tokenId);
+    }
+
+    /**
+     * Variant of {@link #addPatient(String)} that redeems the token on the
+     * node that created it.
+     * 
+     * @param node
+     *            Base URI of the node.
+     * @param tokenId
+     *            Id of an "addPatient" token.
+     * @return The identifiers of the patient.
+     * @throws MainzellisteNetworkException
+     *             If a network error occured while making the request or the
+     *             token is invalid.
+     */
+    List<ID> addPatient(URI node, String tokenId) throws MainzellisteNetworkException {
+        return idsFromAddPatientResponse(execute(createAddPatientRequest(node, tokenId)));
+    }
+
+    /**
+     * Asynchronous variant of {@link #addPatient(String)}.
+     * 
+     * @param tokenId
+     *            Id of an "addPatient" token.
+     * @return A future of the identifiers of the patient. If the request
+     *         fails, the future is completed exceptionally with a
+     *         {@link MainzellisteNetworkException}.
+     */
+    public CompletableFuture<List<ID>> addPatientAsync(String tokenId) {
+        return addPatientAsync(tokenURI(tokenId), tokenId);
+    }
+
+    /**
+     * Variant of {@link #addPatientAsync(String)} that redeems the token on
+     * the node that created it.
+     * 
+     * @param node
+     *            Base URI of the node.
+     * @param tokenId
+     *            Id of an "addPatient" token.
+     * @return A future of the identifiers of the patient.
+     */
+    CompletableFuture<List<ID>> addPatientAsync(URI node, String tokenId) {
+        TransportRequest request;
+        try {
+            request = createAddPatientRequest(node, tokenId);
+        } catch (RuntimeException e) {
+            return Futures.failed(e);
+        }
+        return Futures.thenApply(executeAsync(request), this::idsFromAddPatientResponse);
+    }
+
+    private TransportRequest createAddPatientRequest(URI node, String tokenId) {
+        if (tokenId == null)
+            throw new NullPointerException("Token id passed to addPatient is null!");
+        // All data is in the token, so the form is empty
+        return createRequest(RequestMethod.POST, node.resolve("patients?tokenId=" + tokenId).toString(), new byte[0],
+                0, false, "application/x-www-form-urlencoded");
+    }
+
+    /**
+     * Get the identifiers of a patient from the response to redeeming an
+     * "addPatient" token.
+     * 
+     * @param response
+     *            The response to POST /patients.
+     * @return The identifiers.
+     * @throws MainzellisteNetworkException
+     *             If the response indicates an error or cannot be parsed.
+     */
+    private List<ID> idsFromAddPatientResponse(MainzellisteResponse response) throws MainzellisteNetworkException {
+        if (response.getStatusCode() != 201)
+            throw MainzellisteNetworkException.fromResponse(response);
+        List<ID> ids = new ArrayList<ID>(2);
+        JsonReader in = new JsonReader(response.getData());
+        in.beginArray();
+        while (in.hasNext()) {
+            String idType = null;
+            String idString = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                case "idType":
+                    idType = in.nextString();
+                    break;
+                case "idString":
+                    idString = in.nextString();
+                    break;
+                default:
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            if (idType == null || idString == null)
+                throw new MainzellisteNetworkException("Request to create patient returned illegal data");
+            ids.add(new ID(idType, idString));
+        }
+        in.endArray();
+        return ids;
+    }
+
+    /**
+     * Change the IDAT or external identifiers of a patient by redeeming a
+     * token of type "editPatient". Only fields and ids listed in the token
+     * can be changed.
+     * 
+     * With several nodes, the token is redeemed on the node that created it
+     * if it is known, otherwise on the first node.
+     * 
+     * @param tokenId
+     *            Id of an "editPatient" token.
+     * @param changes
+     *            New values by field name or id type. A null value deletes
+     *            the field.
+     * @throws MainzellisteNetworkException
+     *             If a network error occured while making the request, the
+     *             token is invalid or does not permit one of the changes.
+     */
+    public void editPatient(String tokenId, Map<String, String> changes) throws MainzellisteNetworkException {
+        editPatient(tokenURI(tokenId), tokenId, changes);
+    }
+
+    /**
+     * Variant of {@link #editPatient(String, Map)} that redeems the token on
+     * the node that created it.
+     * 
+     * @param node
+     *            Base URI of the node.
+     * @param tokenId
+     *            Id of an "editPatient" token.
+     * @param changes
+     *            New values by field name or id type.
+     * @throws MainzellisteNetworkException
+     *             If a network error occured while making the request, the
+     *             token is invalid or does not permit one of the changes.
+     */
+    void editPatient(URI node, String tokenId, Map<String, String> changes) throws MainzellisteNetworkException {
+        checkEditPatientResponse(execute(createEditPatientRequest(node, tokenId, changes)));
+    }
+
+    /**
+     * Asynchronous variant of {@link #editPatient(String, Map)}.
+     * 
+     * @param tokenId
+     *            Id of an "editPatient" token.
+     * @param changes
+     *            New values by field name or id type. A null value deletes
+     *            the field.
+     * @return A future that is completed when the patient has been changed.
+     *         If the request fails, the future is completed exceptionally
+     *         with a {@link MainzellisteNetworkException}.
+     */
+    public CompletableFuture<Void> editPatientAsync(String tokenId, Map<String, String> changes) {
+        return editPatientAsync(tokenURI(tokenId), tokenId, changes);
+    }
+
+    /**
+     * Variant of {@link #editPatientAsync(String, Map)} that redeems the token
+     * on the node that created it.
+     * 
+     * @param node
+     *            Base URI of the node.
+     * @param tokenId
+     *            Id of an "editPatient" token.
+     * @param changes
+     *            New values by field name or id type.
+     * @return A future that is completed when the patient has been changed.
+     */
+    CompletableFuture<Void> editPatientAsync(URI node, String tokenId, Map<String, String> changes) {
+        TransportRequest request;
+        try {
+            request = createEditPatientRequest(node, tokenId, changes);
+        } catch (RuntimeException e) {
+            return Futures.failed(e);
+        }
+        return Futures.thenApply(executeAsync(request), this::checkEditPatientResponse);
+    }
+
+    private TransportRequest createEditPatientRequest(URI node, String tokenId, Map<String, String> changes) {
+        if (tokenId == null)
+            throw new NullPointerException("Token id passed to editPatient is null!");
+        if (changes == null)
+            throw new NullPointerException("Changes passed to editPatient are null!");
+        JsonWriter out = new JsonWriter().beginObject();
+        for (Map.Entry<String, String> change : changes.entrySet())
+            out.name(change.getKey()).value(change.getValue());
+        out.endObject();
+        return createRequest(RequestMethod.PUT, node.resolve("patients/tokenId/" + tokenId).toString(),
+                out.getBuffer(), out.size(), true);
+    }
+
+    private Void checkEditPatientResponse(MainzellisteResponse response) throws MainzellisteNetworkException {
+        if (response.getStatusCode() != 204)
+            throw MainzellisteNetworkException.fromResponse(response);
+        return null;
+    }
+
+    /**
+     * Read the entity of an error response, up to a length that suffices for
+     * error messages.
+     * 
+     * @param entity
+     *            The entity.
+     * @return The beginning of the entity.
+     * @throws MainzellisteNetworkException
+     *             If an IO error occurs.
+     */
+    static String readError(Reader entity) throws MainzellisteNetworkException {
+        char[] buffer = new char[4096];
+        int length = 0;
+        try {
+            int n;
+            while (length < buffer.length && (n = entity.read(buffer, length, buffer.length - length)) != -1)
+                length += n;
+        } catch (IOException e) {
+            throw new MainzellisteNetworkException("IO error while reading response from Mainzelliste", e);
+        }
+        return new String(buffer, 0, length);
+    }
+
+    /**
+     * Utility method to make requests to this Mainzelliste instance.
+     * 
+     * @param method
+     *            The http method to use (GET, POST, PUT, DELETE).
+     * @param path
      *            The resource path, either absolute or relative to the instance
      *            URL.
      * @param data
@@ -227,55 +1381,320 @@ public class MainzellisteConnection implements SessionEditable {
      *             If a network error occurs while making the request.
      */
     public MainzellisteResponse doRequest(RequestMethod method, String path, String data) throws MainzellisteNetworkException {
-        HttpUriRequest request;
-        URI absoluteUri = mainzellisteURI.resolve(path);
-        switch (method) {
-        case GET:
-            request = new HttpGet(absoluteUri);
-            break;
-        case POST:
-            HttpPost postRequest = new HttpPost(absoluteUri);
-            if (data != null) {
-                postRequest.setHeader("Content-Type", "application/json");
-                try {
-                    postRequest.setEntity(new StringEntity(data.toString(), "utf-8"));
-                } catch (Throwable t) {
-                    throw new MainzellisteNetworkException(
-                            "Error while performing a " + method + " request to " + absoluteUri, t);
-                }
+        return execute(createRequest(method, path, data));
+    }
+
+    /**
+     * Make a request of which only the status code is needed, e.g. to delete
+     * a resource or check its existence. The entity of a successful response
+     * is discarded by the transport without reading it into memory, so
+     * {@link MainzellisteResponse#getData()} returns an empty String. Entities
+     * of error responses are kept.
+     * 
+     * @param method
+     *            The http method to use.
+     * @param path
+     *            The resource path, either absolute or relative to the instance
+     *            URL.
+     * @return The response.
+     * @throws MainzellisteNetworkException
+     *             If a network error occurs while making the request.
+     */
+    public MainzellisteResponse doStatusRequest(RequestMethod method, String path)
+            throws MainzellisteNetworkException {
+        return execute(createRequest(method, path, null, 0, true));
+    }
+
+    /**
+     * Asynchronous variant of {@link #doStatusRequest(RequestMethod, String)}.
+     * 
+     * @param method
+     *            The http method to use.
+     * @param path
+     *            The resource path, either absolute or relative to the instance
+     *            URL.
+     * @return A future of the response.
+     */
+    public CompletableFuture<MainzellisteResponse> doStatusRequestAsync(RequestMethod method, String path) {
+        return executeAsync(createRequest(method, path, null, 0, true));
+    }
+
+    /**
+     * Make a request whose response entity is passed to a handler while it is
+     * received, e.g. to parse large responses with a {@link JsonReader}
+     * without holding them in memory. The maximum response size of this
+     * connection does not apply.
+     * 
+     * @param <T>
+     *            Type of the result.
+     * @param method
+     *            The http method to use.
+     * @param path
+     *            The resource path, either absolute or relative to the instance
+     *            URL.
+     * @param handler
+     *            Handler for the status code and entity of the response.
+     * @return The result of the handler.
+     * @throws MainzellisteNetworkException
+     *             If a network error occurs while making the request or the
+     *             handler fails.
+     */
+    public <T> T doStreamingRequest(RequestMethod method, String path, Transport.ResponseHandler<T> handler)
+            throws MainzellisteNetworkException {
+        return execute(createRequest(method, path, null, 0, false), handler);
+    }
+
+    /**
+     * Make a request with a token as entity. The token is serialized by the
+     * {@link JsonCodec} of this connection into a buffer that is reused by
+     * subsequent requests of the calling thread.
+     * 
+     * @param method
+     *            The http method to use (POST or PUT).
+     * @param path
+     *            The resource path, either absolute or relative to the instance
+     *            URL.
+     * @param token
+     *            The token to transmit.
+     * @return The response represented as an instance of
+     *         {@link MainzellisteResponse}.
+     * @throws MainzellisteNetworkException
+     *             If a network error occurs while making the request.
+     */
+    public MainzellisteResponse doTokenRequest(RequestMethod method, String path, Token token)
+            throws MainzellisteNetworkException {
+        JsonWriter out = REQUEST_BUFFER.get();
+        if (out == null)
+            out = new JsonWriter();
+        else
+            REQUEST_BUFFER.remove(); // in use, e.g. by a nested request of a transport
+        try {
+            jsonCodec.encode(token, out);
+            return execute(createRequest(method, path, out.getBuffer(), out.size(), false));
+        } finally {
+            REQUEST_BUFFER.set(out.reset());
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #doTokenRequest(RequestMethod, String, Token)}.
+     * As the entity has to outlive the call, a new buffer is used for each
+     * request.
+     * 
+     * @param method
+     *            The http method to use (POST or PUT).
+     * @param path
+     *            The resource path, either absolute or relative to the instance
+     *            URL.
+     * @param token
+     *            The token to transmit.
+     * @return A future of the response.
+     */
+    public CompletableFuture<MainzellisteResponse> doTokenRequestAsync(RequestMethod method, String path, Token token) {
+        JsonWriter out = new JsonWriter();
+        jsonCodec.encode(token, out);
+        return executeAsync(createRequest(method, path, out.getBuffer(), out.size(), false));
+    }
+
+    /**
+     * Asynchronous variant of {@link #doRequest(RequestMethod, String, String)}.
+     * With the default transport, the request is executed by a non-blocking
+     * HTTP client, so no thread is blocked while waiting for the response.
+     * 
+     * @param method
+     *            The http method to use (GET, POST, PUT, DELETE).
+     * @param path
+     *            The resource path, either absolute or relative to the instance
+     *            URL.
+     * @param data
+     *            The data to transmit.
+     * @return A future of the response. If a network error occurs, the future
+     *         is completed exceptionally with a
+     *         {@link MainzellisteNetworkException}.
+     */
+    public CompletableFuture<MainzellisteResponse> doRequestAsync(RequestMethod method, String path, String data) {
+        return executeAsync(createRequest(method, path, data));
+    }
+
+    /**
+     * Execute a request within the bulkhead of its operation type, through
+     * the circuit breaker if enabled, and retry it if it fails.
+     */
+    private MainzellisteResponse execute(TransportRequest request) throws MainzellisteNetworkException {
+        Bulkhead bulkhead = bulkhead(request);
+        if (bulkhead != null)
+            bulkhead.acquire();
+        try {
+            return retrier.execute(guardedTransport, request);
+        } finally {
+            if (bulkhead != null)
+                bulkhead.release();
+        }
+    }
+
+    private CompletableFuture<MainzellisteResponse> executeAsync(TransportRequest request) {
+        Bulkhead bulkhead = bulkhead(request);
+        if (bulkhead == null)
+            return retrier.executeAsync(guardedTransport, request);
+        return bulkhead.acquireAsync().thenCompose(v -> {
+            CompletableFuture<MainzellisteResponse> future;
+            try {
+                future = retrier.executeAsync(guardedTransport, request);
+            } catch (RuntimeException e) {
+                bulkhead.release();
+                throw e;
             }
-            request = postRequest;
-            break;
-        case PUT:
-            HttpPut putRequest = new HttpPut(absoluteUri);
-            if (data != null) {
-                putRequest.setHeader("Content-Type", "application/json");
-                try {
-                    putRequest.setEntity(new StringEntity(data.toString()));
-                } catch (Throwable t) {
-                    throw new MainzellisteNetworkException(
-                            "Error while performing a " + method + " request to " + absoluteUri, t);
-                }
+            return future.whenComplete((response, t) -> bulkhead.release());
+        });
+    }
+
+    private <T> T execute(TransportRequest request, Transport.ResponseHandler<T> handler)
+            throws MainzellisteNetworkException {
+        Bulkhead bulkhead = bulkhead(request);
+        if (bulkhead != null)
+            bulkhead.acquire();
+        try {
+            return retrier.execute(guardedTransport, request, handler);
+        } finally {
+            if (bulkhead != null)
+                bulkhead.release();
+        }
+    }
+
+    private Bulkhead bulkhead(TransportRequest request) {
+        Map<Operation, Bulkhead> bulkheads = this.bulkheads;
+        return bulkheads.isEmpty() ? null : bulkheads.get(operation(request));
+    }
+
+    /**
+     * Get the operation type of a request from its path.
+     */
+    private Operation operation(TransportRequest request) {
+        String path = null;
+        for (MainzellisteNode node : nodes) {
+            URI relative = node.getURI().relativize(request.getUri());
+            if (!relative.isAbsolute()) {
+                path = relative.getPath();
+                break;
             }
-            request = putRequest;
-            break;
-
-        case DELETE:
-            request = new HttpDelete(absoluteUri);
-            break;
-        default:
-            throw new Error("doRequest called with illegal method " + method);
         }
+        if (path == null)
+            return Operation.OTHER;
+        if (path.startsWith("sessions"))
+            return path.contains("/tokens") ? Operation.TOKEN : Operation.SESSION;
+        if (path.startsWith("patients"))
+            return Operation.PATIENT;
+        if (path.startsWith("validate"))
+            return Operation.VALIDATION;
+        return Operation.OTHER;
+    }
+
+    /**
+     * Create a request with the headers required by Mainzelliste.
+     * 
+     * @param method
+     *            The http method to use.
+     * @param path
+     *            The resource path, either absolute or relative to the instance
+     *            URL.
+     * @param data
+     *            The data to transmit.
+     * @return The request.
+     */
+    private TransportRequest createRequest(RequestMethod method, String path, String data) {
+        byte[] body = data == null ? null : data.getBytes(StandardCharsets.UTF_8);
+        return createRequest(method, path, body, body == null ? 0 : body.length, false);
+    }
 
-        request.setHeader("mainzellisteApiKey", mainzellisteApiKey);
-        request.setHeader("mainzellisteApiVersion", MAINZELLISTE_API_VERSION);
-        request.setHeader("Accept", "application/json");
+    /**
+     * Create a request with the headers required by Mainzelliste.
+     * 
+     * @param method
+     *            The http method to use.
+     * @param path
+     *            The resource path, either absolute or relative to the instance
+     *            URL.
+     * @param body
+     *            Buffer holding the UTF-8 encoded data to transmit or null.
+     * @param bodyLength
+     *            Length of the data in the buffer.
+     * @param statusOnly
+     *            Whether only the status of the response is needed.
+     * @return The request.
+     */
+    private TransportRequest createRequest(RequestMethod method, String path, byte[] body, int bodyLength,
+            boolean statusOnly) {
+        return createRequest(method, path, body, bodyLength, statusOnly, "application/json");
+    }
 
-        try {
-            return new MainzellisteResponse(httpClient.execute(request));
-        } catch (Throwable t) {
-            throw new MainzellisteNetworkException("Error while performing a " + method + " request to " + absoluteUri, t);
+    /**
+     * Create a request with the headers required by Mainzelliste.
+     * 
+     * @param method
+     *            The http method to use.
+     * @param path
+     *            The resource path, either absolute or relative to the instance
+     *            URL.
+     * @param body
+     *            Buffer holding the data to transmit or null.
+     * @param bodyLength
+     *            Length of the data in the buffer.
+     * @param statusOnly
+     *            Whether only the status of the response is needed.
+     * @param contentType
+     *            Media type of the data.
+     * @return The request.
+     */
+    private TransportRequest createRequest(RequestMethod method, String path, byte[] body, int bodyLength,
+            boolean statusOnly, String contentType) {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        if (body != null && (method == RequestMethod.POST || method == RequestMethod.PUT)) {
+            headers.put("Content-Type", contentType);
+        } else {
+            body = null;
         }
+        headers.put("mainzellisteApiKey", mainzellisteApiKey);
+        headers.put("mainzellisteApiVersion", MAINZELLISTE_API_VERSION);
+        headers.put("Accept", "application/json");
+        return new TransportRequest(method, mainzellisteURI.resolve(path), headers, body, bodyLength, statusOnly,
+                maxResponseSize);
+    }
+
+    /**
+     * Get the transport through which requests to Mainzelliste are made.
+     * 
+     * @return The transport of this connection.
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Get statistics of the managed connection pools.
+     * 
+     * @return Number of leased, pending, available and maximum connections, or
+     *         null if this connection does not manage a connection pool.
+     * @see ApacheHttpTransport#getPoolStats()
+     */
+    public PoolStats getPoolStats() {
+        if (transport instanceof ApacheHttpTransport)
+            return ((ApacheHttpTransport) transport).getPoolStats();
+        return null;
+    }
+
+    /**
+     * Close this connection by stopping health checks and closing its
+     * transport. If the Http client is managed by this object, it is shut
+     * down together with its connection pool and the background evictor. An
+     * Http client provided by the caller is left open.
+     * 
+     * @throws IOException
+     *             If an IO error occurs while closing the transport.
+     */
+    @Override
+    public void close() throws IOException {
+        stopHealthChecks();
+        transport.close();
     }
 
     /**
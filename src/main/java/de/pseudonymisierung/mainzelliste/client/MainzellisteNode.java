@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.net.URI;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One of the Mainzelliste instances of a {@link MainzellisteConnection}.
+ * Sessions are created on the available node with the lowest latency and
+ * stay on that node, as sessions and tokens are held in memory by the
+ * instance that created them. Exposes availability and latency, e.g. for
+ * monitoring.
+ * 
+ * @see MainzellisteConnection#getNodes()
+ */
+public final class MainzellisteNode {
+
+    /**
+     * Weight of a new sample in the moving average of the latency.
+     */
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private final URI uri;
+    /**
+     * Whether the node has been marked down. The node becomes available again
+     * when a health check succeeds or at {@link #downUntil}.
+     */
+    private volatile boolean down;
+    /** Time (System.nanoTime()) until which the node is down. */
+    private volatile long downUntil;
+    /**
+     * Exponentially weighted moving average of the latency in nanoseconds, or
+     * -1 if not measured yet.
+     */
+    private double latency = -1;
+    /** Session creations in progress on this node. */
+    private final AtomicInteger pending = new AtomicInteger();
+    /**
+     * Circuit breaker of requests to this node, or null if disabled.
+     */
+    private volatile CircuitBreaker circuitBreaker;
+    /** Whether a health check of this node is in progress. */
+    private final AtomicBoolean checking = new AtomicBoolean();
+    private final LongAdder sessionCount = new LongAdder();
+    private final LongAdder failureCount = new LongAdder();
+
+    /**
+     * Create a node.
+     * 
+     * @param uri
+     *            Base URI of the instance, ending with a slash.
+     */
+    MainzellisteNode(URI uri) {
+        this.uri = uri;
+    }
+
+    /**
+     * Get the base URI of this node.
+     * 
+     * @return The base URI, ending with a slash.
+     */
+    public URI getURI() {
+        return uri;
+    }
+
+    /**
+     * Check whether new sessions can be created on this node, i.e. it has not
+     * been marked down by a failed health check or session creation and its
+     * circuit breaker is not open.
+     * 
+     * @return True if this node is available.
+     */
+    public boolean isAvailable() {
+        CircuitBreaker circuitBreaker = this.circuitBreaker;
+        if (circuitBreaker != null && circuitBreaker.getState() == CircuitBreaker.State.OPEN)
+            return false;
+        return !down || System.nanoTime() - downUntil >= 0;
+    }
+
+    /**
+     * Get the circuit breaker of requests to this node, e.g. to monitor its
+     * state.
+     * 
+     * @return The circuit breaker, or null if it is disabled.
+     * @see MainzellisteConnection#setCircuitBreakerSettings(CircuitBreakerSettings)
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Get the moving average of the latency of health checks and session
+     * creations on this node.
+     * 
+     * @param unit
+     *            Unit of the returned value.
+     * @return The latency, or -1 if not measured yet.
+     */
+    public synchronized long getLatency(TimeUnit unit) {
+        return latency < 0 ? -1 : unit.convert((long) latency, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Get the number of sessions created on this node.
+     * 
+     * @return The number of sessions.
+     */
+    public long getSessionCount() {
+        return sessionCount.sum();
+    }
+
+    /**
+     * Get the number of failed health checks and session creations on this
+     * node.
+     * 
+     * @return The number of failures.
+     */
+    public long getFailureCount() {
+        return failureCount.sum();
+    }
+
+    /**
+     * Record a successful request.
+     * 
+     * @param nanos
+     *            Latency of the request in nanoseconds.
+     */
+    synchronized void recordSuccess(long nanos) {
+        latency = latency < 0 ? nanos : latency + LATENCY_WEIGHT * (nanos - latency);
+        down = false;
+    }
+
+    /**
+     * Record a failed request and mark this node down.
+     * 
+     * @param downTime
+     *            Time in milliseconds until the node is available again,
+     *            unless a health check succeeds earlier.
+     */
+    void recordFailure(long downTime) {
+        failureCount.increment();
+        downUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(downTime);
+        down = true;
+    }
+
+    /**
+     * Called before a session is created on this node.
+     */
+    void startSessionCreation() {
+        pending.incrementAndGet();
+    }
+
+    /**
+     * Called after a session creation on this node has completed.
+     * 
+     * @param success
+     *            Whether the session has been created.
+     */
+    void endSessionCreation(boolean success) {
+        pending.decrementAndGet();
+        if (success)
+            sessionCount.increment();
+    }
+
+    /**
+     * Called before a health check of this node.
+     * 
+     * @return False if the previous health check is still in progress.
+     */
+    boolean startHealthCheck() {
+        return checking.compareAndSet(false, true);
+    }
+
+    /**
+     * Called after a health check of this node has completed.
+     */
+    void endHealthCheck() {
+        checking.set(false);
+    }
+
+    /**
+     * Estimated latency of a new request, weighting the moving average with
+     * the session creations in progress. Unmeasured nodes score lowest, so
+     * that they are tried first.
+     */
+    private synchronized double score() {
+        return latency < 0 ? 0 : latency * (pending.get() + 1);
+    }
+
+    /**
+     * Choose a node for a new session by the power of two choices: of two
+     * random available nodes, the one with the lower score is taken. This
+     * follows the latency without sending all sessions to the fastest node at
+     * once. If no node is available, all nodes are considered, as their state
+     * may be outdated.
+     * 
+     * @param nodes
+     *            The nodes to choose from.
+     * @return The chosen node, or null if nodes is empty.
+     */
+    static MainzellisteNode choose(MainzellisteNode[] nodes) {
+        if (nodes.length <= 1)
+            return nodes.length == 0 ? null : nodes[0];
+        MainzellisteNode[] available = new MainzellisteNode[nodes.length];
+        int n = 0;
+        for (MainzellisteNode node : nodes) {
+            if (node.isAvailable())
+                available[n++] = node;
+        }
+        if (n == 0) {
+            available = nodes;
+            n = nodes.length;
+        }
+        if (n == 1)
+            return available[0];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(n);
+        int j = random.nextInt(n - 1);
+        if (j >= i)
+            j++;
+        return available[i].score() <= available[j].score() ? available[i] : available[j];
+    }
+
+    @Override
+    public String toString() {
+        return uri + (isAvailable() ? " (available)" : " (down)");
+    }
+}
@@ -25,10 +25,18 @@
  */
 package de.pseudonymisierung.mainzelliste.client;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.http.HttpEntity;
-import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
 import org.apache.http.util.EntityUtils;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
@@ -52,26 +60,109 @@ public class MainzellisteResponse {
     private final String data;
 
     /**
-     * Create an instance from a HTTP response.
+     * Top level String, number and boolean members of the entity, parsed on
+     * first access by {@link #getString(String)}.
+     */
+    private volatile Map<String, String> fields;
+
+    /**
+     * Entity parsed by {@link #getDataJSON()}.
+     */
+    private volatile JSONObject dataJSON;
+
+    /**
+     * Create an instance from a status code and an entity. Used by
+     * {@link Transport} implementations that do not use Apache HttpClient.
+     * 
+     * @param statusCode
+     *            The HTTP status code.
+     * @param data
+     *            The returned entity or null if the response has no entity.
+     */
+    public MainzellisteResponse(int statusCode, String data) {
+        this.statusCode = statusCode;
+        this.data = data == null ? "" : data;
+    }
+
+    /**
+     * Create an instance from a HTTP response. The entity is consumed
+     * completely; closing the response (and thereby releasing the connection)
+     * is left to the caller.
      * 
      * @param response
      *            The HTTP response.
+     * @param statusOnly
+     *            Whether the entity of a successful response should be
+     *            discarded instead of read.
+     * @param maxSize
+     *            Maximum size of the entity in bytes.
      * @throws MainzellisteNetworkException
-     *             if an IO error occurs while reading the response entity.
+     *             if an IO error occurs while reading the response entity or
+     *             the entity is larger than maxSize.
      */
-    MainzellisteResponse(CloseableHttpResponse response) throws MainzellisteNetworkException {
+    MainzellisteResponse(HttpResponse response, boolean statusOnly, long maxSize)
+            throws MainzellisteNetworkException {
         this.statusCode = response.getStatusLine().getStatusCode();
         try {
             HttpEntity entity = response.getEntity();
-            if (entity != null)
-                data = EntityUtils.toString(response.getEntity());
-            else
+            if (entity == null) {
                 data = "";
+            } else if (statusOnly && statusCode >= 200 && statusCode < 300) {
+                // Read and drop the entity, so that the connection can be reused
+                EntityUtils.consume(entity);
+                data = "";
+            } else {
+                data = read(entity, maxSize);
+            }
         } catch (IOException e) {
             throw new MainzellisteNetworkException("IO error while reading response from Mainzelliste", e);
         }
     }
 
+    /**
+     * Read an entity into a String, failing early if it exceeds the maximum
+     * size. Entities without declared charset are decoded as UTF-8, the
+     * encoding of JSON.
+     */
+    private static String read(HttpEntity entity, long maxSize) throws IOException, MainzellisteNetworkException {
+        long length = entity.getContentLength();
+        if (length > maxSize)
+            throw tooLarge(length, maxSize);
+        Charset charset = null;
+        ContentType contentType = ContentType.get(entity);
+        if (contentType != null)
+            charset = contentType.getCharset();
+        try (InputStream in = entity.getContent()) {
+            if (in == null)
+                return "";
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 && length <= 1 << 20 ? (int) length : 4096);
+            byte[] buffer = new byte[4096];
+            long total = 0;
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                total += n;
+                if (total > maxSize)
+                    throw tooLarge(total, maxSize);
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), charset != null ? charset : StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Create the exception for an entity that exceeds the maximum size.
+     * 
+     * @param size
+     *            Size of the entity (so far) in bytes.
+     * @param maxSize
+     *            Maximum size in bytes.
+     * @return The exception.
+     */
+    static MainzellisteNetworkException tooLarge(long size, long maxSize) {
+        return new MainzellisteNetworkException("Response from Mainzelliste exceeds maximum size of " + maxSize
+                + " bytes (" + size + " bytes)");
+    }
+
     /**
      * Get the HTTP status code of this response.
      * 
@@ -92,17 +183,67 @@ public class MainzellisteResponse {
     }
 
     /**
-     * Return response entity as a JSON object.
+     * Get a member of the returned JSON object, e.g. the "id" of a created
+     * token. On first call, the entity is parsed as a stream and all String,
+     * number and boolean members on the top level are kept; nested objects
+     * and arrays are skipped. Later calls do not parse the entity again.
+     * 
+     * @param name
+     *            Name of the member.
+     * @return The value of the member as String, or null if the entity has no
+     *         such member or its value is null, an object or an array.
+     * @throws MainzellisteNetworkException
+     *             if the response entity cannot be parsed to a JSON object.
+     */
+    public String getString(String name) throws MainzellisteNetworkException {
+        Map<String, String> fields = this.fields;
+        if (fields == null) {
+            fields = parseFields();
+            this.fields = fields;
+        }
+        return fields.get(name);
+    }
+
+    private Map<String, String> parseFields() throws MainzellisteNetworkException {
+        JsonReader in = new JsonReader(this.data);
+        Map<String, String> fields = new HashMap<String, String>();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            switch (in.peek()) {
+            case STRING:
+            case NUMBER:
+                fields.put(name, in.nextString());
+                break;
+            case BOOLEAN:
+                fields.put(name, String.valueOf(in.nextBoolean()));
+                break;
+            default:
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return fields.isEmpty() ? Collections.<String, String>emptyMap() : fields;
+    }
+
+    /**
+     * Return response entity as a JSON object. The entity is parsed on first
+     * call; later calls return the same object.
      * 
      * @return The returned entity.
      * @throws MainzellisteNetworkException
      *             if the response entity cannot be parsed to a JSON object.
      */
     public JSONObject getDataJSON() throws MainzellisteNetworkException {
-        try {
-            return new JSONObject(this.data);
-        } catch (JSONException e) {
-            throw new MainzellisteNetworkException("Error while parsing response from Mainzelliste", e);
+        JSONObject dataJSON = this.dataJSON;
+        if (dataJSON == null) {
+            try {
+                dataJSON = new JSONObject(this.data);
+            } catch (JSONException e) {
+                throw new MainzellisteNetworkException("Error while parsing response from Mainzelliste", e);
+            }
+            this.dataJSON = dataJSON;
         }
+        return dataJSON;
     }
 }
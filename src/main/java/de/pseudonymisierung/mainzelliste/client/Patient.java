@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A patient record as returned by redeeming a "readPatients" token: the
+ * identifying data fields and identifiers permitted by the token. Instances
+ * are immutable.
+ * 
+ * @see MainzellisteConnection#readPatients(String, java.util.function.Consumer)
+ */
+public final class Patient {
+
+    /** IDAT fields by name. */
+    private final Map<String, String> fields;
+    /** Identifiers of the patient. */
+    private final List<ID> ids;
+
+    /**
+     * Create a patient record.
+     * 
+     * @param fields
+     *            IDAT fields by name.
+     * @param ids
+     *            Identifiers of the patient.
+     */
+    public Patient(Map<String, String> fields, List<ID> ids) {
+        this.fields = Collections.unmodifiableMap(new LinkedHashMap<String, String>(fields));
+        this.ids = Collections.unmodifiableList(new ArrayList<ID>(ids));
+    }
+
+    /**
+     * Get the IDAT fields of this patient.
+     * 
+     * @return Unmodifiable map of field names to values. Empty if the token
+     *         did not permit any result fields.
+     */
+    public Map<String, String> getFields() {
+        return fields;
+    }
+
+    /**
+     * Get an IDAT field of this patient.
+     * 
+     * @param name
+     *            Name of the field.
+     * @return The value or null if the record does not contain the field.
+     */
+    public String getField(String name) {
+        return fields.get(name);
+    }
+
+    /**
+     * Get the identifiers of this patient.
+     * 
+     * @return Unmodifiable list of identifiers. Empty if the token did not
+     *         permit any result ids.
+     */
+    public List<ID> getIds() {
+        return ids;
+    }
+
+    /**
+     * Get the identifier of this patient of a type.
+     * 
+     * @param idType
+     *            An id type.
+     * @return The identifier or null if the record does not contain an
+     *         identifier of this type.
+     */
+    public ID getId(String idType) {
+        for (ID id : ids) {
+            if (id.getIdType().equals(idType))
+                return id;
+        }
+        return null;
+    }
+
+    /**
+     * Read a patient record. Field values that are numbers or booleans are
+     * returned as Strings, objects and arrays are skipped.
+     * 
+     * @param in
+     *            Reader positioned at a patient object as returned by GET
+     *            /patients.
+     * @param idFactory
+     *            Registry from which identifiers are taken.
+     * @return The patient record.
+     * @throws MainzellisteNetworkException
+     *             If the data is not well-formed.
+     */
+    static Patient read(JsonReader in, IDFactory idFactory) throws MainzellisteNetworkException {
+        Map<String, String> fields = new LinkedHashMap<String, String>();
+        List<ID> ids = new ArrayList<ID>(2);
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+            case "fields":
+                in.beginObject();
+                while (in.hasNext()) {
+                    String name = in.nextName();
+                    switch (in.peek()) {
+                    case STRING:
+                    case NUMBER:
+                        fields.put(name, in.nextString());
+                        break;
+                    case BOOLEAN:
+                        fields.put(name, String.valueOf(in.nextBoolean()));
+                        break;
+                    case NULL:
+                        in.nextNull();
+                        fields.put(name, null);
+                        break;
+                    default:
+                        in.skipValue();
+                    }
+                }
+                in.endObject();
+                break;
+            case "ids":
+                in.beginArray();
+                while (in.hasNext())
+                    ids.add(readId(in, idFactory));
+                in.endArray();
+                break;
+            default:
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return new Patient(fields, ids);
+    }
+
+    private static ID readId(JsonReader in, IDFactory idFactory) throws MainzellisteNetworkException {
+        String idType = null;
+        String idString = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+            case "idType":
+                idType = in.nextString();
+                break;
+            case "idString":
+                idString = in.nextString();
+                break;
+            default:
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        if (idType == null || idString == null)
+            throw new MainzellisteNetworkException("Patient record contains an incomplete ID");
+        return idFactory.get(idType, idString);
+    }
+}
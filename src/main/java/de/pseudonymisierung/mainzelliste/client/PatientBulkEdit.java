@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Bulk change of patients, e.g. for correcting a field of many patients. For
+ * each {@link PatientEdit}, a token of type "editPatient" that permits
+ * exactly the changed fields and ids is created in the session given to the
+ * constructor and redeemed at once. Edits are taken from the input as they
+ * are needed: at most {@link #getParallelism()} edits are processed at a
+ * time, and taking the next edit blocks while all of them are in flight.
+ * 
+ * <pre>
+ * PatientBulkEdit.Result result = new PatientBulkEdit(session).setParallelism(16)
+ *         .setListener((edit, e) -&gt; log(edit, e)).run(edits.iterator());
+ * System.out.println(result.getThroughput() + " patients per second");
+ * </pre>
+ */
+public class PatientBulkEdit {
+
+    /**
+     * Outcome of a bulk edit.
+     */
+    public static final class Result {
+        private long edited;
+        private final Map<PatientEdit, Exception> failures = new LinkedHashMap<PatientEdit, Exception>();
+        private long elapsedNanos;
+
+        /**
+         * Get the number of patients changed successfully.
+         * 
+         * @return The number of successful edits.
+         */
+        public long getEditedCount() {
+            return edited;
+        }
+
+        /**
+         * Get the edits that failed together with the respective exceptions.
+         * Typical exceptions are {@link MainzellisteNetworkException} (e.g.
+         * for an unknown patient) and {@link InvalidSessionException}.
+         * 
+         * @return An unmodifiable map of edits to exceptions, in the order in
+         *         which the edits failed.
+         */
+        public Map<PatientEdit, Exception> getFailures() {
+            return Collections.unmodifiableMap(failures);
+        }
+
+        /**
+         * Check whether all edits were successful.
+         * 
+         * @return True if no failures occurred, false otherwise.
+         */
+        public boolean isComplete() {
+            return failures.isEmpty();
+        }
+
+        /**
+         * Get the time the bulk edit took, from taking the first edit until
+         * the last one completed.
+         * 
+         * @param unit
+         *            The time unit of the result.
+         * @return The elapsed time in the given unit.
+         */
+        public long getElapsedTime(TimeUnit unit) {
+            return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Get the throughput of the bulk edit.
+         * 
+         * @return The number of processed edits, successful or not, per
+         *         second.
+         */
+        public double getThroughput() {
+            long processed = edited + failures.size();
+            return elapsedNanos > 0 ? processed * 1e9 / elapsedNanos : 0;
+        }
+    }
+
+    /**
+     * Session in which tokens are created.
+     */
+    private final Session session;
+    /**
+     * Maximum number of edits processed at a time.
+     */
+    private int parallelism = 8;
+    /**
+     * Receives the outcome of each edit, or null.
+     */
+    private BiConsumer<PatientEdit, Exception> listener;
+
+    /**
+     * Create a bulk edit.
+     * 
+     * @param session
+     *            Session in which the tokens are created.
+     */
+    public PatientBulkEdit(Session session) {
+        if (session == null)
+            throw new NullPointerException("Cannot create PatientBulkEdit with session null");
+        this.session = session;
+    }
+
+    /**
+     * Get the maximum number of edits that are processed at a time.
+     * 
+     * @return The parallelism, default is 8.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Set the maximum number of edits that are processed at a time.
+     * 
+     * @param parallelism
+     *            The parallelism, must be greater than 0.
+     * @return The modified bulk edit object.
+     */
+    public PatientBulkEdit setParallelism(int parallelism) {
+        if (parallelism <= 0)
+            throw new IllegalArgumentException("parallelism must be greater than 0");
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Set a listener that is notified of the outcome of each edit as soon as
+     * it is known, e.g. for logging or progress reports. The listener is
+     * called by the threads that complete the requests, one call at a time.
+     * Exceptions thrown by the listener are ignored.
+     * 
+     * @param listener
+     *            Receives each edit with null on success or the exception
+     *            that made it fail; or null for no listener.
+     * @return The modified bulk edit object.
+     */
+    public PatientBulkEdit setListener(BiConsumer<PatientEdit, Exception> listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Apply all edits. Failures of single edits do not abort the run.
+     * 
+     * @param edits
+     *            The edits to apply.
+     * @return The outcome of the run.
+     */
+    public Result run(Iterable<? extends PatientEdit> edits) {
+        return run(edits.iterator());
+    }
+
+    /**
+     * Apply all edits. Failures of single edits do not abort the run. The
+     * iterator is advanced only when the window of edits in flight has room,
+     * so it may produce edits lazily, e.g. from a file or a
+     * {@link java.util.stream.Stream#iterator()}.
+     * 
+     * @param edits
+     *            The edits to apply. Exceptions thrown by the iterator abort
+     *            the run after the edits in flight have completed.
+     * @return The outcome of the run.
+     */
+    public Result run(Iterator<? extends PatientEdit> edits) {
+        Result result = new Result();
+        InFlightWindow window = new InFlightWindow(parallelism);
+        long start = System.nanoTime();
+        try {
+            while (edits.hasNext()) {
+                PatientEdit edit = edits.next();
+                try {
+                    window.submit(() -> session.editPatientAsync(edit).whenComplete((v, t) -> done(result, edit,
+                            t == null ? null : Futures.unwrap(t))));
+                } catch (RuntimeException e) {
+                    done(result, edit, e);
+                }
+            }
+        } finally {
+            window.drain();
+            synchronized (result) {
+                result.elapsedNanos = System.nanoTime() - start;
+            }
+        }
+        return result;
+    }
+
+    private void done(Result result, PatientEdit edit, Throwable t) {
+        Exception e = t == null || t instanceof Exception ? (Exception) t : new MainzellisteNetworkException(t);
+        synchronized (result) {
+            if (e == null)
+                result.edited++;
+            else
+                result.failures.put(edit, e);
+            if (listener != null) {
+                try {
+                    listener.accept(edit, e);
+                } catch (RuntimeException ignored) {
+                    // A broken listener must not stop the run
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+/**
+ * A callback request that Mainzelliste made after creating a patient with an
+ * "addPatient" token, as received by a {@link CallbackReceiver}.
+ * 
+ * @see AddPatientToken#callback(java.net.URL)
+ */
+public final class PatientCallback {
+
+    /** Id of the redeemed token. */
+    private final String tokenId;
+    /** Identifiers and fields of the patient. */
+    private final Patient patient;
+    /** The request entity. */
+    private final String data;
+
+    /**
+     * Create a callback.
+     * 
+     * @param tokenId
+     *            Id of the redeemed token.
+     * @param patient
+     *            Identifiers and fields of the patient.
+     * @param data
+     *            The request entity.
+     */
+    PatientCallback(String tokenId, Patient patient, String data) {
+        this.tokenId = tokenId;
+        this.patient = patient;
+        this.data = data;
+    }
+
+    /**
+     * Get the id of the "addPatient" token that was redeemed.
+     * 
+     * @return The token id.
+     */
+    public String getTokenId() {
+        return tokenId;
+    }
+
+    /**
+     * Get the patient as reported by the callback: the identifiers created
+     * for the patient and, if the Mainzelliste instance is configured to send
+     * them, fields.
+     * 
+     * @return The patient.
+     */
+    public Patient getPatient() {
+        return patient;
+    }
+
+    /**
+     * Get the entity of the callback request, e.g. to read members not
+     * covered by {@link #getPatient()}.
+     * 
+     * @return The JSON entity.
+     */
+    public String getData() {
+        return data;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A change of one patient: new values of IDAT fields and external
+ * identifiers, and optionally the audit trail information that Mainzelliste
+ * records for the change. Instances are immutable.
+ * 
+ * @see Session#editPatient(PatientEdit)
+ * @see PatientBulkEdit
+ */
+public final class PatientEdit {
+
+    /** Permanent identifier of the patient. */
+    private final ID patientId;
+    /** New field values by field name. */
+    private final Map<String, String> fields;
+    /** New external identifiers by id type. */
+    private final Map<String, String> ids;
+    /** Audit trail information, or null. */
+    private final AuditTrailLog auditTrailLog;
+
+    /**
+     * Create a change of a patient.
+     * 
+     * @param patientId
+     *            Permanent identifier of the patient.
+     * @param fields
+     *            New values by field name, or null if no fields are changed.
+     *            A null value deletes the field.
+     * @param ids
+     *            New external identifiers by id type, or null if no ids are
+     *            changed.
+     * @param auditTrailLog
+     *            Audit trail information for the change, or null.
+     */
+    public PatientEdit(ID patientId, Map<String, String> fields, Map<String, String> ids,
+            AuditTrailLog auditTrailLog) {
+        if (patientId == null)
+            throw new NullPointerException("Cannot create PatientEdit with patientId null");
+        this.patientId = patientId;
+        this.fields = fields == null || fields.isEmpty() ? Collections.<String, String>emptyMap()
+                : Collections.unmodifiableMap(new LinkedHashMap<String, String>(fields));
+        this.ids = ids == null || ids.isEmpty() ? Collections.<String, String>emptyMap()
+                : Collections.unmodifiableMap(new LinkedHashMap<String, String>(ids));
+        this.auditTrailLog = auditTrailLog;
+    }
+
+    /**
+     * Get the identifier of the changed patient.
+     * 
+     * @return The permanent identifier of the patient.
+     */
+    public ID getPatientId() {
+        return patientId;
+    }
+
+    /**
+     * Get the changed fields.
+     * 
+     * @return Unmodifiable map of field names to new values.
+     */
+    public Map<String, String> getFields() {
+        return fields;
+    }
+
+    /**
+     * Get the changed external identifiers.
+     * 
+     * @return Unmodifiable map of id types to new id strings.
+     */
+    public Map<String, String> getIds() {
+        return ids;
+    }
+
+    /**
+     * Get the audit trail information of the change.
+     * 
+     * @return The audit trail information, or null.
+     */
+    public AuditTrailLog getAuditTrailLog() {
+        return auditTrailLog;
+    }
+
+    /**
+     * Create a token that permits exactly this change, i.e. editing of the
+     * changed fields and ids only.
+     * 
+     * @return A new token.
+     */
+    EditPatientToken createToken() {
+        EditPatientToken token = new EditPatientToken(patientId).setFieldsToEdit(fields.keySet())
+                .setIdsToEdit(ids.keySet());
+        token.setAuditTrailLog(auditTrailLog);
+        return token;
+    }
+
+    /**
+     * Get all changes as sent to Mainzelliste when redeeming the token.
+     * 
+     * @return Map of field names and id types to new values.
+     */
+    Map<String, String> getChanges() {
+        if (ids.isEmpty())
+            return fields;
+        Map<String, String> changes = new LinkedHashMap<String, String>(fields);
+        changes.putAll(ids);
+        return changes;
+    }
+
+    @Override
+    public String toString() {
+        return "PatientEdit [patientId=" + patientId.getIdType() + ":" + patientId.getIdString() + ", fields="
+                + fields.keySet() + ", ids=" + ids.keySet() + "]";
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Bulk import of patients from CSV or NDJSON input. Each record is mapped to
+ * an {@link AddPatientToken}, which is created and redeemed in the session
+ * given to the constructor. Records are read as they are needed: at most
+ * {@link #getParallelism()} records are processed at a time, and reading
+ * blocks while all of them are in flight. The identifiers assigned to each
+ * record are written to an output as CSV lines of record number, id type and
+ * id string.
+ * 
+ * If a checkpoint file is set, progress is saved to it regularly, and a run
+ * with the same input, output and checkpoint file skips all records that
+ * were already imported. Records imported after the last save are imported
+ * again, which is harmless as Mainzelliste returns the identifiers of the
+ * existing patient; the output then lists them twice.
+ * 
+ * <pre>
+ * PatientImport patientImport = new PatientImport(session).setIdTypes(Arrays.asList("pid"))
+ *         .setCheckpoint(Paths.get("import.checkpoint"));
+ * try (Reader in = Files.newBufferedReader(input); Writer out = Files.newBufferedWriter(output, CREATE, APPEND)) {
+ *     PatientImport.Result result = patientImport.run(in, out);
+ * }
+ * </pre>
+ */
+public class PatientImport {
+
+    /**
+     * Outcome of an import run.
+     */
+    public static final class Result {
+        private long imported;
+        private long skipped;
+        private final Map<Long, Exception> failures = new LinkedHashMap<Long, Exception>();
+
+        /**
+         * Get the number of records imported by this run.
+         * 
+         * @return The number of imported records.
+         */
+        public long getImportedCount() {
+            return imported;
+        }
+
+        /**
+         * Get the number of records skipped because a previous run had
+         * imported them.
+         * 
+         * @return The number of skipped records.
+         */
+        public long getSkippedCount() {
+            return skipped;
+        }
+
+        /**
+         * Get the records that could not be imported together with the
+         * respective exceptions. Typical exceptions are
+         * {@link MainzellisteNetworkException} (e.g. for a possible match with
+         * an existing patient) and {@link InvalidSessionException}. Failed
+         * records are imported again by the next run with the same
+         * checkpoint.
+         * 
+         * @return An unmodifiable map of record numbers to exceptions.
+         */
+        public Map<Long, Exception> getFailures() {
+            return Collections.unmodifiableMap(failures);
+        }
+
+        /**
+         * Check whether all records were imported successfully.
+         * 
+         * @return True if no failures occurred, false otherwise.
+         */
+        public boolean isComplete() {
+            return failures.isEmpty();
+        }
+    }
+
+    /**
+     * Session in which tokens are created.
+     */
+    private final Session session;
+    /**
+     * Format of the input.
+     */
+    private RecordFormat format = RecordFormat.CSV;
+    /**
+     * Id types to create for each patient.
+     */
+    private Set<String> idTypes = Collections.emptySet();
+    /**
+     * Columns that hold external ids instead of fields.
+     */
+    private Set<String> externalIdTypes = Collections.emptySet();
+    /**
+     * Custom mapping of records to tokens, or null for the default mapping.
+     */
+    private Function<Map<String, String>, AddPatientToken> mapper;
+    /**
+     * Maximum number of records processed at a time.
+     */
+    private int parallelism = 8;
+    /**
+     * File in which progress is saved, or null.
+     */
+    private Path checkpoint;
+    /**
+     * Number of imported records after which progress is saved.
+     */
+    private int checkpointInterval = 1000;
+
+    /**
+     * Create an import.
+     * 
+     * @param session
+     *            Session in which the tokens are created.
+     */
+    public PatientImport(Session session) {
+        if (session == null)
+            throw new NullPointerException("Cannot create PatientImport with session null");
+        this.session = session;
+    }
+
+    /**
+     * Get the format of the input.
+     * 
+     * @return The input format, default is CSV.
+     */
+    public RecordFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Set the format of the input.
+     * 
+     * @param format
+     *            The input format.
+     * @return The modified import object.
+     */
+    public PatientImport setFormat(RecordFormat format) {
+        if (format == null)
+            throw new NullPointerException("Format passed to setFormat is null!");
+        this.format = format;
+        return this;
+    }
+
+    /**
+     * Set the id types that are created for each patient (see
+     * {@link AddPatientToken#addIdType(String)}). By default, the id types
+     * configured as default on the Mainzelliste instance are created.
+     * 
+     * @param idTypes
+     *            The id types to create.
+     * @return The modified import object.
+     */
+    public PatientImport setIdTypes(Collection<String> idTypes) {
+        this.idTypes = new HashSet<String>(idTypes);
+        return this;
+    }
+
+    /**
+     * Set the columns of the input that hold external ids (see
+     * {@link AddPatientToken#addExternalId(String, String)}). Column names
+     * must equal the id types. All other columns are fields.
+     * 
+     * @param externalIdTypes
+     *            The external id types.
+     * @return The modified import object.
+     */
+    public PatientImport setExternalIdTypes(Collection<String> externalIdTypes) {
+        this.externalIdTypes = new HashSet<String>(externalIdTypes);
+        return this;
+    }
+
+    /**
+     * Set a custom mapping of records to tokens, replacing the default
+     * mapping, which adds the id types set by
+     * {@link #setIdTypes(Collection)}, external ids for the columns set by
+     * {@link #setExternalIdTypes(Collection)} and fields for all other
+     * columns. Empty values are left out.
+     * 
+     * @param mapper
+     *            Creates a token from values by column name, or null for the
+     *            default mapping. Exceptions thrown by the mapper are
+     *            reported as failure of the record.
+     * @return The modified import object.
+     */
+    public PatientImport setMapper(Function<Map<String, String>, AddPatientToken> mapper) {
+        this.mapper = mapper;
+        return this;
+    }
+
+    /**
+     * Get the maximum number of records that are processed at a time.
+     * 
+     * @return The parallelism, default is 8.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Set the maximum number of records that are processed at a time.
+     * 
+     * @param parallelism
+     *            The parallelism, must be greater than 0.
+     * @return The modified import object.
+     */
+    public PatientImport setParallelism(int parallelism) {
+        if (parallelism <= 0)
+            throw new IllegalArgumentException("parallelism must be greater than 0");
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Set the file in which progress is saved. If the file exists, records
+     * that it lists as imported are skipped.
+     * 
+     * @param checkpoint
+     *            The checkpoint file, or null to disable checkpoints.
+     * @return The modified import object.
+     */
+    public PatientImport setCheckpoint(Path checkpoint) {
+        this.checkpoint = checkpoint;
+        return this;
+    }
+
+    /**
+     * Set the number of imported records after which progress is saved to
+     * the checkpoint file. Progress is also saved at the end of each run.
+     * 
+     * @param checkpointInterval
+     *            The number of records, must be greater than 0.
+     * @return The modified import object.
+     */
+    public PatientImport setCheckpointInterval(int checkpointInterval) {
+        if (checkpointInterval <= 0)
+            throw new IllegalArgumentException("checkpointInterval must be greater than 0");
+        this.checkpointInterval = checkpointInterval;
+        return this;
+    }
+
+    /**
+     * Import all records of the input. Failures of single records do not
+     * abort the run. The output is flushed before progress is saved, so the
+     * checkpoint never lists records whose identifiers have not been written.
+     * 
+     * @param input
+     *            The records to import. Not closed by this method.
+     * @param output
+     *            Receives the identifiers of the imported records. A header
+     *            line is written if the run starts from the beginning. Not
+     *            closed by this method.
+     * @return The outcome of the run.
+     * @throws IOException
+     *             If the input is malformed, or reading the input, writing
+     *             the output or saving the checkpoint fails. Progress up to
+     *             this point is saved.
+     */
+    public Result run(Reader input, Writer output) throws IOException {
+        Run run = new Run(output, new Checkpoint(checkpoint));
+        if (!run.progress.isStarted())
+            output.write("record,idType,idString\n");
+        RecordReader records = new RecordReader(input, format);
+        InFlightWindow window = new InFlightWindow(parallelism);
+        try {
+            Map<String, String> record;
+            while (run.error == null) {
+                long number = records.getRecordNumber();
+                if ((record = records.next()) == null)
+                    break;
+                if (run.isDone(number))
+                    continue;
+                AddPatientToken token;
+                try {
+                    token = mapper != null ? mapper.apply(record) : map(record);
+                } catch (RuntimeException e) {
+                    run.failed(number, e);
+                    continue;
+                }
+                window.submit(() -> session.addPatientAsync(token).whenComplete((ids, t) -> {
+                    if (t == null)
+                        run.imported(number, ids);
+                    else
+                        run.failed(number, Futures.unwrap(t));
+                }));
+            }
+        } finally {
+            window.drain();
+            run.save();
+        }
+        if (run.error != null)
+            throw run.error;
+        return run.result;
+    }
+
+    private AddPatientToken map(Map<String, String> record) {
+        AddPatientToken token = new AddPatientToken();
+        for (String idType : idTypes)
+            token.addIdType(idType);
+        for (Map.Entry<String, String> value : record.entrySet()) {
+            if (value.getValue() == null || value.getValue().isEmpty())
+                continue;
+            if (externalIdTypes.contains(value.getKey()))
+                token.addExternalId(value.getKey(), value.getValue());
+            else
+                token.addField(value.getKey(), value.getValue());
+        }
+        return token;
+    }
+
+    /**
+     * State of a run, shared with the threads that complete requests.
+     */
+    private final class Run {
+        private final Writer output;
+        private final Checkpoint progress;
+        private final Result result = new Result();
+        /** Records imported since progress was last saved. */
+        private int unsaved;
+        /** First error writing the output or checkpoint, aborts the run. */
+        private volatile IOException error;
+
+        Run(Writer output, Checkpoint progress) {
+            this.output = output;
+            this.progress = progress;
+        }
+
+        synchronized boolean isDone(long number) {
+            if (!progress.isDone(number))
+                return false;
+            result.skipped++;
+            return true;
+        }
+
+        synchronized void imported(long number, List<ID> ids) {
+            if (error != null)
+                return;
+            try {
+                for (ID id : ids) {
+                    output.write(number + "," + RecordReader.csvValue(id.getIdType()) + ","
+                            + RecordReader.csvValue(id.getIdString()) + "\n");
+                }
+                progress.markDone(number);
+                result.imported++;
+                if (++unsaved >= checkpointInterval)
+                    save();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        synchronized void failed(long number, Throwable t) {
+            result.failures.put(number, t instanceof Exception ? (Exception) t : new MainzellisteNetworkException(t));
+        }
+
+        synchronized void save() throws IOException {
+            try {
+                output.flush();
+                progress.save();
+                unsaved = 0;
+            } catch (IOException e) {
+                if (error == null)
+                    error = e;
+                throw e;
+            }
+        }
+    }
+}
@@ -26,8 +26,10 @@
 package de.pseudonymisierung.mainzelliste.client;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
 
 import org.codehaus.jettison.json.JSONArray;
@@ -70,6 +72,16 @@ public class ReadPatientsToken extends Token {
         return this;
     }
 
+    /**
+     * Get the patients for which data can be retrieved with this token.
+     * 
+     * @return Unmodifiable list of permanent identifiers, in the order in
+     *         which they were added.
+     */
+    public List<ID> getSearchIds() {
+        return Collections.unmodifiableList(searchIds);
+    }
+
     /**
      * Get the list of fields that can be retrieved with this token.
      * 
@@ -180,4 +192,27 @@ public class ReadPatientsToken extends Token {
             throw new Error(e);
         }
     }
+
+    @Override
+    public void writeJSON(JsonWriter out) {
+        out.beginObject();
+        out.name("type").value("readPatients");
+        out.name("allowedUses").value(getAllowedUses());
+        out.name("data").beginObject();
+        out.name("searchIds").beginArray();
+        for (ID id : searchIds)
+            id.writeJSON(out);
+        out.endArray();
+        out.name("resultFields").beginArray();
+        for (String field : this.resultFields)
+            out.value(field);
+        out.endArray();
+        out.name("resultIds").beginArray();
+        for (String idType : this.resultIds)
+            out.value(idType);
+        out.endArray();
+        writeAuditTrailLog(out);
+        out.endObject();
+        out.endObject();
+    }
 }
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * Template for "readPatients" tokens that search for a single patient and
+ * share the result fields, result ids, allowed uses and AuditTrail
+ * information. The constant parts of the JSON representation are serialized
+ * once when the template is created, so that serializing a token created by
+ * {@link #forId(ID)} only amounts to copying them around the patient ID.
+ * 
+ * Templates are immutable and can be shared by several threads.
+ * {@link Session#getTempId(ID)} uses a template automatically when default
+ * result fields and result ids are set; the AuditTrail information is part of
+ * the template, not of the tokens created from it.
+ */
+public final class ReadPatientsTokenTemplate {
+
+    private static final byte[] ID_TYPE = ",\"idType\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEARCH_IDS_END = "}],".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TOKEN_END = "}}".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Number of allowed uses of created tokens.
+     */
+    private final int allowedUses;
+    /**
+     * Names of IDAT fields that can be read with created tokens.
+     */
+    private final Set<String> resultFields;
+    /**
+     * Types of identifiers that can be read with created tokens.
+     */
+    private final Set<String> resultIds;
+    /**
+     * Token shape corresponding to this template, used to match temp-id
+     * requests.
+     */
+    final TempIdKey.Shape shape;
+    /**
+     * Serialized JSON up to the idString of the searched patient.
+     */
+    private final byte[] prefix;
+    /**
+     * Serialized JSON after the idType of the searched patient.
+     */
+    private final byte[] suffix;
+
+    /**
+     * Create a template.
+     * 
+     * @param allowedUses
+     *            Number of allowed uses of created tokens, must be greater than
+     *            0.
+     * @param resultFields
+     *            Names of IDAT fields that can be read with created tokens or
+     *            null for none.
+     * @param resultIds
+     *            Types of identifiers that can be read with created tokens or
+     *            null for none.
+     * @param auditTrailLog
+     *            AuditTrail information to include in created tokens or null.
+     *            Later changes of the object do not affect the template.
+     */
+    public ReadPatientsTokenTemplate(int allowedUses, Collection<String> resultFields, Collection<String> resultIds,
+            AuditTrailLog auditTrailLog) {
+        if (allowedUses <= 0)
+            throw new IllegalArgumentException("allowedUses must be greater than 0");
+        this.allowedUses = allowedUses;
+        this.shape = TempIdKey.Shape.of(resultFields, resultIds, allowedUses);
+        this.resultFields = Collections.unmodifiableSet(new LinkedHashSet<String>(Arrays.asList(shape.resultFields)));
+        this.resultIds = Collections.unmodifiableSet(new LinkedHashSet<String>(Arrays.asList(shape.resultIds)));
+
+        JsonWriter out = new JsonWriter();
+        out.beginObject();
+        out.name("type").value("readPatients");
+        out.name("allowedUses").value(allowedUses);
+        out.name("data").beginObject();
+        out.name("searchIds").beginArray().beginObject().name("idString");
+        this.prefix = out.toByteArray();
+
+        // Members following the searchIds array, written as if they were on
+        // the top level
+        out.reset().raw(SEARCH_IDS_END);
+        out.name("resultFields").beginArray();
+        for (String field : shape.resultFields)
+            out.value(field);
+        out.endArray();
+        out.name("resultIds").beginArray();
+        for (String idType : shape.resultIds)
+            out.value(idType);
+        out.endArray();
+        if (auditTrailLog != null) {
+            out.name("auditTrail");
+            auditTrailLog.writeJSON(out);
+        }
+        out.raw(TOKEN_END);
+        this.suffix = out.toByteArray();
+    }
+
+    /**
+     * Create a token for reading the given patient. The token is written from
+     * the serialized template alone, so it must not be modified; it is only
+     * passed to {@link Session#getToken(Token)} and its variants.
+     * 
+     * @param id
+     *            Permanent identifier of the patient.
+     * @return The token.
+     */
+    Token forId(ID id) {
+        if (id == null)
+            throw new NullPointerException("ID object passed to forId is null!");
+        return new TemplateToken(this, id);
+    }
+
+    /**
+     * Get the number of allowed uses of created tokens.
+     * 
+     * @return The number of allowed uses.
+     */
+    public int getAllowedUses() {
+        return allowedUses;
+    }
+
+    /**
+     * Get the IDAT fields that can be read with created tokens.
+     * 
+     * @return Unmodifiable set of field names.
+     */
+    public Set<String> getResultFields() {
+        return resultFields;
+    }
+
+    /**
+     * Get the identifiers that can be read with created tokens.
+     * 
+     * @return Unmodifiable set of id types.
+     */
+    public Set<String> getResultIds() {
+        return resultIds;
+    }
+
+    /**
+     * Write a token for the given patient.
+     */
+    private void write(ID id, JsonWriter out) {
+        out.raw(prefix).rawString(id.getIdString()).raw(ID_TYPE).rawString(id.getIdType()).raw(suffix);
+    }
+
+    /**
+     * Token created from a template.
+     */
+    private static final class TemplateToken extends Token {
+
+        private final ReadPatientsTokenTemplate template;
+        private final ID id;
+
+        TemplateToken(ReadPatientsTokenTemplate template, ID id) {
+            this.template = template;
+            this.id = id;
+        }
+
+        /**
+         * Write the pre-serialized token. As the template bypasses the
+         * bookkeeping of the writer, the token must be the only value
+         * written.
+         */
+        @Override
+        public void writeJSON(JsonWriter out) {
+            template.write(id, out);
+        }
+
+        @Override
+        public JSONObject toJSON() {
+            JsonWriter out = new JsonWriter();
+            template.write(id, out);
+            try {
+                return new JSONObject(out.toString());
+            } catch (JSONException e) {
+                throw new IllegalStateException("Token template produced malformed JSON", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads records from CSV or NDJSON input one at a time, so that inputs of any
+ * size can be processed with constant memory. Records are numbered from 0 in
+ * input order.
+ */
+final class RecordReader {
+
+    private final BufferedReader in;
+    private final RecordFormat format;
+    /** Column names of CSV input, read on first call of {@link #next()}. */
+    private List<String> header;
+    /** Number of the next record. */
+    private long recordNumber;
+    /** Number of the current line, for error messages. */
+    private long lineNumber;
+
+    /**
+     * Create a reader.
+     * 
+     * @param in
+     *            The input.
+     * @param format
+     *            The format of the input.
+     */
+    RecordReader(Reader in, RecordFormat format) {
+        this.in = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+        this.format = format;
+    }
+
+    /**
+     * Get the number of the record returned by the next call of
+     * {@link #next()}.
+     * 
+     * @return The record number.
+     */
+    long getRecordNumber() {
+        return recordNumber;
+    }
+
+    /**
+     * Read the next record.
+     * 
+     * @return Values by column or member name, or null at the end of the
+     *         input. Empty lines are skipped.
+     * @throws IOException
+     *             If the input cannot be read or is malformed.
+     */
+    Map<String, String> next() throws IOException {
+        Map<String, String> record = format == RecordFormat.CSV ? nextCsv() : nextJson();
+        if (record != null)
+            recordNumber++;
+        return record;
+    }
+
+    private Map<String, String> nextCsv() throws IOException {
+        if (header == null) {
+            header = readCsvLine();
+            if (header == null)
+                return null;
+        }
+        List<String> values = readCsvLine();
+        if (values == null)
+            return null;
+        if (values.size() != header.size())
+            throw new IOException("Line " + lineNumber + " has " + values.size() + " values, but the header has "
+                    + header.size() + " columns");
+        Map<String, String> record = new LinkedHashMap<String, String>();
+        for (int i = 0; i < values.size(); i++)
+            record.put(header.get(i), values.get(i));
+        return record;
+    }
+
+    /**
+     * Read the values of the next non-empty CSV line, which may span several
+     * lines of input if quoted values contain line breaks.
+     */
+    private List<String> readCsvLine() throws IOException {
+        String line;
+        do {
+            line = in.readLine();
+            lineNumber++;
+            if (line == null)
+                return null;
+        } while (line.isEmpty());
+        List<String> values = new ArrayList<String>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        int i = 0;
+        while (true) {
+            if (i == line.length()) {
+                if (!quoted) {
+                    values.add(value.toString());
+                    return values;
+                }
+                // Line break within a quoted value
+                line = in.readLine();
+                lineNumber++;
+                if (line == null)
+                    throw new IOException("Unterminated quoted value in line " + lineNumber);
+                value.append('\n');
+                i = 0;
+                continue;
+            }
+            char c = line.charAt(i++);
+            if (quoted) {
+                if (c != '"') {
+                    value.append(c);
+                } else if (i < line.length() && line.charAt(i) == '"') {
+                    value.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == ',') {
+                values.add(value.toString());
+                value.setLength(0);
+            } else if (c == '"' && value.length() == 0) {
+                quoted = true;
+            } else {
+                value.append(c);
+            }
+        }
+    }
+
+    private Map<String, String> nextJson() throws IOException {
+        String line;
+        do {
+            line = in.readLine();
+            lineNumber++;
+            if (line == null)
+                return null;
+        } while (line.trim().isEmpty());
+        Map<String, String> record = new LinkedHashMap<String, String>();
+        try {
+            JsonReader json = new JsonReader(line);
+            json.beginObject();
+            while (json.hasNext()) {
+                String name = json.nextName();
+                switch (json.peek()) {
+                case STRING:
+                case NUMBER:
+                    record.put(name, json.nextString());
+                    break;
+                case BOOLEAN:
+                    record.put(name, String.valueOf(json.nextBoolean()));
+                    break;
+                default:
+                    json.skipValue();
+                }
+            }
+            json.endObject();
+            // Fails if there is more data on the line
+            json.peek();
+        } catch (MainzellisteNetworkException e) {
+            throw new IOException("Line " + lineNumber + " is not a JSON object", e);
+        }
+        return record;
+    }
+
+    /**
+     * Quote a value for CSV output if necessary.
+     * 
+     * @param value
+     *            The value.
+     * @return The value, quoted if it contains commas, quotes or line breaks.
+     */
+    static String csvValue(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r')
+                return '"' + value.replace("\"", "\"\"") + '"';
+        }
+        return value;
+    }
+}
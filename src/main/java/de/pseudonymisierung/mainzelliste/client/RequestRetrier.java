@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.http.conn.ConnectTimeoutException;
+
+import de.pseudonymisierung.mainzelliste.client.MainzellisteConnection.RequestMethod;
+
+/**
+ * Executes requests through a transport and retries them according to
+ * {@link RetrySettings}. Holds the retry budget of a connection.
+ */
+final class RequestRetrier {
+
+    /**
+     * Signals a response with a retryable status code to a streaming request
+     * before the handler has seen it.
+     */
+    private static final class RetryableStatus extends MainzellisteNetworkException {
+        private static final long serialVersionUID = 1L;
+
+        final transient MainzellisteResponse response;
+
+        RetryableStatus(MainzellisteResponse response) {
+            super("Retryable status code " + response.getStatusCode());
+            this.response = response;
+        }
+    }
+
+    private final RetrySettings settings;
+    private final RetryMetrics metrics;
+    /**
+     * Retries available in the budget.
+     */
+    private double budget;
+
+    /**
+     * Create a retrier with a full budget.
+     * 
+     * @param settings
+     *            The retry settings.
+     * @param metrics
+     *            Receives the counts of retries.
+     */
+    RequestRetrier(RetrySettings settings, RetryMetrics metrics) {
+        this.settings = settings;
+        this.metrics = metrics;
+        this.budget = settings.getBudgetCapacity();
+    }
+
+    RetrySettings getSettings() {
+        return settings;
+    }
+
+    MainzellisteResponse execute(Transport transport, TransportRequest request) throws MainzellisteNetworkException {
+        boolean idempotent = isIdempotent(request);
+        deposit();
+        for (int attempt = 1;; attempt++) {
+            MainzellisteResponse response;
+            try {
+                response = transport.execute(request);
+            } catch (MainzellisteNetworkException e) {
+                if (!shouldRetry(idempotent, e, null, attempt))
+                    throw e;
+                sleep(attempt);
+                continue;
+            }
+            if (!shouldRetry(idempotent, null, response, attempt))
+                return recovered(response, attempt);
+            sleep(attempt);
+        }
+    }
+
+    CompletableFuture<MainzellisteResponse> executeAsync(Transport transport, TransportRequest request) {
+        deposit();
+        CompletableFuture<MainzellisteResponse> result = new CompletableFuture<MainzellisteResponse>();
+        attempt(transport, request, isIdempotent(request), 1, result);
+        return result;
+    }
+
+    private void attempt(Transport transport, TransportRequest request, boolean idempotent, int attempt,
+            CompletableFuture<MainzellisteResponse> result) {
+        CompletableFuture<MainzellisteResponse> future;
+        try {
+            future = transport.executeAsync(request);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+            return;
+        }
+        future.whenComplete((response, t) -> {
+            Throwable failure = t == null ? null : Futures.unwrap(t);
+            if (shouldRetry(idempotent, failure, response, attempt)) {
+                try {
+                    Futures.schedule(() -> attempt(transport, request, idempotent, attempt + 1, result),
+                            backoff(attempt));
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(failure != null ? failure : e);
+                }
+            } else if (failure != null) {
+                result.completeExceptionally(failure);
+            } else {
+                result.complete(recovered(response, attempt));
+            }
+        });
+    }
+
+    <T> T execute(Transport transport, TransportRequest request, Transport.ResponseHandler<T> handler)
+            throws MainzellisteNetworkException {
+        boolean idempotent = isIdempotent(request);
+        deposit();
+        for (int attempt = 1;; attempt++) {
+            boolean lastAttempt = attempt >= settings.getMaxAttempts();
+            boolean[] handled = new boolean[1];
+            try {
+                T result = transport.execute(request, (statusCode, entity) -> {
+                    if (idempotent && !lastAttempt && isRetryableStatus(statusCode))
+                        throw new RetryableStatus(new MainzellisteResponse(statusCode,
+                                MainzellisteConnection.readError(entity)));
+                    handled[0] = true;
+                    return handler.handle(statusCode, entity);
+                });
+                if (attempt > 1)
+                    metrics.recoveries.increment();
+                return result;
+            } catch (RetryableStatus e) {
+                if (!shouldRetry(idempotent, null, e.response, attempt))
+                    throw MainzellisteNetworkException.fromResponse(e.response);
+            } catch (MainzellisteNetworkException e) {
+                // Once the handler has started, its results may have been
+                // passed on, so the request must not be repeated
+                if (handled[0] || !shouldRetry(idempotent, e, null, attempt))
+                    throw e;
+            }
+            sleep(attempt);
+        }
+    }
+
+    /**
+     * Decide whether to retry after an attempt, and count the decision.
+     * 
+     * @param idempotent
+     *            Whether the request may be repeated after it has reached
+     *            Mainzelliste.
+     * @param failure
+     *            The exception of the attempt, or null if a response was
+     *            received.
+     * @param response
+     *            The response, if no exception occurred.
+     * @param attempt
+     *            Number of the attempt, starting at 1.
+     * @return Whether to retry.
+     */
+    private boolean shouldRetry(boolean idempotent, Throwable failure, MainzellisteResponse response, int attempt) {
+        boolean retryable;
+        if (failure != null)
+            retryable = isConnectFailure(failure) || idempotent && hasCause(failure, IOException.class);
+        else
+            retryable = idempotent && isRetryableStatus(response.getStatusCode());
+        if (!retryable)
+            return false;
+        if (attempt >= settings.getMaxAttempts()) {
+            if (settings.getMaxAttempts() > 1)
+                metrics.exhaustions.increment();
+            return false;
+        }
+        if (!withdraw()) {
+            metrics.budgetExhaustions.increment();
+            return false;
+        }
+        metrics.retries.increment();
+        return true;
+    }
+
+    private MainzellisteResponse recovered(MainzellisteResponse response, int attempt) {
+        if (attempt > 1 && !isRetryableStatus(response.getStatusCode()))
+            metrics.recoveries.increment();
+        return response;
+    }
+
+    private synchronized void deposit() {
+        budget = Math.min(settings.getBudgetCapacity(), budget + settings.getBudgetRatio());
+    }
+
+    private synchronized boolean withdraw() {
+        if (budget < 1)
+            return false;
+        budget--;
+        return true;
+    }
+
+    private long backoff(int attempt) {
+        return settings.backoff(attempt, ThreadLocalRandom.current().nextDouble());
+    }
+
+    private void sleep(int attempt) throws MainzellisteNetworkException {
+        try {
+            Thread.sleep(backoff(attempt));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MainzellisteNetworkException("Interrupted while waiting to retry request", e);
+        }
+    }
+
+    /**
+     * Check whether a request may be repeated after it has reached
+     * Mainzelliste: GET and DELETE requests and POST requests that create a
+     * session. PUT requests redeem single-use tokens and are not repeated.
+     */
+    static boolean isIdempotent(TransportRequest request) {
+        if (request.getMethod() == RequestMethod.GET || request.getMethod() == RequestMethod.DELETE)
+            return true;
+        if (request.getMethod() != RequestMethod.POST)
+            return false;
+        String path = request.getUri().getPath();
+        return path != null && (path.endsWith("/sessions") || path.endsWith("/sessions/"));
+    }
+
+    static boolean isRetryableStatus(int statusCode) {
+        return statusCode == 502 || statusCode == 503 || statusCode == 504;
+    }
+
+    /**
+     * Check whether a failure occurred before the request was sent.
+     */
+    static boolean isConnectFailure(Throwable t) {
+        return hasCause(t, ConnectException.class) || hasCause(t, ConnectTimeoutException.class)
+                || hasCause(t, NoRouteToHostException.class) || hasCause(t, UnknownHostException.class);
+    }
+
+    private static boolean hasCause(Throwable t, Class<? extends Throwable> type) {
+        for (int depth = 0; t != null && depth < 10; t = t.getCause(), depth++) {
+            if (type.isInstance(t))
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the retries made by a {@link MainzellisteConnection}. The
+ * counters are live and can be read at any time, e.g. by a monitoring
+ * system.
+ * 
+ * @see MainzellisteConnection#getRetryMetrics()
+ * @see RetrySettings
+ */
+public final class RetryMetrics {
+
+    final LongAdder retries = new LongAdder();
+    final LongAdder recoveries = new LongAdder();
+    final LongAdder exhaustions = new LongAdder();
+    final LongAdder budgetExhaustions = new LongAdder();
+
+    RetryMetrics() {
+    }
+
+    /**
+     * Get the number of retries made.
+     * 
+     * @return The number of retries.
+     */
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    /**
+     * Get the number of requests that succeeded after at least one retry.
+     * 
+     * @return The number of recovered requests.
+     */
+    public long getRecoveryCount() {
+        return recoveries.sum();
+    }
+
+    /**
+     * Get the number of requests that failed with a retryable error after
+     * the maximum number of attempts.
+     * 
+     * @return The number of requests that exhausted their attempts.
+     */
+    public long getExhaustionCount() {
+        return exhaustions.sum();
+    }
+
+    /**
+     * Get the number of retries that were not made because the retry budget
+     * was exhausted.
+     * 
+     * @return The number of retries denied by the budget.
+     */
+    public long getBudgetExhaustionCount() {
+        return budgetExhaustions.sum();
+    }
+}
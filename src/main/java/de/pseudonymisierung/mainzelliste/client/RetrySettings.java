@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+/**
+ * Settings for retrying failed requests of a {@link MainzellisteConnection}.
+ * Whether a failed request is retried depends on whether repeating it is
+ * safe:
+ * <ul>
+ * <li>GET and DELETE requests and session creation, which at worst leaves
+ * an unused session that expires, are retried if the connection fails or the
+ * response has status 502, 503 or 504.
+ * <li>Other requests, e.g. creating tokens or patients or redeeming an
+ * "editPatient" token by PUT, are only retried if the connection could not be
+ * established, i.e. the request has certainly not reached Mainzelliste.
+ * </ul>
+ * Retries wait with exponential backoff and random jitter. A retry budget
+ * limits retries to a fraction of all requests, so that retries do not
+ * multiply the load on an instance that is already overloaded: each request
+ * adds {@link #getBudgetRatio()} to the budget, each retry takes one from it,
+ * and the budget holds at most {@link #getBudgetCapacity()} retries.
+ * 
+ * @see MainzellisteConnection#setRetrySettings(RetrySettings)
+ */
+public class RetrySettings {
+
+    /**
+     * Maximum number of attempts per request, including the first one.
+     */
+    private int maxAttempts = 3;
+    /**
+     * Time in milliseconds to wait before the first retry.
+     */
+    private long initialBackoff = 100;
+    /**
+     * Maximum time in milliseconds to wait before a retry.
+     */
+    private long maxBackoff = 2000;
+    /**
+     * Factor by which the backoff grows with each retry.
+     */
+    private double multiplier = 2.0;
+    /**
+     * Fraction of the backoff that is randomized.
+     */
+    private double jitter = 0.5;
+    /**
+     * Retries earned per request.
+     */
+    private double budgetRatio = 0.1;
+    /**
+     * Maximum number of retries in the budget.
+     */
+    private int budgetCapacity = 10;
+
+    /**
+     * Get the maximum number of attempts per request.
+     * 
+     * @return The maximum number of attempts including the first one,
+     *         default is 3.
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Set the maximum number of attempts per request.
+     * 
+     * @param maxAttempts
+     *            The maximum number of attempts including the first one, must
+     *            be greater than 0. 1 disables retries.
+     * @return The modified settings object.
+     */
+    public RetrySettings setMaxAttempts(int maxAttempts) {
+        if (maxAttempts <= 0)
+            throw new IllegalArgumentException("maxAttempts must be greater than 0");
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * Get the time to wait before the first retry.
+     * 
+     * @return The initial backoff in milliseconds, default is 100.
+     */
+    public long getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    /**
+     * Set the time to wait before the first retry.
+     * 
+     * @param initialBackoff
+     *            The initial backoff in milliseconds, must not be negative.
+     * @return The modified settings object.
+     */
+    public RetrySettings setInitialBackoff(long initialBackoff) {
+        if (initialBackoff < 0)
+            throw new IllegalArgumentException("initialBackoff must not be negative");
+        this.initialBackoff = initialBackoff;
+        return this;
+    }
+
+    /**
+     * Get the maximum time to wait before a retry.
+     * 
+     * @return The maximum backoff in milliseconds, default is 2000.
+     */
+    public long getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    /**
+     * Set the maximum time to wait before a retry.
+     * 
+     * @param maxBackoff
+     *            The maximum backoff in milliseconds, must not be negative.
+     * @return The modified settings object.
+     */
+    public RetrySettings setMaxBackoff(long maxBackoff) {
+        if (maxBackoff < 0)
+            throw new IllegalArgumentException("maxBackoff must not be negative");
+        this.maxBackoff = maxBackoff;
+        return this;
+    }
+
+    /**
+     * Get the factor by which the backoff grows with each retry.
+     * 
+     * @return The multiplier, default is 2.
+     */
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    /**
+     * Set the factor by which the backoff grows with each retry.
+     * 
+     * @param multiplier
+     *            The multiplier, must be at least 1.
+     * @return The modified settings object.
+     */
+    public RetrySettings setMultiplier(double multiplier) {
+        if (!(multiplier >= 1))
+            throw new IllegalArgumentException("multiplier must be at least 1");
+        this.multiplier = multiplier;
+        return this;
+    }
+
+    /**
+     * Get the fraction of the backoff that is randomized.
+     * 
+     * @return The jitter, default is 0.5.
+     */
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * Set the fraction of the backoff that is randomized. With a jitter of
+     * 0.5, a backoff of 200 ms becomes a random time between 100 and 200 ms,
+     * so that clients that failed at the same time do not retry at the same
+     * time.
+     * 
+     * @param jitter
+     *            The jitter, between 0 (no jitter) and 1.
+     * @return The modified settings object.
+     */
+    public RetrySettings setJitter(double jitter) {
+        if (!(jitter >= 0 && jitter <= 1))
+            throw new IllegalArgumentException("jitter must be between 0 and 1");
+        this.jitter = jitter;
+        return this;
+    }
+
+    /**
+     * Get the number of retries each request adds to the retry budget.
+     * 
+     * @return The budget ratio, default is 0.1.
+     */
+    public double getBudgetRatio() {
+        return budgetRatio;
+    }
+
+    /**
+     * Set the number of retries each request adds to the retry budget, i.e.
+     * the long-term fraction of requests that may be retried.
+     * 
+     * @param budgetRatio
+     *            The budget ratio, must not be negative.
+     * @return The modified settings object.
+     */
+    public RetrySettings setBudgetRatio(double budgetRatio) {
+        if (!(budgetRatio >= 0))
+            throw new IllegalArgumentException("budgetRatio must not be negative");
+        this.budgetRatio = budgetRatio;
+        return this;
+    }
+
+    /**
+     * Get the maximum number of retries in the retry budget.
+     * 
+     * @return The budget capacity, default is 10.
+     */
+    public int getBudgetCapacity() {
+        return budgetCapacity;
+    }
+
+    /**
+     * Set the maximum number of retries in the retry budget, i.e. the number
+     * of retries that may be made in a burst. The budget is full when the
+     * settings are set on a connection.
+     * 
+     * @param budgetCapacity
+     *            The budget capacity, must not be negative.
+     * @return The modified settings object.
+     */
+    public RetrySettings setBudgetCapacity(int budgetCapacity) {
+        if (budgetCapacity < 0)
+            throw new IllegalArgumentException("budgetCapacity must not be negative");
+        this.budgetCapacity = budgetCapacity;
+        return this;
+    }
+
+    /**
+     * Compute the time to wait before a retry.
+     * 
+     * @param retry
+     *            Number of the retry, starting at 1.
+     * @param random
+     *            A random number between 0 and 1.
+     * @return The backoff in milliseconds.
+     */
+    long backoff(int retry, double random) {
+        double backoff = Math.min(maxBackoff, initialBackoff * Math.pow(multiplier, retry - 1));
+        return (long) (backoff * (1 - jitter * random));
+    }
+}
@@ -27,15 +27,24 @@ package de.pseudonymisierung.mainzelliste.client;
 
 import java.net.URI;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-
-import org.codehaus.jettison.json.JSONArray;
-import org.codehaus.jettison.json.JSONException;
-import org.codehaus.jettison.json.JSONObject;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import de.pseudonymisierung.mainzelliste.client.MainzellisteConnection.RequestMethod;
 import de.pseudonymisierung.mainzelliste.client.MainzellisteNetworkException;
@@ -46,7 +55,9 @@ import de.pseudonymisierung.mainzelliste.client.MainzellisteNetworkException;
  * tokens.
  * 
  * Sessions are created by calling
- * {@link MainzellisteConnection#createSession()}.
+ * {@link MainzellisteConnection#createSession()}. A session can be shared by
+ * several threads. Concurrent requests for the temp-id of the same patient
+ * are coalesced into a single request to Mainzelliste.
  */
 public class Session {
 
@@ -56,13 +67,34 @@ public class Session {
     private final String id;
     /**
      * Whether this session has been invalidated by a call to
-     * {@link Session#destroy()}.
+     * {@link Session#destroy()} or is known not to exist anymore on the
+     * Mainzelliste instance.
+     */
+    private volatile boolean invalidated = false;
+    /**
+     * Time (as of {@link System#nanoTime()}) of the last successful request on
+     * this session.
+     */
+    private volatile long lastSeen;
+    /**
+     * Time in milliseconds after the last successful request during which
+     * {@link Session#isValid()} assumes the session to be valid without
+     * checking.
      */
-    private boolean invalidated = false;
+    private volatile long validityWindow = 0;
+    /**
+     * Scheduled keepalive requests or null if keepalive is disabled.
+     */
+    private ScheduledFuture<?> keepAlive;
     /**
      * Connection to the Mainzelliste on which this session exists.
      */
     protected MainzellisteConnection connection;
+    /**
+     * The Mainzelliste instance of the connection on which this session
+     * exists. Requests on this session and its tokens go to this node.
+     */
+    private final MainzellisteNode node;
     /**
      * List of field names that are used by default in connection with temporary
      * identifiers.
@@ -70,7 +102,7 @@ public class Session {
      * @see Session#getTempId(ID)
      * @see Session#setDefaultResultFields(Collection)
      */
-    private Set<String> defaultResultFields;
+    private volatile Set<String> defaultResultFields;
     /**
      * List of id types that are used by default in connection with temporary
      * identifiers.
@@ -78,19 +110,42 @@ public class Session {
      * @see Session#getTempId(ID)
      * @see Session#setDefaultResultIds(Collection)
      */
-    private Set<String> defaultResultIds;
+    private volatile Set<String> defaultResultIds;
     /**
      * The default usage counter of a token.
      */
-    private int defaultAllowedUses = 1; 
+    private volatile int defaultAllowedUses = 1; 
+    /**
+     * Maximum number of requests made in parallel by batch operations such as
+     * {@link Session#getTempIds(Collection)}.
+     */
+    private volatile int maxConcurrentRequests = 8;
+    /**
+     * Cache for mapping of permanent to temporary identifiers and vice versa.
+     */
+    private volatile AbstractTempIdCache tempIdCache;
+    /**
+     * Temp-id requests in progress. Threads that ask for a temp-id which is
+     * already being requested wait for the pending request instead of making
+     * their own, and then take the temp-id from the cache like any other
+     * caller (see {@link #joinTempId(TempIdKey)}).
+     */
+    private final ConcurrentMap<TempIdKey, CompletableFuture<String>> pendingTempIds = new ConcurrentHashMap<TempIdKey, CompletableFuture<String>>();
     /**
-     * Cache for mapping of permanent temporary identifiers.
+     * Token shape made up of the default result fields, result ids and
+     * allowed uses. Updated whenever one of them changes.
      */
-    private Map<ID, String> tempIdById;
+    private volatile TempIdKey.Shape defaultShape;
     /**
-     * Cache for mapping of temporary to permanent identifiers.
+     * Template for temp-id tokens of the default shape, or null if default
+     * result fields or ids are not set.
      */
-    private Map<String, ID> idByTempId;
+    private volatile ReadPatientsTokenTemplate defaultTemplate;
+    /**
+     * Token list read by {@link MainzellisteConnection#readSession(String, boolean)}
+     * that has not been loaded into the temp-id cache yet, or null.
+     */
+    private volatile String pendingTokens;
 
     /**
      * Create a session with the specified ID and MainzellisteConnector. Used
@@ -103,12 +158,28 @@ public class Session {
      *            on which this session was created.
      */
     protected Session(String id, MainzellisteConnection connection) {
+        this(id, connection, connection.getNodes().get(0));
+    }
+
+    /**
+     * Create a session with the specified ID on a node of a connection.
+     * 
+     * @param id
+     *            The session id as returned by the Mainzelliste.
+     * @param connection
+     *            The connection.
+     * @param node
+     *            The node of the connection on which this session was created.
+     */
+    Session(String id, MainzellisteConnection connection, MainzellisteNode node) {
         this.id = id;
         this.connection = connection;
+        this.node = node;
         this.defaultResultFields = null;
         this.defaultResultIds = null;
-        this.tempIdById = new HashMap<ID, String>();
-        this.idByTempId = new HashMap<String, ID>();
+        this.tempIdCache = new CompactTempIdCache(connection.getIdFactory());
+        this.lastSeen = System.nanoTime();
+        updateDefaultShape();
     }
 
     /**
@@ -120,6 +191,17 @@ public class Session {
         return id;
     }
 
+    /**
+     * Get the Mainzelliste instance on which this session exists. Tokens of
+     * this session can only be redeemed on this node, so its URI should be
+     * handed to web browsers together with token ids.
+     * 
+     * @return The node of this session.
+     */
+    public MainzellisteNode getNode() {
+        return node;
+    }
+
     /**
      * Get the URI of this session.
      * 
@@ -132,7 +214,7 @@ public class Session {
              * give the intended result. (Otherwise the last portion of the URI
              * would be removed).
              */
-            return connection.getMainzellisteURI().resolve("sessions/").resolve(id + "/");
+            return node.getURI().resolve("sessions/").resolve(id + "/");
         } catch (Exception e) { // URISyntaxException, MalformedURLException
             /*
              * If an invalid URL is constructed here, something is serioursly
@@ -145,7 +227,9 @@ public class Session {
     /**
      * Check whether this session is valid, i.e. still exists on the
      * Mainzelliste instance. This is verified by a GET request on the session
-     * URI.
+     * URI, unless a request on this session has succeeded within the validity
+     * window (see {@link Session#setValidityWindow(long)}) or the session is
+     * already known to be invalid.
      * 
      * @return True if this session is valid, false otherwise.
      * 
@@ -154,15 +238,113 @@ public class Session {
      */
     public boolean isValid() throws MainzellisteNetworkException {
         /*
-         * Check internal flag first in order to avoid network access if this
-         * session was invalidated by calling destroy().
+         * Check internal state first in order to avoid network access if this
+         * session was invalidated by calling destroy() or a request has
+         * recently succeeded.
          */
         if (this.invalidated)
             return false;
-        MainzellisteResponse response = this.connection.doRequest(RequestMethod.GET, this.getURI().toString(), null);
+        if (System.nanoTime() - lastSeen < TimeUnit.MILLISECONDS.toNanos(validityWindow))
+            return true;
+        MainzellisteResponse response = this.connection.doStatusRequest(RequestMethod.GET, this.getURI().toString());
+        observe(response);
         return (response.getStatusCode() == 200);
     }
 
+    /**
+     * Update the validity state of this session from the response to a
+     * request on it: A 404 marks the session as invalid, a success as seen.
+     * 
+     * @param response
+     *            Response to a request on this session.
+     */
+    private void observe(MainzellisteResponse response) {
+        int status = response.getStatusCode();
+        if (status == 404)
+            this.invalidated = true;
+        else if (status >= 200 && status < 300)
+            this.lastSeen = System.nanoTime();
+    }
+
+    /**
+     * Get the validity window.
+     * 
+     * @return The validity window in milliseconds, default is 0.
+     * @see Session#setValidityWindow(long)
+     */
+    public long getValidityWindow() {
+        return validityWindow;
+    }
+
+    /**
+     * Set the time after the last successful request on this session during
+     * which {@link Session#isValid()} returns true without making a request.
+     * The window should be shorter than the session timeout configured on
+     * the Mainzelliste instance. With the default of 0, every call of
+     * isValid() makes a request.
+     * 
+     * @param validityWindow
+     *            The validity window in milliseconds, must not be negative.
+     */
+    public void setValidityWindow(long validityWindow) {
+        if (validityWindow < 0)
+            throw new IllegalArgumentException("validityWindow must not be negative");
+        this.validityWindow = validityWindow;
+    }
+
+    /**
+     * Keep this session alive on the Mainzelliste instance by a request in
+     * the given interval if no other request on the session has succeeded in
+     * the meantime. Keepalive stops when the session is destroyed or found to
+     * be invalid. A previous keepalive of this session is replaced.
+     * 
+     * @param interval
+     *            Keepalive interval in milliseconds, should be shorter than the
+     *            session timeout configured on the Mainzelliste instance.
+     */
+    public synchronized void startKeepAlive(long interval) {
+        if (interval <= 0)
+            throw new IllegalArgumentException("Keepalive interval must be greater than 0");
+        stopKeepAlive();
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(interval);
+        keepAlive = Futures.scheduleWithFixedDelay(() -> {
+            if (invalidated) {
+                stopKeepAlive();
+            } else if (System.nanoTime() - lastSeen >= intervalNanos) {
+                // Non-blocking, so that keepalive of other sessions is not delayed
+                connection.doStatusRequestAsync(RequestMethod.GET, getURI().toString()).thenAccept(this::observe);
+            }
+        }, interval, interval);
+    }
+
+    /**
+     * Stop keepalive requests started by {@link Session#startKeepAlive(long)}.
+     */
+    public synchronized void stopKeepAlive() {
+        if (keepAlive != null) {
+            keepAlive.cancel(false);
+            keepAlive = null;
+        }
+    }
+
+    /**
+     * Check whether this session has been invalidated locally, without network
+     * access.
+     * 
+     * @return True if this session is known to be invalid.
+     */
+    boolean isInvalidated() {
+        return this.invalidated;
+    }
+
+    /**
+     * Mark this session as invalid, e.g. after the Mainzelliste instance has
+     * reported that it does not exist anymore.
+     */
+    void markInvalidated() {
+        this.invalidated = true;
+    }
+
     /**
      * Get the current default fields for {@link Session#getTempId(ID)}.
      * 
@@ -182,6 +364,7 @@ public class Session {
      */
     public void setDefaultResultFields(Collection<String> defaultResultFields) {
         this.defaultResultFields = new HashSet<String>(defaultResultFields);
+        updateDefaultShape();
     }
 
     /**
@@ -203,6 +386,7 @@ public class Session {
      */
     public void setDefaultResultIds(Collection<String> defaultResultIds) {
         this.defaultResultIds = new HashSet<String>(defaultResultIds);
+        updateDefaultShape();
     }
 
     /**
@@ -221,6 +405,64 @@ public class Session {
      */
     public void setDefaultAllowedUses(int defaultUses) {
         this.defaultAllowedUses = defaultUses;
+        updateDefaultShape();
+    }
+
+    private synchronized void updateDefaultShape() {
+        if (defaultResultFields != null && defaultResultIds != null && defaultAllowedUses > 0) {
+            this.defaultTemplate = new ReadPatientsTokenTemplate(defaultAllowedUses, defaultResultFields,
+                    defaultResultIds, null);
+            this.defaultShape = defaultTemplate.shape;
+        } else {
+            this.defaultTemplate = null;
+            this.defaultShape = TempIdKey.Shape.of(defaultResultFields, defaultResultIds, defaultAllowedUses);
+        }
+    }
+
+    /**
+     * Get the cache of temp-ids of this session, e.g. to read its statistics.
+     * 
+     * @return The temp-id cache.
+     */
+    public AbstractTempIdCache getTempIdCache() {
+        return tempIdCache();
+    }
+
+    /**
+     * Set the cache of temp-ids of this session. Temp-ids cached so far are
+     * discarded. By default, an unbounded {@link CompactTempIdCache} is used.
+     * 
+     * @param tempIdCache
+     *            The cache to use.
+     */
+    public void setTempIdCache(AbstractTempIdCache tempIdCache) {
+        if (tempIdCache == null)
+            throw new NullPointerException("TempIdCache passed to setTempIdCache is null!");
+        this.pendingTokens = null;
+        this.tempIdCache = tempIdCache;
+    }
+
+    /**
+     * Get the maximum number of requests made in parallel by batch operations.
+     * 
+     * @return The maximum number of parallel requests, default is 8.
+     */
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    /**
+     * Set the maximum number of requests made in parallel by batch operations
+     * such as {@link Session#getTempIds(Collection)}.
+     * 
+     * @param maxConcurrentRequests
+     *            The maximum number of parallel requests, must be greater than
+     *            0.
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        if (maxConcurrentRequests <= 0)
+            throw new IllegalArgumentException("maxConcurrentRequests must be greater than 0");
+        this.maxConcurrentRequests = maxConcurrentRequests;
     }
     
     /**
@@ -229,6 +471,10 @@ public class Session {
      * authorization token to read the specified identifying data and permanent
      * identifiers of the patient from the Mainzelliste.
      * 
+     * Temp-ids are cached by the session's {@link AbstractTempIdCache}, so that
+     * subsequent calls for the same patient return the same temp-id as long
+     * as it has not expired or been used up.
+     * 
      * @param id
      *            A permanent identifier of the patient for which to obtain a
      *            temporary id.
@@ -256,17 +502,177 @@ public class Session {
 
         if (id == null)
             throw new NullPointerException("ID object passed to getTempId is null!");
+        return getTempId(new TempIdKey(id, TempIdKey.Shape.of(resultFields, resultIds, allowedUses)));
+    }
 
+    /**
+     * Get a temp-id for the patient and token shape of a cache key, either
+     * from the cache or by creating a token.
+     * 
+     * @param key
+     *            The patient and token shape.
+     * @return The temp-id.
+     * @throws InvalidSessionException
+     *             If the session does not exist anymore on the Mainzelliste
+     *             instance.
+     * @throws MainzellisteNetworkException
+     *             If a network error occured while making the request.
+     */
+    private String getTempId(TempIdKey key) throws MainzellisteNetworkException, InvalidSessionException {
         // Try to find cached value
-        String tempId = this.tempIdById.get(id);
+        String tempId = tempIdCache().get(key, true);
         if (tempId != null)
             return tempId;
 
+        // Wait for a request of another thread for the same temp-id
+        CompletableFuture<String> pending = new CompletableFuture<String>();
+        CompletableFuture<String> existing = pendingTempIds.putIfAbsent(key, pending);
+        if (existing != null) {
+            Futures.await(existing);
+            return joinTempId(key);
+        }
+
+        // Otherwise get temp-id from Mainzelliste and store in cache
+        try {
+            // The temp-id may have been cached since the first lookup
+            tempId = tempIdCache().get(key, false);
+            if (tempId == null) {
+                tempId = getReadPatientsToken(key.id, key.shape.allowedUses, Arrays.asList(key.shape.resultFields),
+                        Arrays.asList(key.shape.resultIds));
+                tempIdCache().put(key, tempId, true);
+            }
+            pending.complete(tempId);
+            return tempId;
+        } catch (Throwable t) {
+            pending.completeExceptionally(t);
+            throw t;
+        } finally {
+            pendingTempIds.remove(key, pending);
+        }
+    }
+
+    /**
+     * Get the temp-id after a request of another thread for the same key has
+     * completed. The temp-id is taken from the cache, which counts one use
+     * for this caller if uses are counted. If it is exhausted already (or
+     * was not cached at all), a new one is requested.
+     * 
+     * @param key
+     *            The patient and token shape.
+     * @return The temp-id.
+     * @throws InvalidSessionException
+     *             If the session does not exist anymore on the Mainzelliste
+     *             instance.
+     * @throws MainzellisteNetworkException
+     *             If a network error occured while making the request.
+     */
+    private String joinTempId(TempIdKey key) throws MainzellisteNetworkException, InvalidSessionException {
+        String tempId = tempIdCache().get(key, false);
+        return tempId != null ? tempId : getTempId(key);
+    }
+
+    /**
+     * Asynchronous variant of {@link #joinTempId(TempIdKey)}.
+     * 
+     * @param key
+     *            The patient and token shape.
+     * @return A future of the temp-id.
+     */
+    private CompletableFuture<String> joinTempIdAsync(TempIdKey key) {
+        String tempId = tempIdCache().get(key, false);
+        return tempId != null ? CompletableFuture.completedFuture(tempId) : getTempIdAsync(key);
+    }
+
+    /**
+     * Asynchronous variant of
+     * {@link Session#getTempId(ID, int, Collection, Collection)}. A cached
+     * temp-id is returned as an already completed future.
+     * 
+     * @param id
+     *            A permanent identifier of the patient for which to obtain a
+     *            temporary id.
+     * @param allowedUses
+     *            The allowed uses for the token (till it will invalid, default 1).
+     * @param resultFields
+     *            The IDAT fields that can be retreived by this temp-id.
+     * @param resultIds
+     *            The permanent identifiers that can be retreived by this
+     *            temp-id.
+     * @return A future of the temporary identifier. If the request fails, the
+     *         future is completed exceptionally with a
+     *         {@link MainzellisteNetworkException} or, if the session does not
+     *         exist anymore, an {@link InvalidSessionException}.
+     */
+    public CompletableFuture<String> getTempIdAsync(ID id, int allowedUses, Collection<String> resultFields,
+            Collection<String> resultIds) {
+
+        if (id == null)
+            throw new NullPointerException("ID object passed to getTempIdAsync is null!");
+        return getTempIdAsync(new TempIdKey(id, TempIdKey.Shape.of(resultFields, resultIds, allowedUses)));
+    }
+
+    /**
+     * Asynchronous variant of {@link #getTempId(TempIdKey)}.
+     * 
+     * @param key
+     *            The patient and token shape.
+     * @return A future of the temp-id.
+     */
+    private CompletableFuture<String> getTempIdAsync(TempIdKey key) {
+        // Try to find cached value
+        String tempId = tempIdCache().get(key, true);
+        if (tempId != null)
+            return CompletableFuture.completedFuture(tempId);
+
+        // Join a request of another thread for the same temp-id. Callers get a
+        // dependent future so they cannot complete the shared one.
+        CompletableFuture<String> pending = new CompletableFuture<String>();
+        CompletableFuture<String> existing = pendingTempIds.putIfAbsent(key, pending);
+        if (existing != null)
+            return existing.thenCompose(v -> joinTempIdAsync(key));
+
+        // The temp-id may have been cached since the first lookup
+        tempId = tempIdCache().get(key, false);
+        if (tempId != null) {
+            pendingTempIds.remove(key, pending);
+            pending.complete(tempId);
+            return pending.thenApply(Function.identity());
+        }
+
         // Otherwise get temp-id from Mainzelliste and store in cache
-        tempId = getReadPatientsToken(id, allowedUses, resultFields, resultIds);
-        tempIdById.put(id, tempId);
-        idByTempId.put(tempId, id);
-        return tempId;
+        CompletableFuture<String> request;
+        try {
+            request = getReadPatientsTokenAsync(key.id, key.shape.allowedUses, Arrays.asList(key.shape.resultFields),
+                    Arrays.asList(key.shape.resultIds));
+        } catch (RuntimeException e) {
+            request = Futures.failed(e);
+        }
+        request.whenComplete((newTempId, t) -> {
+            if (t == null)
+                tempIdCache().put(key, newTempId, true);
+            pendingTempIds.remove(key, pending);
+            if (t == null)
+                pending.complete(newTempId);
+            else
+                pending.completeExceptionally(Futures.unwrap(t));
+        });
+        return pending.thenApply(Function.identity());
+    }
+
+    /**
+     * Asynchronous variant of {@link Session#getTempId(ID)}, using the default
+     * values for allowed uses, result fields and result identifiers.
+     * 
+     * @param id
+     *            A permanent identifier of the patient for which to obtain a
+     *            temporary id.
+     * @return A future of the temporary identifier.
+     * @see Session#getTempIdAsync(ID, int, Collection, Collection)
+     */
+    public CompletableFuture<String> getTempIdAsync(ID id) {
+        if (id == null)
+            throw new NullPointerException("ID object passed to getTempIdAsync is null!");
+        return getTempIdAsync(new TempIdKey(id, defaultShape));
     }
 
     /**
@@ -290,7 +696,144 @@ public class Session {
      * @see Session#getTempId(ID, int, Collection, Collection)
      */
     public String getTempId(ID id) throws MainzellisteNetworkException, InvalidSessionException {
-        return getTempId(id, defaultAllowedUses, defaultResultFields, defaultResultIds);
+        if (id == null)
+            throw new NullPointerException("ID object passed to getTempId is null!");
+        return getTempId(new TempIdKey(id, defaultShape));
+    }
+
+    /**
+     * Get temporary identifiers for several patients, using the default values
+     * for allowed uses, result fields and result identifiers. Cached temp-ids
+     * are returned without network access; for the remaining IDs, temp-ids are
+     * requested in parallel, with at most
+     * {@link Session#getMaxConcurrentRequests()} requests in flight. A failure
+     * for one ID does not abort the batch.
+     * 
+     * This method blocks the calling thread until all requests have
+     * completed. It must therefore not be called from callbacks of
+     * asynchronous requests; use {@link #getTempIdAsync(ID)} there instead.
+     * 
+     * @param ids
+     *            Permanent identifiers of the patients for which to obtain
+     *            temporary ids.
+     * @return A map of the given IDs to their temp-ids, in the iteration order
+     *         of ids. IDs for which no temp-id could be obtained are missing
+     *         from the map and listed in {@link BatchResult#getFailures()}
+     *         instead.
+     * @see Session#getTempId(ID)
+     */
+    public BatchResult<ID, String> getTempIds(Collection<ID> ids) {
+        Map<ID, CompletableFuture<String>> futures = new LinkedHashMap<ID, CompletableFuture<String>>();
+        InFlightWindow window = new InFlightWindow(maxConcurrentRequests);
+        TempIdKey.Shape shape = defaultShape;
+        for (ID id : ids) {
+            if (futures.containsKey(id))
+                continue;
+            TempIdKey key = new TempIdKey(id, shape);
+            String tempId = tempIdCache().get(key, true);
+            if (tempId != null)
+                futures.put(id, CompletableFuture.completedFuture(tempId));
+            else
+                futures.put(id, window.submit(() -> getTempIdAsync(key)));
+        }
+
+        return collect(futures);
+    }
+
+    /**
+     * Get tokens of type "readPatients" for many patients, using the default
+     * values for allowed uses, result fields and result identifiers.
+     * 
+     * @param ids
+     *            Permanent identifiers of the patients to read.
+     * @param batchSize
+     *            Maximum number of patients per token.
+     * @return A map of the IDs covered by each token to the token id.
+     * @see Session#getReadPatientsTokens(Collection, int, int, Collection,
+     *      Collection)
+     */
+    public BatchResult<List<ID>, String> getReadPatientsTokens(Collection<ID> ids, int batchSize) {
+        return getReadPatientsTokens(ids, batchSize, defaultAllowedUses, defaultResultFields, defaultResultIds);
+    }
+
+    /**
+     * Get tokens of type "readPatients" for many patients. Instead of one
+     * token per patient, the IDs are split into chunks of at most batchSize
+     * IDs, each of which is covered by one token. This reduces the number of
+     * requests needed e.g. for exports by the factor batchSize. The tokens
+     * are requested in parallel, with at most
+     * {@link Session#getMaxConcurrentRequests()} requests in flight. A failure
+     * for one chunk does not abort the batch.
+     * 
+     * The tokens are not treated as temp-ids, as they cover more than one
+     * patient.
+     * 
+     * Like {@link #getTempIds(Collection)}, this method blocks the calling
+     * thread until all requests have completed.
+     * 
+     * @param ids
+     *            Permanent identifiers of the patients to read. Duplicates are
+     *            ignored.
+     * @param batchSize
+     *            Maximum number of patients per token, must be greater than 0.
+     * @param allowedUses
+     *            Number of allowed uses of each token.
+     * @param resultFields
+     *            Field names to include in the result, or null for none.
+     * @param resultIds
+     *            Id types to include in the result, or null for none.
+     * @return A map of the IDs covered by each token (as unmodifiable lists, in
+     *         the iteration order of ids) to the token id. Chunks for which
+     *         no token could be created are missing from the map and listed
+     *         in {@link BatchResult#getFailures()} instead.
+     */
+    public BatchResult<List<ID>, String> getReadPatientsTokens(Collection<ID> ids, int batchSize, int allowedUses,
+            Collection<String> resultFields, Collection<String> resultIds) {
+        if (batchSize <= 0)
+            throw new IllegalArgumentException("batchSize must be greater than 0");
+        Map<List<ID>, CompletableFuture<String>> futures = new LinkedHashMap<List<ID>, CompletableFuture<String>>();
+        InFlightWindow window = new InFlightWindow(maxConcurrentRequests);
+        List<ID> chunk = new ArrayList<ID>();
+        for (ID id : new LinkedHashSet<ID>(ids)) {
+            if (id == null)
+                throw new NullPointerException("ID object passed to getReadPatientsTokens is null!");
+            chunk.add(id);
+            if (chunk.size() == batchSize) {
+                submitReadPatientsToken(window, futures, chunk, allowedUses, resultFields, resultIds);
+                chunk = new ArrayList<ID>();
+            }
+        }
+        if (!chunk.isEmpty())
+            submitReadPatientsToken(window, futures, chunk, allowedUses, resultFields, resultIds);
+        return collect(futures);
+    }
+
+    private void submitReadPatientsToken(InFlightWindow window, Map<List<ID>, CompletableFuture<String>> futures,
+            List<ID> chunk, int allowedUses, Collection<String> resultFields, Collection<String> resultIds) {
+        List<ID> covered = Collections.unmodifiableList(chunk);
+        ReadPatientsToken t = createReadPatientsToken(covered, allowedUses, resultFields, resultIds);
+        futures.put(covered, window.submit(() -> getTokenAsync(t)));
+    }
+
+    /**
+     * Wait for the futures of a batch operation and collect their results.
+     * 
+     * @param futures
+     *            Futures by key, in the order of the result.
+     * @return The results and failures by key.
+     */
+    private static <K, V> BatchResult<K, V> collect(Map<K, CompletableFuture<V>> futures) {
+        BatchResult<K, V> result = new BatchResult<K, V>();
+        for (Map.Entry<K, CompletableFuture<V>> entry : futures.entrySet()) {
+            try {
+                result.put(entry.getKey(), entry.getValue().join());
+            } catch (CompletionException e) {
+                Throwable cause = Futures.unwrap(e);
+                result.addFailure(entry.getKey(),
+                        cause instanceof Exception ? (Exception) cause : new MainzellisteNetworkException(cause));
+            }
+        }
+        return result;
     }
 
     /**
@@ -299,7 +842,7 @@ public class Session {
      * @return Set of temporary identifiers.
      */
     public Set<String> getTempIds() {
-        return idByTempId.keySet();
+        return tempIdCache().tempIds();
     }
 
     /**
@@ -322,20 +865,19 @@ public class Session {
          * URLs and a stale temp-id appears because the user uses the "back"
          * button.
          */
-        ID idToDelete = this.idByTempId.get(tempId);
-        if (idToDelete != null)
-            this.tempIdById.remove(idToDelete);
-        MainzellisteResponse response = this.connection.doRequest(RequestMethod.DELETE,
-                getURI().resolve("tokens/").resolve(tempId).toString(), null);
+        tempIdCache().remove(tempId);
+        MainzellisteResponse response = this.connection.doStatusRequest(RequestMethod.DELETE,
+                getURI().resolve("tokens/").resolve(tempId).toString());
+        observe(response);
         if (response.getStatusCode() == 404) {
             throw new InvalidSessionException();
         }
     }
 
     /**
-     * Remove temporary identifier. If a temp-id exists for the given patient,
-     * it is removed from the internal cache and deleted on the Mainzelliste
-     * instance by invalidating the corresponding token.
+     * Remove temporary identifiers. If temp-ids exist for the given patient,
+     * they are removed from the internal cache and deleted on the Mainzelliste
+     * instance by invalidating the corresponding tokens.
      * 
      * @param id
      *            A permanent patient identifier.
@@ -347,8 +889,8 @@ public class Session {
      *             instance.
      */
     public void removeTempId(ID id) throws MainzellisteNetworkException, InvalidSessionException {
-        if (this.tempIdById.containsKey(id))
-            this.removeTempId(tempIdById.get(id));
+        for (String tempId : tempIdCache().tempIdsOf(id))
+            this.removeTempId(tempId);
     }
 
     /**
@@ -364,7 +906,7 @@ public class Session {
     public ID getId(String tempId) {
         if (tempId == null)
             throw new NullPointerException("Temp-id passed to getId is null!");
-        return this.idByTempId.get(tempId);
+        return tempIdCache().getId(tempId);
     }
 
     /**
@@ -375,21 +917,183 @@ public class Session {
      * 
      */
     public Set<ID> getIDs() {
-        return tempIdById.keySet();
+        return tempIdCache().ids();
     }
 
+    /**
+     * Create a "readPatients" token for a single patient, which is used as
+     * temp-id. Every temp-id requested by the synchronous methods of this
+     * class is created by this method, so subclasses can override it to
+     * customize these tokens. If the token shape matches the default result
+     * fields, result ids and allowed uses, the token is created from a
+     * {@link ReadPatientsTokenTemplate}.
+     * 
+     * @param id
+     *            Permanent identifier of the patient.
+     * @param allowedUses
+     *            Number of allowed uses of the token.
+     * @param resultFields
+     *            The IDAT fields that can be read with the token or null.
+     * @param resultIds
+     *            The identifiers that can be read with the token or null.
+     * @return The token identifier.
+     * @throws MainzellisteNetworkException
+     *             If a network error occurs while making the request.
+     * @throws InvalidSessionException
+     *             If the session does not exist anymore on the Mainzelliste
+     *             instance.
+     * @see #getReadPatientsTokenAsync(ID, int, Collection, Collection)
+     */
     protected String getReadPatientsToken(ID id, int allowedUses, Collection<String> resultFields, Collection<String> resultIds)
             throws MainzellisteNetworkException, InvalidSessionException {
+        return getToken(readPatientsToken(id, allowedUses, resultFields, resultIds));
+    }
+
+    /**
+     * Asynchronous variant of
+     * {@link #getReadPatientsToken(ID, int, Collection, Collection)}, which
+     * creates every temp-id requested by the asynchronous methods of this
+     * class.
+     * 
+     * @param id
+     *            Permanent identifier of the patient.
+     * @param allowedUses
+     *            Number of allowed uses of the token.
+     * @param resultFields
+     *            The IDAT fields that can be read with the token or null.
+     * @param resultIds
+     *            The identifiers that can be read with the token or null.
+     * @return A future of the token identifier.
+     */
+    protected CompletableFuture<String> getReadPatientsTokenAsync(ID id, int allowedUses,
+            Collection<String> resultFields, Collection<String> resultIds) {
+        return getTokenAsync(readPatientsToken(id, allowedUses, resultFields, resultIds));
+    }
+
+    private Token readPatientsToken(ID id, int allowedUses, Collection<String> resultFields,
+            Collection<String> resultIds) {
+        ReadPatientsTokenTemplate template = this.defaultTemplate;
+        if (template != null && template.shape.equals(TempIdKey.Shape.of(resultFields, resultIds, allowedUses)))
+            return template.forId(id);
+        return createReadPatientsToken(Collections.singletonList(id), allowedUses, resultFields, resultIds);
+    }
+
+    private ReadPatientsToken createReadPatientsToken(Collection<ID> ids, int allowedUses,
+            Collection<String> resultFields, Collection<String> resultIds) {
         ReadPatientsToken t = new ReadPatientsToken();
         t.setAllowedUses(allowedUses);
         if (resultFields != null)
             t.setResultFields(resultFields);
         if (resultIds != null)
             t.setResultIds(resultIds);
-        t.addSearchId(id);
-        return getToken(t);
+        for (ID id : ids)
+            t.addSearchId(id);
+        return t;
     }
     
+    /**
+     * Read patients with a token of type "readPatients". The token is created
+     * in this session and redeemed at once; the returned patient records are
+     * passed to the consumer while the response is parsed.
+     * 
+     * @param token
+     *            The token, specifying the patients to read and the fields
+     *            and ids to return.
+     * @param consumer
+     *            Receives the patient records.
+     * @return The number of patient records read.
+     * @throws MainzellisteNetworkException
+     *             If a network error occured while making the requests.
+     * @throws InvalidSessionException
+     *             If the session does not exist anymore on the Mainzelliste
+     *             instance.
+     * @see MainzellisteConnection#readPatients(String, Consumer)
+     */
+    public long readPatients(ReadPatientsToken token, Consumer<Patient> consumer)
+            throws MainzellisteNetworkException, InvalidSessionException {
+        if (token == null)
+            throw new NullPointerException("Token passed to readPatients is null!");
+        return connection.readPatients(node.getURI(), getToken(token), consumer);
+    }
+
+    /**
+     * Create a patient with a token of type "addPatient". The token is
+     * created in this session and redeemed at once, so it must contain all
+     * fields of the patient.
+     * 
+     * @param token
+     *            The token, containing the fields, external ids and id types
+     *            of the patient.
+     * @return The identifiers of the patient.
+     * @throws MainzellisteNetworkException
+     *             If a network error occured while making the requests.
+     * @throws InvalidSessionException
+     *             If the session does not exist anymore on the Mainzelliste
+     *             instance.
+     * @see MainzellisteConnection#addPatient(String)
+     */
+    public List<ID> addPatient(AddPatientToken token) throws MainzellisteNetworkException, InvalidSessionException {
+        if (token == null)
+            throw new NullPointerException("Token passed to addPatient is null!");
+        return connection.addPatient(node.getURI(), getToken(token));
+    }
+
+    /**
+     * Asynchronous variant of {@link Session#addPatient(AddPatientToken)}.
+     * 
+     * @param token
+     *            The token, containing the fields, external ids and id types
+     *            of the patient.
+     * @return A future of the identifiers of the patient. If a request fails,
+     *         the future is completed exceptionally with a
+     *         {@link MainzellisteNetworkException} or, if the session does not
+     *         exist anymore, an {@link InvalidSessionException}.
+     */
+    public CompletableFuture<List<ID>> addPatientAsync(AddPatientToken token) {
+        if (token == null)
+            throw new NullPointerException("Token passed to addPatientAsync is null!");
+        return getTokenAsync(token).thenCompose(tokenId -> connection.addPatientAsync(node.getURI(), tokenId));
+    }
+
+    /**
+     * Change a patient with a token of type "editPatient". The token is
+     * created in this session, permitting exactly the changed fields and
+     * ids, and redeemed at once.
+     * 
+     * @param edit
+     *            The change.
+     * @throws MainzellisteNetworkException
+     *             If a network error occured while making the requests.
+     * @throws InvalidSessionException
+     *             If the session does not exist anymore on the Mainzelliste
+     *             instance.
+     * @see MainzellisteConnection#editPatient(String, Map)
+     * @see PatientBulkEdit
+     */
+    public void editPatient(PatientEdit edit) throws MainzellisteNetworkException, InvalidSessionException {
+        if (edit == null)
+            throw new NullPointerException("Edit passed to editPatient is null!");
+        connection.editPatient(node.getURI(), getToken(edit.createToken()), edit.getChanges());
+    }
+
+    /**
+     * Asynchronous variant of {@link Session#editPatient(PatientEdit)}.
+     * 
+     * @param edit
+     *            The change.
+     * @return A future that is completed when the patient has been changed.
+     *         If a request fails, the future is completed exceptionally with a
+     *         {@link MainzellisteNetworkException} or, if the session does not
+     *         exist anymore, an {@link InvalidSessionException}.
+     */
+    public CompletableFuture<Void> editPatientAsync(PatientEdit edit) {
+        if (edit == null)
+            throw new NullPointerException("Edit passed to editPatientAsync is null!");
+        Map<String, String> changes = edit.getChanges();
+        return getTokenAsync(edit.createToken())
+                .thenCompose(tokenId -> connection.editPatientAsync(node.getURI(), tokenId, changes));
+    }
+
     /**
      * Get a token of type 'addPatient', which authorizes to create one patient
      * on the Mainzelliste. The returned string is typically handed to the
@@ -457,25 +1161,59 @@ public class Session {
 
         // System.out.println("TOKEN = " + t.toJSON().toString());
 
-        MainzellisteResponse response = this.connection.doRequest(RequestMethod.POST,
-                this.getURI().resolve("tokens/").toString(), t.toJSON().toString());
+        MainzellisteResponse response = this.connection.doTokenRequest(RequestMethod.POST,
+                this.getURI().resolve("tokens/").toString(), t);
 
         // System.out.println("RCODE = " + response.getStatusCode());
 
         // System.out.println("JSON = " + response.getDataJSON().toString());
 
+        return tokenIdFromResponse(response);
+    }
+
+    /**
+     * Asynchronous variant of {@link Session#getToken(Token)}.
+     * 
+     * @param t
+     *            Token object with template data for the token that should be
+     *            created.
+     * @return A future of the identifier of the created token. If the request
+     *         fails, the future is completed exceptionally with a
+     *         {@link MainzellisteNetworkException} or, if the session does not
+     *         exist anymore, an {@link InvalidSessionException}.
+     */
+    public CompletableFuture<String> getTokenAsync(Token t) {
+        return Futures.thenApply(this.connection.doTokenRequestAsync(RequestMethod.POST,
+                this.getURI().resolve("tokens/").toString(), t), this::tokenIdFromResponse);
+    }
+
+    /**
+     * Get the token identifier from the response to a request to create a
+     * token.
+     * 
+     * @param response
+     *            The response to POST /sessions/{sid}/tokens.
+     * @return The identifier of the created token.
+     * @throws MainzellisteNetworkException
+     *             If the response indicates an error.
+     * @throws InvalidSessionException
+     *             If the session does not exist anymore.
+     */
+    private String tokenIdFromResponse(MainzellisteResponse response)
+            throws MainzellisteNetworkException, InvalidSessionException {
+        observe(response);
         if (response.getStatusCode() == 404)
             throw new InvalidSessionException();
         else if (response.getStatusCode() != 201)
             throw MainzellisteNetworkException.fromResponse(response);
 
-        try {
-            // MOOTODO WHY is "id" null?
-            // return response.getDataJSON().getString("tokenId");
-            return response.getDataJSON().getString("id");
-        } catch (JSONException e) {
-            throw new MainzellisteNetworkException("Request to create token returned illegal data", e);
-        }
+        // MOOTODO WHY is "id" null?
+        // return response.getDataJSON().getString("tokenId");
+        String tokenId = response.getString("id");
+        if (tokenId == null)
+            throw new MainzellisteNetworkException("Request to create token returned illegal data");
+        connection.tokenCreated(tokenId, node);
+        return tokenId;
 
     }
 
@@ -487,38 +1225,191 @@ public class Session {
      *             If a network error occurs while making the request.
      */
     public void destroy() throws MainzellisteNetworkException {
-        this.connection.doRequest(RequestMethod.DELETE, this.getURI().toString(), null);
+        stopKeepAlive();
+        this.connection.doStatusRequest(RequestMethod.DELETE, this.getURI().toString());
         this.invalidated = true;
     }
 
     /**
-     * Set tokens (temp-ids) from JSON array. Used by
+     * Get the temp-id cache, loading tokens of a lazily read session first.
+     * 
+     * @return The temp-id cache.
+     */
+    private AbstractTempIdCache tempIdCache() {
+        if (pendingTokens != null)
+            loadPendingTokens();
+        return tempIdCache;
+    }
+
+    private synchronized void loadPendingTokens() {
+        String tokens = pendingTokens;
+        if (tokens == null)
+            return;
+        try {
+            readTokens(new JsonReader(tokens));
+        } catch (MainzellisteNetworkException e) {
+            // Temp-ids read up to the error are kept
+            throw new IllegalStateException("Tokens of session " + id + " returned by Mainzelliste are malformed", e);
+        } finally {
+            pendingTokens = null;
+        }
+    }
+
+    /**
+     * Defer reading of tokens to the first access of the temp-id cache. Used
+     * by {@link MainzellisteConnection#readSession(String, boolean)}.
+     * 
+     * @param tokens
+     *            JSON array of tokens as returned by reading the tokens from
+     *            Mainzelliste by GET /sessions/{sid}/tokens
+     */
+    void setPendingTokens(String tokens) {
+        this.pendingTokens = tokens;
+    }
+
+    /**
+     * Read tokens (temp-ids) from a JSON array. Used by
      * {@link MainzellisteConnection#readSession(String)}. The provided array of
      * tokens is searched for tokens of type "readPatients" that provide access
      * a single patient only. These are considered as temporary identifiers and
-     * added as such to the session object.
+     * added as such to the session object. The array is parsed as a stream,
+     * skipping all data not needed for temp-ids, so that no object tree of
+     * the possibly large token list is built. Tokens that do not conform to
+     * the expected format are ignored.
      * 
-     * @param tokensJSON
-     *            JSON array of tokens as returned by reading the tokens from
-     *            Mainzelliste by GET /sessions/{sid}/tokens
-     * @throws JSONException
-     *             if the provided data does not conform to the expected format.
-     */
-    void setTokens(JSONArray tokensJSON) throws JSONException {
-        for (int i = 0; i < tokensJSON.length(); i++) {
-            JSONObject thisToken = tokensJSON.getJSONObject(i);
-            if (thisToken.getString("type").equals("readPatients")) {
-                JSONObject tokenData = thisToken.getJSONObject("data");
-                JSONArray searchIDs = tokenData.getJSONArray("searchIds");
-                // Token is considered a temp-id if only one ID is searched for
-                if (searchIDs.length() == 1) {
-                    String tempId = thisToken.getString("id");
-                    JSONObject idJSON = searchIDs.getJSONObject(0);
-                    ID id = new ID(idJSON.getString("idType"), idJSON.getString("idString"));
-                    tempIdById.put(id, tempId);
-                    idByTempId.put(tempId, id);
+     * @param in
+     *            Reader positioned at a JSON array of tokens as returned by
+     *            reading the tokens from Mainzelliste by GET
+     *            /sessions/{sid}/tokens
+     * @throws MainzellisteNetworkException
+     *             if the provided data is not well-formed JSON.
+     */
+    void readTokens(JsonReader in) throws MainzellisteNetworkException {
+        in.beginArray();
+        while (in.hasNext())
+            readToken(in);
+        in.endArray();
+    }
+
+    private void readToken(JsonReader in) throws MainzellisteNetworkException {
+        if (in.peek() != JsonReader.Type.BEGIN_OBJECT) {
+            in.skipValue();
+            return;
+        }
+        String type = null;
+        String tempId = null;
+        int allowedUses = defaultAllowedUses;
+        ID id = null;
+        int searchIdCount = 0;
+        List<String> resultFields = null;
+        List<String> resultIds = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+            case "type":
+                type = nextStringOrNull(in);
+                break;
+            case "id":
+                tempId = nextStringOrNull(in);
+                break;
+            case "allowedUses":
+                if (in.peek() == JsonReader.Type.NUMBER)
+                    allowedUses = in.nextInt();
+                else
+                    in.skipValue();
+                break;
+            case "data":
+                if (in.peek() != JsonReader.Type.BEGIN_OBJECT) {
+                    in.skipValue();
+                    break;
+                }
+                in.beginObject();
+                while (in.hasNext()) {
+                    switch (in.nextName()) {
+                    case "searchIds":
+                        if (in.peek() != JsonReader.Type.BEGIN_ARRAY) {
+                            in.skipValue();
+                            break;
+                        }
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            // Token is considered a temp-id if only one ID is
+                            // searched for
+                            if (searchIdCount++ == 0)
+                                id = readId(in, connection.getIdFactory());
+                            else
+                                in.skipValue();
+                        }
+                        in.endArray();
+                        break;
+                    case "resultFields":
+                        resultFields = readStrings(in);
+                        break;
+                    case "resultIds":
+                        resultIds = readStrings(in);
+                        break;
+                    default:
+                        in.skipValue();
+                    }
                 }
+                in.endObject();
+                break;
+            default:
+                in.skipValue();
             }
         }
+        in.endObject();
+        if ("readPatients".equals(type) && tempId != null && searchIdCount == 1 && id != null) {
+            TempIdKey.Shape shape = TempIdKey.Shape.of(resultFields, resultIds, allowedUses);
+            tempIdCache.put(new TempIdKey(id, shape), tempId, false);
+        }
+    }
+
+    private static ID readId(JsonReader in, IDFactory idFactory) throws MainzellisteNetworkException {
+        if (in.peek() != JsonReader.Type.BEGIN_OBJECT) {
+            in.skipValue();
+            return null;
+        }
+        String idType = null;
+        String idString = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+            case "idType":
+                idType = nextStringOrNull(in);
+                break;
+            case "idString":
+                idString = nextStringOrNull(in);
+                break;
+            default:
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return idType != null && idString != null ? idFactory.get(idType, idString) : null;
+    }
+
+    private static List<String> readStrings(JsonReader in) throws MainzellisteNetworkException {
+        List<String> list = new ArrayList<String>();
+        if (in.peek() != JsonReader.Type.BEGIN_ARRAY) {
+            in.skipValue();
+            return list;
+        }
+        in.beginArray();
+        while (in.hasNext()) {
+            String value = nextStringOrNull(in);
+            if (value != null)
+                list.add(value);
+        }
+        in.endArray();
+        return list;
+    }
+
+    private static String nextStringOrNull(JsonReader in) throws MainzellisteNetworkException {
+        JsonReader.Type type = in.peek();
+        if (type == JsonReader.Type.STRING || type == JsonReader.Type.NUMBER)
+            return in.nextString();
+        in.skipValue();
+        return null;
     }
 }
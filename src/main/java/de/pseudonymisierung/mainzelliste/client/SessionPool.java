@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of sessions on a Mainzelliste instance. Sessions are created in the
+ * background and leased to callers, so that creating a session is not on the
+ * latency path of a request:
+ * 
+ * <pre>
+ * Session session = pool.lease();
+ * try {
+ *     String tempId = session.getTempId(id);
+ *     ...
+ * } catch (InvalidSessionException e) {
+ *     pool.invalidate(session);
+ *     session = null;
+ * } finally {
+ *     if (session != null)
+ *         pool.release(session);
+ * }
+ * </pre>
+ * 
+ * Idle sessions are validated in the background and replaced if they have
+ * expired on the Mainzelliste instance. Idle sessions in excess of the
+ * configured minimum are destroyed after the maximum idle time. Each pool
+ * runs this maintenance on its own thread, which is stopped by
+ * {@link #close()}.
+ * 
+ * Sessions keep their state (temp-ids, default result fields etc.) while in
+ * the pool, so they should only be shared by callers that use them in the same
+ * way.
+ */
+public class SessionPool implements Closeable {
+
+    /**
+     * An idle session.
+     */
+    private static final class IdleSession {
+        final Session session;
+        /** Time (as of {@link System#nanoTime()}) since which it is idle. */
+        final long idleSince;
+
+        IdleSession(Session session) {
+            this.session = session;
+            this.idleSince = System.nanoTime();
+        }
+    }
+
+    /**
+     * Factory for new sessions, typically a {@link MainzellisteConnection}.
+     */
+    private final SessionEditable sessionFactory;
+    /**
+     * Settings of this pool.
+     */
+    private final SessionPoolSettings settings;
+    /**
+     * Idle sessions. Sessions are leased and returned at the head, so that
+     * rarely used sessions gather at the tail and expire.
+     */
+    private final LinkedBlockingDeque<IdleSession> idle = new LinkedBlockingDeque<IdleSession>();
+    /**
+     * Sessions that are currently leased.
+     */
+    private final Set<Session> leased = ConcurrentHashMap.newKeySet();
+    /**
+     * Number of idle and leased sessions plus sessions being created.
+     */
+    private final AtomicInteger total = new AtomicInteger();
+    /**
+     * Lock for {@link #available}.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Signalled when a session becomes idle or the number of sessions drops,
+     * so that threads waiting in {@link #lease()} check again.
+     */
+    private final Condition available = lock.newCondition();
+    /**
+     * Whether a refill of idle sessions is scheduled.
+     */
+    private final AtomicBoolean refillScheduled = new AtomicBoolean();
+    /**
+     * Executes refills and validation in the background. Both make blocking
+     * requests through {@link SessionEditable}, which has no asynchronous
+     * API, and may take up to the request timeout per session. They therefore
+     * run on a dedicated thread rather than the scheduler shared by all
+     * connections ({@link Futures#scheduleWithFixedDelay}), which must only
+     * run short tasks, so that slow maintenance cannot delay retries,
+     * timeouts and keepalive of other connections.
+     */
+    private final ScheduledExecutorService scheduler;
+    /**
+     * Whether {@link #close()} has been called.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Create a pool. Creation of the minimum number of idle sessions starts
+     * immediately in the background.
+     * 
+     * @param sessionFactory
+     *            Factory for new sessions, typically a
+     *            {@link MainzellisteConnection}.
+     * @param settings
+     *            Settings of this pool.
+     */
+    public SessionPool(SessionEditable sessionFactory, SessionPoolSettings settings) {
+        if (settings.getMinIdle() > settings.getMaxTotal())
+            throw new IllegalArgumentException("minIdle must not be greater than maxTotal");
+        this.sessionFactory = sessionFactory;
+        this.settings = settings;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "mainzelliste-session-pool");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::maintain, settings.getValidationInterval(),
+                settings.getValidationInterval(), TimeUnit.MILLISECONDS);
+        scheduleRefill();
+    }
+
+    /**
+     * Lease a session from the pool. If no idle session is available, a new one
+     * is created, unless the maximum number of sessions is reached. In that
+     * case, the calling thread waits until a session is released.
+     * 
+     * @return A session, which has to be returned by {@link #release(Session)}
+     *         or {@link #invalidate(Session)}.
+     * @throws MainzellisteNetworkException
+     *             If a network error occurs while creating a session, or no
+     *             session becomes available within the maximum wait time.
+     */
+    public Session lease() throws MainzellisteNetworkException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.getMaxWait());
+        while (true) {
+            if (closed)
+                throw new IllegalStateException("Session pool is closed");
+            Session session = takeIdle(idle.pollFirst());
+            if (session != null)
+                return session;
+
+            if (reserve()) {
+                try {
+                    session = sessionFactory.createSession();
+                } catch (MainzellisteNetworkException | RuntimeException e) {
+                    removed();
+                    throw e;
+                }
+                leased.add(session);
+                return session;
+            }
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                throw new MainzellisteNetworkException("No session available in pool after waiting "
+                        + settings.getMaxWait() + " ms");
+            lock.lock();
+            try {
+                // Check again under the lock, so that no signal is missed
+                if (!closed && idle.isEmpty() && total.get() >= settings.getMaxTotal())
+                    available.awaitNanos(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MainzellisteNetworkException("Interrupted while waiting for a session", e);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Mark an idle session as leased.
+     * 
+     * @param idleSession
+     *            An idle session taken from the pool or null.
+     * @return The session, or null if idleSession is null or the session has
+     *         been invalidated.
+     */
+    private Session takeIdle(IdleSession idleSession) {
+        if (idleSession == null)
+            return null;
+        if (idleSession.session.isInvalidated()) {
+            removed();
+            scheduleRefill();
+            return null;
+        }
+        leased.add(idleSession.session);
+        if (idle.size() < settings.getMinIdle())
+            scheduleRefill();
+        return idleSession.session;
+    }
+
+    /**
+     * Reserve capacity for a new session.
+     * 
+     * @return True if a session may be created, false if the maximum number of
+     *         sessions is reached.
+     */
+    private boolean reserve() {
+        int current;
+        do {
+            current = total.get();
+            if (current >= settings.getMaxTotal())
+                return false;
+        } while (!total.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Return a leased session to the pool. If the session has been destroyed,
+     * it is replaced by a new one.
+     * 
+     * @param session
+     *            A session leased from this pool.
+     */
+    public void release(Session session) {
+        if (!leased.remove(session))
+            throw new IllegalArgumentException("Session " + session.getId() + " is not leased from this pool");
+        if (session.isInvalidated()) {
+            removed();
+            scheduleRefill();
+        } else if (closed) {
+            removed();
+            destroyQuietly(session);
+        } else {
+            idle.offerFirst(new IdleSession(session));
+            signalAvailable();
+        }
+    }
+
+    /**
+     * Remove a leased session from the pool because it is not valid anymore,
+     * typically after an {@link InvalidSessionException}. The session is
+     * replaced by a new one in the background.
+     * 
+     * @param session
+     *            A session leased from this pool.
+     */
+    public void invalidate(Session session) {
+        if (!leased.remove(session))
+            throw new IllegalArgumentException("Session " + session.getId() + " is not leased from this pool");
+        session.markInvalidated();
+        removed();
+        scheduleRefill();
+    }
+
+    /**
+     * Account for a session that has left the pool, which frees capacity for
+     * a new one.
+     */
+    private void removed() {
+        total.decrementAndGet();
+        signalAvailable();
+    }
+
+    /**
+     * Wake up threads waiting for a session.
+     */
+    private void signalAvailable() {
+        lock.lock();
+        try {
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Schedule creation of idle sessions up to the configured minimum.
+     */
+    private void scheduleRefill() {
+        if (closed || !refillScheduled.compareAndSet(false, true))
+            return;
+        try {
+            scheduler.execute(() -> {
+                refillScheduled.set(false);
+                refill();
+            });
+        } catch (RuntimeException e) { // RejectedExecutionException after close
+            refillScheduled.set(false);
+        }
+    }
+
+    private void refill() {
+        while (!closed && idle.size() < settings.getMinIdle() && reserve()) {
+            try {
+                idle.offerLast(new IdleSession(sessionFactory.createSession()));
+            } catch (MainzellisteNetworkException | RuntimeException e) {
+                // Retry on next maintenance run
+                removed();
+                return;
+            }
+            signalAvailable();
+        }
+    }
+
+    /**
+     * Validate idle sessions, destroy surplus idle sessions and refill the
+     * pool. Run periodically in the background. Sessions that do not exist
+     * anymore on the Mainzelliste instance are removed; if validation fails
+     * for another reason, e.g. a server error, the session is kept and
+     * validated again on the next run.
+     */
+    private void maintain() {
+        long now = System.nanoTime();
+        long maxIdleNanos = TimeUnit.MILLISECONDS.toNanos(settings.getMaxIdleTime());
+        Iterator<IdleSession> it = idle.descendingIterator();
+        while (it.hasNext() && !closed) {
+            IdleSession idleSession = it.next();
+            boolean surplus = idle.size() > settings.getMinIdle() && now - idleSession.idleSince > maxIdleNanos;
+            boolean valid;
+            try {
+                // Keep the session if its state cannot be determined, i.e. if
+                // it is neither valid nor known to be gone (status 404)
+                valid = !surplus
+                        && (idleSession.session.isValid() || !idleSession.session.isInvalidated());
+            } catch (MainzellisteNetworkException e) {
+                valid = true;
+            }
+            if (!valid && idle.removeFirstOccurrence(idleSession)) {
+                removed();
+                if (surplus)
+                    destroyQuietly(idleSession.session);
+            }
+        }
+        refill();
+    }
+
+    private static void destroyQuietly(Session session) {
+        try {
+            session.destroy();
+        } catch (MainzellisteNetworkException e) {
+            // Session will expire on the server
+        }
+    }
+
+    /**
+     * Get the number of idle sessions.
+     * 
+     * @return The number of sessions ready to be leased.
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Get the number of leased sessions.
+     * 
+     * @return The number of sessions currently in use.
+     */
+    public int getLeasedCount() {
+        return leased.size();
+    }
+
+    /**
+     * Close this pool. Background tasks are stopped and idle sessions are
+     * destroyed. Sessions that are leased at this time are destroyed when
+     * they are released.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        signalAvailable();
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(settings.getMaxWait(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        IdleSession idleSession;
+        while ((idleSession = idle.pollFirst()) != null) {
+            removed();
+            destroyQuietly(idleSession.session);
+        }
+    }
+}
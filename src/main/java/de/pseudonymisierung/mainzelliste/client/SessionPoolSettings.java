@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+/**
+ * Settings for a {@link SessionPool}. Times are given in milliseconds.
+ * 
+ * @see SessionPool#SessionPool(SessionEditable, SessionPoolSettings)
+ */
+public class SessionPoolSettings {
+
+    /**
+     * Number of idle sessions that the pool keeps ready.
+     */
+    private int minIdle = 2;
+    /**
+     * Maximum number of sessions (idle and leased).
+     */
+    private int maxTotal = 20;
+    /**
+     * Time after which idle sessions in excess of {@link #minIdle} are
+     * destroyed.
+     */
+    private long maxIdleTime = 600000;
+    /**
+     * Interval in which idle sessions are validated in the background.
+     */
+    private long validationInterval = 60000;
+    /**
+     * Maximum time to wait for a session if {@link #maxTotal} sessions are
+     * leased.
+     */
+    private long maxWait = 5000;
+
+    /**
+     * Get the number of idle sessions that the pool keeps ready.
+     * 
+     * @return The minimum number of idle sessions.
+     */
+    public int getMinIdle() {
+        return minIdle;
+    }
+
+    /**
+     * Set the number of idle sessions that the pool keeps ready. These are
+     * created in the background when the pool is created and whenever sessions
+     * are leased or invalidated.
+     * 
+     * @param minIdle
+     *            The minimum number of idle sessions, must not be negative.
+     * @return The modified settings object.
+     */
+    public SessionPoolSettings setMinIdle(int minIdle) {
+        if (minIdle < 0)
+            throw new IllegalArgumentException("minIdle must not be negative");
+        this.minIdle = minIdle;
+        return this;
+    }
+
+    /**
+     * Get the maximum number of sessions.
+     * 
+     * @return The maximum number of idle and leased sessions.
+     */
+    public int getMaxTotal() {
+        return maxTotal;
+    }
+
+    /**
+     * Set the maximum number of sessions.
+     * 
+     * @param maxTotal
+     *            The maximum number of idle and leased sessions, must be
+     *            greater than 0.
+     * @return The modified settings object.
+     */
+    public SessionPoolSettings setMaxTotal(int maxTotal) {
+        if (maxTotal <= 0)
+            throw new IllegalArgumentException("maxTotal must be greater than 0");
+        this.maxTotal = maxTotal;
+        return this;
+    }
+
+    /**
+     * Get the time after which surplus idle sessions are destroyed.
+     * 
+     * @return The maximum idle time.
+     */
+    public long getMaxIdleTime() {
+        return maxIdleTime;
+    }
+
+    /**
+     * Set the time after which idle sessions in excess of the minimum number
+     * of idle sessions are destroyed.
+     * 
+     * @param maxIdleTime
+     *            The maximum idle time, must be greater than 0.
+     * @return The modified settings object.
+     */
+    public SessionPoolSettings setMaxIdleTime(long maxIdleTime) {
+        if (maxIdleTime <= 0)
+            throw new IllegalArgumentException("maxIdleTime must be greater than 0");
+        this.maxIdleTime = maxIdleTime;
+        return this;
+    }
+
+    /**
+     * Get the interval in which idle sessions are validated.
+     * 
+     * @return The validation interval.
+     */
+    public long getValidationInterval() {
+        return validationInterval;
+    }
+
+    /**
+     * Set the interval in which idle sessions are validated in the background.
+     * Sessions that have expired on the Mainzelliste instance are replaced.
+     * 
+     * @param validationInterval
+     *            The validation interval, must be greater than 0.
+     * @return The modified settings object.
+     */
+    public SessionPoolSettings setValidationInterval(long validationInterval) {
+        if (validationInterval <= 0)
+            throw new IllegalArgumentException("validationInterval must be greater than 0");
+        this.validationInterval = validationInterval;
+        return this;
+    }
+
+    /**
+     * Get the maximum time to wait for a session.
+     * 
+     * @return The maximum wait time.
+     */
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * Set the maximum time to wait for a session if the maximum number of
+     * sessions are leased.
+     * 
+     * @param maxWait
+     *            The maximum wait time, must not be negative.
+     * @return The modified settings object.
+     */
+    public SessionPoolSettings setMaxWait(long maxWait) {
+        if (maxWait < 0)
+            throw new IllegalArgumentException("maxWait must not be negative");
+        this.maxWait = maxWait;
+        return this;
+    }
+}
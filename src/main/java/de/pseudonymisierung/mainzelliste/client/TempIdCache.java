@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of the temp-ids of a {@link Session}. Temp-ids are cached per patient
+ * and shape of the underlying token (result fields, result id types and
+ * allowed uses), so a temp-id is only reused for requests of the same shape.
+ * The cache can be bounded in size
+ * (least recently used entries are evicted first) and in time (entries expire
+ * after a fixed time to live, which should not exceed the token timeout of the
+ * Mainzelliste instance). Optionally, the remaining uses of each temp-id are
+ * counted locally: every time a temp-id is handed out counts as one use, and
+ * exhausted temp-ids are not returned anymore, so that the session requests a
+ * new one.
+ * 
+ * The default cache created by {@link #TempIdCache()} is unbounded and keeps
+ * temp-ids as long as the session exists, which is the behavior of previous
+ * versions of this library.
+ * 
+ * The cache is divided into independently locked segments, so it can be used
+ * by several threads with little contention.
+ * 
+ * @see Session#setTempIdCache(AbstractTempIdCache)
+ */
+public class TempIdCache extends AbstractTempIdCache {
+
+    /**
+     * A cached temp-id.
+     */
+    private static final class CachedTempId {
+        /** The temp-id. */
+        final String tempId;
+        /** Time (as of {@link System#nanoTime()}) at which the entry expires. */
+        final long expiresAt;
+        /** Number of remaining uses. Guarded by the lock of the segment. */
+        int remainingUses;
+
+        CachedTempId(String tempId, long expiresAt, int remainingUses) {
+            this.tempId = tempId;
+            this.expiresAt = expiresAt;
+            this.remainingUses = remainingUses;
+        }
+    }
+
+    /**
+     * One segment of the cache: a map in access order, so that the least
+     * recently used entry comes first.
+     */
+    private final class Segment extends LinkedHashMap<TempIdKey, CachedTempId> {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Maximum number of entries in this segment. */
+        private final int maximumSize;
+
+        Segment(int maximumSize) {
+            super(16, 0.75f, true);
+            this.maximumSize = maximumSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<TempIdKey, CachedTempId> eldest) {
+            if (size() <= maximumSize)
+                return false;
+            evictions.increment();
+            keyByTempId.remove(eldest.getValue().tempId, eldest.getKey());
+            return true;
+        }
+    }
+
+    /**
+     * Value of {@link #timeToLiveNanos} for entries that never expire.
+     */
+    private static final long NO_EXPIRY = Long.MAX_VALUE;
+
+    /**
+     * Segments of the mapping from keys to temp-ids. All keys of a patient are
+     * stored in the same segment.
+     */
+    private final Segment[] segments;
+    /**
+     * Mapping from temp-ids to keys.
+     */
+    private final Map<String, TempIdKey> keyByTempId = new ConcurrentHashMap<String, TempIdKey>();
+    /**
+     * Maximum number of cached temp-ids.
+     */
+    private final int maximumSize;
+    /**
+     * Time to live of an entry in nanoseconds.
+     */
+    private final long timeToLiveNanos;
+    /**
+     * Whether uses of temp-ids are counted.
+     */
+    private final boolean countUses;
+
+    /**
+     * Create an unbounded cache. Temp-ids never expire and their uses are not
+     * counted.
+     */
+    public TempIdCache() {
+        this(Integer.MAX_VALUE, 0, TimeUnit.MILLISECONDS, false);
+    }
+
+    /**
+     * Create a cache.
+     * 
+     * @param maximumSize
+     *            Maximum number of cached temp-ids, must be greater than 0.
+     * @param timeToLive
+     *            Time after which a temp-id expires, or 0 if temp-ids should
+     *            never expire.
+     * @param unit
+     *            Unit of timeToLive.
+     * @param countUses
+     *            Whether to count the uses of each temp-id and request a new
+     *            one after the allowed uses of the token are exhausted.
+     */
+    public TempIdCache(int maximumSize, long timeToLive, TimeUnit unit, boolean countUses) {
+        if (maximumSize <= 0)
+            throw new IllegalArgumentException("maximumSize must be greater than 0");
+        if (timeToLive < 0)
+            throw new IllegalArgumentException("timeToLive must not be negative");
+        this.maximumSize = maximumSize;
+        this.timeToLiveNanos = timeToLive == 0 ? NO_EXPIRY : unit.toNanos(timeToLive);
+        this.countUses = countUses;
+        // Small caches use one segment for exact LRU order, larger ones up to
+        // 16 segments of at least 64 entries
+        int segmentCount = 1;
+        while (segmentCount < 16 && segmentCount * 128L <= maximumSize)
+            segmentCount <<= 1;
+        int segmentSize = (int) ((maximumSize + (long) segmentCount - 1) / segmentCount);
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++)
+            segments[i] = new Segment(segmentSize);
+    }
+
+    private Segment segmentFor(ID id) {
+        int h = id.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (segments.length - 1)];
+    }
+
+    @Override
+    String get(TempIdKey key, boolean recordStats) {
+        Segment segment = segmentFor(key.id);
+        synchronized (segment) {
+            CachedTempId entry = segment.get(key);
+            String tempId = null;
+            if (entry == null) {
+                // miss
+            } else if (entry.expiresAt - System.nanoTime() < 0) {
+                segment.remove(key);
+                keyByTempId.remove(entry.tempId, key);
+                expirations.increment();
+            } else if (countUses && entry.remainingUses <= 0) {
+                // Keep the entry, so that the temp-id can still be resolved by
+                // getId() until a new one is cached
+                if (recordStats)
+                    exhaustions.increment();
+            } else {
+                if (countUses)
+                    entry.remainingUses--;
+                tempId = entry.tempId;
+            }
+            if (recordStats)
+                (tempId == null ? misses : hits).increment();
+            return tempId;
+        }
+    }
+
+    @Override
+    List<String> tempIdsOf(ID id) {
+        List<String> tempIds = new ArrayList<String>(1);
+        Segment segment = segmentFor(id);
+        synchronized (segment) {
+            for (Map.Entry<TempIdKey, CachedTempId> e : segment.entrySet()) {
+                if (e.getKey().id.equals(id))
+                    tempIds.add(e.getValue().tempId);
+            }
+        }
+        return tempIds;
+    }
+
+    @Override
+    void put(TempIdKey key, String tempId, boolean handedOut) {
+        int allowedUses = key.shape.allowedUses;
+        // Overflow for NO_EXPIRY is harmless, as expiry is checked by
+        // comparing differences of nanoTime values
+        CachedTempId entry = new CachedTempId(tempId, System.nanoTime() + timeToLiveNanos, handedOut ? allowedUses - 1 : allowedUses);
+        Segment segment = segmentFor(key.id);
+        synchronized (segment) {
+            keyByTempId.put(tempId, key);
+            CachedTempId previous = segment.put(key, entry);
+            if (previous != null && !previous.tempId.equals(tempId))
+                keyByTempId.remove(previous.tempId, key);
+        }
+    }
+
+    @Override
+    void remove(String tempId) {
+        TempIdKey key = keyByTempId.get(tempId);
+        if (key == null)
+            return;
+        Segment segment = segmentFor(key.id);
+        synchronized (segment) {
+            CachedTempId entry = segment.get(key);
+            if (entry != null && entry.tempId.equals(tempId))
+                segment.remove(key);
+        }
+    }
+
+    @Override
+    ID getId(String tempId) {
+        TempIdKey key = keyByTempId.get(tempId);
+        return key == null ? null : key.id;
+    }
+
+    @Override
+    Set<String> tempIds() {
+        return keyByTempId.keySet();
+    }
+
+    @Override
+    Set<ID> ids() {
+        Set<ID> ids = new HashSet<ID>();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                for (TempIdKey key : segment.keySet())
+                    ids.add(key.id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Remove all expired entries. Expired entries are also removed lazily on
+     * lookup, so calling this method is only necessary to free memory early.
+     */
+    @Override
+    public void cleanUp() {
+        long now = System.nanoTime();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                Iterator<Map.Entry<TempIdKey, CachedTempId>> it = segment.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<TempIdKey, CachedTempId> e = it.next();
+                    if (e.getValue().expiresAt - now < 0) {
+                        it.remove();
+                        keyByTempId.remove(e.getValue().tempId, e.getKey());
+                        expirations.increment();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of cached temp-ids, including expired ones that have not
+     * been removed yet.
+     * 
+     * @return The number of entries.
+     */
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+}
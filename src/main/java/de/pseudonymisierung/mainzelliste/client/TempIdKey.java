@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache key of a temp-id: the patient together with the shape of the
+ * "readPatients" token, i.e. the result fields, result id types and number of
+ * allowed uses. Temp-ids are only reused for requests of the same shape, so
+ * that a temp-id minted for a narrow set of fields is never handed out for a
+ * wider one.
+ */
+final class TempIdKey {
+
+    /**
+     * Canonical form of the result fields, result id types and allowed uses of
+     * a "readPatients" token. Field names and id types are sorted, so that
+     * collections with the same elements yield equal shapes.
+     */
+    static final class Shape {
+
+        /**
+         * Maximum number of shapes that are interned. Applications use only a
+         * handful of shapes; the limit protects against unbounded growth if
+         * shapes are generated dynamically.
+         */
+        private static final int MAX_INTERNED = 1024;
+
+        private static final ConcurrentMap<Shape, Shape> INTERNED = new ConcurrentHashMap<Shape, Shape>();
+
+        /** Sorted result field names. */
+        final String[] resultFields;
+        /** Sorted result id types. */
+        final String[] resultIds;
+        /** Number of allowed uses. */
+        final int allowedUses;
+        /** Precomputed hash code. */
+        private final int hashCode;
+
+        private Shape(String[] resultFields, String[] resultIds, int allowedUses) {
+            this.resultFields = resultFields;
+            this.resultIds = resultIds;
+            this.allowedUses = allowedUses;
+            this.hashCode = (Arrays.hashCode(resultFields) * 31 + Arrays.hashCode(resultIds)) * 31 + allowedUses;
+        }
+
+        /**
+         * Get the canonical shape for the given token properties. Equal shapes
+         * are usually represented by the same instance, which makes
+         * comparisons cheap.
+         * 
+         * @param resultFields
+         *            Result field names or null for none.
+         * @param resultIds
+         *            Result id types or null for none.
+         * @param allowedUses
+         *            Number of allowed uses.
+         * @return The shape.
+         */
+        static Shape of(Collection<String> resultFields, Collection<String> resultIds, int allowedUses) {
+            Shape shape = new Shape(sorted(resultFields), sorted(resultIds), allowedUses);
+            Shape interned = INTERNED.get(shape);
+            if (interned != null)
+                return interned;
+            if (INTERNED.size() >= MAX_INTERNED)
+                return shape;
+            interned = INTERNED.putIfAbsent(shape, shape);
+            return interned == null ? shape : interned;
+        }
+
+        private static String[] sorted(Collection<String> values) {
+            if (values == null || values.isEmpty())
+                return new String[0];
+            String[] result = values.toArray(new String[values.size()]);
+            Arrays.sort(result);
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Shape))
+                return false;
+            Shape other = (Shape) obj;
+            return hashCode == other.hashCode && allowedUses == other.allowedUses
+                    && Arrays.equals(resultFields, other.resultFields) && Arrays.equals(resultIds, other.resultIds);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /** The patient. */
+    final ID id;
+    /** The shape of the token. */
+    final Shape shape;
+    /** Precomputed hash code. */
+    private final int hashCode;
+
+    /**
+     * Create a key.
+     * 
+     * @param id
+     *            The patient.
+     * @param shape
+     *            The shape of the token.
+     */
+    TempIdKey(ID id, Shape shape) {
+        this.id = id;
+        this.shape = shape;
+        this.hashCode = id.hashCode() * 31 + shape.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof TempIdKey))
+            return false;
+        TempIdKey other = (TempIdKey) obj;
+        return hashCode == other.hashCode && id.equals(other.id)
+                && (shape == other.shape || shape.equals(other.shape));
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+}
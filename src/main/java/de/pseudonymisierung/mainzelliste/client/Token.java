@@ -85,4 +85,32 @@ public abstract class Token {
      */
     public abstract JSONObject toJSON();
 
+    /**
+     * Write the JSON representation of this token, as returned by
+     * {@link Token#toJSON()}, directly as UTF-8 bytes. Used for request
+     * entities, so that no intermediate object tree and Strings are created.
+     * The default implementation writes the result of {@link Token#toJSON()};
+     * subclasses should override it with a streaming implementation.
+     * 
+     * @param out
+     *            The writer to write to.
+     */
+    public void writeJSON(JsonWriter out) {
+        out.rawValue(toJSON().toString());
+    }
+
+    /**
+     * Write the AuditTrail information of this token as member "auditTrail"
+     * of the current object, if present.
+     * 
+     * @param out
+     *            The writer to write to.
+     */
+    void writeAuditTrailLog(JsonWriter out) {
+        if (this.auditTrailLog != null) {
+            out.name("auditTrail");
+            this.auditTrailLog.writeJSON(out);
+        }
+    }
+
 }
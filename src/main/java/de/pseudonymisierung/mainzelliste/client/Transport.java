@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Service provider interface for the HTTP stack through which a
+ * {@link MainzellisteConnection} makes its requests. Implementations must be
+ * thread safe.
+ * 
+ * @see ApacheHttpTransport
+ */
+public interface Transport extends Closeable {
+
+    /**
+     * Reads the entity of a response as a stream.
+     * 
+     * @param <T>
+     *            Type of the result.
+     */
+    @FunctionalInterface
+    interface ResponseHandler<T> {
+        /**
+         * Handle a response.
+         * 
+         * @param statusCode
+         *            The HTTP status code.
+         * @param entity
+         *            The entity of the response, empty if it has none. Only
+         *            valid until this method returns.
+         * @return The result of handling the response.
+         * @throws MainzellisteNetworkException
+         *             If the entity cannot be read or parsed.
+         */
+        T handle(int statusCode, Reader entity) throws MainzellisteNetworkException;
+    }
+
+    /**
+     * Execute a request and wait for the response. The entity of the request
+     * may be held in a buffer that is reused after this method returns, so
+     * implementations must not keep a reference to it.
+     * 
+     * @param request
+     *            The request to execute.
+     * @return The response.
+     * @throws MainzellisteNetworkException
+     *             If a network error occurs while making the request.
+     */
+    MainzellisteResponse execute(TransportRequest request) throws MainzellisteNetworkException;
+
+    /**
+     * Execute a request without blocking the calling thread. The default
+     * implementation executes the request synchronously, which is only
+     * appropriate for transports that do not perform network IO.
+     * 
+     * @param request
+     *            The request to execute.
+     * @return A future of the response. If a network error occurs, the future
+     *         is completed exceptionally with a
+     *         {@link MainzellisteNetworkException}.
+     */
+    default CompletableFuture<MainzellisteResponse> executeAsync(TransportRequest request) {
+        try {
+            return CompletableFuture.completedFuture(execute(request));
+        } catch (MainzellisteNetworkException e) {
+            return Futures.failed(e);
+        }
+    }
+
+    /**
+     * Execute a request and pass the entity of the response to a handler
+     * while it is received, instead of reading it into memory first. The
+     * maximum response size of the request does not apply. The default
+     * implementation executes the request by
+     * {@link #execute(TransportRequest)}, which is only appropriate for
+     * transports that do not perform network IO.
+     * 
+     * @param <T>
+     *            Type of the result.
+     * @param request
+     *            The request to execute.
+     * @param handler
+     *            The handler for the response.
+     * @return The result of the handler.
+     * @throws MainzellisteNetworkException
+     *             If a network error occurs while making the request or the
+     *             handler fails.
+     */
+    default <T> T execute(TransportRequest request, ResponseHandler<T> handler) throws MainzellisteNetworkException {
+        MainzellisteResponse response = execute(request);
+        return handler.handle(response.getStatusCode(), new StringReader(response.getData()));
+    }
+
+    /**
+     * Release all resources held by this transport. The default
+     * implementation does nothing.
+     * 
+     * @throws IOException
+     *             If an IO error occurs while releasing resources.
+     */
+    @Override
+    default void close() throws IOException {
+    }
+}
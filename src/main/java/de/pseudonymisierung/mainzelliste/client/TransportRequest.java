@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import de.pseudonymisierung.mainzelliste.client.MainzellisteConnection.RequestMethod;
+
+/**
+ * A request to a Mainzelliste instance as handed to a {@link Transport}. All
+ * headers required by Mainzelliste (API key, API version etc.) have already
+ * been set by {@link MainzellisteConnection}.
+ */
+public final class TransportRequest {
+
+    /**
+     * The HTTP method.
+     */
+    private final RequestMethod method;
+    /**
+     * Absolute URI of the requested resource.
+     */
+    private final URI uri;
+    /**
+     * Request headers. Map keys are header names, values the corresponding
+     * header values.
+     */
+    private final Map<String, String> headers;
+    /**
+     * Buffer holding the request entity or null if the request has no entity.
+     */
+    private final byte[] body;
+    /**
+     * Length of the entity in {@link #body}.
+     */
+    private final int bodyLength;
+    /**
+     * Whether only the status of the response is needed.
+     */
+    private final boolean statusOnly;
+    /**
+     * Maximum size of the response entity in bytes.
+     */
+    private final long maxResponseSize;
+
+    /**
+     * Create a request.
+     * 
+     * @param method
+     *            The HTTP method.
+     * @param uri
+     *            Absolute URI of the requested resource.
+     * @param headers
+     *            Request headers.
+     * @param body
+     *            Request entity or null if the request has no entity.
+     */
+    public TransportRequest(RequestMethod method, URI uri, Map<String, String> headers, byte[] body) {
+        this(method, uri, headers, body, body == null ? 0 : body.length);
+    }
+
+    /**
+     * Create a request whose entity is held in the first bytes of a buffer.
+     * 
+     * @param method
+     *            The HTTP method.
+     * @param uri
+     *            Absolute URI of the requested resource.
+     * @param headers
+     *            Request headers.
+     * @param body
+     *            Buffer holding the request entity or null if the request has
+     *            no entity.
+     * @param bodyLength
+     *            Length of the entity in the buffer.
+     */
+    public TransportRequest(RequestMethod method, URI uri, Map<String, String> headers, byte[] body,
+            int bodyLength) {
+        this(method, uri, headers, body, bodyLength, false, Long.MAX_VALUE);
+    }
+
+    /**
+     * Create a request with options for handling the response.
+     * 
+     * @param method
+     *            The HTTP method.
+     * @param uri
+     *            Absolute URI of the requested resource.
+     * @param headers
+     *            Request headers.
+     * @param body
+     *            Buffer holding the request entity or null if the request has
+     *            no entity.
+     * @param bodyLength
+     *            Length of the entity in the buffer.
+     * @param statusOnly
+     *            Whether only the status of the response is needed, so that
+     *            the entity of a successful response can be discarded.
+     * @param maxResponseSize
+     *            Maximum size of the response entity in bytes.
+     */
+    public TransportRequest(RequestMethod method, URI uri, Map<String, String> headers, byte[] body,
+            int bodyLength, boolean statusOnly, long maxResponseSize) {
+        if (method == null)
+            throw new NullPointerException("Cannot create request with method null");
+        if (uri == null)
+            throw new NullPointerException("Cannot create request with uri null");
+        this.method = method;
+        this.uri = uri;
+        this.headers = Collections.unmodifiableMap(new LinkedHashMap<String, String>(headers));
+        if (body != null && (bodyLength < 0 || bodyLength > body.length))
+            throw new IllegalArgumentException("Illegal body length " + bodyLength);
+        this.body = body;
+        this.bodyLength = body == null ? 0 : bodyLength;
+        if (maxResponseSize <= 0)
+            throw new IllegalArgumentException("maxResponseSize must be greater than 0");
+        this.statusOnly = statusOnly;
+        this.maxResponseSize = maxResponseSize;
+    }
+
+    /**
+     * Get the HTTP method of this request.
+     * 
+     * @return The HTTP method.
+     */
+    public RequestMethod getMethod() {
+        return method;
+    }
+
+    /**
+     * Get the URI of the requested resource.
+     * 
+     * @return The absolute URI.
+     */
+    public URI getUri() {
+        return uri;
+    }
+
+    /**
+     * Get the headers of this request.
+     * 
+     * @return An unmodifiable map of header names to values.
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Get the entity of this request.
+     * 
+     * @return The UTF-8 encoded entity or null if the request has no entity.
+     *         If the entity is held in a larger buffer, a copy.
+     */
+    public byte[] getBody() {
+        if (body == null || bodyLength == body.length)
+            return body;
+        return Arrays.copyOf(body, bodyLength);
+    }
+
+    /**
+     * Get the buffer holding the entity of this request without copying.
+     * Only the first {@link #getBodyLength()} bytes belong to the entity.
+     * 
+     * @return The buffer or null if the request has no entity.
+     */
+    public byte[] getBodyBuffer() {
+        return body;
+    }
+
+    /**
+     * Get the length of the entity of this request.
+     * 
+     * @return The length of the entity in bytes, 0 if the request has no
+     *         entity.
+     */
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * Check whether only the status of the response is needed. Transports
+     * should then discard the entity of a successful (2xx) response without
+     * reading it into memory. Entities of error responses are kept for
+     * diagnostics.
+     * 
+     * @return True if the entity of a successful response can be discarded.
+     */
+    public boolean isStatusOnly() {
+        return statusOnly;
+    }
+
+    /**
+     * Get the maximum size of the response entity. Transports fail the
+     * request with a {@link MainzellisteNetworkException} if the response
+     * entity is larger.
+     * 
+     * @return The maximum size in bytes.
+     */
+    public long getMaxResponseSize() {
+        return maxResponseSize;
+    }
+
+    /**
+     * Get the entity of this request as a String.
+     * 
+     * @return The entity or null if the request has no entity.
+     */
+    public String getBodyAsString() {
+        return body == null ? null : new String(body, 0, bodyLength, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + uri;
+    }
+}
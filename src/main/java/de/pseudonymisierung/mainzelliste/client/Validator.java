@@ -1,5 +1,8 @@
 package de.pseudonymisierung.mainzelliste.client;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 public class Validator {
 
     private final MainzellisteConnection connection;
@@ -13,12 +16,78 @@ public class Validator {
     }
 
     /**
-     * This Method will validate with the if a token is valid
+     * This Method will validate with the if a token is valid. With several
+     * nodes, the token is validated on the node that created it if it is
+     * known, otherwise on each node in turn until one accepts it.
      * @param tokenId
-     * @return
+     * @return true if the token is valid
+     * @throws MainzellisteNetworkException if no node accepts the token and
+     *         the request to one of them has failed
      */
     public boolean checkTokenValid(String tokenId) throws MainzellisteNetworkException {
-        MainzellisteResponse mainzellisteResponse = this.connection.doRequest(MainzellisteConnection.RequestMethod.GET, this.connection.getMainzellisteURI() + "validate/token?tokenId=" + tokenId, null);
+        MainzellisteNode node = this.connection.getTokenNode(tokenId);
+        if (node != null)
+            return isSuccess(this.connection.doStatusRequest(MainzellisteConnection.RequestMethod.GET, validatePath(node, tokenId)));
+        MainzellisteNetworkException failure = null;
+        for (MainzellisteNode candidate : this.connection.getNodes()) {
+            try {
+                if (isSuccess(this.connection.doStatusRequest(MainzellisteConnection.RequestMethod.GET, validatePath(candidate, tokenId))))
+                    return true;
+            } catch (MainzellisteNetworkException e) {
+                // The token may be on this node, but try the others
+                failure = e;
+            }
+        }
+        if (failure != null)
+            throw failure;
+        return false;
+    }
+
+    /**
+     * Asynchronous variant of {@link #checkTokenValid(String)}
+     * @param tokenId
+     * @return a future that completes with true if the token is valid
+     */
+    public CompletableFuture<Boolean> checkTokenValidAsync(String tokenId) {
+        MainzellisteNode node = this.connection.getTokenNode(tokenId);
+        if (node != null)
+            return this.connection.doStatusRequestAsync(MainzellisteConnection.RequestMethod.GET, validatePath(node, tokenId))
+                    .thenApply(Validator::isSuccess);
+        CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+        checkTokenValidAsync(tokenId, this.connection.getNodes(), 0, null, result);
+        return result;
+    }
+
+    private void checkTokenValidAsync(String tokenId, List<MainzellisteNode> nodes, int index, Throwable failure,
+            CompletableFuture<Boolean> result) {
+        if (index == nodes.size()) {
+            if (failure != null)
+                result.completeExceptionally(failure);
+            else
+                result.complete(false);
+            return;
+        }
+        CompletableFuture<MainzellisteResponse> response;
+        try {
+            response = this.connection.doStatusRequestAsync(MainzellisteConnection.RequestMethod.GET, validatePath(nodes.get(index), tokenId));
+        } catch (RuntimeException e) {
+            response = Futures.failed(e);
+        }
+        response.whenComplete((r, t) -> {
+            if (t != null)
+                checkTokenValidAsync(tokenId, nodes, index + 1, Futures.unwrap(t), result);
+            else if (isSuccess(r))
+                result.complete(true);
+            else
+                checkTokenValidAsync(tokenId, nodes, index + 1, failure, result);
+        });
+    }
+
+    private static String validatePath(MainzellisteNode node, String tokenId) {
+        return node.getURI() + "validate/token?tokenId=" + tokenId;
+    }
+
+    private static boolean isSuccess(MainzellisteResponse mainzellisteResponse) {
         return 0 < mainzellisteResponse.getStatusCode() && mainzellisteResponse.getStatusCode() < 300;
     }
 
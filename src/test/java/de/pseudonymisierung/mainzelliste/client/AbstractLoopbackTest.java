@@ -0,0 +1,33 @@
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.net.URISyntaxException;
+
+import org.junit.Before;
+
+/**
+ * Base class of tests against an in-memory Mainzelliste, connected through a
+ * LoopbackTransport.
+ */
+public abstract class AbstractLoopbackTest {
+
+	protected static final String MAINZELLISTE_URI = "http://localhost:8080/mainzelliste";
+
+	protected InMemoryMainzelliste mainzelliste;
+	protected LoopbackTransport transport;
+	protected MainzellisteConnection connection;
+
+	@Before
+	public void setUp() throws Exception {
+		mainzelliste = new InMemoryMainzelliste();
+		transport = new LoopbackTransport(mainzelliste);
+		connection = new MainzellisteConnection(MAINZELLISTE_URI, "apiKey", transport);
+	}
+
+	/**
+	 * Create a connection whose requests are passed to a handler, e.g. one
+	 * that injects failures or delays before calling {@link #mainzelliste}.
+	 */
+	protected static MainzellisteConnection connect(LoopbackTransport.Handler handler) throws URISyntaxException {
+		return new MainzellisteConnection(MAINZELLISTE_URI, "apiKey", new LoopbackTransport(handler));
+	}
+}
@@ -122,4 +122,27 @@ public class AddPatientTokenTest {
 		}
 	}
 
+
+	/**
+	 * The streamed JSON representation should equal the one built by toJSON(),
+	 * including escaped and non-ASCII characters.
+	 */
+	@Test
+	public void testWriteJSON() throws Exception {
+		AddPatientToken t = new AddPatientToken();
+		t.addField("Vorname", "Karl \"Kalle\"\n");
+		t.addField("Nachname", "M\u00fcller \ud83d\ude00");
+		t.addIdType("pid");
+		t.addExternalId("extId", "1234");
+		t.redirect("https://mdat.example.org/newPatient?pid={pid}");
+		t.callback(new URL("https://mdat.example.org/newPatientCallback"));
+		AuditTrailLog auditTrailLog = new AuditTrailLog();
+		auditTrailLog.setUsername("user");
+		t.setAuditTrailLog(auditTrailLog);
+
+		JsonWriter out = new JsonWriter(8);
+		t.writeJSON(out);
+		assertEquals(t.toJSON().toString(), new JSONObject(out.toString()).toString());
+		assertEquals(out.toString(), new String(out.toByteArray(), "UTF-8"));
+	}
 }
@@ -0,0 +1,172 @@
+package de.pseudonymisierung.mainzelliste.client;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.pool.PoolStats;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import de.pseudonymisierung.mainzelliste.client.MainzellisteConnection.RequestMethod;
+
+/**
+ * Test ApacheHttpTransport against a local Http server, which echoes the
+ * value of the header "X-Test" in the entity of its responses.
+ */
+public class ApacheHttpTransportTest {
+
+	private HttpServer server;
+	private URI uri;
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", exchange -> {
+			String header = exchange.getRequestHeaders().getFirst("X-Test");
+			byte[] entity = String.valueOf(header).getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(200, entity.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(entity);
+			}
+		});
+		server.start();
+		uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/");
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	private TransportRequest request() {
+		return new TransportRequest(RequestMethod.GET, uri, Collections.<String, String> emptyMap(), null);
+	}
+
+	/**
+	 * Asynchronous requests should use the settings of a caller-supplied Http
+	 * client, here a default header.
+	 */
+	@Test
+	public void testCallerClient() throws Exception {
+		try (CloseableHttpClient httpClient = HttpClients.custom()
+				.setDefaultHeaders(Collections.singletonList(new BasicHeader("X-Test", "sync")))
+				.build()) {
+			ApacheHttpTransport transport = new ApacheHttpTransport(httpClient);
+			assertEquals("sync", transport.execute(request()).getData());
+			assertEquals("Asynchronous request ignored the caller's client", "sync",
+					transport.executeAsync(request()).get(10, TimeUnit.SECONDS).getData());
+			transport.close();
+			// The caller's client is left open
+			httpClient.execute(new HttpGet(uri)).close();
+		}
+	}
+
+	/**
+	 * A caller-supplied non-blocking client should be used for asynchronous
+	 * requests and started if necessary.
+	 */
+	@Test
+	public void testCallerAsyncClient() throws Exception {
+		try (CloseableHttpClient httpClient = HttpClients.createDefault();
+				CloseableHttpAsyncClient asyncClient = HttpAsyncClients.custom()
+						.setDefaultHeaders(Collections.singletonList(new BasicHeader("X-Test", "async")))
+						.build()) {
+			ApacheHttpTransport transport = new ApacheHttpTransport(httpClient, asyncClient);
+			assertEquals("null", transport.execute(request()).getData());
+			assertEquals("async", transport.executeAsync(request()).get(10, TimeUnit.SECONDS).getData());
+			transport.close();
+			assertTrue("Caller's client was closed", asyncClient.isRunning());
+		}
+	}
+
+	/**
+	 * A closed transport should reject requests instead of creating new
+	 * clients.
+	 */
+	@Test
+	public void testClosed() throws Exception {
+		ApacheHttpTransport transport = new ApacheHttpTransport(new ConnectionPoolSettings());
+		assertEquals(200, transport.executeAsync(request()).get(10, TimeUnit.SECONDS).getStatusCode());
+		transport.close();
+		try {
+			transport.executeAsync(request());
+			fail("Closed transport accepted an asynchronous request");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			transport.execute(request());
+			fail("Closed transport accepted a request");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		transport.close();
+	}
+
+	/**
+	 * Responses beyond the maximum size should be rejected by asynchronous
+	 * requests as well.
+	 */
+	@Test
+	public void testMaxResponseSize() throws Exception {
+		try (ApacheHttpTransport transport = new ApacheHttpTransport(new ConnectionPoolSettings())) {
+			TransportRequest request = new TransportRequest(RequestMethod.GET, uri,
+					Collections.singletonMap("X-Test", "0123456789"), null, 0, false, 5);
+			try {
+				transport.executeAsync(request).get(10, TimeUnit.SECONDS);
+				fail("Response beyond maximum size was accepted");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof MainzellisteNetworkException);
+			}
+		}
+	}
+
+	/**
+	 * A connection with a managed pool should reuse connections and report
+	 * statistics of the pools for blocking and asynchronous requests; a
+	 * caller-supplied client has none.
+	 */
+	@Test
+	public void testConnectionPool() throws Exception {
+		ConnectionPoolSettings settings = new ConnectionPoolSettings().setMaxTotal(3).setMaxPerRoute(2);
+		MainzellisteConnection connection = new MainzellisteConnection(uri.toString(), "key", settings);
+		try {
+			for (int i = 0; i < 5; i++)
+				assertEquals(200, connection.doRequest(RequestMethod.GET, uri.toString(), null).getStatusCode());
+			PoolStats stats = connection.getPoolStats();
+			assertEquals(3, stats.getMax());
+			assertEquals(0, stats.getLeased());
+			assertEquals("Connection was not reused", 1, stats.getAvailable());
+
+			// Asynchronous requests use a second pool with the same limits
+			for (int i = 0; i < 5; i++)
+				assertEquals(200, connection.doRequestAsync(RequestMethod.GET, uri.toString(), null)
+						.get(10, TimeUnit.SECONDS).getStatusCode());
+			stats = connection.getPoolStats();
+			assertEquals(6, stats.getMax());
+			assertEquals("Connection was not reused", 2, stats.getLeased() + stats.getAvailable());
+		} finally {
+			connection.close();
+		}
+		try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+			assertNull(new MainzellisteConnection(uri.toString(), "key", httpClient).getPoolStats());
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package de.pseudonymisierung.mainzelliste.client;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test the limits of concurrent requests per operation type (Bulkhead).
+ */
+public class BulkheadTest extends AbstractLoopbackTest {
+
+	@Test
+	public void testBulkhead() throws Exception {
+		CountDownLatch entered = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		MainzellisteConnection blocking = connect(request -> {
+			if (request.getUri().getPath().endsWith("/sessions/slow")) {
+				entered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new MainzellisteNetworkException(e);
+				}
+			}
+			return mainzelliste.handle(request);
+		});
+		blocking.setMaxConcurrentCalls(MainzellisteConnection.Operation.SESSION, 1, 0);
+		assertEquals(1, blocking.getMaxConcurrentCalls(MainzellisteConnection.Operation.SESSION));
+		assertEquals(0, blocking.getMaxConcurrentCalls(MainzellisteConnection.Operation.TOKEN));
+		Session s = blocking.createSession();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<MainzellisteResponse> slow = executor.submit(
+					() -> blocking.doRequest(MainzellisteConnection.RequestMethod.GET, "sessions/slow", null));
+			entered.await();
+			try {
+				blocking.doRequest(MainzellisteConnection.RequestMethod.GET, "sessions/" + s.getId(), null);
+				fail("Bulkhead did not limit session requests");
+			} catch (BulkheadFullException e) {
+				assertEquals(MainzellisteConnection.Operation.SESSION, e.getOperation());
+			}
+			assertTrue(blocking.createSessionAsync().isCompletedExceptionally());
+			// Other operation types are not affected
+			assertNotNull(s.getToken(new AddPatientToken()));
+			release.countDown();
+			assertEquals(404, slow.get(10, TimeUnit.SECONDS).getStatusCode());
+			assertEquals(s.getId(), blocking.readSession(s.getId()).getId());
+		} finally {
+			release.countDown();
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Asynchronous requests should wait for a permit up to the maximum wait
+	 * time, so that a fan-out wider than the bulkhead completes.
+	 */
+	@Test
+	public void testAsyncWait() throws Exception {
+		connection.setMaxConcurrentCalls(MainzellisteConnection.Operation.TOKEN, 2, 10000);
+		Session s = connection.createSession();
+		s.setMaxConcurrentRequests(8);
+		List<ID> ids = new ArrayList<ID>();
+		for (int i = 0; i < 20; i++)
+			ids.add(new ID("pid", "ID" + i));
+		BatchResult<ID, String> result = s.getTempIds(ids);
+		assertTrue(result.getFailures().toString(), result.isComplete());
+		assertEquals(20, result.size());
+	}
+
+	/**
+	 * A waiting asynchronous request should fail once the maximum wait time
+	 * has passed.
+	 */
+	@Test
+	public void testAsyncTimeout() throws Exception {
+		CountDownLatch entered = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		MainzellisteConnection blocking = connect(request -> {
+			if (request.getUri().getPath().endsWith("/sessions/slow")) {
+				entered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new MainzellisteNetworkException(e);
+				}
+			}
+			return mainzelliste.handle(request);
+		});
+		blocking.setMaxConcurrentCalls(MainzellisteConnection.Operation.SESSION, 1, 100);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<MainzellisteResponse> slow = executor.submit(
+					() -> blocking.doRequest(MainzellisteConnection.RequestMethod.GET, "sessions/slow", null));
+			entered.await();
+			CompletableFuture<Session> queued = blocking.createSessionAsync();
+			assertFalse("Asynchronous request did not wait", queued.isDone());
+			try {
+				queued.get(10, TimeUnit.SECONDS);
+				fail("Waiting request did not time out");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof BulkheadFullException);
+			}
+			release.countDown();
+			slow.get(10, TimeUnit.SECONDS);
+			// The permit is free again
+			assertNotNull(blocking.createSessionAsync().get(10, TimeUnit.SECONDS));
+		} finally {
+			release.countDown();
+			executor.shutdown();
+		}
+	}
+}
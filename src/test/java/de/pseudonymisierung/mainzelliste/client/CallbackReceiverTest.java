@@ -0,0 +1,78 @@
+package de.pseudonymisierung.mainzelliste.client;
+
+import static org.junit.Assert.*;
+
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+/**
+ * Test behavior of class CallbackReceiver with callbacks from an in-memory
+ * Mainzelliste.
+ */
+public class CallbackReceiverTest extends AbstractLoopbackTest {
+
+	@Test
+	public void testCallbackReceiver() throws Exception {
+		try (CallbackReceiver receiver = new CallbackReceiver(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+				null, ForkJoinPool.commonPool())) {
+			Session s = connection.createSession();
+			List<String> tokenIds = new ArrayList<String>();
+			List<CompletableFuture<PatientCallback>> callbacks = new ArrayList<CompletableFuture<PatientCallback>>();
+			for (int i = 0; i < 20; i++) {
+				String tokenId = s.getToken(new AddPatientToken().addField("vorname", "V" + i)
+						.callback(receiver.getCallbackUrl()));
+				tokenIds.add(tokenId);
+				callbacks.add(receiver.register(tokenId, 1, TimeUnit.MINUTES));
+			}
+			assertEquals(20, receiver.getPendingCount());
+			List<List<ID>> created = new ArrayList<List<ID>>();
+			for (String tokenId : tokenIds)
+				created.add(connection.addPatient(tokenId));
+			for (int i = 0; i < 20; i++) {
+				PatientCallback callback = callbacks.get(i).get(10, TimeUnit.SECONDS);
+				assertEquals(tokenIds.get(i), callback.getTokenId());
+				assertEquals(created.get(i), callback.getPatient().getIds());
+			}
+			assertEquals(0, receiver.getPendingCount());
+
+			// Callback received before the token is registered
+			String early = s.getToken(new AddPatientToken().callback(receiver.getCallbackUrl()));
+			List<ID> ids = connection.addPatient(early);
+			assertEquals(ids, receiver.register(early).get(10, TimeUnit.SECONDS).getPatient().getIds());
+
+			// Timeout
+			try {
+				receiver.register(UUID.randomUUID().toString(), 1, TimeUnit.MILLISECONDS).get(10, TimeUnit.SECONDS);
+				fail("Registration did not time out");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof TimeoutException);
+			}
+
+			// Malformed requests
+			HttpURLConnection get = (HttpURLConnection) receiver.getCallbackUrl().openConnection();
+			assertEquals(405, get.getResponseCode());
+			get.disconnect();
+			HttpURLConnection post = (HttpURLConnection) receiver.getCallbackUrl().openConnection();
+			post.setRequestMethod("POST");
+			post.setDoOutput(true);
+			post.getOutputStream().write("{\"id\": 1}".getBytes("UTF-8"));
+			assertEquals(400, post.getResponseCode());
+			post.disconnect();
+
+			CompletableFuture<PatientCallback> pending = receiver.register(UUID.randomUUID().toString());
+			receiver.close();
+			assertTrue(pending.isCompletedExceptionally());
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package de.pseudonymisierung.mainzelliste.client;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Test behavior of class CircuitBreaker on a connection.
+ */
+public class CircuitBreakerTest extends AbstractLoopbackTest {
+
+	@Test
+	public void testCircuitBreaker() throws Exception {
+		AtomicInteger failing = new AtomicInteger();
+		AtomicInteger delay = new AtomicInteger();
+		MainzellisteConnection flaky = connect(request -> {
+			try {
+				Thread.sleep(delay.get());
+			} catch (InterruptedException e) {
+				throw new MainzellisteNetworkException(e);
+			}
+			if (failing.getAndDecrement() > 0)
+				return new MainzellisteResponse(500, "Internal Server Error");
+			return mainzelliste.handle(request);
+		});
+		assertNull(flaky.getNodes().get(0).getCircuitBreaker());
+		flaky.setCircuitBreakerSettings(new CircuitBreakerSettings().setWindowSize(10).setMinimumCalls(4)
+				.setOpenDuration(50).setHalfOpenCalls(2));
+		CircuitBreaker breaker = flaky.getNodes().get(0).getCircuitBreaker();
+		Session s = flaky.createSession();
+
+		// Opens on failure rate
+		failing.set(3);
+		for (int i = 0; i < 3; i++)
+			assertEquals(500, flaky.doRequest(MainzellisteConnection.RequestMethod.GET, "sessions/" + s.getId(), null)
+					.getStatusCode());
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		try {
+			s.getToken(new AddPatientToken());
+			fail("Request was made with open circuit breaker");
+		} catch (CircuitOpenException e) {
+			assertEquals(1, breaker.getRejectedCount());
+		}
+		assertTrue(flaky.createSessionAsync().isCompletedExceptionally());
+
+		// Closes after successful probes
+		Thread.sleep(100);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertNotNull(s.getToken(new AddPatientToken()));
+		assertNotNull(s.getToken(new AddPatientToken()));
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+		// Opens on slow calls
+		flaky.setCircuitBreakerSettings(new CircuitBreakerSettings().setMinimumCalls(2).setSlowCallDuration(1));
+		delay.set(5);
+		flaky.createSession();
+		flaky.createSession();
+		assertEquals(CircuitBreaker.State.OPEN, flaky.getNodes().get(0).getCircuitBreaker().getState());
+		assertEquals(1, flaky.getNodes().get(0).getCircuitBreaker().getOpenCount());
+	}
+}
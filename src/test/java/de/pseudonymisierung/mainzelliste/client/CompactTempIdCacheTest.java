@@ -0,0 +1,65 @@
+package de.pseudonymisierung.mainzelliste.client;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.junit.Test;
+
+/**
+ * Test behavior of class CompactTempIdCache.
+ */
+public class CompactTempIdCacheTest {
+
+	/**
+	 * The compact cache should resolve temp-ids in both directions, keep
+	 * removed temp-ids resolvable and stay small per entry.
+	 */
+	@Test
+	public void testCompactTempIdCache() throws Exception {
+		CompactTempIdCache cache = new CompactTempIdCache();
+		TempIdKey.Shape shape = TempIdKey.Shape.of(Arrays.asList("vorname"), Arrays.asList("pid"), 1);
+		TempIdKey.Shape other = TempIdKey.Shape.of(Arrays.<String>asList(), Arrays.asList("pid"), 1);
+		int n = 10000;
+		String[] tempIds = new String[n];
+		for (int i = 0; i < n; i++) {
+			tempIds[i] = UUID.randomUUID().toString();
+			cache.put(new TempIdKey(new ID("pid", "ID" + i), shape), tempIds[i], true);
+		}
+		cache.put(new TempIdKey(new ID("pid", "ID0"), other), "other", true);
+		cache.put(new TempIdKey(new ID("pid", "äöü"), shape), "umlaut", true);
+		assertEquals(n + 2, cache.size());
+		assertEquals(n + 1, cache.ids().size());
+		assertEquals(n + 2, cache.tempIds().size());
+		for (int i = 0; i < n; i += 97) {
+			assertEquals(new ID("pid", "ID" + i), cache.getId(tempIds[i]));
+			assertEquals(tempIds[i], cache.get(new TempIdKey(new ID("pid", "ID" + i), shape), true));
+		}
+		assertEquals(new ID("pid", "äöü"), cache.getId("umlaut"));
+		assertEquals("umlaut", cache.get(new TempIdKey(new ID("pid", "äöü"), shape), true));
+		assertEquals(2, cache.tempIdsOf(new ID("pid", "ID0")).size());
+		assertNull(cache.get(new TempIdKey(new ID("pid", "ID" + n), shape), true));
+		assertNull(cache.getId("unknown"));
+
+		// Removed temp-ids are not handed out, but can still be resolved
+		cache.remove(tempIds[1]);
+		assertNull(cache.get(new TempIdKey(new ID("pid", "ID1"), shape), true));
+		assertEquals(new ID("pid", "ID1"), cache.getId(tempIds[1]));
+		assertFalse(cache.ids().contains(new ID("pid", "ID1")));
+
+		// Replacing temp-ids frees their space on compaction
+		for (int i = 0; i < n; i++)
+			cache.put(new TempIdKey(new ID("pid", "ID" + i), shape), "new" + i, true);
+		assertNull(cache.getId(tempIds[2]));
+		assertEquals(new ID("pid", "ID2"), cache.getId("new2"));
+		assertEquals("new2", cache.get(new TempIdKey(new ID("pid", "ID2"), shape), true));
+		assertEquals(n + 2, cache.size());
+		cache.cleanUp();
+		// The removed temp-id is kept for resolution
+		assertEquals(n + 3, cache.tempIds().size());
+		assertEquals(new ID("pid", "ID1"), cache.getId(tempIds[1]));
+		assertEquals(new ID("pid", "ID" + (n - 1)), cache.getId("new" + (n - 1)));
+		assertTrue("Too much memory per entry: " + cache.getBytesPerEntry(), cache.getBytesPerEntry() < 150);
+	}
+}
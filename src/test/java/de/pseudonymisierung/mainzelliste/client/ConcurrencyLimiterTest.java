@@ -0,0 +1,139 @@
+package de.pseudonymisierung.mainzelliste.client;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Test behavior of class ConcurrencyLimiter on a connection.
+ */
+public class ConcurrencyLimiterTest extends AbstractLoopbackTest {
+
+	@Test
+	public void testConcurrencyLimit() throws Exception {
+		AtomicInteger failing = new AtomicInteger();
+		CountDownLatch entered = new CountDownLatch(2);
+		CountDownLatch release = new CountDownLatch(1);
+		MainzellisteConnection limited = connect(request -> {
+			if (request.getUri().getPath().endsWith("/sessions/slow")) {
+				entered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new MainzellisteNetworkException(e);
+				}
+			}
+			if (failing.getAndDecrement() > 0)
+				return new MainzellisteResponse(500, "Internal Server Error");
+			return mainzelliste.handle(request);
+		});
+		limited.setRetrySettings(new RetrySettings().setMaxAttempts(1));
+		limited.setConcurrencyLimitSettings(new ConcurrencyLimitSettings().setInitialLimit(1).setMaxLimit(4)
+				.setMaxQueueSize(1).setMaxWaitTime(100));
+		ConcurrencyLimiter limiter = limited.getConcurrencyLimiter();
+		assertEquals(1, limiter.getLimit());
+
+		// Successful requests that use the limit raise it, failures lower it
+		limited.createSession();
+		assertEquals(2, limiter.getLimit());
+		failing.set(1);
+		try {
+			limited.createSession();
+			fail("Failed request returned a session");
+		} catch (MainzellisteNetworkException e) {
+			assertEquals(1, limiter.getLimit());
+		}
+		limited.createSession();
+		assertEquals(2, limiter.getLimit());
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			List<Future<MainzellisteResponse>> slow = new ArrayList<Future<MainzellisteResponse>>();
+			for (int i = 0; i < 2; i++)
+				slow.add(executor.submit(
+						() -> limited.doRequest(MainzellisteConnection.RequestMethod.GET, "sessions/slow", null)));
+			entered.await();
+			assertEquals(2, limiter.getInFlight());
+
+			// Asynchronous requests wait without blocking
+			CompletableFuture<Session> queued = limited.createSessionAsync();
+			assertFalse(queued.isDone());
+			assertEquals(1, limiter.getQueueDepth());
+			try {
+				limited.createSession();
+				fail("Request was accepted with full queue");
+			} catch (ConcurrencyLimitException e) {
+				assertEquals(1, limiter.getRejectedCount());
+			}
+			// Waiting times out
+			try {
+				queued.get(10, TimeUnit.SECONDS);
+				fail("Queued request did not time out");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof ConcurrencyLimitException);
+			}
+			assertEquals(0, limiter.getQueueDepth());
+			CompletableFuture<Session> started = limited.createSessionAsync();
+			release.countDown();
+			for (Future<MainzellisteResponse> response : slow)
+				assertEquals(404, response.get(10, TimeUnit.SECONDS).getStatusCode());
+			assertNotNull(started.get(10, TimeUnit.SECONDS));
+			assertEquals(0, limiter.getInFlight());
+		} finally {
+			release.countDown();
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * The limit should grow by one per window of successful requests, not by
+	 * one per request.
+	 */
+	@Test
+	public void testAdditiveIncrease() throws Exception {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(new ConcurrencyLimitSettings().setInitialLimit(10));
+		// A latency well above pauses of the test thread (e.g. class loading),
+		// which would otherwise count as overload
+		long latency = TimeUnit.MILLISECONDS.toNanos(50);
+		for (int window = 1; window <= 3; window++) {
+			for (int i = 0; i < 10; i++)
+				limiter.acquire();
+			for (int i = 0; i < 10; i++)
+				limiter.release(System.nanoTime() - latency, false);
+			assertEquals(window < 3 ? 10 : 11, limiter.getLimit());
+		}
+	}
+
+	/**
+	 * Lasting slow requests should count as overload until the baseline has
+	 * followed them, regardless of how many requests came before.
+	 */
+	@Test
+	public void testBaseline() throws Exception {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(new ConcurrencyLimitSettings().setInitialLimit(1)
+				.setMaxLimit(1));
+		long fast = TimeUnit.MILLISECONDS.toNanos(2);
+		long slow = TimeUnit.MILLISECONDS.toNanos(20);
+		for (int i = 0; i < 900; i++) {
+			limiter.acquire();
+			limiter.release(System.nanoTime() - fast, false);
+		}
+		limiter.getSettings().setMaxLimit(10);
+		for (int i = 0; i < 300; i++) {
+			limiter.acquire();
+			limiter.release(System.nanoTime() - slow, false);
+		}
+		assertEquals(1, limiter.getLimit());
+	}
+}
@@ -0,0 +1,46 @@
+package de.pseudonymisierung.mainzelliste.client;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Test behavior of class IDFactory.
+ */
+public class IDFactoryTest extends AbstractLoopbackTest {
+
+	/**
+	 * The ID registry should return one instance per patient and reuse it for
+	 * temp-id lookups.
+	 */
+	@Test
+	public void testIdFactory() throws Exception {
+		IDFactory factory = new IDFactory(2);
+		ID id = factory.get(new String("pid"), "1");
+		assertSame(id, factory.get("pid", "1"));
+		assertSame(id, factory.get(new ID("pid", "1")));
+		assertSame(id.getIdType(), factory.get(new String("pid"), "2").getIdType());
+		assertEquals(2, factory.size());
+		ID unregistered = factory.get("pid", "3");
+		assertNotSame("Full registry registered ID", unregistered, factory.get("pid", "3"));
+		assertEquals(2, factory.size());
+		assertEquals(2, factory.getHitCount());
+		assertEquals(4, factory.getMissCount());
+		factory.clear();
+		assertEquals(0, factory.size());
+
+		assertEquals(new ID("pid", "1").hashCode(), id.hashCode());
+		assertNotEquals(new ID("ab", "c"), new ID("a", "bc"));
+		JsonWriter out = new JsonWriter();
+		out.beginArray();
+		id.writeJSON(out);
+		id.writeJSON(out);
+		out.endArray();
+		assertEquals("[{\"idString\":\"1\",\"idType\":\"pid\"},{\"idString\":\"1\",\"idType\":\"pid\"}]", out.toString());
+
+		Session s = connection.createSession();
+		String tempId = s.getTempId(new ID("pid", "0003Y0WZ"));
+		assertSame(s.getId(tempId), s.getId(tempId));
+		assertSame(s.getId(tempId), connection.getIdFactory().get("pid", "0003Y0WZ"));
+	}
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal in-memory emulation of the session and token resources of the
+ * Mainzelliste REST interface, to be used with a {@link LoopbackTransport}.
+ * Sessions and tokens are created and deleted as on a real instance, but
+ * tokens are not checked against the configuration. "addPatient" tokens
+ * create patients with the fields and external ids of the token (no record
+ * linkage is done) and "pid"s numbered consecutively. "readPatients" tokens
+ * read these patients or those added by {@link #addPatient(Patient)},
+ * "editPatient" tokens change them. If an "addPatient" token has a callback
+ * URL, the callback request is made before the patient is returned.
+ * Supported resources:
+ * <ul>
+ * <li>POST sessions, GET and DELETE sessions/{sid}
+ * <li>POST and GET sessions/{sid}/tokens, DELETE sessions/{sid}/tokens/{tid}
+ * <li>GET validate/token?tokenId={tid}
+ * <li>POST and GET patients?tokenId={tid}
+ * <li>PUT patients/tokenId/{tid}
+ * </ul>
+ */
+public class InMemoryMainzelliste implements LoopbackTransport.Handler {
+
+    private static final Pattern SESSIONS = Pattern.compile(".*/sessions/?");
+    private static final Pattern SESSION = Pattern.compile(".*/sessions/([^/]+)/?");
+    private static final Pattern TOKENS = Pattern.compile(".*/sessions/([^/]+)/tokens/?");
+    private static final Pattern TOKEN = Pattern.compile(".*/sessions/([^/]+)/tokens/([^/]+)/?");
+    private static final Pattern VALIDATE_TOKEN = Pattern.compile(".*/validate/token/?");
+    private static final Pattern PATIENTS = Pattern.compile(".*/patients/?");
+    private static final Pattern PATIENT_BY_TOKEN = Pattern.compile(".*/patients/tokenId/([^/]+)/?");
+
+    /**
+     * Existing sessions. Map keys are session ids, values the tokens of the
+     * respective session, mapped by token id.
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, Map<String, Object>>> sessions = new ConcurrentHashMap<String, ConcurrentMap<String, Map<String, Object>>>();
+
+    /**
+     * Patients by each of their identifiers.
+     */
+    private final ConcurrentMap<ID, Patient> patients = new ConcurrentHashMap<ID, Patient>();
+
+    /**
+     * Number of the last created "pid".
+     */
+    private final AtomicLong lastPid = new AtomicLong();
+
+    @Override
+    public MainzellisteResponse handle(TransportRequest request) throws MainzellisteNetworkException {
+        String path = request.getUri().getPath();
+        try {
+            Matcher m;
+            switch (request.getMethod()) {
+            case GET:
+                if ((m = SESSION.matcher(path)).matches())
+                    return readSession(m.group(1));
+                if ((m = TOKENS.matcher(path)).matches())
+                    return readTokens(m.group(1));
+                if (VALIDATE_TOKEN.matcher(path).matches())
+                    return validateToken(request.getUri().getQuery());
+                if (PATIENTS.matcher(path).matches())
+                    return readPatients(request.getUri().getQuery());
+                break;
+            case POST:
+                if (SESSIONS.matcher(path).matches())
+                    return createSession();
+                if ((m = TOKENS.matcher(path)).matches())
+                    return createToken(m.group(1), request.getBodyAsString());
+                if (PATIENTS.matcher(path).matches())
+                    return createPatient(request.getUri().getQuery());
+                break;
+            case PUT:
+                if ((m = PATIENT_BY_TOKEN.matcher(path)).matches())
+                    return editPatient(m.group(1), request.getBodyAsString());
+                break;
+            case DELETE:
+                if ((m = SESSION.matcher(path)).matches())
+                    return deleteSession(m.group(1));
+                if ((m = TOKEN.matcher(path)).matches())
+                    return deleteToken(m.group(1), m.group(2));
+                break;
+            default:
+                break;
+            }
+        } catch (MainzellisteNetworkException e) { // malformed request entity
+            return new MainzellisteResponse(400, e.getMessage());
+        }
+        return new MainzellisteResponse(404, "Resource not found: " + request);
+    }
+
+    private MainzellisteResponse createSession() {
+        String sessionId = UUID.randomUUID().toString();
+        sessions.put(sessionId, new ConcurrentHashMap<String, Map<String, Object>>());
+        return new MainzellisteResponse(201,
+                new JsonWriter().beginObject().name("sessionId").value(sessionId).endObject().toString());
+    }
+
+    private MainzellisteResponse readSession(String sessionId) {
+        if (!sessions.containsKey(sessionId))
+            return sessionNotFound(sessionId);
+        return new MainzellisteResponse(200,
+                new JsonWriter().beginObject().name("sessionId").value(sessionId).endObject().toString());
+    }
+
+    private MainzellisteResponse deleteSession(String sessionId) {
+        sessions.remove(sessionId);
+        return new MainzellisteResponse(204, null);
+    }
+
+    private MainzellisteResponse createToken(String sessionId, String data) throws MainzellisteNetworkException {
+        Map<String, Map<String, Object>> tokens = sessions.get(sessionId);
+        if (tokens == null)
+            return sessionNotFound(sessionId);
+        Object decoded = new JsonReader(data).readValue();
+        if (!(decoded instanceof Map))
+            return new MainzellisteResponse(400, "Token data is not an object");
+        Map<String, Object> token = new LinkedHashMap<String, Object>();
+        for (Map.Entry<?, ?> member : ((Map<?, ?>) decoded).entrySet())
+            token.put(String.valueOf(member.getKey()), member.getValue());
+        String tokenId = UUID.randomUUID().toString();
+        token.put("id", tokenId);
+        token.put("tokenId", tokenId);
+        tokens.put(tokenId, token);
+        return new MainzellisteResponse(201, new JsonWriter().value(token).toString());
+    }
+
+    private MainzellisteResponse readTokens(String sessionId) {
+        Map<String, Map<String, Object>> tokens = sessions.get(sessionId);
+        if (tokens == null)
+            return sessionNotFound(sessionId);
+        return new MainzellisteResponse(200, new JsonWriter().value(tokens.values()).toString());
+    }
+
+    private MainzellisteResponse deleteToken(String sessionId, String tokenId) {
+        Map<String, Map<String, Object>> tokens = sessions.get(sessionId);
+        if (tokens == null)
+            return sessionNotFound(sessionId);
+        tokens.remove(tokenId);
+        return new MainzellisteResponse(204, null);
+    }
+
+    private MainzellisteResponse validateToken(String query) {
+        String tokenId = tokenId(query);
+        for (Map<String, Map<String, Object>> tokens : sessions.values()) {
+            if (tokenId != null && tokens.containsKey(tokenId))
+                return new MainzellisteResponse(200, null);
+        }
+        return new MainzellisteResponse(404, "Token " + tokenId + " not found");
+    }
+
+    private MainzellisteResponse readPatients(String query) {
+        String tokenId = tokenId(query);
+        Map<String, Object> token = null;
+        for (Map<String, Map<String, Object>> tokens : sessions.values()) {
+            if (tokenId != null && (token = tokens.get(tokenId)) != null) {
+                // Count the use and invalidate the token when exhausted
+                synchronized (token) {
+                    Object allowedUses = token.get("allowedUses");
+                    long remaining = (allowedUses instanceof Number ? ((Number) allowedUses).longValue() : 1) - 1;
+                    token.put("allowedUses", remaining);
+                    if (remaining <= 0)
+                        tokens.remove(tokenId);
+                }
+                break;
+            }
+        }
+        if (token == null || !"readPatients".equals(token.get("type")))
+            return new MainzellisteResponse(401, "Please supply a valid 'readPatients' token.");
+        Map<?, ?> data = token.get("data") instanceof Map ? (Map<?, ?>) token.get("data")
+                : Collections.emptyMap();
+        Collection<?> resultFields = list(data.get("resultFields"));
+        Collection<?> resultIds = list(data.get("resultIds"));
+        JsonWriter out = new JsonWriter().beginArray();
+        for (Object searchId : list(data.get("searchIds"))) {
+            if (!(searchId instanceof Map))
+                continue;
+            Object idType = ((Map<?, ?>) searchId).get("idType");
+            Object idString = ((Map<?, ?>) searchId).get("idString");
+            Patient patient = idType == null || idString == null ? null
+                    : patients.get(new ID(idType.toString(), idString.toString()));
+            // Unknown patients are left out
+            if (patient == null)
+                continue;
+            out.beginObject().name("fields").beginObject();
+            for (Map.Entry<String, String> field : patient.getFields().entrySet()) {
+                if (resultFields.contains(field.getKey()))
+                    out.name(field.getKey()).value(field.getValue());
+            }
+            out.endObject().name("ids").beginArray();
+            for (ID id : patient.getIds()) {
+                if (resultIds.contains(id.getIdType()))
+                    id.writeJSON(out);
+            }
+            out.endArray().endObject();
+        }
+        return new MainzellisteResponse(200, out.endArray().toString());
+    }
+
+    private MainzellisteResponse createPatient(String query) {
+        String tokenId = tokenId(query);
+        Map<String, Object> token = null;
+        for (Map<String, Map<String, Object>> tokens : sessions.values()) {
+            if (tokenId != null && (token = tokens.get(tokenId)) != null) {
+                if ("addPatient".equals(token.get("type")))
+                    tokens.remove(tokenId);
+                break;
+            }
+        }
+        if (token == null || !"addPatient".equals(token.get("type")))
+            return new MainzellisteResponse(401, "Please supply a valid 'addPatient' token.");
+        Map<?, ?> data = token.get("data") instanceof Map ? (Map<?, ?>) token.get("data")
+                : Collections.emptyMap();
+        Map<String, String> fields = new LinkedHashMap<String, String>();
+        if (data.get("fields") instanceof Map) {
+            for (Map.Entry<?, ?> field : ((Map<?, ?>) data.get("fields")).entrySet())
+                fields.put(String.valueOf(field.getKey()), String.valueOf(field.getValue()));
+        }
+        List<ID> ids = new ArrayList<ID>();
+        Collection<?> idTypes = list(data.get("idTypes"));
+        if (idTypes.isEmpty())
+            idTypes = Collections.singletonList("pid");
+        for (Object idType : idTypes)
+            ids.add(new ID(String.valueOf(idType), String.format("P%08d", lastPid.incrementAndGet())));
+        if (data.get("ids") instanceof Map) {
+            for (Map.Entry<?, ?> id : ((Map<?, ?>) data.get("ids")).entrySet())
+                ids.add(new ID(String.valueOf(id.getKey()), String.valueOf(id.getValue())));
+        }
+        addPatient(new Patient(fields, ids));
+        if (data.get("callback") instanceof String) {
+            JsonWriter callback = new JsonWriter().beginObject().name("tokenId").value(tokenId).name("ids");
+            writeIds(callback, ids);
+            if (!callback(data.get("callback").toString(), callback.endObject().toByteArray()))
+                return new MainzellisteResponse(500, "Request to callback failed");
+        }
+        return new MainzellisteResponse(201, writeIds(new JsonWriter(), ids).toString());
+    }
+
+    private static JsonWriter writeIds(JsonWriter out, List<ID> ids) {
+        out.beginArray();
+        for (ID id : ids) {
+            out.beginObject().name("idType").value(id.getIdType()).name("idString").value(id.getIdString())
+                    .name("tentative").value(false).endObject();
+        }
+        return out.endArray();
+    }
+
+    private static boolean callback(String url, byte[] data) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            try {
+                connection.setRequestMethod("POST");
+                connection.setRequestProperty("Content-Type", "application/json");
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(data.length);
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(data);
+                }
+                return connection.getResponseCode() / 100 == 2;
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private MainzellisteResponse editPatient(String tokenId, String data) throws MainzellisteNetworkException {
+        Map<String, Object> token = null;
+        for (Map<String, Map<String, Object>> tokens : sessions.values()) {
+            if ((token = tokens.get(tokenId)) != null) {
+                if ("editPatient".equals(token.get("type")))
+                    tokens.remove(tokenId);
+                break;
+            }
+        }
+        if (token == null || !"editPatient".equals(token.get("type")))
+            return new MainzellisteResponse(401, "Please supply a valid 'editPatient' token.");
+        Object changes = new JsonReader(data).readValue();
+        if (!(changes instanceof Map))
+            return new MainzellisteResponse(400, "Patient data is not an object");
+        Map<?, ?> tokenData = token.get("data") instanceof Map ? (Map<?, ?>) token.get("data")
+                : Collections.emptyMap();
+        Collection<?> fieldsToEdit = list(tokenData.get("fields"));
+        Collection<?> idsToEdit = list(tokenData.get("ids"));
+        Object patientId = tokenData.get("patientId");
+        Object idType = patientId instanceof Map ? ((Map<?, ?>) patientId).get("idType") : null;
+        Object idString = patientId instanceof Map ? ((Map<?, ?>) patientId).get("idString") : null;
+        synchronized (patients) {
+            Patient patient = idType == null || idString == null ? null
+                    : patients.get(new ID(idType.toString(), idString.toString()));
+            if (patient == null)
+                return new MainzellisteResponse(404, "Patient not found");
+            Map<String, String> fields = new LinkedHashMap<String, String>(patient.getFields());
+            Map<String, ID> ids = new LinkedHashMap<String, ID>();
+            for (ID id : patient.getIds())
+                ids.put(id.getIdType(), id);
+            for (Map.Entry<?, ?> change : ((Map<?, ?>) changes).entrySet()) {
+                String name = String.valueOf(change.getKey());
+                String value = change.getValue() == null ? null : String.valueOf(change.getValue());
+                if (fieldsToEdit.contains(name)) {
+                    if (value == null)
+                        fields.remove(name);
+                    else
+                        fields.put(name, value);
+                } else if (idsToEdit.contains(name) && value != null) {
+                    ids.put(name, new ID(name, value));
+                } else {
+                    return new MainzellisteResponse(400, "Editing " + name + " is not permitted by the token.");
+                }
+            }
+            for (ID id : patient.getIds())
+                patients.remove(id, patient);
+            addPatient(new Patient(fields, new ArrayList<ID>(ids.values())));
+        }
+        return new MainzellisteResponse(204, null);
+    }
+
+    private static String tokenId(String query) {
+        return query != null && query.startsWith("tokenId=") ? query.substring("tokenId=".length()) : null;
+    }
+
+    private static Collection<?> list(Object value) {
+        return value instanceof List ? (List<?>) value : Collections.emptyList();
+    }
+
+    private static MainzellisteResponse sessionNotFound(String sessionId) {
+        return new MainzellisteResponse(404, "Session " + sessionId + " not found");
+    }
+
+    /**
+     * Add a patient that can be read with "readPatients" tokens.
+     * 
+     * @param patient
+     *            The patient, with its IDAT and all of its identifiers.
+     */
+    public void addPatient(Patient patient) {
+        for (ID id : patient.getIds())
+            patients.put(id, patient);
+    }
+
+    /**
+     * Get a patient by one of its identifiers.
+     * 
+     * @param id
+     *            An identifier of the patient.
+     * @return The patient, or null if no patient has this identifier.
+     */
+    public Patient getPatient(ID id) {
+        return patients.get(id);
+    }
+
+    /**
+     * Get the number of existing sessions.
+     * 
+     * @return The number of sessions that have been created and not deleted.
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Get the number of tokens of a session.
+     * 
+     * @param sessionId
+     *            A session id.
+     * @return The number of tokens of the session, or 0 if the session does
+     *         not exist.
+     */
+    public int getTokenCount(String sessionId) {
+        Map<String, Map<String, Object>> tokens = sessions.get(sessionId);
+        return tokens == null ? 0 : tokens.size();
+    }
+}
@@ -0,0 +1,38 @@
+package de.pseudonymisierung.mainzelliste.client;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Test the JsonCodec implementations.
+ */
+public class JsonCodecTest extends AbstractLoopbackTest {
+
+	/**
+	 * Sessions should work with both the streaming and the Jettison codec, and
+	 * both should encode tokens to the same JSON.
+	 */
+	@Test
+	public void testJsonCodecs() throws Exception {
+		ReadPatientsToken token = new ReadPatientsToken().addSearchId(new ID("pid", "0003Y0WZ"))
+				.addResultField("vorname").addResultId("pid");
+		JsonWriter streamed = new JsonWriter();
+		new StreamingJsonCodec().encode(token, streamed);
+		JsonWriter jettison = new JsonWriter();
+		new JettisonJsonCodec().encode(token, jettison);
+		assertEquals(new JsonReader(jettison.toString()).readValue(), new JsonReader(streamed.toString()).readValue());
+
+		for (JsonCodec codec : Arrays.asList(new StreamingJsonCodec(), new JettisonJsonCodec())) {
+			connection.setJsonCodec(codec);
+			Session s = connection.createSession();
+			ID id = new ID("pid", "0003Y0WZ");
+			String tempId = s.getTempId(id, 1, Arrays.asList("vorname"), Arrays.asList("pid"));
+			Session restored = connection.readSession(s.getId());
+			assertEquals(id, restored.getId(tempId));
+			assertEquals(tempId, restored.getTempId(id, 1, Arrays.asList("vorname"), Arrays.asList("pid")));
+		}
+	}
+}
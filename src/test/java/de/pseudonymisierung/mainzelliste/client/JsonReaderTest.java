@@ -0,0 +1,58 @@
+package de.pseudonymisierung.mainzelliste.client;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+/**
+ * Test behavior of class JsonReader.
+ */
+public class JsonReaderTest {
+
+	/**
+	 * A JsonReader over a Reader should parse values that span buffer
+	 * boundaries.
+	 */
+	@Test
+	public void testJsonReaderStream() throws Exception {
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < 2000; i++) {
+			if (i > 0)
+				json.append(", ");
+			json.append("{\"s\": \"value \\\"").append(i).append("\\\" \\u00e4\", \"n\": ").append(i * 1000003L)
+					.append(", \"b\": true, \"x\": null, \"skip\": [\"a\\\\\", {\"y\": 1.5e3}]}");
+		}
+		json.append("]");
+		// Return at most 7 characters per read to create many boundaries
+		Reader reader = new StringReader(json.toString()) {
+			@Override
+			public int read(char[] cbuf, int off, int len) throws IOException {
+				return super.read(cbuf, off, Math.min(len, 7));
+			}
+		};
+		JsonReader in = new JsonReader(reader);
+		in.beginArray();
+		int i = 0;
+		while (in.hasNext()) {
+			in.beginObject();
+			assertEquals("s", in.nextName());
+			assertEquals("value \"" + i + "\" \u00e4", in.nextString());
+			assertEquals("n", in.nextName());
+			assertEquals(i * 1000003L, in.nextLong());
+			assertEquals("b", in.nextName());
+			assertTrue(in.nextBoolean());
+			assertEquals("x", in.nextName());
+			in.nextNull();
+			in.skipValue();
+			in.endObject();
+			i++;
+		}
+		in.endArray();
+		assertEquals(JsonReader.Type.END_DOCUMENT, in.peek());
+		assertEquals(2000, i);
+	}
+}
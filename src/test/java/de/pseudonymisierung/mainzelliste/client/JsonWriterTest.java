@@ -0,0 +1,29 @@
+package de.pseudonymisierung.mainzelliste.client;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class JsonWriterTest {
+
+	/**
+	 * Numbers should be written as JSON numbers; values that JSON cannot
+	 * represent should be rejected.
+	 */
+	@Test
+	public void testNumbers() {
+		assertEquals("[1,-2.5,3.0,-9223372036854775808]",
+				new JsonWriter().value(Arrays.asList(1, -2.5, 3.0f, Long.MIN_VALUE)).toString());
+		for (Object value : Arrays.asList(Double.NaN, Double.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY)) {
+			try {
+				new JsonWriter().value(Collections.singletonMap("x", value));
+				fail("Non-finite number " + value + " was written");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 Working Group on Joint Research, University Medical Center
+ * Mainz Contact: info@osse-register.de
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7:
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Jersey (https://jersey.java.net) (or a modified version of that
+ * library), containing parts covered by the terms of the General Public
+ * License, version 2.0, the licensors of this Program grant you additional
+ * permission to convey the resulting work.
+ */
+package de.pseudonymisierung.mainzelliste.client;
+
+import java.io.StringReader;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process {@link Transport} that passes requests directly to a
+ * {@link Handler} without any network IO. Together with
+ * {@link InMemoryMainzelliste}, this allows to test and benchmark code that
+ * uses sessions and tokens without a Mainzelliste instance:
+ * 
+ * <pre>
+ * MainzellisteConnection connection = new MainzellisteConnection("http://localhost/", "apiKey",
+ *         new LoopbackTransport(new InMemoryMainzelliste()));
+ * </pre>
+ */
+public class LoopbackTransport implements Transport {
+
+    /**
+     * Handles requests made through a {@link LoopbackTransport}.
+     * Implementations must be thread safe.
+     */
+    public interface Handler {
+        /**
+         * Handle a request.
+         * 
+         * @param request
+         *            The request.
+         * @return The response.
+         * @throws MainzellisteNetworkException
+         *             To simulate a network error.
+         */
+        MainzellisteResponse handle(TransportRequest request) throws MainzellisteNetworkException;
+    }
+
+    /**
+     * The handler to which requests are passed.
+     */
+    private final Handler handler;
+
+    /**
+     * Number of requests executed by this transport.
+     */
+    private final AtomicLong requestCount = new AtomicLong();
+
+    /**
+     * Create a transport that passes requests to the given handler.
+     * 
+     * @param handler
+     *            The handler to which requests are passed.
+     */
+    public LoopbackTransport(Handler handler) {
+        if (handler == null)
+            throw new NullPointerException("Cannot create LoopbackTransport with handler null");
+        this.handler = handler;
+    }
+
+    @Override
+    public MainzellisteResponse execute(TransportRequest request) throws MainzellisteNetworkException {
+        requestCount.incrementAndGet();
+        MainzellisteResponse response = handler.handle(request);
+        // Apply response options like a network transport would
+        if (request.isStatusOnly() && response.getStatusCode() >= 200 && response.getStatusCode() < 300)
+            return new MainzellisteResponse(response.getStatusCode(), null);
+        if (response.getData().length() > request.getMaxResponseSize())
+            throw MainzellisteResponse.tooLarge(response.getData().length(), request.getMaxResponseSize());
+        return response;
+    }
+
+    @Override
+    public <T> T execute(TransportRequest request, ResponseHandler<T> responseHandler)
+            throws MainzellisteNetworkException {
+        requestCount.incrementAndGet();
+        MainzellisteResponse response = handler.handle(request);
+        // Streamed responses are not limited in size
+        return responseHandler.handle(response.getStatusCode(), new StringReader(response.getData()));
+    }
+
+    /**
+     * Get the number of requests executed by this transport.
+     * 
+     * @return The number of requests.
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+}
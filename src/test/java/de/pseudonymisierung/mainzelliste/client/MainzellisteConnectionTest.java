@@ -0,0 +1,172 @@
+package de.pseudonymisierung.mainzelliste.client;
+
+import static org.junit.Assert.*;
+
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * Test behavior of class MainzellisteConnection against an in-memory
+ * Mainzelliste.
+ */
+public class MainzellisteConnectionTest extends AbstractLoopbackTest {
+
+	/**
+	 * Requests should reach the transport with the headers required by
+	 * Mainzelliste.
+	 */
+	@Test
+	public void testRequestHeaders() throws Exception {
+		LoopbackTransport recorder = new LoopbackTransport(request -> {
+			assertEquals("apiKey", request.getHeaders().get("mainzellisteApiKey"));
+			assertEquals("application/json", request.getHeaders().get("Accept"));
+			assertEquals("http://localhost:8080/mainzelliste/sessions", request.getUri().toString());
+			return new MainzellisteResponse(201, "{\"sessionId\":\"abc\"}");
+		});
+		Session s = new MainzellisteConnection(MAINZELLISTE_URI, "apiKey", recorder).createSession();
+		assertEquals("abc", s.getId());
+	}
+
+	@Test
+	public void testMultiNode() throws Exception {
+		InMemoryMainzelliste other = new InMemoryMainzelliste();
+		AtomicBoolean firstDown = new AtomicBoolean();
+		AtomicBoolean secondDown = new AtomicBoolean();
+		MainzellisteConnection multi = new MainzellisteConnection(
+				Arrays.asList("http://node1:8080/mainzelliste", "http://node2:8080/mainzelliste"), "apiKey",
+				new LoopbackTransport(request -> {
+					boolean first = request.getUri().getHost().equals("node1");
+					if (first ? firstDown.get() : secondDown.get())
+						throw new MainzellisteNetworkException("Error while performing request",
+								new ConnectException("Connection refused"));
+					return (first ? mainzelliste : other).handle(request);
+				}));
+		multi.setRetrySettings(new RetrySettings().setMaxAttempts(1));
+		MainzellisteNode node1 = multi.getNodes().get(0);
+		MainzellisteNode node2 = multi.getNodes().get(1);
+		assertEquals(node1.getURI(), multi.getMainzellisteURI());
+
+		// New sessions fail over to the available node
+		secondDown.set(true);
+		for (int i = 0; i < 5; i++)
+			assertSame(node1, multi.createSession().getNode());
+		assertEquals(5, mainzelliste.getSessionCount());
+		assertEquals(0, other.getSessionCount());
+		assertFalse(node2.isAvailable());
+		assertTrue(node2.getFailureCount() >= 1);
+		assertEquals(5, node1.getSessionCount());
+		assertTrue(node1.getLatency(TimeUnit.NANOSECONDS) >= 0);
+
+		// Health checks follow the state of the nodes
+		secondDown.set(false);
+		firstDown.set(true);
+		multi.startHealthChecks(20);
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!node2.isAvailable() || node1.isAvailable()) {
+			assertTrue("Health checks did not update the nodes", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		multi.stopHealthChecks();
+
+		// Sessions and their tokens stay on their node
+		Session s = multi.createSessionAsync().get(10, TimeUnit.SECONDS);
+		assertSame(node2, s.getNode());
+		assertEquals("node2", s.getURI().getHost());
+		List<ID> ids = s.addPatient(new AddPatientToken().addField("vorname", "A").addIdType("pid"));
+		assertNotNull(other.getPatient(ids.get(0)));
+		assertNull(mainzelliste.getPatient(ids.get(0)));
+		assertSame(node2, multi.readSession(s.getId()).getNode());
+		assertSame(node2, multi.readSessionAsync(s.getId()).get(10, TimeUnit.SECONDS).getNode());
+		multi.close();
+	}
+
+	/**
+	 * Tokens should be validated and redeemed on the node that created them,
+	 * and each node should have its own circuit breaker.
+	 */
+	@Test
+	public void testMultiNodeTokens() throws Exception {
+		InMemoryMainzelliste other = new InMemoryMainzelliste();
+		other.addPatient(new Patient(Collections.singletonMap("vorname", "A"),
+				Collections.singletonList(new ID("pid", "ID1"))));
+		AtomicBoolean firstFailing = new AtomicBoolean();
+		LoopbackTransport.Handler handler = request -> {
+			boolean first = request.getUri().getHost().equals("node1");
+			if (first && firstFailing.get())
+				return new MainzellisteResponse(500, "Internal Server Error");
+			return (first ? mainzelliste : other).handle(request);
+		};
+		List<String> uris = Arrays.asList("http://node1:8080/mainzelliste", "http://node2:8080/mainzelliste");
+		MainzellisteConnection multi = new MainzellisteConnection(uris, "apiKey", new LoopbackTransport(handler));
+		multi.setCircuitBreakerSettings(new CircuitBreakerSettings().setWindowSize(2).setMinimumCalls(2)
+				.setOpenDuration(60000));
+		MainzellisteNode node1 = multi.getNodes().get(0);
+		MainzellisteNode node2 = multi.getNodes().get(1);
+		assertNotSame(node1.getCircuitBreaker(), node2.getCircuitBreaker());
+
+		// An open circuit on one node does not affect the other
+		firstFailing.set(true);
+		for (int i = 0; i < 2; i++)
+			assertEquals(500, multi.doRequest(MainzellisteConnection.RequestMethod.GET, node1.getURI().toString(), null)
+					.getStatusCode());
+		assertEquals(CircuitBreaker.State.OPEN, node1.getCircuitBreaker().getState());
+		assertFalse(node1.isAvailable());
+		Session s = multi.createSession();
+		assertSame(node2, s.getNode());
+		assertEquals(CircuitBreaker.State.CLOSED, node2.getCircuitBreaker().getState());
+
+		// Tokens are validated and redeemed on their node
+		String tempId = s.getTempId(new ID("pid", "ID1"), 2, Arrays.asList("vorname"), null);
+		Validator validator = multi.createValidator();
+		assertTrue(validator.checkTokenValid(tempId));
+		assertTrue(validator.checkTokenValidAsync(tempId).get(10, TimeUnit.SECONDS));
+		List<Patient> patients = new ArrayList<Patient>();
+		assertEquals(1, multi.readPatients(tempId, patients::add));
+		assertEquals("A", patients.get(0).getField("vorname"));
+
+		// Tokens of unknown origin are validated on each node
+		firstFailing.set(false);
+		MainzellisteConnection fresh = new MainzellisteConnection(uris, "apiKey", new LoopbackTransport(handler));
+		assertTrue(fresh.createValidator().checkTokenValid(tempId));
+		assertTrue(fresh.createValidator().checkTokenValidAsync(tempId).get(10, TimeUnit.SECONDS));
+		assertFalse(fresh.createValidator().checkTokenValid("unknown"));
+		assertFalse(fresh.createValidator().checkTokenValidAsync("unknown").get(10, TimeUnit.SECONDS));
+		multi.close();
+		fresh.close();
+	}
+
+	/**
+	 * Entities of successful status-only requests should be discarded and
+	 * entities beyond the maximum size rejected.
+	 */
+	@Test
+	public void testResponseHandling() throws Exception {
+		Session s = connection.createSession();
+		MainzellisteResponse response = connection.doStatusRequest(MainzellisteConnection.RequestMethod.GET,
+				s.getURI().toString());
+		assertEquals(200, response.getStatusCode());
+		assertEquals("", response.getData());
+		response = connection.doStatusRequest(MainzellisteConnection.RequestMethod.GET, "sessions/unknown/");
+		assertEquals(404, response.getStatusCode());
+		assertFalse("Entity of error response was discarded", response.getData().isEmpty());
+
+		for (int i = 0; i < 10; i++)
+			s.getTempId(new ID("pid", "ID" + i));
+		connection.setMaxResponseSize(1000);
+		try {
+			connection.doRequest(MainzellisteConnection.RequestMethod.GET, s.getURI().resolve("tokens/").toString(), null);
+			fail("Response beyond maximum size was accepted");
+		} catch (MainzellisteNetworkException e) {
+			// expected
+		}
+		// Streamed responses are not limited
+		assertEquals(10, connection.readSession(s.getId()).getTempIds().size());
+	}
+}
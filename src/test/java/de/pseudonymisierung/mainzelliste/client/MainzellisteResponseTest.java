@@ -0,0 +1,23 @@
+package de.pseudonymisierung.mainzelliste.client;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class MainzellisteResponseTest {
+
+	/**
+	 * Top level members should be read from the entity and the parsed entity
+	 * should be cached.
+	 */
+	@Test
+	public void testGetString() throws Exception {
+		MainzellisteResponse response = new MainzellisteResponse(201,
+				"{\"id\":\"abc\",\"data\":{\"id\":\"nested\"},\"allowedUses\":3}");
+		assertEquals("abc", response.getString("id"));
+		assertEquals("3", response.getString("allowedUses"));
+		assertNull(response.getString("data"));
+		assertNull(response.getString("unknown"));
+		assertSame("Parsed entity was not cached", response.getDataJSON(), response.getDataJSON());
+	}
+}
@@ -0,0 +1,107 @@
+package de.pseudonymisierung.mainzelliste.client;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+/**
+ * Test behavior of class PatientBulkEdit against an in-memory Mainzelliste.
+ */
+public class PatientBulkEditTest extends AbstractLoopbackTest {
+
+	@Test
+	public void testPatientBulkEdit() throws Exception {
+		for (int i = 0; i < 20; i++) {
+			Map<String, String> fields = new LinkedHashMap<String, String>();
+			fields.put("vorname", "Vorname" + i);
+			fields.put("nachname", "Nachnmae" + i);
+			mainzelliste.addPatient(new Patient(fields, Arrays.asList(new ID("pid", "ID" + i), new ID("extid", "E" + i))));
+		}
+		Session s = connection.createSession();
+		AuditTrailLog log = new AuditTrailLog();
+		log.setUsername("test");
+		log.setReasonForChange("typo");
+		List<PatientEdit> edits = new ArrayList<PatientEdit>();
+		for (int i = 0; i < 21; i++)
+			edits.add(new PatientEdit(new ID("pid", "ID" + i), Collections.singletonMap("nachname", "Nachname" + i),
+					i == 5 ? Collections.singletonMap("extid", "X5") : null, log));
+		List<PatientEdit> reported = Collections.synchronizedList(new ArrayList<PatientEdit>());
+
+		PatientBulkEdit.Result result = new PatientBulkEdit(s).setParallelism(4)
+				.setListener((edit, e) -> reported.add(edit)).run(edits);
+		assertEquals(20, result.getEditedCount());
+		assertFalse(result.isComplete());
+		MainzellisteNetworkException e = (MainzellisteNetworkException) result.getFailures().get(edits.get(20));
+		assertEquals(404, e.getErrorResponse().getStatusCode());
+		assertEquals(21, reported.size());
+		assertTrue(result.getThroughput() > 0);
+		assertEquals("Nachname7", mainzelliste.getPatient(new ID("pid", "ID7")).getField("nachname"));
+		assertEquals("Vorname7", mainzelliste.getPatient(new ID("pid", "ID7")).getField("vorname"));
+		assertEquals("X5", mainzelliste.getPatient(new ID("pid", "ID5")).getId("extid").getIdString());
+		assertNull(mainzelliste.getPatient(new ID("extid", "E5")));
+		// Tokens are created and redeemed per edit
+		assertEquals(0, mainzelliste.getTokenCount(s.getId()));
+
+		// The token permits exactly the changed fields
+		EditPatientToken token = edits.get(5).createToken();
+		token.setFieldsToEdit(Collections.<String>emptySet());
+		try {
+			connection.editPatient(s.getToken(token), edits.get(5).getChanges());
+			fail("Edit of a field not permitted by the token was accepted");
+		} catch (MainzellisteNetworkException ex) {
+			assertEquals(400, ex.getErrorResponse().getStatusCode());
+		}
+	}
+
+	/**
+	 * Every edit should be accounted for when run() returns, even if the
+	 * requests complete on other threads.
+	 */
+	@Test
+	public void testPatientBulkEditAsyncTransport() throws Exception {
+		for (int i = 0; i < 8; i++)
+			mainzelliste.addPatient(new Patient(Collections.singletonMap("nachname", "N" + i),
+					Collections.singletonList(new ID("pid", "ID" + i))));
+		MainzellisteConnection async = new MainzellisteConnection(MAINZELLISTE_URI, "apiKey",
+				new LoopbackTransport(mainzelliste) {
+					@Override
+					public CompletableFuture<MainzellisteResponse> executeAsync(TransportRequest request) {
+						CompletableFuture<MainzellisteResponse> future = new CompletableFuture<MainzellisteResponse>();
+						CompletableFuture.runAsync(() -> {
+							try {
+								future.complete(execute(request));
+							} catch (MainzellisteNetworkException e) {
+								future.completeExceptionally(e);
+							}
+						});
+						return future;
+					}
+				});
+		Session s = async.createSession();
+		List<PatientEdit> edits = new ArrayList<PatientEdit>();
+		for (int i = 0; i < 8; i++)
+			edits.add(new PatientEdit(new ID("pid", "ID" + i), Collections.singletonMap("nachname", "M" + i), null,
+					new AuditTrailLog()));
+		List<PatientEdit> reported = Collections.synchronizedList(new ArrayList<PatientEdit>());
+
+		PatientBulkEdit.Result result = new PatientBulkEdit(s).setParallelism(2).setListener((edit, e) -> {
+			try {
+				// Delay the accounting of each edit past the completion of its request
+				Thread.sleep(20);
+			} catch (InterruptedException ignored) {
+				Thread.currentThread().interrupt();
+			}
+			reported.add(edit);
+		}).run(edits);
+		assertEquals(8, result.getEditedCount());
+		assertEquals(8, reported.size());
+	}
+}
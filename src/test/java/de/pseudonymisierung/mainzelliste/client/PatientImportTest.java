@@ -0,0 +1,79 @@
+package de.pseudonymisierung.mainzelliste.client;
+
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Test behavior of class PatientImport against an in-memory Mainzelliste.
+ */
+public class PatientImportTest extends AbstractLoopbackTest {
+
+	/**
+	 * A bulk import should create patients from CSV and NDJSON, write their
+	 * ids and resume after failures from the checkpoint.
+	 */
+	@Test
+	public void testPatientImport() throws Exception {
+		Session s = connection.createSession();
+		StringBuilder csv = new StringBuilder("vorname,nachname,extid\n");
+		for (int i = 0; i < 50; i++)
+			csv.append("\"Vor,name\n").append(i).append("\",\"Nach\"\"name\",E").append(i).append('\n');
+		Path checkpoint = Files.createTempFile("import", ".checkpoint");
+		Files.delete(checkpoint);
+		PatientImport patientImport = new PatientImport(s).setIdTypes(Arrays.asList("pid"))
+				.setExternalIdTypes(Arrays.asList("extid")).setParallelism(4).setCheckpoint(checkpoint)
+				.setCheckpointInterval(10);
+
+		// First run: records 20 to 29 fail
+		PatientImport failing = new PatientImport(s).setParallelism(4).setCheckpoint(checkpoint)
+				.setMapper(record -> {
+					int i = Integer.parseInt(record.get("extid").substring(1));
+					if (i >= 20 && i < 30)
+						throw new IllegalArgumentException("Record " + i);
+					return new AddPatientToken().addIdType("pid").addExternalId("extid", record.get("extid"))
+							.addField("vorname", record.get("vorname"));
+				});
+		StringWriter out = new StringWriter();
+		PatientImport.Result result = failing.run(new StringReader(csv.toString()), out);
+		assertEquals(40, result.getImportedCount());
+		assertEquals(10, result.getFailures().size());
+		assertTrue(result.getFailures().containsKey(25L));
+
+		// Second run: only the failed records are imported
+		result = patientImport.run(new StringReader(csv.toString()), out);
+		assertTrue(result.isComplete());
+		assertEquals(10, result.getImportedCount());
+		assertEquals(40, result.getSkippedCount());
+		String[] lines = out.toString().split("\n");
+		assertEquals("record,idType,idString", lines[0]);
+		assertEquals(1 + 50 * 2, lines.length);
+		assertTrue(out.toString().contains("\n25,extid,E25\n"));
+		assertEquals(0, patientImport.run(new StringReader(csv.toString()), out).getImportedCount());
+
+		List<Patient> read = new ArrayList<Patient>();
+		s.readPatients(new ReadPatientsToken().addSearchId(new ID("extid", "E7")).addResultField("vorname")
+				.addResultField("nachname"), read::add);
+		assertEquals("Vor,name\n7", read.get(0).getField("vorname"));
+		assertNull("Mapper should only add vorname", read.get(0).getField("nachname"));
+		read.clear();
+		s.readPatients(new ReadPatientsToken().addSearchId(new ID("extid", "E25")).addResultField("nachname"),
+				read::add);
+		assertEquals("Nach\"name", read.get(0).getField("nachname"));
+		Files.delete(checkpoint);
+
+		out = new StringWriter();
+		result = new PatientImport(s).setFormat(RecordFormat.NDJSON).run(
+				new StringReader("{\"vorname\": \"A\", \"geburtsjahr\": 1970}\n\n{\"vorname\": \"B\"}\n"), out);
+		assertEquals(2, result.getImportedCount());
+		assertEquals(3, out.toString().split("\n").length);
+	}
+}
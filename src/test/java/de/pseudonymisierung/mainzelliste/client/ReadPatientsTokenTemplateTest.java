@@ -0,0 +1,72 @@
+package de.pseudonymisierung.mainzelliste.client;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Test behavior of class ReadPatientsTokenTemplate.
+ */
+public class ReadPatientsTokenTemplateTest extends AbstractLoopbackTest {
+
+	/**
+	 * Tokens created from a template should equal tokens built individually
+	 * and be used for temp-ids of the default shape.
+	 */
+	@Test
+	public void testReadPatientsTokenTemplate() throws Exception {
+		AuditTrailLog auditTrailLog = new AuditTrailLog();
+		auditTrailLog.setReasonForChange("\"quoted\" \u00e4nderung");
+		ReadPatientsTokenTemplate template = new ReadPatientsTokenTemplate(2, Arrays.asList("vorname"),
+				Arrays.asList("pid"), auditTrailLog);
+		ID id = new ID("pid", "0003Y0WZ");
+		ReadPatientsToken token = new ReadPatientsToken();
+		token.setAllowedUses(2);
+		token.addResultField("vorname");
+		token.addResultId("pid");
+		token.addSearchId(id);
+		token.setAuditTrailLog(auditTrailLog);
+		assertEquals(token.toJSON().toString(), template.forId(id).toJSON().toString());
+
+		Session s = connection.createSession();
+		s.setDefaultResultFields(Arrays.asList("vorname"));
+		s.setDefaultResultIds(Arrays.asList("pid"));
+		String tempId = s.getTempId(id);
+		assertEquals("Temp-id from template does not match explicit request", tempId,
+				s.getTempId(id, 1, Arrays.asList("vorname"), Arrays.asList("pid")));
+		assertEquals(id, connection.readSession(s.getId()).getId(tempId));
+	}
+
+	/**
+	 * Temp-ids created from the default template should go through the
+	 * overridable token methods of the session.
+	 */
+	@Test
+	public void testTemplateUsesHooks() throws Exception {
+		AtomicInteger calls = new AtomicInteger();
+		Session s = new Session(connection.createSession().getId(), connection) {
+			@Override
+			protected String getReadPatientsToken(ID id, int allowedUses, Collection<String> resultFields,
+					Collection<String> resultIds) throws MainzellisteNetworkException, InvalidSessionException {
+				calls.incrementAndGet();
+				return super.getReadPatientsToken(id, allowedUses, resultFields, resultIds);
+			}
+
+			@Override
+			protected CompletableFuture<String> getReadPatientsTokenAsync(ID id, int allowedUses,
+					Collection<String> resultFields, Collection<String> resultIds) {
+				calls.incrementAndGet();
+				return super.getReadPatientsTokenAsync(id, allowedUses, resultFields, resultIds);
+			}
+		};
+		s.setDefaultResultFields(Arrays.asList("vorname"));
+		s.getTempId(new ID("pid", "ID1"));
+		s.getTempIdAsync(new ID("pid", "ID2")).get();
+		assertEquals(2, calls.get());
+	}
+}
@@ -0,0 +1,118 @@
+package de.pseudonymisierung.mainzelliste.client;
+
+import static org.junit.Assert.*;
+
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Test retries of failed requests by class RequestRetrier.
+ */
+public class RequestRetrierTest extends AbstractLoopbackTest {
+
+	@Test
+	public void testRetry() throws Exception {
+		AtomicInteger unavailable = new AtomicInteger();
+		AtomicInteger unreachable = new AtomicInteger();
+		MainzellisteConnection flaky = connect(request -> {
+			if (unreachable.getAndDecrement() > 0)
+				throw new MainzellisteNetworkException("Error while performing request",
+						new ConnectException("Connection refused"));
+			if (unavailable.getAndDecrement() > 0)
+				return new MainzellisteResponse(503, "Service Unavailable");
+			return mainzelliste.handle(request);
+		});
+		flaky.setRetrySettings(new RetrySettings().setInitialBackoff(1).setBudgetCapacity(5));
+		RetryMetrics metrics = flaky.getRetryMetrics();
+
+		// Session creation is retried on 503
+		unavailable.set(2);
+		Session s = flaky.createSession();
+		assertEquals(2, metrics.getRetryCount());
+		assertEquals(1, metrics.getRecoveryCount());
+		unavailable.set(1);
+		assertNotNull(flaky.createSessionAsync().get(10, TimeUnit.SECONDS));
+		assertEquals(3, metrics.getRetryCount());
+
+		// Token creation is only retried if the request was not sent
+		unavailable.set(1);
+		try {
+			s.getToken(new AddPatientToken());
+			fail("Token creation was retried after status 503");
+		} catch (MainzellisteNetworkException e) {
+			assertEquals(503, e.getErrorResponse().getStatusCode());
+		}
+		unreachable.set(1);
+		assertNotNull(s.getToken(new AddPatientToken()));
+		assertEquals(4, metrics.getRetryCount());
+
+		// Streaming requests are retried before the response is passed on
+		mainzelliste.addPatient(new Patient(Collections.singletonMap("vorname", "A"), Arrays.asList(new ID("pid", "A"))));
+		ReadPatientsToken token = new ReadPatientsToken();
+		token.addSearchId(new ID("pid", "A"));
+		String tokenId = s.getToken(token);
+		List<Patient> patients = new ArrayList<Patient>();
+		unavailable.set(1);
+		assertEquals(1, flaky.readPatients(tokenId, patients::add));
+		assertEquals(1, patients.size());
+		assertEquals(5, metrics.getRetryCount());
+
+		// Attempts and budget are limited
+		flaky.setRetrySettings(new RetrySettings().setInitialBackoff(1).setMaxAttempts(3));
+		unavailable.set(3);
+		assertEquals(503, flaky.doRequest(MainzellisteConnection.RequestMethod.GET, "sessions/" + s.getId(), null).getStatusCode());
+		assertEquals(7, metrics.getRetryCount());
+		assertEquals(1, metrics.getExhaustionCount());
+		flaky.setRetrySettings(new RetrySettings().setInitialBackoff(1).setBudgetCapacity(1));
+		unavailable.set(3);
+		assertEquals(503, flaky.doRequest(MainzellisteConnection.RequestMethod.GET, "sessions/" + s.getId(), null).getStatusCode());
+		assertEquals(8, metrics.getRetryCount());
+		assertEquals(1, metrics.getBudgetExhaustionCount());
+	}
+
+	/**
+	 * A PUT request redeems a single-use "editPatient" token, so it must not
+	 * be repeated once it may have reached Mainzelliste.
+	 */
+	@Test
+	public void testPutNotRetried() throws Exception {
+		AtomicInteger puts = new AtomicInteger();
+		AtomicBoolean reset = new AtomicBoolean();
+		MainzellisteConnection flaky = connect(request -> {
+			MainzellisteResponse response = mainzelliste.handle(request);
+			if (request.getMethod() != MainzellisteConnection.RequestMethod.PUT)
+				return response;
+			puts.incrementAndGet();
+			// The edit has been applied, but the response is lost
+			if (reset.get())
+				throw new MainzellisteNetworkException("Error while performing request",
+						new SocketException("Connection reset"));
+			return new MainzellisteResponse(503, "Service Unavailable");
+		});
+		flaky.setRetrySettings(new RetrySettings().setInitialBackoff(1));
+		mainzelliste.addPatient(new Patient(Collections.singletonMap("vorname", "A"), Arrays.asList(new ID("pid", "A"))));
+		Session s = flaky.createSession();
+		PatientEdit edit = new PatientEdit(new ID("pid", "A"), Collections.singletonMap("vorname", "B"), null, null);
+		for (boolean ioError : new boolean[] { false, true }) {
+			reset.set(ioError);
+			try {
+				s.editPatient(edit);
+				fail("Failed edit succeeded");
+			} catch (MainzellisteNetworkException e) {
+				// expected
+			}
+		}
+		assertEquals(2, puts.get());
+		assertEquals(0, flaky.getRetryMetrics().getRetryCount());
+		assertEquals("B", mainzelliste.getPatient(new ID("pid", "A")).getField("vorname"));
+	}
+}
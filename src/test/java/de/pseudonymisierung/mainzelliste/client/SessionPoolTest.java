@@ -0,0 +1,118 @@
+package de.pseudonymisierung.mainzelliste.client;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * Test behavior of class SessionPool against an in-memory Mainzelliste.
+ */
+public class SessionPoolTest extends AbstractLoopbackTest {
+
+	/**
+	 * A session pool should reuse released sessions, replace invalidated ones
+	 * and destroy its sessions when closed.
+	 */
+	@Test
+	public void testSessionPool() throws Exception {
+		SessionPoolSettings settings = new SessionPoolSettings().setMinIdle(1).setMaxTotal(2).setMaxWait(100);
+		SessionPool pool = new SessionPool(connection, settings);
+		try {
+			Session first = pool.lease();
+			pool.release(first);
+			assertSame("Released session was not reused", first, pool.lease());
+
+			Session second = pool.lease();
+			assertNotSame(first, second);
+			assertEquals(2, pool.getLeasedCount());
+			try {
+				pool.lease();
+				fail("Lease beyond maximum number of sessions should fail");
+			} catch (MainzellisteNetworkException e) {
+				// expected
+			}
+
+			pool.invalidate(second);
+			Session replacement = pool.lease();
+			assertNotSame(second, replacement);
+			pool.release(replacement);
+			pool.release(first);
+			assertEquals(0, pool.getLeasedCount());
+		} finally {
+			pool.close();
+		}
+		assertEquals(0, pool.getIdleCount());
+		assertEquals(1, mainzelliste.getSessionCount()); // the invalidated session is left to the server
+	}
+
+	/**
+	 * A thread waiting for a session should be woken up when a leased session
+	 * is invalidated and capacity for a new one becomes free.
+	 */
+	@Test
+	public void testLeaseWaitsForInvalidate() throws Exception {
+		SessionPoolSettings settings = new SessionPoolSettings().setMinIdle(0).setMaxTotal(1).setMaxWait(10000);
+		SessionPool pool = new SessionPool(connection, settings);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Session first = pool.lease();
+			Future<Session> waiting = executor.submit(pool::lease);
+			Thread.sleep(100);
+			assertFalse(waiting.isDone());
+			long start = System.nanoTime();
+			pool.invalidate(first);
+			Session replacement = waiting.get(10, TimeUnit.SECONDS);
+			assertNotSame(first, replacement);
+			assertTrue("Waiting thread was not woken up",
+					System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(5000));
+			pool.release(replacement);
+		} finally {
+			executor.shutdown();
+			pool.close();
+		}
+	}
+
+	/**
+	 * Maintenance should keep idle sessions whose validation fails with a
+	 * server error, and remove sessions that have expired.
+	 */
+	@Test
+	public void testValidation() throws Exception {
+		AtomicBoolean serverError = new AtomicBoolean(true);
+		MainzellisteConnection failing = connect(request -> {
+			if (serverError.get() && request.getMethod() == MainzellisteConnection.RequestMethod.GET)
+				return new MainzellisteResponse(500, "Internal server error");
+			return mainzelliste.handle(request);
+		});
+		SessionPoolSettings settings = new SessionPoolSettings().setMinIdle(1).setMaxTotal(1).setMaxWait(5000)
+				.setValidationInterval(20);
+		SessionPool pool = new SessionPool(failing, settings);
+		try {
+			Session session = pool.lease();
+			pool.release(session);
+			Thread.sleep(200);
+			assertEquals("Session was dropped after server error", 1, pool.getIdleCount());
+			assertSame(session, pool.lease());
+			pool.release(session);
+
+			serverError.set(false);
+			connection.readSession(session.getId()).destroy();
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			Session replacement;
+			while ((replacement = pool.lease()) == session) {
+				pool.release(session);
+				assertTrue("Expired session was not replaced", System.nanoTime() < deadline);
+				Thread.sleep(20);
+			}
+			pool.release(replacement);
+		} finally {
+			pool.close();
+		}
+	}
+}
@@ -0,0 +1,373 @@
+package de.pseudonymisierung.mainzelliste.client;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test behavior of class Session against an in-memory Mainzelliste, connected
+ * through a LoopbackTransport.
+ */
+public class SessionTest extends AbstractLoopbackTest {
+
+	/**
+	 * Temp-ids should be cached, so that only the first call makes a request.
+	 */
+	@Test
+	public void testGetTempId() throws Exception {
+		Session s = connection.createSession();
+		s.setDefaultResultFields(Arrays.asList("vorname", "nachname"));
+		s.setDefaultResultIds(Arrays.asList("pid"));
+		ID id = new ID("pid", "0003Y0WZ");
+		long requestsBefore = transport.getRequestCount();
+		String tempId = s.getTempId(id);
+		assertNotNull(tempId);
+		assertEquals("Cached temp-id differs", tempId, s.getTempId(id));
+		assertEquals("Cached temp-id caused a request", requestsBefore + 1, transport.getRequestCount());
+		assertEquals(id, s.getId(tempId));
+		assertEquals(1, mainzelliste.getTokenCount(s.getId()));
+	}
+
+	/**
+	 * Reading a session should restore its temp-ids.
+	 */
+	@Test
+	public void testReadSession() throws Exception {
+		Session s = connection.createSession();
+		ID id = new ID("pid", "0003Y0WZ");
+		String tempId = s.getTempId(id);
+		Session restored = connection.readSession(s.getId());
+		assertEquals(id, restored.getId(tempId));
+		assertEquals(tempId, restored.getTempId(id));
+	}
+
+	/**
+	 * A destroyed session should be invalid and fail on further requests.
+	 */
+	@Test
+	public void testDestroy() throws Exception {
+		Session s = connection.createSession();
+		assertTrue(s.isValid());
+		s.destroy();
+		assertFalse(s.isValid());
+		assertEquals(0, mainzelliste.getSessionCount());
+		try {
+			connection.readSession(s.getId());
+			fail("Reading a destroyed session should fail");
+		} catch (InvalidSessionException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * The asynchronous API should give the same results as the blocking one.
+	 */
+	@Test
+	public void testAsync() throws Exception {
+		Session s = connection.createSessionAsync().get();
+		ID id = new ID("pid", "0003Y0WZ");
+		String tempId = s.getTempIdAsync(id).get();
+		assertEquals(tempId, s.getTempId(id));
+		assertTrue(connection.createValidator().checkTokenValidAsync(tempId).get());
+	}
+
+	/**
+	 * Batch resolution should return cached and new temp-ids and report
+	 * failures per ID.
+	 */
+	@Test
+	public void testGetTempIds() throws Exception {
+		MainzellisteConnection failing = connect(request -> {
+			String body = request.getBodyAsString();
+			if (body != null && body.contains("broken"))
+				throw new MainzellisteNetworkException("Connection reset");
+			return mainzelliste.handle(request);
+		});
+		Session s = failing.createSession();
+		s.setMaxConcurrentRequests(3);
+		List<ID> ids = new ArrayList<ID>();
+		for (int i = 0; i < 20; i++)
+			ids.add(new ID("pid", "ID" + i));
+		String cached = s.getTempId(ids.get(0));
+		ID broken = new ID("pid", "broken");
+		ids.add(broken);
+
+		BatchResult<ID, String> result = s.getTempIds(ids);
+		assertEquals(20, result.size());
+		assertEquals(cached, result.get(ids.get(0)));
+		assertFalse(result.isComplete());
+		assertEquals(1, result.getFailures().size());
+		assertTrue(result.getFailures().get(broken) instanceof MainzellisteNetworkException);
+		assertEquals(20, mainzelliste.getTokenCount(s.getId()));
+	}
+
+	/**
+	 * Threads asking for the temp-id of the same patient at the same time
+	 * should cause exactly one request.
+	 */
+	@Test
+	public void testConcurrentGetTempId() throws Exception {
+		int threads = 8;
+		CountDownLatch allWaiting = new CountDownLatch(threads);
+		MainzellisteConnection slow = connect(request -> {
+			if (request.getUri().getPath().endsWith("/tokens/")) {
+				try {
+					// Give the other threads time to join the request
+					allWaiting.await(1, TimeUnit.SECONDS);
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					throw new MainzellisteNetworkException(e);
+				}
+			}
+			return mainzelliste.handle(request);
+		});
+		Session s = slow.createSession();
+		ID id = new ID("pid", "0003Y0WZ");
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for (int i = 0; i < threads; i++) {
+				results.add(executor.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						allWaiting.countDown();
+						return s.getTempId(id);
+					}
+				}));
+			}
+			String tempId = results.get(0).get();
+			for (Future<String> result : results)
+				assertEquals(tempId, result.get());
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals("Concurrent requests were not coalesced", 1, mainzelliste.getTokenCount(s.getId()));
+	}
+
+	/**
+	 * Threads joining a pending request should each count one use of the
+	 * temp-id, and get a new one once it is exhausted.
+	 */
+	@Test
+	public void testConcurrentGetTempIdCountsUses() throws Exception {
+		int threads = 4;
+		CountDownLatch allWaiting = new CountDownLatch(threads);
+		MainzellisteConnection slow = connect(request -> {
+			if (request.getUri().getPath().endsWith("/tokens/")) {
+				try {
+					allWaiting.await(1, TimeUnit.SECONDS);
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					throw new MainzellisteNetworkException(e);
+				}
+			}
+			return mainzelliste.handle(request);
+		});
+		Session s = slow.createSession();
+		s.setTempIdCache(new TempIdCache(100, 0, TimeUnit.MILLISECONDS, true));
+		s.setDefaultAllowedUses(2);
+		ID id = new ID("pid", "0003Y0WZ");
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for (int i = 0; i < threads; i++) {
+				results.add(executor.submit(() -> {
+					allWaiting.countDown();
+					return s.getTempId(id);
+				}));
+			}
+			Map<String, Integer> uses = new HashMap<String, Integer>();
+			for (Future<String> result : results)
+				uses.merge(result.get(), 1, Integer::sum);
+			assertEquals(2, uses.size());
+			for (int count : uses.values())
+				assertEquals("Temp-id was handed out more often than allowed", 2, count);
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(2, mainzelliste.getTokenCount(s.getId()));
+	}
+
+	/**
+	 * Temp-ids should only be reused for requests with the same result fields,
+	 * result ids and allowed uses.
+	 */
+	@Test
+	public void testTempIdsByShape() throws Exception {
+		Session s = connection.createSession();
+		ID id = new ID("pid", "0003Y0WZ");
+		String narrow = s.getTempId(id, 1, Arrays.asList("vorname"), Arrays.asList("pid"));
+		String wide = s.getTempId(id, 1, Arrays.asList("vorname", "nachname"), Arrays.asList("pid"));
+		assertNotEquals("Temp-id for narrow field set was reused for wide one", narrow, wide);
+		assertEquals("Field order should not matter", wide,
+				s.getTempId(id, 1, Arrays.asList("nachname", "vorname"), Arrays.asList("pid")));
+		assertEquals(id, s.getId(narrow));
+		assertEquals(id, s.getId(wide));
+
+		Session restored = connection.readSession(s.getId());
+		assertEquals(narrow, restored.getTempId(id, 1, Arrays.asList("vorname"), Arrays.asList("pid")));
+		assertEquals(wide, restored.getTempId(id, 1, Arrays.asList("vorname", "nachname"), Arrays.asList("pid")));
+
+		s.removeTempId(id);
+		assertEquals(0, mainzelliste.getTokenCount(s.getId()));
+	}
+
+	/**
+	 * Validity should be derived from the outcome of requests on the session
+	 * within the validity window.
+	 */
+	@Test
+	public void testCachedValidity() throws Exception {
+		Session s = connection.createSession();
+		s.setValidityWindow(TimeUnit.MINUTES.toMillis(5));
+		long requestsBefore = transport.getRequestCount();
+		assertTrue(s.isValid());
+		assertEquals("Recently seen session was probed", requestsBefore, transport.getRequestCount());
+
+		// Session expires on the server
+		connection.readSession(s.getId()).destroy();
+		try {
+			s.getTempId(new ID("pid", "0003Y0WZ"));
+			fail("Request on expired session should fail");
+		} catch (InvalidSessionException e) {
+			// expected
+		}
+		requestsBefore = transport.getRequestCount();
+		assertFalse(s.isValid());
+		assertEquals("Session known to be invalid was probed", requestsBefore, transport.getRequestCount());
+	}
+
+	/**
+	 * A lazily read session should restore its temp-ids on first access and
+	 * ignore tokens that are not temp-ids.
+	 */
+	@Test
+	public void testLazyReadSession() throws Exception {
+		Session s = connection.createSession();
+		List<String> tempIds = new ArrayList<String>();
+		for (int i = 0; i < 3; i++)
+			tempIds.add(s.getTempId(new ID("pid", "ID" + i)));
+		s.getAddPatientToken(null, "https://mdat.example.org/{pid}");
+		s.getToken(new ReadPatientsToken().addSearchId(new ID("pid", "A")).addSearchId(new ID("pid", "B")));
+
+		Session restored = connection.readSession(s.getId(), true);
+		assertEquals(new ID("pid", "ID1"), restored.getId(tempIds.get(1)));
+		assertEquals(3, restored.getTempIds().size());
+		assertEquals(tempIds.get(2), restored.getTempId(new ID("pid", "ID2")));
+	}
+
+	/**
+	 * Malformed token lists should fail with library exceptions, when read
+	 * eagerly as well as on first access of a lazily read session.
+	 */
+	@Test
+	public void testMalformedTokens() throws Exception {
+		Session s = connection.createSession();
+		MainzellisteConnection malformed = connect(request -> {
+			if (request.getUri().getPath().endsWith("/tokens/"))
+				return new MainzellisteResponse(200, "[{\"type\": \"readPatients\", ");
+			return mainzelliste.handle(request);
+		});
+		try {
+			malformed.readSession(s.getId());
+			fail("Malformed token list was accepted");
+		} catch (MainzellisteNetworkException e) {
+			// expected
+		}
+		Session lazy = malformed.readSession(s.getId(), true);
+		try {
+			lazy.getTempIds();
+			fail("Malformed token list was accepted");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getCause() instanceof MainzellisteNetworkException);
+		}
+		// The broken list is discarded
+		assertTrue(lazy.getTempIds().isEmpty());
+	}
+
+	/**
+	 * Batch read tokens should cover chunks of the given IDs and not be
+	 * treated as temp-ids.
+	 */
+	@Test
+	public void testReadPatientsTokens() throws Exception {
+		Session s = connection.createSession();
+		List<ID> ids = new ArrayList<ID>();
+		for (int i = 0; i < 10; i++)
+			ids.add(new ID("pid", "ID" + i));
+		ids.add(new ID("pid", "ID0"));
+		BatchResult<List<ID>, String> tokens = s.getReadPatientsTokens(ids, 4);
+		assertTrue(tokens.isComplete());
+		assertEquals(3, tokens.size());
+		List<ID> covered = new ArrayList<ID>();
+		List<Integer> sizes = new ArrayList<Integer>();
+		for (List<ID> chunk : tokens.keySet()) {
+			covered.addAll(chunk);
+			sizes.add(chunk.size());
+		}
+		assertEquals(ids.subList(0, 10), covered);
+		assertEquals(Arrays.asList(4, 4, 2), sizes);
+		assertEquals(3, new HashSet<String>(tokens.values()).size());
+		assertEquals(3, mainzelliste.getTokenCount(s.getId()));
+		assertTrue(s.getTempIds().isEmpty());
+		assertTrue(connection.readSession(s.getId()).getTempIds().isEmpty());
+	}
+
+	/**
+	 * Redeeming readPatients tokens should stream the permitted fields and ids
+	 * of the covered patients.
+	 */
+	@Test
+	public void testReadPatients() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			Map<String, String> fields = new LinkedHashMap<String, String>();
+			fields.put("vorname", "Vorname \"" + i + "\"");
+			fields.put("nachname", "Nachname" + i);
+			mainzelliste.addPatient(new Patient(fields, Arrays.asList(new ID("pid", "ID" + i), new ID("intid", "" + i))));
+		}
+		Session s = connection.createSession();
+		s.setDefaultResultFields(Arrays.asList("vorname"));
+		s.setDefaultResultIds(Arrays.asList("pid"));
+		List<ID> ids = new ArrayList<ID>();
+		for (int i = 0; i < 6; i++)
+			ids.add(new ID("pid", "ID" + i));
+		BatchResult<List<ID>, String> tokens = s.getReadPatientsTokens(ids, 4);
+
+		List<Patient> patients = new ArrayList<Patient>();
+		long count = 0;
+		for (String tokenId : tokens.values())
+			count += connection.readPatients(tokenId, patients::add);
+		assertEquals(5, count);
+		assertEquals(5, patients.size());
+		assertEquals("Vorname \"3\"", patients.get(3).getField("vorname"));
+		assertNull(patients.get(3).getField("nachname"));
+		assertEquals(Arrays.asList(new ID("pid", "ID3")), patients.get(3).getIds());
+		assertEquals(new ID("pid", "ID3"), patients.get(3).getId("pid"));
+
+		try {
+			connection.readPatients(tokens.values().iterator().next(), patients::add);
+			fail("Redeemed token was accepted again");
+		} catch (MainzellisteNetworkException e) {
+			assertEquals(401, e.getErrorResponse().getStatusCode());
+		}
+
+		ReadPatientsToken t = new ReadPatientsToken().addSearchId(new ID("pid", "ID1")).addResultField("nachname");
+		List<Patient> read = new ArrayList<Patient>();
+		assertEquals(1, s.readPatients(t, read::add));
+		assertEquals("Nachname1", read.get(0).getField("nachname"));
+	}
+}
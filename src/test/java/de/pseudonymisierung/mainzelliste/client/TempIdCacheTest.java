@@ -0,0 +1,42 @@
+package de.pseudonymisierung.mainzelliste.client;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test behavior of class TempIdCache used by a session.
+ */
+public class TempIdCacheTest extends AbstractLoopbackTest {
+
+	/**
+	 * A bounded cache should evict least recently used temp-ids and reissue
+	 * exhausted ones.
+	 */
+	@Test
+	public void testBoundedTempIdCache() throws Exception {
+		Session s = connection.createSession();
+		TempIdCache cache = new TempIdCache(2, 1, TimeUnit.HOURS, true);
+		s.setTempIdCache(cache);
+		s.setDefaultAllowedUses(2);
+		ID id1 = new ID("pid", "1");
+		ID id2 = new ID("pid", "2");
+		ID id3 = new ID("pid", "3");
+
+		String tempId1 = s.getTempId(id1);
+		assertEquals("Temp-id with remaining uses was not reused", tempId1, s.getTempId(id1));
+		String reissued = s.getTempId(id1);
+		assertNotEquals("Exhausted temp-id was reused", tempId1, reissued);
+		assertEquals(1, cache.getExhaustionCount());
+
+		s.getTempId(id2);
+		s.getTempId(id3);
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+		assertNull("Evicted temp-id can still be resolved", s.getId(reissued));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(4, cache.getMissCount());
+	}
+}